@@ -0,0 +1,85 @@
+package com.kaishui.entitlement.bench;
+
+import com.kaishui.entitlement.util.AdGroupDictionary;
+import com.kaishui.entitlement.util.AdGroupSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AD-group intersection between a user and a resource: interned bitsets, bitset against a raw list
+ * (what the Mongo checker does per resource), and a plain list scan as the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AdGroupIntersectionBenchmark {
+
+    private static final int UNIVERSE = 5000;
+
+    @Param({"5", "50", "500"})
+    public int userGroups;
+
+    @Param({"5", "50"})
+    public int resourceGroups;
+
+    private List<String> userGroupList;
+    private List<String> resourceGroupList;
+    private Set<String> userGroupSet;
+    private AdGroupDictionary dictionary;
+    private AdGroupSet userBits;
+    private AdGroupSet resourceBits;
+
+    @Setup
+    public void setUp() {
+        Random random = BenchData.random();
+        userGroupList = BenchData.adGroups(random, userGroups, UNIVERSE);
+        resourceGroupList = BenchData.adGroups(random, resourceGroups, UNIVERSE);
+        userGroupSet = new HashSet<>(userGroupList);
+        dictionary = new AdGroupDictionary();
+        userBits = dictionary.encode(userGroupList);
+        resourceBits = dictionary.encode(resourceGroupList);
+    }
+
+    @Benchmark
+    public boolean bitsets() {
+        return userBits.intersects(resourceBits);
+    }
+
+    @Benchmark
+    public boolean bitsetAgainstList() {
+        return dictionary.intersects(userBits, resourceGroupList);
+    }
+
+    @Benchmark
+    public boolean hashSetAgainstList() {
+        for (String group : resourceGroupList) {
+            if (userGroupSet.contains(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean listScan() {
+        return resourceGroupList.stream().anyMatch(userGroupList::contains);
+    }
+}
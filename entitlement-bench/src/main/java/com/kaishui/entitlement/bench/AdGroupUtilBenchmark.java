@@ -0,0 +1,61 @@
+package com.kaishui.entitlement.bench;
+
+import com.kaishui.entitlement.util.AdGroupUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AdGroupUtil#getNextLevelADGroup(String, List)}, which scans the user's groups up to three times.
+ * The matching group is placed last, or omitted entirely, to measure the worst cases.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AdGroupUtilBenchmark {
+
+    private static final String USER_CASE = "CASE1";
+
+    @Param({"10", "100", "1000"})
+    public int adGroups;
+
+    @Param({"ADMIN", "USER", "NONE"})
+    public String level;
+
+    private AdGroupUtil adGroupUtil;
+    private List<String> userAdGroups;
+
+    @Setup
+    public void setUp() {
+        adGroupUtil = new AdGroupUtil();
+        BenchData.setField(adGroupUtil, "adGroupPrefix", "AD-");
+        BenchData.setField(adGroupUtil, "adGroupAdminSuffix", "-ADMIN");
+        BenchData.setField(adGroupUtil, "adGroupManagerSuffix", "-MANAGER");
+        BenchData.setField(adGroupUtil, "adGroupUserSuffix", "-USER");
+
+        userAdGroups = new ArrayList<>(BenchData.adGroups(BenchData.random(), adGroups - 1, 10_000));
+        if (!"NONE".equals(level)) {
+            userAdGroups.add("AD-" + USER_CASE + "-" + level);
+        }
+    }
+
+    @Benchmark
+    public String getNextLevelADGroup() {
+        return adGroupUtil.getNextLevelADGroup(USER_CASE, userAdGroups);
+    }
+}
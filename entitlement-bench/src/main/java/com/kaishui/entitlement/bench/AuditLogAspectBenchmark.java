@@ -0,0 +1,126 @@
+package com.kaishui.entitlement.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kaishui.entitlement.annotation.AuditLog;
+import com.kaishui.entitlement.aop.AuditLogAspect;
+import com.kaishui.entitlement.entity.AuditLogEntity;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.service.AuditLogWriter;
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AuditLogAspect} around an audited reactive method, for typical audited arguments: a flat map,
+ * a list of strings and a list of entities that fall through to Jackson. The join point is stubbed and the
+ * writer discards the entries, so only building the audit entry is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AuditLogAspectBenchmark {
+
+    private static final Mono<String> RESULT = Mono.just("ok");
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private AuditLogAspect aspect;
+    private ProceedingJoinPoint mapCall;
+    private ProceedingJoinPoint stringListCall;
+    private ProceedingJoinPoint entityListCall;
+    private AuditLogEntity lastEntry;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        AuditLogWriter writer = new AuditLogWriter(null, null) {
+            @Override
+            public void write(AuditLogEntity entry) {
+                lastEntry = entry;
+            }
+        };
+        aspect = new AuditLogAspect(writer, new ObjectMapper(), new AuthorizationUtil());
+
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        List<String> ids = new ArrayList<>(size);
+        List<Role> roles = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            parameters.put("key" + i, i % 2 == 0 ? "value" + i : i);
+            ids.add("id" + i);
+            roles.add(Role.builder().id("role" + i).roleName("Role " + i).type("global").userCase("CASE1").build());
+        }
+        mapCall = joinPoint(AuditLogAspectBenchmark.class.getDeclaredMethod("audited", Map.class), parameters);
+        stringListCall = joinPoint(AuditLogAspectBenchmark.class.getDeclaredMethod("audited", List.class), ids);
+        entityListCall = joinPoint(AuditLogAspectBenchmark.class.getDeclaredMethod("auditedRoles", List.class), roles);
+    }
+
+    @AuditLog(action = "BENCH_MAP")
+    Mono<String> audited(Map<String, Object> parameters) {
+        return RESULT;
+    }
+
+    @AuditLog(action = "BENCH_IDS")
+    Mono<String> audited(List<String> ids) {
+        return RESULT;
+    }
+
+    @AuditLog(action = "BENCH_ROLES")
+    Mono<String> auditedRoles(List<Role> roles) {
+        return RESULT;
+    }
+
+    /**
+     * @return a join point proceeding to {@link #RESULT} for a call of {@code method} with {@code argument}
+     */
+    private static ProceedingJoinPoint joinPoint(Method method, Object argument) {
+        MethodSignature signature = BenchData.stub(MethodSignature.class, Map.of(
+                "getMethod", method,
+                "getParameterNames", new String[]{"argument"}));
+        return BenchData.stub(ProceedingJoinPoint.class, Map.of(
+                "getSignature", signature,
+                "getArgs", new Object[]{argument},
+                "proceed", RESULT));
+    }
+
+    private AuditLogEntity audit(ProceedingJoinPoint call) throws Throwable {
+        ((Mono<?>) aspect.auditLogAround(call)).block();
+        return lastEntry;
+    }
+
+    @Benchmark
+    public AuditLogEntity map() throws Throwable {
+        return audit(mapCall);
+    }
+
+    @Benchmark
+    public AuditLogEntity stringList() throws Throwable {
+        return audit(stringListCall);
+    }
+
+    @Benchmark
+    public AuditLogEntity entityList() throws Throwable {
+        return audit(entityListCall);
+    }
+}
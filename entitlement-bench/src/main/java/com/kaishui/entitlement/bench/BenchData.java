@@ -0,0 +1,78 @@
+package com.kaishui.entitlement.bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic data shared by the benchmarks, so results are comparable between runs.
+ */
+final class BenchData {
+
+    static final long SEED = 42L;
+
+    private BenchData() {
+    }
+
+    static Random random() {
+        return new Random(SEED);
+    }
+
+    /**
+     * @return {@code count} AD group names drawn from a universe of {@code universe} groups.
+     */
+    static List<String> adGroups(Random random, int count, int universe) {
+        List<String> groups = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            groups.add("AD-GROUP" + random.nextInt(universe) + "-USER");
+        }
+        return groups;
+    }
+
+    /**
+     * Sets a private field, standing in for the {@code @Value} injection Spring would do.
+     */
+    static void setField(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set field '" + name + "' on " + target.getClass().getSimpleName(), e);
+        }
+    }
+
+    /**
+     * Calls a non-public no-argument method, standing in for the lifecycle callbacks Spring would call.
+     */
+    static void invoke(Object target, String name) {
+        try {
+            Method method = target.getClass().getDeclaredMethod(name);
+            method.setAccessible(true);
+            method.invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot call '" + name + "' on " + target.getClass().getSimpleName(), e);
+        }
+    }
+
+    /**
+     * @return an implementation of the interface answering the named methods with fixed values, e.g. a
+     * repository returning fixed publishers; any other method throws
+     */
+    static <T> T stub(Class<T> type, Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(answers, args);
+            }
+            Object answer = answers.get(method.getName());
+            if (answer == null) {
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+            }
+            return answer;
+        }));
+    }
+}
@@ -0,0 +1,73 @@
+package com.kaishui.entitlement.bench;
+
+import com.kaishui.entitlement.datagen.DatasetGenerator;
+import com.kaishui.entitlement.datagen.DatasetSpec;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.ResourceDto;
+import com.kaishui.entitlement.entity.dto.UserDto;
+import com.kaishui.entitlement.util.ResourceMapper;
+import com.kaishui.entitlement.util.ResourceMapperImpl;
+import com.kaishui.entitlement.util.UserMapper;
+import com.kaishui.entitlement.util.UserMapperImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MapStruct-generated {@link UserMapper#toDto} and {@link ResourceMapper#toDto} on generated documents,
+ * with list sizes matching small and large entitlement footprints.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MapperBenchmark {
+
+    @Param({"5", "50", "500"})
+    public int listSize;
+
+    private final UserMapper userMapper = new UserMapperImpl();
+    private final ResourceMapper resourceMapper = new ResourceMapperImpl();
+    private User user;
+    private Resource resource;
+
+    @Setup
+    public void setUp() {
+        // One user case with enough roles, resources and shared groups for listSize distinct references
+        DatasetGenerator generator = new DatasetGenerator(DatasetSpec.builder()
+                .users(1)
+                .roles(listSize * 4)
+                .resources(listSize * 4)
+                .userCases(1)
+                .sharedGroups(listSize * 4)
+                .sharedGroupsPerUser(listSize)
+                .rolesPerUser(listSize)
+                .groupsPerResource(listSize)
+                .build());
+        user = generator.user(0);
+        resource = generator.resource(0);
+    }
+
+    @Benchmark
+    public UserDto userToDto() {
+        return userMapper.toDto(user);
+    }
+
+    @Benchmark
+    public ResourceDto resourceToDto() {
+        return resourceMapper.toDto(resource);
+    }
+}
@@ -0,0 +1,113 @@
+package com.kaishui.entitlement.bench;
+
+import com.kaishui.entitlement.constant.ResourceType;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.repository.ResourceRepository;
+import com.kaishui.entitlement.repository.RoleRepository;
+import com.kaishui.entitlement.repository.UserRepository;
+import com.kaishui.entitlement.service.EntitlementCatalog;
+import com.kaishui.entitlement.service.PermissionDecisionCache;
+import com.kaishui.entitlement.service.UriPermissionCheckerService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One permission check through {@link UriPermissionCheckerService} with the default resolution: the user's
+ * resources are looked up in a loaded {@link EntitlementCatalog}, compiled into rules and matched. Repositories
+ * are stubbed, so MongoDB round trips are left out. A rule index cache of size 0 compiles the rules on every check.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PermissionCheckBenchmark {
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+    private static final String AD_GROUP = "AD-GROUP0-USER";
+
+    @Param({"10", "100", "1000"})
+    public int rules;
+
+    @Param({"0", "10000"})
+    public long ruleIndexCacheSize;
+
+    private EntitlementCatalog catalog;
+    private UriPermissionCheckerService checker;
+    private String[][] requests;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = BenchData.random();
+        List<Resource> resources = new ArrayList<>(rules);
+        for (int i = 0; i < rules; i++) {
+            String uri = switch (i % 3) {
+                case 0 -> "/v1/api/module" + i + "/**";
+                case 1 -> "/v1/api/module" + i + "/{id:\\d+}";
+                default -> "/v1/api/module" + i + "/items/*/detail";
+            };
+            resources.add(Resource.builder().id("res" + i).name("res" + i).type(ResourceType.API.name()).isActive(true)
+                    .permission(new Document("method", METHODS[random.nextInt(METHODS.length)]).append("uri", uri))
+                    .adGroups(List.of(AD_GROUP)).build());
+        }
+        Role role = Role.builder().id("role0").roleName("role0").isActive(true)
+                .resourceIds(resources.stream().map(Resource::getId).toList()).build();
+        User user = User.builder().staffId("staff0").adGroups(List.of(AD_GROUP)).roleIds(List.of("role0")).build();
+
+        catalog = new EntitlementCatalog(
+                BenchData.stub(RoleRepository.class, Map.of("findAllByIsActive", Flux.just(role))),
+                BenchData.stub(ResourceRepository.class, Map.of("findByIsActive", Flux.fromIterable(resources))),
+                new PermissionDecisionCache(new SimpleMeterRegistry(), 1, Duration.ofMinutes(1), false));
+        BenchData.setField(catalog, "refreshInterval", Duration.ofHours(1));
+        BenchData.invoke(catalog, "start");
+        catalog.activeRoles().blockLast();
+
+        checker = new UriPermissionCheckerService(BenchData.stub(UserRepository.class, Map.of("findByStaffId", Mono.just(user))), catalog);
+        BenchData.setField(checker, "resolution", "queries");
+        BenchData.setField(checker, "ruleIndexCacheSize", ruleIndexCacheSize);
+        BenchData.invoke(checker, "start");
+
+        // Half hits, half misses, as in UriMatchingBenchmark
+        requests = new String[256][];
+        for (int i = 0; i < requests.length; i++) {
+            int module = random.nextInt(rules * 2);
+            requests[i] = new String[]{METHODS[random.nextInt(METHODS.length)], "/v1/api/module" + module + "/items/7/detail"};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchData.invoke(catalog, "stop");
+    }
+
+    @Benchmark
+    public Boolean checkPermission() {
+        String[] request = requests[next++ & (requests.length - 1)];
+        return checker.checkPermission("staff0", request[0], request[1]).block();
+    }
+}
@@ -0,0 +1,89 @@
+package com.kaishui.entitlement.bench;
+
+import com.kaishui.entitlement.util.UriPatternIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * URI rule matching as done by the permission checkers: the compiled {@link UriPatternIndex}
+ * against a linear {@link AntPathMatcher} scan over the same rules.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UriMatchingBenchmark {
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+
+    @Param({"10", "100", "1000"})
+    public int rules;
+
+    private UriPatternIndex<Integer> index;
+    private final List<String[]> antRules = new ArrayList<>();
+    private final AntPathMatcher antPathMatcher = new AntPathMatcher();
+    private String[][] requests;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = BenchData.random();
+        UriPatternIndex.Builder<Integer> builder = UriPatternIndex.builder();
+        for (int i = 0; i < rules; i++) {
+            String method = METHODS[random.nextInt(METHODS.length)];
+            String uri = switch (i % 3) {
+                case 0 -> "/v1/api/module" + i + "/**";
+                case 1 -> "/v1/api/module" + i + "/{id}";
+                default -> "/v1/api/module" + i + "/items/*/detail";
+            };
+            builder.add(method, uri, i);
+            antRules.add(new String[]{method, uri});
+        }
+        index = builder.build();
+
+        // Half hits, half misses, so neither early exit nor full scan dominates
+        requests = new String[256][];
+        for (int i = 0; i < requests.length; i++) {
+            int module = random.nextInt(rules * 2);
+            requests[i] = new String[]{METHODS[random.nextInt(METHODS.length)], "/v1/api/module" + module + "/items/7/detail"};
+        }
+    }
+
+    private String[] nextRequest() {
+        return requests[next++ & (requests.length - 1)];
+    }
+
+    @Benchmark
+    public boolean patternIndex() {
+        String[] request = nextRequest();
+        return index.matches(request[0], request[1]);
+    }
+
+    @Benchmark
+    public boolean antPathMatcherScan() {
+        String[] request = nextRequest();
+        for (String[] rule : antRules) {
+            if (rule[0].equalsIgnoreCase(request[0]) && antPathMatcher.match(rule[1], request[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,81 @@
+package com.kaishui.entitlement.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.dto.UserDto;
+import com.kaishui.entitlement.entity.dto.UserResourceDto;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson serialization of a {@link UserDto} with its roles and resources, as returned by the
+ * user roles-and-permissions endpoint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UserDtoSerializationBenchmark {
+
+    @Param({"5", "50", "500"})
+    public int resources;
+
+    private ObjectWriter writer;
+    private UserDto userDto;
+
+    @Setup
+    public void setUp() {
+        writer = new ObjectMapper().writerFor(UserDto.class);
+        Random random = BenchData.random();
+
+        List<Role> roles = new ArrayList<>();
+        List<UserResourceDto> resourceDtos = new ArrayList<>(resources);
+        for (int i = 0; i < resources; i++) {
+            if (i % 10 == 0) {
+                roles.add(Role.builder().id("role" + i).roleName("Role " + i).type("global").userCase("CASE1").build());
+            }
+            UserResourceDto resource = new UserResourceDto();
+            resource.setId("resource" + i);
+            resource.setName("Resource " + i);
+            resource.setType("api");
+            resource.setDescription("Benchmark resource " + i);
+            resource.setPermission(new Document("method", "GET").append("uri", "/v1/api/module" + i + "/**"));
+            resourceDtos.add(resource);
+        }
+        userDto = UserDto.builder()
+                .id("user1")
+                .username("Bench User")
+                .staffId("staff001")
+                .email("bench.user@example.com")
+                .createdDate(new Date())
+                .adGroups(BenchData.adGroups(random, 20, 10_000))
+                .roles(roles)
+                .resources(resourceDtos)
+                .build();
+    }
+
+    @Benchmark
+    public byte[] writeValueAsBytes() throws JsonProcessingException {
+        return writer.writeValueAsBytes(userDto);
+    }
+}
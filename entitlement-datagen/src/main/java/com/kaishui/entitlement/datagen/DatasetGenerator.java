@@ -0,0 +1,221 @@
+package com.kaishui.entitlement.datagen;
+
+import com.kaishui.entitlement.constant.PermissionFieldConstant;
+import com.kaishui.entitlement.constant.ResourceType;
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import org.bson.Document;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Generates {@link User}, {@link Role}, {@link Resource} and {@link GroupDefaultRole} documents for a {@link DatasetSpec}.
+ * <p>
+ * Every document is a pure function of the spec and its index: it draws from its own random stream seeded by
+ * (seed, kind, index), and references other documents by their deterministic ids. So any document can be
+ * regenerated on its own (e.g. {@link #user(int)} to build a request), and the streams never hold the dataset in memory.
+ * <p>
+ * Resources and roles are spread evenly over user cases; users are assigned cases with a Zipf skew and also
+ * hold Zipf-distributed shared groups, so a few AD groups have very large memberships.
+ */
+public final class DatasetGenerator {
+
+    public static final String[] LEVELS = {"ADMIN", "MANAGER", "USER"};
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+    private static final String CREATED_BY = "datagen";
+
+    private static final int KIND_USER = 1;
+    private static final int KIND_ROLE = 2;
+    private static final int KIND_RESOURCE = 3;
+    private static final int KIND_GROUP_DEFAULT_ROLE = 4;
+
+    private final DatasetSpec spec;
+    private final ZipfSampler caseSampler;
+    private final ZipfSampler sharedGroupSampler;
+    private final Date createdDate;
+
+    public DatasetGenerator(DatasetSpec spec) {
+        this.spec = spec;
+        this.caseSampler = new ZipfSampler(spec.getUserCases(), spec.getCaseSkew());
+        this.sharedGroupSampler = spec.getSharedGroups() > 0 ? new ZipfSampler(spec.getSharedGroups(), spec.getSharedGroupSkew()) : null;
+        this.createdDate = new Date(spec.getSeed() * 1000L); // Fixed, so equal seeds give equal documents
+    }
+
+    public DatasetSpec spec() {
+        return spec;
+    }
+
+    public Flux<Resource> resources() {
+        return Flux.range(0, spec.getResources()).map(this::resource);
+    }
+
+    public Flux<Role> roles() {
+        return Flux.range(0, spec.getRoles()).map(this::role);
+    }
+
+    public Flux<User> users() {
+        return Flux.range(0, spec.getUsers()).map(this::user);
+    }
+
+    public Flux<GroupDefaultRole> groupDefaultRoles() {
+        return Flux.range(0, spec.getUserCases() * LEVELS.length).map(this::groupDefaultRole);
+    }
+
+    public Resource resource(int index) {
+        SplittableRandom random = random(KIND_RESOURCE, index);
+        int userCase = index % spec.getUserCases();
+        String method = METHODS[random.nextInt(METHODS.length)];
+
+        Set<String> adGroups = new LinkedHashSet<>();
+        adGroups.add(adGroup(userCase, "ADMIN"));
+        while (adGroups.size() < Math.max(1, spec.getGroupsPerResource())) {
+            adGroups.add(random.nextInt(4) == 0 && sharedGroupSampler != null
+                    ? sharedGroup(sharedGroupSampler.sample(random))
+                    : adGroup(userCase, LEVELS[1 + random.nextInt(2)]));
+            if (adGroups.size() == 3 && sharedGroupSampler == null) {
+                break; // Only admin, manager and user groups exist for the case
+            }
+        }
+
+        return Resource.builder()
+                .id(id(KIND_RESOURCE, index))
+                .name("Module " + index)
+                .type(resourceType(random).name())
+                .description("Generated resource " + index)
+                .userCase(userCaseName(userCase))
+                .permission(new Document(PermissionFieldConstant.METHOD, method)
+                        .append(PermissionFieldConstant.URI, uriPrefix(index) + "/**"))
+                .adGroups(new ArrayList<>(adGroups))
+                .createdBy(CREATED_BY)
+                .createdDate(createdDate)
+                .build();
+    }
+
+    public Role role(int index) {
+        SplittableRandom random = random(KIND_ROLE, index);
+        int userCase = index % spec.getUserCases();
+        return Role.builder()
+                .id(id(KIND_ROLE, index))
+                .roleName("Role " + index)
+                .type("user")
+                .description("Generated role " + index)
+                .userCase(userCaseName(userCase))
+                .resourceIds(sampleIds(random, KIND_RESOURCE, spec.getResources(), userCase, spec.getResourcesPerRole()))
+                .createdBy(CREATED_BY)
+                .createdDate(createdDate)
+                .build();
+    }
+
+    public User user(int index) {
+        SplittableRandom random = random(KIND_USER, index);
+        int userCase = caseSampler.sample(random);
+        int roll = random.nextInt(100);
+        String level = roll < spec.getAdminPercent() ? "ADMIN"
+                : roll < spec.getAdminPercent() + spec.getManagerPercent() ? "MANAGER" : "USER";
+
+        Set<String> adGroups = new LinkedHashSet<>();
+        adGroups.add(adGroup(userCase, level));
+        if (sharedGroupSampler != null) {
+            for (int i = 0; i < spec.getSharedGroupsPerUser(); i++) {
+                adGroups.add(sharedGroup(sharedGroupSampler.sample(random)));
+            }
+        }
+
+        String staffId = staffId(index);
+        return User.builder()
+                .id(id(KIND_USER, index))
+                .username("User " + index)
+                .staffId(staffId)
+                .email(staffId.toLowerCase() + "@example.com")
+                .department("Department " + random.nextInt(200))
+                .jobTitle(level.charAt(0) + level.substring(1).toLowerCase())
+                .adGroups(new ArrayList<>(adGroups))
+                .roleIds(sampleIds(random, KIND_ROLE, spec.getRoles(), userCase, spec.getRolesPerUser()))
+                .isFirstLogin(false)
+                .createdBy(CREATED_BY)
+                .createdDate(createdDate)
+                .build();
+    }
+
+    public GroupDefaultRole groupDefaultRole(int index) {
+        SplittableRandom random = random(KIND_GROUP_DEFAULT_ROLE, index);
+        int userCase = index / LEVELS.length;
+        return GroupDefaultRole.builder()
+                .id(id(KIND_GROUP_DEFAULT_ROLE, index))
+                .groupName(adGroup(userCase, LEVELS[index % LEVELS.length]))
+                .roleIds(sampleIds(random, KIND_ROLE, spec.getRoles(), userCase, spec.getDefaultRolesPerGroup()))
+                .createdBy(CREATED_BY)
+                .createdDate(createdDate)
+                .build();
+    }
+
+    /**
+     * @return a concrete request (method, URI) matching the permission pattern of resource {@code index}.
+     */
+    public String[] requestFor(int resourceIndex) {
+        Resource resource = resource(resourceIndex);
+        return new String[]{
+                resource.getPermission().getString(PermissionFieldConstant.METHOD),
+                uriPrefix(resourceIndex) + "/items/" + (resourceIndex * 31 % 1000)};
+    }
+
+    public static String staffId(int index) {
+        return String.format("S%08d", index);
+    }
+
+    public static String userCaseName(int userCase) {
+        return "CASE" + userCase;
+    }
+
+    public static String adGroup(int userCase, String level) {
+        return "AD-" + userCaseName(userCase) + "-" + level;
+    }
+
+    static String sharedGroup(int rank) {
+        return "AD-SHARED-" + rank;
+    }
+
+    static String id(int kind, int index) {
+        return String.format("%02x%06x%016x", kind, 0, index); // A valid ObjectId hex string
+    }
+
+    private static String uriPrefix(int resourceIndex) {
+        return "/v1/api/module" + resourceIndex;
+    }
+
+    private ResourceType resourceType(SplittableRandom random) {
+        if (random.nextInt(100) < spec.getApiPercent()) {
+            return ResourceType.API;
+        }
+        return random.nextBoolean() ? ResourceType.PAGE : ResourceType.BUTTON;
+    }
+
+    /**
+     * Samples ids of documents of {@code kind} that belong to {@code userCase}, i.e. indexes {@code userCase + k * userCases}.
+     */
+    private List<String> sampleIds(SplittableRandom random, int kind, int total, int userCase, int count) {
+        int cases = spec.getUserCases();
+        int inCase = total > userCase ? (total - userCase + cases - 1) / cases : 0;
+        if (inCase == 0) {
+            return List.of();
+        }
+        Set<String> ids = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(id(kind, userCase + cases * random.nextInt(inCase)));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private SplittableRandom random(int kind, int index) {
+        // SplittableRandom mixes its seed, so nearby (kind, index) pairs still give unrelated streams
+        return new SplittableRandom(spec.getSeed() * 0x9E3779B97F4A7C15L + ((long) kind << 40) + index);
+    }
+}
@@ -0,0 +1,81 @@
+package com.kaishui.entitlement.datagen;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates a dataset into an existing database, dropping it first.
+ * Options ({@code --name=value}): {@code mongo-uri} (required, including the database), {@code seed}, {@code users},
+ * {@code roles}, {@code resources}, {@code user-cases}, {@code case-skew}, {@code shared-groups},
+ * {@code shared-group-skew} and {@code batch-size}; unset options keep the {@link DatasetSpec} defaults.
+ */
+@Slf4j
+public final class DatasetGeneratorMain {
+
+    private DatasetGeneratorMain() {
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = parseArgs(args);
+        String mongoUri = options.get("mongo-uri");
+        if (mongoUri == null) {
+            throw new IllegalArgumentException("--mongo-uri=mongodb://host:port/database is required");
+        }
+        String database = new ConnectionString(mongoUri).getDatabase();
+        if (database == null) {
+            throw new IllegalArgumentException("--mongo-uri must name the database");
+        }
+
+        DatasetSpec spec = toSpec(options);
+        try (MongoClient client = MongoClients.create(mongoUri)) {
+            ReactiveMongoTemplate template = new ReactiveMongoTemplate(client, database);
+            Mono.from(client.getDatabase(database).drop())
+                    .then(new DatasetWriter(template).write(new DatasetGenerator(spec)))
+                    .block();
+        }
+        log.info("Generated dataset into '{}': {}", database, spec);
+    }
+
+    /**
+     * Applies {@code --name=value} options on top of {@link DatasetSpec#defaults()}.
+     */
+    public static DatasetSpec toSpec(Map<String, String> options) {
+        DatasetSpec.DatasetSpecBuilder builder = DatasetSpec.defaults().toBuilder();
+        options.forEach((name, value) -> {
+            switch (name) {
+                case "seed" -> builder.seed(Long.parseLong(value));
+                case "users" -> builder.users(Integer.parseInt(value));
+                case "roles" -> builder.roles(Integer.parseInt(value));
+                case "resources" -> builder.resources(Integer.parseInt(value));
+                case "user-cases" -> builder.userCases(Integer.parseInt(value));
+                case "case-skew" -> builder.caseSkew(Double.parseDouble(value));
+                case "shared-groups" -> builder.sharedGroups(Integer.parseInt(value));
+                case "shared-group-skew" -> builder.sharedGroupSkew(Double.parseDouble(value));
+                case "batch-size" -> builder.batchSize(Integer.parseInt(value));
+                default -> {
+                    // Not a dataset option, e.g. mongo-uri or an option of the calling tool
+                }
+            }
+        });
+        return builder.build();
+    }
+
+    public static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return values;
+    }
+}
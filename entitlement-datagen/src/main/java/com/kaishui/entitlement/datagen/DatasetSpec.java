@@ -0,0 +1,63 @@
+package com.kaishui.entitlement.datagen;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Size and shape of a generated dataset. The defaults approximate production scale; the same spec,
+ * seed included, always generates the same documents.
+ */
+@Value
+@Builder(toBuilder = true)
+public class DatasetSpec {
+
+    @Builder.Default
+    long seed = 42L;
+
+    @Builder.Default
+    int users = 1_000_000;
+    @Builder.Default
+    int roles = 20_000;
+    @Builder.Default
+    int resources = 200_000;
+    @Builder.Default
+    int userCases = 500;
+
+    /** Zipf exponent of users over user cases; 0 spreads them evenly. */
+    @Builder.Default
+    double caseSkew = 1.1;
+
+    /** Organisation-wide AD groups (e.g. department lists) users hold on top of their case group. */
+    @Builder.Default
+    int sharedGroups = 2_000;
+    /** Zipf exponent of shared group membership; a few groups end up with most users. */
+    @Builder.Default
+    double sharedGroupSkew = 1.2;
+    @Builder.Default
+    int sharedGroupsPerUser = 4;
+
+    @Builder.Default
+    int adminPercent = 2;
+    @Builder.Default
+    int managerPercent = 10;
+
+    @Builder.Default
+    int rolesPerUser = 5;
+    @Builder.Default
+    int resourcesPerRole = 30;
+    @Builder.Default
+    int groupsPerResource = 2;
+    /** Share of resources of type API; the rest are pages and buttons. */
+    @Builder.Default
+    int apiPercent = 70;
+    @Builder.Default
+    int defaultRolesPerGroup = 2;
+
+    /** Documents per insertMany. */
+    @Builder.Default
+    int batchSize = 1_000;
+
+    public static DatasetSpec defaults() {
+        return DatasetSpec.builder().build();
+    }
+}
@@ -0,0 +1,43 @@
+package com.kaishui.entitlement.datagen;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Streams a generated dataset into MongoDB with one {@code insertMany} per {@link DatasetSpec#getBatchSize()} documents,
+ * keeping a few batches in flight.
+ */
+@Slf4j
+public final class DatasetWriter {
+
+    private static final int BATCHES_IN_FLIGHT = 4;
+
+    private final ReactiveMongoTemplate template;
+
+    public DatasetWriter(ReactiveMongoTemplate template) {
+        this.template = template;
+    }
+
+    public Mono<Void> write(DatasetGenerator generator) {
+        int batchSize = generator.spec().getBatchSize();
+        return insert("resources", generator.resources(), batchSize)
+                .then(insert("roles", generator.roles(), batchSize))
+                .then(insert("users", generator.users(), batchSize))
+                .then(insert("groupDefaultRoles", generator.groupDefaultRoles(), batchSize));
+    }
+
+    private <T> Mono<Void> insert(String collection, Flux<T> documents, int batchSize) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return documents.buffer(batchSize)
+                    .flatMap(batch -> template.insertAll(batch).count(), BATCHES_IN_FLIGHT)
+                    .reduce(0L, Long::sum)
+                    .doOnNext(count -> log.info("Inserted {} {} in {}", count, collection, Duration.ofNanos(System.nanoTime() - start)))
+                    .then();
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package com.kaishui.entitlement.datagen;
+
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayName("DatasetGenerator Tests")
+class DatasetGeneratorTest {
+
+    private final DatasetSpec spec = DatasetSpec.builder()
+            .users(2_000)
+            .roles(200)
+            .resources(1_000)
+            .userCases(20)
+            .sharedGroups(50)
+            .build();
+
+    @Test
+    @DisplayName("The same spec should always generate the same documents, and another seed different ones")
+    void generate_IsDeterministic() {
+        List<User> first = new DatasetGenerator(spec).users().collectList().block();
+        List<User> second = new DatasetGenerator(spec).users().collectList().block();
+        List<User> otherSeed = new DatasetGenerator(spec.toBuilder().seed(7L).build()).users().collectList().block();
+
+        assertEquals(first, second);
+        assertNotEquals(first, otherSeed);
+        assertEquals(new DatasetGenerator(spec).user(123), first.get(123));
+    }
+
+    @Test
+    @DisplayName("Streams should produce the configured number of documents")
+    void generate_Sizes() {
+        DatasetGenerator generator = new DatasetGenerator(spec);
+
+        StepVerifier.create(generator.users().count()).expectNext(2_000L).verifyComplete();
+        StepVerifier.create(generator.roles().count()).expectNext(200L).verifyComplete();
+        StepVerifier.create(generator.resources().count()).expectNext(1_000L).verifyComplete();
+        StepVerifier.create(generator.groupDefaultRoles().count()).expectNext(60L).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Roles and users should only reference generated documents of their own user case")
+    void generate_ReferencesAreConsistent() {
+        DatasetGenerator generator = new DatasetGenerator(spec);
+        Map<String, Resource> resources = generator.resources().collectMap(Resource::getId, Function.identity()).block();
+        Map<String, Role> roles = generator.roles().collectMap(Role::getId, Function.identity()).block();
+
+        for (Role role : roles.values()) {
+            assertTrue(role.getResourceIds().stream().allMatch(id -> resources.get(id).getUserCase().equals(role.getUserCase())));
+        }
+        for (User user : generator.users().collectList().block()) {
+            String userCase = user.getAdGroups().get(0).split("-")[1];
+            assertTrue(user.getRoleIds().stream().allMatch(id -> roles.get(id).getUserCase().equals(userCase)));
+        }
+    }
+
+    @Test
+    @DisplayName("Users should be skewed towards the first user cases")
+    void generate_CaseMembershipIsSkewed() {
+        Map<String, Long> usersByCaseGroup = new DatasetGenerator(spec).users()
+                .map(user -> user.getAdGroups().get(0).replaceAll("-(ADMIN|MANAGER|USER)$", ""))
+                .collectList()
+                .block()
+                .stream()
+                .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+
+        long first = usersByCaseGroup.getOrDefault("AD-CASE0", 0L);
+        long last = usersByCaseGroup.getOrDefault("AD-CASE19", 0L);
+        assertTrue(first > 5 * last, "Expected CASE0 (" + first + ") to dwarf CASE19 (" + last + ")");
+    }
+
+    @Test
+    @DisplayName("Generated requests should match the permission pattern of their resource")
+    void requestFor_MatchesResource() {
+        DatasetGenerator generator = new DatasetGenerator(spec);
+        Resource resource = generator.resource(42);
+        String[] request = generator.requestFor(42);
+
+        assertEquals(resource.getPermission().getString("method"), request[0]);
+        assertTrue(request[1].startsWith(resource.getPermission().getString("uri").replace("/**", "/")));
+        assertEquals(Set.of(DatasetGenerator.staffId(42)), Set.of(generator.user(42).getStaffId()));
+    }
+}
@@ -0,0 +1,69 @@
+package com.kaishui.entitlement.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Issues requests at a fixed arrival rate (open model) and records their latency in an HdrHistogram.
+ * <p>
+ * Latency is measured from each request's scheduled start, not from when it was actually sent, so time
+ * spent waiting behind {@code maxInFlight} or a stalled server is counted (no coordinated omission).
+ */
+@Slf4j
+final class FixedRateDriver {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final int rate;
+    private final int maxInFlight;
+
+    FixedRateDriver(int rate, int maxInFlight) {
+        this.rate = rate;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param name     the scenario name, for logging
+     * @param duration how long to keep issuing requests
+     * @param request  builds the i-th request; it should complete empty on success and error otherwise
+     */
+    ScenarioResult run(String name, Duration duration, LongFunction<Mono<?>> request) {
+        Histogram histogram = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        AtomicLong errors = new AtomicLong();
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long count = duration.toNanos() / periodNanos;
+        long start = System.nanoTime();
+
+        Flux.interval(Duration.ZERO, Duration.ofNanos(periodNanos), Schedulers.parallel())
+                .onBackpressureBuffer()
+                .take(count)
+                .flatMap(i -> {
+                    long scheduledStart = start + i * periodNanos;
+                    return request.apply(i)
+                            .then()
+                            .doOnError(e -> errors.incrementAndGet())
+                            .onErrorResume(e -> Mono.empty())
+                            .doFinally(signal -> record(histogram, scheduledStart));
+                }, maxInFlight)
+                .blockLast();
+
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        log.info("Scenario '{}' finished {} requests in {} ({} errors)", name, count, elapsed, errors.get());
+        return new ScenarioResult(name, histogram, errors.get(), elapsed);
+    }
+
+    private static void record(Histogram histogram, long scheduledStart) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduledStart);
+        synchronized (histogram) {
+            histogram.recordValue(Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.kaishui.entitlement.loadtest;
+
+import com.kaishui.entitlement.datagen.DatasetGeneratorMain;
+import com.kaishui.entitlement.datagen.DatasetSpec;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Command line options of the load test, given as {@code --name=value}. Dataset options ({@code --users},
+ * {@code --seed}, ...) are those of {@link DatasetGeneratorMain}, with smaller defaults so a run starts quickly.
+ *
+ * @param rate        requests per second per scenario
+ * @param warmup      unrecorded run time per scenario before measuring
+ * @param duration    measured run time per scenario
+ * @param maxInFlight cap on concurrent requests per scenario; queued requests still count their wait as latency
+ * @param dataset     the dataset to seed
+ * @param mongoUri    an existing mongod to use instead of starting an embedded one
+ * @param outputDir   where the .hgrm histograms are written
+ */
+public record LoadTestOptions(int rate, Duration warmup, Duration duration, int maxInFlight,
+                              DatasetSpec dataset, String mongoUri, Path outputDir) {
+
+    static LoadTestOptions parse(String[] args) {
+        Map<String, String> values = DatasetGeneratorMain.parseArgs(args);
+        values.putIfAbsent("users", "10000");
+        values.putIfAbsent("roles", "500");
+        values.putIfAbsent("resources", "5000");
+        values.putIfAbsent("user-cases", "20");
+        return new LoadTestOptions(
+                Integer.parseInt(values.getOrDefault("rate", "200")),
+                DurationStyle.detectAndParse(values.getOrDefault("warmup", "10s")),
+                DurationStyle.detectAndParse(values.getOrDefault("duration", "60s")),
+                Integer.parseInt(values.getOrDefault("max-in-flight", "256")),
+                DatasetGeneratorMain.toSpec(values),
+                values.get("mongo-uri"),
+                Path.of(values.getOrDefault("output-dir", "target/loadtest")));
+    }
+}
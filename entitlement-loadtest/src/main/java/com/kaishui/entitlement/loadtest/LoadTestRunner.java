@@ -0,0 +1,159 @@
+package com.kaishui.entitlement.loadtest;
+
+import com.kaishui.entitlement.Application;
+import com.kaishui.entitlement.datagen.DatasetGenerator;
+import com.kaishui.entitlement.datagen.DatasetWriter;
+import com.kaishui.entitlement.entity.User;
+import de.flapdoodle.embed.mongo.commands.ServerAddress;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongFunction;
+
+/**
+ * Runs the end-to-end load test: starts mongod (embedded unless {@code --mongo-uri} is given) and the application,
+ * seeds a dataset, then drives each scenario at a fixed arrival rate and reports throughput and latency percentiles.
+ * See {@link LoadTestOptions} for the options.
+ */
+@Slf4j
+public final class LoadTestRunner {
+
+    private static final String DATABASE = "entitlement-loadtest";
+    private static final int MAX_ADMINS = 1_000;
+
+    private LoadTestRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        TestTokens tokens = new TestTokens();
+
+        TransitionWalker.ReachedState<RunningMongodProcess> mongod = null;
+        String mongoUri = options.mongoUri();
+        if (mongoUri == null) {
+            mongod = Mongod.instance().start(Version.Main.V7_0);
+            ServerAddress address = mongod.current().getServerAddress();
+            mongoUri = "mongodb://" + address.getHost() + ":" + address.getPort() + "/" + DATABASE;
+        }
+
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .properties(Map.of(
+                        "server.port", "0",
+                        "spring.data.mongodb.uri", mongoUri,
+                        // mongod is started above, not by the flapdoodle auto-configuration
+                        "spring.autoconfigure.exclude", "de.flapdoodle.embed.mongo.spring.autoconfigure.EmbeddedMongoAutoConfiguration",
+                        "jwt.public.key", tokens.publicKey(),
+                        "logging.level.com.kaishui.entitlement", "WARN"))
+                .run()) {
+            ReactiveMongoTemplate template = context.getBean(ReactiveMongoTemplate.class);
+            template.getMongoDatabase().flatMap(database -> Mono.from(database.drop())).block();
+            DatasetGenerator dataset = new DatasetGenerator(options.dataset());
+            new DatasetWriter(template).write(dataset).block();
+
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            WebClient client = WebClient.builder()
+                    .baseUrl("http://localhost:" + port)
+                    .clientConnector(new ReactorClientHttpConnector(
+                            HttpClient.create(ConnectionProvider.builder("loadtest").maxConnections(options.maxInFlight()).build())))
+                    .build();
+
+            List<ScenarioResult> results = new ArrayList<>();
+            results.add(runScenario("permission-check", options, permissionCheck(client, dataset)));
+            results.add(runScenario("login", options, login(client, dataset)));
+            results.add(runScenario("next-users", options, nextUsers(client, dataset, tokens)));
+
+            log.warn("Load test results at {} req/s per scenario:", options.rate());
+            for (ScenarioResult result : results) {
+                log.warn("{}  -> {}", result.summary(), result.writeHistogram(options.outputDir()));
+            }
+        } finally {
+            if (mongod != null) {
+                mongod.close();
+            }
+        }
+    }
+
+    private static ScenarioResult runScenario(String name, LoadTestOptions options, LongFunction<Mono<?>> request) {
+        FixedRateDriver driver = new FixedRateDriver(options.rate(), options.maxInFlight());
+        log.warn("Warming up '{}' for {}", name, options.warmup());
+        driver.run(name + "-warmup", options.warmup(), request);
+        log.warn("Measuring '{}' for {}", name, options.duration());
+        return driver.run(name, options.duration(), request);
+    }
+
+    private static LongFunction<Mono<?>> permissionCheck(WebClient client, DatasetGenerator dataset) {
+        return i -> {
+            String staffId = DatasetGenerator.staffId(pick(dataset.spec().getUsers()));
+            String[] uri = dataset.requestFor(pick(dataset.spec().getResources()));
+            return client.get()
+                    .uri(builder -> builder.path("/v1/api/permissions/check")
+                            .queryParam("staffId", staffId)
+                            .queryParam("httpMethod", uri[0])
+                            .queryParam("requestUri", uri[1])
+                            .build())
+                    .retrieve()
+                    .toBodilessEntity();
+        };
+    }
+
+    private static LongFunction<Mono<?>> login(WebClient client, DatasetGenerator dataset) {
+        return i -> {
+            User user = dataset.user(pick(dataset.spec().getUsers())); // Log in with the seeded identity
+            return client.post()
+                    .uri("/v1/api/users")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of(
+                            "staffId", user.getStaffId(),
+                            "username", user.getUsername(),
+                            "email", user.getEmail(),
+                            "adGroups", user.getAdGroups()))
+                    .retrieve()
+                    .toBodilessEntity();
+        };
+    }
+
+    private static LongFunction<Mono<?>> nextUsers(WebClient client, DatasetGenerator dataset, TestTokens tokens) {
+        // Tokens are signed up front so the driver measures the service, not RSA signing
+        List<String[]> admins = dataset.users()
+                .take(MAX_ADMINS * 50L)
+                .filter(user -> user.getAdGroups().get(0).endsWith("-ADMIN"))
+                .take(MAX_ADMINS)
+                .map(user -> new String[]{tokens.bearer(user.getStaffId()), user.getAdGroups().get(0).split("-")[1]})
+                .collectList()
+                .block();
+        return i -> {
+            String[] admin = pick(admins);
+            return client.get()
+                    .uri(builder -> builder.path("/v1/api/users/next/users").queryParam("userCase", admin[1]).build())
+                    .header(HttpHeaders.AUTHORIZATION, admin[0])
+                    .retrieve()
+                    .toBodilessEntity();
+        };
+    }
+
+    private static <T> T pick(List<T> values) {
+        return values.get(pick(values.size()));
+    }
+
+    private static int pick(int bound) {
+        return ThreadLocalRandom.current().nextInt(bound);
+    }
+}
@@ -0,0 +1,43 @@
+package com.kaishui.entitlement.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Outcome of one scenario; latencies are recorded in microseconds.
+ */
+record ScenarioResult(String name, Histogram histogram, long errors, Duration elapsed) {
+
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    double throughput() {
+        return histogram.getTotalCount() / (elapsed.toNanos() / 1e9);
+    }
+
+    String summary() {
+        return String.format("%-18s %8d req %10.1f req/s  p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms  errors %d",
+                name, histogram.getTotalCount(), throughput(),
+                millis(50.0), millis(99.0), millis(99.9), histogram.getMaxValue() / MICROS_PER_MILLI, errors);
+    }
+
+    /**
+     * Writes the full percentile distribution in milliseconds, loadable by the HdrHistogram plotter.
+     */
+    Path writeHistogram(Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+        Path file = outputDir.resolve(name + ".hgrm");
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+            histogram.outputPercentileDistribution(out, MICROS_PER_MILLI);
+        }
+        return file;
+    }
+
+    private double millis(double percentile) {
+        return histogram.getValueAtPercentile(percentile) / MICROS_PER_MILLI;
+    }
+}
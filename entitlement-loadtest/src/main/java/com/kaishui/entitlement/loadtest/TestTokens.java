@@ -0,0 +1,43 @@
+package com.kaishui.entitlement.loadtest;
+
+import io.jsonwebtoken.Jwts;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Signs Bearer tokens with a throwaway RSA key pair whose public half is handed to the application
+ * as {@code jwt.public.key}, so the load test needs neither the real key nor the Jasypt password.
+ */
+final class TestTokens {
+
+    private final KeyPair keyPair;
+
+    TestTokens() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            this.keyPair = generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        }
+    }
+
+    String publicKey() {
+        return Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+    }
+
+    String bearer(String staffId) {
+        return "Bearer " + Jwts.builder()
+                .subject(staffId)
+                .claim("staffId", staffId)
+                .expiration(Date.from(Instant.now().plus(1, ChronoUnit.DAYS)))
+                .signWith(keyPair.getPrivate())
+                .compact();
+    }
+}
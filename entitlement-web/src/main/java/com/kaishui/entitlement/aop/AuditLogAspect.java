@@ -3,7 +3,7 @@ package com.kaishui.entitlement.aop;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kaishui.entitlement.annotation.AuditLog;
 import com.kaishui.entitlement.entity.AuditLogEntity;
-import com.kaishui.entitlement.repository.AuditLogRepository;
+import com.kaishui.entitlement.service.AuditLogWriter;
 import com.kaishui.entitlement.util.AuthorizationUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -16,6 +16,8 @@ import org.bson.Document;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
 
 import java.lang.reflect.Method;
 import java.util.Collection;
@@ -30,7 +32,7 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class AuditLogAspect {
 
-    private final AuditLogRepository auditLogRepository;
+    private final AuditLogWriter auditLogWriter;
     private final ObjectMapper objectMapper;
     private final AuthorizationUtil authorizationUtil;
 
@@ -50,52 +52,42 @@ public class AuditLogAspect {
         Object result = pjp.proceed();
 
         if (result instanceof Mono) {
-            return ((Mono<?>) result)
+            // The audit entry is written in the background, so resolve the caller from the context here
+            return Mono.deferContextual(contextView -> ((Mono<?>) result)
                     .doOnSuccess(successResult -> {
                         Document details = prepareAuditDetailsAsBson(pjp, successResult, signature);
-                        saveAuditLog(action, details).subscribe(
-                                null,
-                                error -> log.error("Error saving audit log reactively for action: {}", action, error)
-                        );
+                        saveAuditLog(action, details, contextView);
                     })
-                    .doOnError(error -> log.error("Original method for action '{}' failed: {}", action, error.getMessage()));
+                    .doOnError(error -> log.error("Original method for action '{}' failed: {}", action, error.getMessage())));
 
         } else if (result instanceof Flux) {
             // For Flux, consider if logging on complete is sufficient, or if you need details per item (more complex)
-            return ((Flux<?>) result)
+            return Flux.deferContextual(contextView -> ((Flux<?>) result)
                     .doOnComplete(() -> {
                         // Details might only contain parameters here, as the result is a stream
                         Document details = prepareAuditDetailsAsBson(pjp, "[Flux Completed]", signature);
-                        saveAuditLog(action, details).subscribe(
-                                null,
-                                error -> log.error("Error saving audit log reactively for action: {}", action, error)
-                        );
+                        saveAuditLog(action, details, contextView);
                     })
-                    .doOnError(error -> log.error("Original method for action '{}' failed: {}", action, error.getMessage()));
+                    .doOnError(error -> log.error("Original method for action '{}' failed: {}", action, error.getMessage())));
         } else {
             // Handle non-reactive results (if applicable)
-            log.warn("Method annotated with @AuditLog did not return a reactive type. Logging synchronously.");
+            log.warn("Method annotated with @AuditLog did not return a reactive type. No request principal is available.");
             Document details = prepareAuditDetailsAsBson(pjp, result, signature);
-            saveAuditLog(action, details).block(); // Blocking call - use with caution!
+            saveAuditLog(action, details, Context.empty());
             return result;
         }
     }
 
 
-    private Mono<Void> saveAuditLog(String action, Document details) {
-        return Mono.deferContextual(contextView -> {
-                    String username = authorizationUtil.extractUsernameFromContext(contextView);
-                    log.info("Preparing to save audit log for action: {}, username: {}", action, username);
-                    AuditLogEntity auditLogEntity = AuditLogEntity.builder()
-                            .action(action)
-                            .detail(details) // Assign the BSON Document directly
-                            .createdBy(username)
-                            .createdDate(new Date())
-                            .build();
-                    return auditLogRepository.save(auditLogEntity);
-                })
-                .doOnError(error -> log.error("Failed during audit log save preparation for action: {}", action, error))
-                .then();
+    private void saveAuditLog(String action, Document details, ContextView contextView) {
+        String username = authorizationUtil.extractUsernameFromContext(contextView);
+        log.info("Queueing audit log for action: {}, username: {}", action, username);
+        auditLogWriter.write(AuditLogEntity.builder()
+                .action(action)
+                .detail(details) // Assign the BSON Document directly
+                .createdBy(username)
+                .createdDate(new Date())
+                .build());
     }
 
     private Document prepareAuditDetailsAsBson(ProceedingJoinPoint pjp, Object result, MethodSignature signature) {
@@ -1,7 +1,7 @@
 package com.kaishui.entitlement.config;
 
 import com.kaishui.entitlement.util.AuthorizationUtil;
-import org.springframework.beans.factory.annotation.Autowired;
+import com.kaishui.entitlement.util.RequestPrincipal;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.domain.ReactiveAuditorAware;
@@ -11,15 +11,14 @@ import reactor.core.publisher.Mono;
 @Configuration
 @EnableReactiveMongoAuditing // Enable auditing
 public class MongoConfig {
-    @Autowired
-    private AuthorizationUtil authorizationUtil;
 
     @Bean
     public ReactiveAuditorAware<String> auditorAware() {
-        // Use deferContextual to get the username from the request context
+        // Read the principal the PrincipalContextFilter resolved for the request
         return () -> Mono.deferContextual(contextView ->
-                Mono.just(authorizationUtil.extractUsernameFromContext(contextView))
-                        .switchIfEmpty(Mono.just(AuthorizationUtil.UNKNOWN_USER)) // Provide default if empty
+                Mono.just(RequestPrincipal.from(contextView)
+                        .map(RequestPrincipal::username)
+                        .orElse(AuthorizationUtil.UNKNOWN_USER)) // Provide default if absent
         );
     }
-}
\ No newline at end of file
+}
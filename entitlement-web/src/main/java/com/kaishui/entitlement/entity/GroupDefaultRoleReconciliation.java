@@ -0,0 +1,73 @@
+package com.kaishui.entitlement.entity;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.CreatedBy;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A background job applying a changed group default role mapping to the existing users of the group.
+ * <p>
+ * Users are processed in ascending id order; {@code lastUserId} is the checkpoint a resumed job continues after.
+ * The instance in {@code owner} holds the job while it renews {@code heartbeat}; a running job whose heartbeat
+ * is older than the lease is taken over by another instance.
+ */
+@Data
+@Document(collection = "groupDefaultRoleReconciliations")
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class GroupDefaultRoleReconciliation {
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        // A later change to the same mapping started a new job, which took over its removals
+        SUPERSEDED
+    }
+
+    @Id
+    private String id;
+
+    @Schema(description = "AD group whose users are reconciled", example = "uk-admin")
+    private String groupName;
+
+    @Schema(description = "Default roles of the group, added to users missing them")
+    private List<String> addRoleIds;
+
+    @Schema(description = "Roles no longer defaults of the group, removed unless another of the user's groups grants them")
+    private List<String> removeRoleIds;
+
+    private Status status;
+
+    @Schema(description = "Id of the last user processed")
+    private String lastUserId;
+
+    @Schema(description = "Users of the group processed so far")
+    private long usersScanned;
+
+    @Schema(description = "User updates written so far; a user gaining and losing roles counts twice")
+    private long updates;
+
+    @Schema(accessMode = Schema.AccessMode.READ_ONLY)
+    private String owner;
+
+    @Schema(accessMode = Schema.AccessMode.READ_ONLY)
+    private Date heartbeat;
+
+    @CreatedBy
+    private String createdBy;
+
+    @CreatedDate
+    private Date createdDate;
+
+    private Date completedDate;
+}
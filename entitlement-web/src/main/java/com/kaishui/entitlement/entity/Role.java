@@ -53,4 +53,7 @@ public class Role {
 
     @Builder.Default
     private boolean isActive = true;
+
+    // Bumped by every targeted update; send it back on update to fail if the role changed since it was read
+    private Long version;
 }
\ No newline at end of file
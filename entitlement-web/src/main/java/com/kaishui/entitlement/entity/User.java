@@ -52,6 +52,14 @@ public class User {
 
     private List<String> adGroups;
     private List<String> roleIds;
+
+    // The roleIds granted as group default roles, which a mapping change may remove again; the others were assigned directly
+    @Schema(accessMode = Schema.AccessMode.READ_ONLY)
+    private List<String> defaultRoleIds;
+
     @Builder.Default // Add default for isFirstLogin if needed
     private boolean isFirstLogin = true;
+
+    // Bumped by every targeted update; send it back on update to fail if the user changed since it was read
+    private Long version;
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.kaishui.entitlement.entity;
+
+import com.kaishui.entitlement.entity.dto.UserResourceDto;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Materialized effective entitlements of one user: their active roles and the active resources of those roles
+ * visible to their AD groups, keyed by staffId so a read is a single {@code _id} lookup.
+ * <p>
+ * Staleness is detected from version stamps rather than timestamps:
+ * <ul>
+ *     <li>{@code roleIds} and {@code adGroups} are the user's inputs the document was built from;</li>
+ *     <li>{@code version} is incremented whenever a referenced role ({@code roleIds}) or resource
+ *     ({@code resourceIds}) changes, and {@code builtVersion} is the version the content was built at;</li>
+ *     <li>{@code schemaVersion} is bumped in code whenever the shape or resolution rules change.</li>
+ * </ul>
+ * A document is marked {@code building} before its content is resolved, and every role or resource change also
+ * bumps the version of documents being built, since the roles and resources they will reference are not known yet.
+ */
+@Data
+@Document(collection = "userEntitlements")
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserEntitlement {
+
+    public static final int SCHEMA_VERSION = 1;
+
+    @Id
+    private String staffId;
+
+    @Indexed
+    private List<String> roleIds;
+    private List<String> adGroups;
+
+    // Resource ids of the user's active roles before AD group filtering, so any change to them invalidates
+    @Indexed
+    private List<String> resourceIds;
+
+    private List<Role> roles;
+    private List<UserResourceDto> resources;
+
+    private long version;
+    private long builtVersion;
+    private boolean building;
+    private int schemaVersion;
+    private Date builtAt;
+
+    /**
+     * @return true if the content is up to date with the user's current roles and AD groups and with every
+     * role and resource change recorded against it.
+     */
+    public boolean isCurrentFor(User user) {
+        return schemaVersion == SCHEMA_VERSION
+                && builtVersion == version
+                && Objects.equals(orEmpty(roleIds), orEmpty(user.getRoleIds()))
+                && Objects.equals(orEmpty(adGroups), orEmpty(user.getAdGroups()));
+    }
+
+    private static List<String> orEmpty(List<String> values) {
+        return values != null ? values : Collections.emptyList();
+    }
+}
@@ -0,0 +1,26 @@
+package com.kaishui.entitlement.entity.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@Schema(description = "Data Transfer Object for checking many permissions of one user in a single call")
+public class BatchPermissionCheckDto {
+    @NotBlank(message = "Staff ID cannot be blank")
+    @Schema(description = "Staff ID of the user to check", requiredMode = Schema.RequiredMode.REQUIRED, example = "staff001")
+    private String staffId;
+
+    @Valid
+    @NotEmpty(message = "Checks list cannot be empty")
+    @Size(max = 500, message = "Cannot check more than 500 permissions at once")
+    @Schema(description = "Permissions to check; results are returned in the same order", requiredMode = Schema.RequiredMode.REQUIRED)
+    private List<PermissionCheckDto> checks;
+}
@@ -0,0 +1,21 @@
+package com.kaishui.entitlement.entity.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(description = "Values to encrypt or decrypt in a single call; results are returned in the same order")
+public class CryptoBatchRequest {
+    @NotEmpty(message = "Values list cannot be empty")
+    @Size(max = 1000, message = "Cannot process more than 1000 values at once")
+    private List<@NotBlank(message = "Values cannot be blank") String> values;
+}
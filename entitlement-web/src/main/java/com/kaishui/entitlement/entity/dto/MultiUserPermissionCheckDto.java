@@ -0,0 +1,26 @@
+package com.kaishui.entitlement.entity.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@Schema(description = "Data Transfer Object for checking the same permissions for many users in a single call")
+public class MultiUserPermissionCheckDto {
+    @NotEmpty(message = "Staff IDs list cannot be empty")
+    @Size(max = 1000, message = "Cannot check more than 1000 users at once")
+    @Schema(description = "Staff IDs of the users to check", requiredMode = Schema.RequiredMode.REQUIRED, example = "[\"staff001\", \"staff002\"]")
+    private List<String> staffIds;
+
+    @Valid
+    @NotEmpty(message = "Checks list cannot be empty")
+    @Size(max = 500, message = "Cannot check more than 500 permissions at once")
+    @Schema(description = "Permissions to check for every user; results are returned in the same order", requiredMode = Schema.RequiredMode.REQUIRED)
+    private List<PermissionCheckDto> checks;
+}
@@ -0,0 +1,38 @@
+package com.kaishui.entitlement.entity.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.kaishui.entitlement.entity.Role;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One line of the compact next level user stream: either a role, sent once before the first user holding it,
+ * or a user referencing their roles by id.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(description = "Either a role definition or a user referencing earlier roles by id")
+public class NextLevelUserRowDto {
+    @Schema(description = "A role of the user case, present on role lines")
+    private Role role;
+
+    @Schema(description = "A user without embedded roles, present on user lines")
+    private UserDto user;
+
+    @Schema(description = "Ids of the user's roles in the user case, present on user lines")
+    private List<String> roleIds;
+
+    public static NextLevelUserRowDto ofRole(Role role) {
+        return new NextLevelUserRowDto(role, null, null);
+    }
+
+    public static NextLevelUserRowDto ofUser(UserDto user, List<String> roleIds) {
+        return new NextLevelUserRowDto(null, user, roleIds);
+    }
+}
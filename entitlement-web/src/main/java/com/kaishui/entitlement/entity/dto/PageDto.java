@@ -0,0 +1,20 @@
+package com.kaishui.entitlement.entity.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(description = "One page of a keyset-paginated listing, in ascending id order")
+public class PageDto<T> {
+    @Schema(description = "Items of this page")
+    private List<T> items;
+
+    @Schema(description = "Opaque cursor to pass as 'cursor' for the next page; absent on the last page")
+    private String nextCursor;
+}
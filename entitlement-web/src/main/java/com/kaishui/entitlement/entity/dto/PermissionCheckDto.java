@@ -0,0 +1,21 @@
+package com.kaishui.entitlement.entity.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(description = "A single (HTTP method, URI) pair to check")
+public class PermissionCheckDto {
+    @NotBlank(message = "HTTP method cannot be blank")
+    @Schema(description = "HTTP method", requiredMode = Schema.RequiredMode.REQUIRED, example = "GET")
+    private String httpMethod;
+
+    @NotBlank(message = "Request URI cannot be blank")
+    @Schema(description = "URI path to check", requiredMode = Schema.RequiredMode.REQUIRED, example = "/api/users/123")
+    private String requestUri;
+}
@@ -0,0 +1,21 @@
+package com.kaishui.entitlement.entity.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(description = "Decision for a single (HTTP method, URI) pair")
+public class PermissionCheckResultDto {
+    @Schema(description = "HTTP method that was checked", example = "GET")
+    private String httpMethod;
+
+    @Schema(description = "URI path that was checked", example = "/api/users/123")
+    private String requestUri;
+
+    @Schema(description = "Whether the user is allowed", example = "true")
+    private boolean allowed;
+}
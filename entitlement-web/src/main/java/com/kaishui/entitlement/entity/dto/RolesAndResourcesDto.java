@@ -0,0 +1,21 @@
+package com.kaishui.entitlement.entity.dto;
+
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Result of {@link com.kaishui.entitlement.repository.RoleRepository#findRolesAndAccessibleResources}:
+ * a user's active roles and the active resources of those roles visible to the user's AD groups.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RolesAndResourcesDto {
+    private List<Role> roles;
+    private List<Resource> resources;
+}
@@ -0,0 +1,21 @@
+package com.kaishui.entitlement.entity.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk user synchronization. {@code rejections} holds the reasons of the first rejected rows
+ * only, as "line N: reason"; {@code rejected} counts all of them.
+ */
+@Data
+@NoArgsConstructor
+public class UserSyncResultDto {
+    private long inserted;
+    private long updated;
+    private long unchanged;
+    private long rejected;
+    private List<String> rejections = new ArrayList<>();
+}
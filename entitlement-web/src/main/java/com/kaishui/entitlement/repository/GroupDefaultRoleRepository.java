@@ -1,6 +1,7 @@
 package com.kaishui.entitlement.repository;
 
 import com.kaishui.entitlement.entity.GroupDefaultRole;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
@@ -17,4 +18,9 @@ public interface GroupDefaultRoleRepository extends ReactiveMongoRepository<Grou
 
     // Add method to check if a groupName exists
     Mono<Boolean> existsByGroupName(String groupName);
+
+    // Keyset pagination on _id (see KeysetCursor)
+    Flux<GroupDefaultRole> findAllByOrderByIdAsc(Limit limit);
+
+    Flux<GroupDefaultRole> findByIdGreaterThanOrderByIdAsc(String id, Limit limit);
 }
\ No newline at end of file
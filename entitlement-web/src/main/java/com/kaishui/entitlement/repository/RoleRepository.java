@@ -1,6 +1,8 @@
 package com.kaishui.entitlement.repository;
 
 import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.dto.RolesAndResourcesDto;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
@@ -15,8 +17,26 @@ public interface RoleRepository extends ReactiveMongoRepository<Role, String> {
     Mono<Boolean> existsByRoleName(String roleName);
 
     Flux<Role> findAllByIdAndIsActive(List<String> roleIds, boolean isActive);
+    Flux<Role> findAllByIsActive(boolean isActive);
+    // Keyset pagination on _id (see KeysetCursor)
+    Flux<Role> findByIsActiveOrderByIdAsc(boolean isActive, Limit limit);
+    Flux<Role> findByIsActiveAndIdGreaterThanOrderByIdAsc(boolean isActive, String id, Limit limit);
     Flux<Role> findAllByUserCaseAndIsActive(String userCase, boolean isActive);
     @Aggregation(pipeline = {
             "{ $match: { '_id': { $in: ?0 }, 'userCase': ?1, 'isActive': ?2 } }"
     })
-    Flux<Role> findAllByIdsAndUserCaseAndIsActive(List<String> roleIds, String userCase, boolean isActive);}
\ No newline at end of file
+    Flux<Role> findAllByIdsAndUserCaseAndIsActive(List<String> roleIds, String userCase, boolean isActive);
+
+    /**
+     * Returns the active roles among {@code roleIds} together with their active resources whose AD groups
+     * intersect {@code adGroups}, in a single aggregation. Resource ids are referenced as strings, so they are
+     * converted to ObjectIds (keeping the raw string when it is not a valid ObjectId) before the {@code $lookup}.
+     */
+    @Aggregation(pipeline = {
+            "{ $match: { '_id': { $in: ?0 }, 'isActive': true } }",
+            "{ $facet: { 'roles': [ { $match: {} } ], 'resourceIds': [ { $unwind: '$resourceIds' }, { $group: { '_id': { $convert: { input: '$resourceIds', to: 'objectId', onError: '$resourceIds' } } } } ] } }",
+            "{ $lookup: { from: 'resources', localField: 'resourceIds._id', foreignField: '_id', as: 'resources' } }",
+            "{ $project: { 'roles': 1, 'resources': { $filter: { input: '$resources', cond: { $and: [ { $eq: ['$$this.isActive', true] }, { $gt: [{ $size: { $setIntersection: [{ $ifNull: ['$$this.adGroups', []] }, ?1] } }, 0] } ] } } } }"
+    })
+    Mono<RolesAndResourcesDto> findRolesAndAccessibleResources(List<String> roleIds, List<String> adGroups);
+}
\ No newline at end of file
@@ -1,24 +1,53 @@
 package com.kaishui.entitlement.repository;
 
+import com.kaishui.entitlement.entity.Resource;
 import com.kaishui.entitlement.entity.User;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 @Repository
 public interface UserRepository extends ReactiveMongoRepository<User, String> {
     Mono<User> findByUsername(String username);
 
     Mono<User> findByStaffId(String staffId);
 
+    Flux<User> findByStaffIdIn(List<String> staffIds);
+
+    // Keyset pagination on _id (see KeysetCursor)
+    Flux<User> findAllByOrderByIdAsc(Limit limit);
+
+    Flux<User> findByIdGreaterThanOrderByIdAsc(String id, Limit limit);
+
     @Aggregation(pipeline = {
             "{ $match: { 'adGroups': { $in: ?0 }, 'isActive': ?1} }"
 
     })
     Flux<User> findByAdGroupAndIsActive(String nextLevelADGroup, boolean isActive);
 
+    /**
+     * Resolves user -> active roles -> active resources of the given type whose AD groups intersect the user's,
+     * in a single aggregation. Role and resource ids are referenced as strings, so they are converted to
+     * ObjectIds (keeping the raw string when it is not a valid ObjectId) before each {@code $lookup}.
+     */
+    @Aggregation(pipeline = {
+            "{ $match: { 'staffId': ?0 } }",
+            "{ $project: { 'adGroups': 1, 'roleIds': { $map: { input: { $ifNull: ['$roleIds', []] }, in: { $convert: { input: '$$this', to: 'objectId', onError: '$$this' } } } } } }",
+            "{ $lookup: { from: 'roles', localField: 'roleIds', foreignField: '_id', as: 'roles' } }",
+            "{ $project: { 'adGroups': 1, 'resourceIds': { $map: { input: { $reduce: { input: { $filter: { input: '$roles', cond: { $eq: ['$$this.isActive', true] } } }, initialValue: [], in: { $setUnion: ['$$value', { $ifNull: ['$$this.resourceIds', []] }] } } }, in: { $convert: { input: '$$this', to: 'objectId', onError: '$$this' } } } } } }",
+            "{ $lookup: { from: 'resources', localField: 'resourceIds', foreignField: '_id', as: 'resources' } }",
+            "{ $unwind: '$resources' }",
+            "{ $replaceRoot: { newRoot: { $mergeObjects: ['$resources', { 'userAdGroups': '$adGroups' }] } } }",
+            "{ $match: { 'isActive': true, 'type': ?1, $expr: { $gt: [{ $size: { $setIntersection: [{ $ifNull: ['$adGroups', []] }, { $ifNull: ['$userAdGroups', []] }] } }, 0] } } }",
+            "{ $project: { 'userAdGroups': 0 } }"
+    })
+    Flux<Resource> findAccessibleResourcesByStaffIdAndType(String staffId, String type);
+
 //    @Aggregation(pipeline = {
 //            "{ '$group': { '_id': '$department', 'count': { '$sum': 1 } } }",
 //            "{ '$project': { '_id': 0, 'department': '$_id', 'count': 1 } }"
@@ -0,0 +1,196 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.AuditLogEntity;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes audit log entries in the background through a bounded queue, inserting them with one
+ * {@code insertMany} per batch. A batch is flushed once {@code batch-size} entries are queued or every
+ * {@code flush-interval}, whichever comes first, and the queue is drained on shutdown.
+ * <p>
+ * When the queue is full, {@code overflow-policy} decides what happens to a new entry:
+ * {@code drop} discards it, {@code block} retries queuing it in the background for up to {@code block-timeout} and
+ * then discards it, and {@code spill} bypasses the queue with a direct single insert. The caller never waits, as it
+ * is usually on the event loop. At most {@code overflow-concurrency} entries are retried or spilled at once; beyond
+ * that they are dropped, so an overloaded database does not also get a flood of single inserts. Outcomes are
+ * counted in {@code audit.log.events} (tag {@code outcome}); the queue depth is published as {@code audit.log.queue.size}.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AuditLogWriter {
+
+    public enum OverflowPolicy { DROP, BLOCK, SPILL }
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${entitlement.audit.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${entitlement.audit.batch-size:500}")
+    private int batchSize;
+
+    @Value("${entitlement.audit.flush-interval:1s}")
+    private Duration flushInterval;
+
+    @Value("${entitlement.audit.overflow-policy:drop}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${entitlement.audit.block-timeout:100ms}")
+    private Duration blockTimeout;
+
+    @Value("${entitlement.audit.overflow-concurrency:16}")
+    private int overflowConcurrency;
+
+    @Value("${entitlement.audit.shutdown-timeout:10s}")
+    private Duration shutdownTimeout;
+
+    private static final Duration OFFER_RETRY_DELAY = Duration.ofMillis(10);
+
+    private BlockingQueue<AuditLogEntity> queue;
+    private Semaphore overflowPermits;
+    private final Sinks.Many<Boolean> flushRequests = Sinks.many().multicast().directBestEffort();
+    private final Sinks.One<Boolean> stopRequests = Sinks.one();
+    private Mono<Void> flushTaskDone;
+    private Disposable flushTask;
+
+    private Counter written;
+    private Counter dropped;
+    private Counter spilled;
+    private Counter failed;
+
+    @PostConstruct
+    void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        overflowPermits = new Semaphore(overflowConcurrency);
+        Gauge.builder("audit.log.queue.size", queue, BlockingQueue::size).register(meterRegistry);
+        written = outcomeCounter("written");
+        dropped = outcomeCounter("dropped");
+        spilled = outcomeCounter("spilled");
+        failed = outcomeCounter("failed");
+
+        // Ticks and size-triggered requests arriving during a flush are coalesced into it
+        flushTaskDone = Flux.merge(Flux.interval(flushInterval, flushInterval, Schedulers.parallel()).map(tick -> true),
+                        flushRequests.asFlux())
+                .onBackpressureDrop()
+                .takeUntilOther(stopRequests.asMono())
+                .concatMap(trigger -> flush(), 1)
+                .then()
+                .cache();
+        flushTask = flushTaskDone.subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        // Lets a flush in progress finish rather than cancelling it with a batch already drained from the queue
+        stopRequests.tryEmitValue(true);
+        try {
+            flushTaskDone.then(Mono.defer(() -> {
+                log.info("Flushing {} pending audit log entries before shutdown", queue.size());
+                return flush();
+            })).block(shutdownTimeout);
+        } finally {
+            flushTask.dispose();
+        }
+    }
+
+    /**
+     * Queues an entry for the next batch without waiting for it to be written.
+     */
+    public void write(AuditLogEntity entry) {
+        if (queue.offer(entry)) {
+            if (queue.size() >= batchSize) {
+                flushRequests.tryEmitNext(true); // Fails harmlessly if a flush is already being requested
+            }
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.DROP || !overflowPermits.tryAcquire()) {
+            drop(entry);
+            return;
+        }
+        Mono<Void> overflow = overflowPolicy == OverflowPolicy.BLOCK ? offerLater(entry) : spill(entry);
+        overflow.doFinally(signal -> overflowPermits.release()).subscribe();
+    }
+
+    /**
+     * Writes every queued entry, one {@code insertMany} per {@code batch-size} entries.
+     * Failed batches are logged and counted, not retried.
+     */
+    Mono<Void> flush() {
+        return Mono.defer(() -> {
+            List<AuditLogEntity> batch = new ArrayList<>(Math.min(batchSize, queue.size()));
+            queue.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                return Mono.empty();
+            }
+            return reactiveMongoTemplate.insert(batch, AuditLogEntity.class)
+                    .then(Mono.fromRunnable(() -> written.increment(batch.size())))
+                    .onErrorResume(e -> {
+                        failed.increment(batch.size());
+                        log.error("Failed to write a batch of {} audit log entries: {}", batch.size(), e.getMessage(), e);
+                        return Mono.empty();
+                    })
+                    .then(Mono.defer(this::flush));
+        });
+    }
+
+    /**
+     * Retries queuing the entry until there is space or {@code block-timeout} elapsed, then drops it.
+     */
+    private Mono<Void> offerLater(AuditLogEntity entry) {
+        flushRequests.tryEmitNext(true); // Make room
+        return Mono.fromCallable(() -> queue.offer(entry))
+                .filter(Boolean::booleanValue)
+                .repeatWhenEmpty(attempts -> attempts.delayElements(OFFER_RETRY_DELAY, Schedulers.parallel()))
+                .timeout(blockTimeout, Schedulers.parallel())
+                .onErrorResume(TimeoutException.class, e -> {
+                    drop(entry);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private Mono<Void> spill(AuditLogEntity entry) {
+        spilled.increment();
+        return reactiveMongoTemplate.insert(entry)
+                .doOnNext(saved -> written.increment())
+                .onErrorResume(error -> {
+                    failed.increment();
+                    log.error("Failed to write spilled audit log entry for action: {}", entry.getAction(), error);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private void drop(AuditLogEntity entry) {
+        dropped.increment();
+        log.warn("Audit log queue is full, dropping entry for action: {}", entry.getAction());
+    }
+
+    private Counter outcomeCounter(String outcome) {
+        return Counter.builder("audit.log.events").tag("outcome", outcome).register(meterRegistry);
+    }
+}
@@ -0,0 +1,176 @@
+package com.kaishui.entitlement.service;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Watches {@code users}, {@code roles}, {@code resources} and {@code groupDefaultRoles} through one database-level
+ * MongoDB change stream and publishes each change as an {@link EntitlementChangeEvent}, so in-process caches and
+ * snapshots of every instance drop what another instance's admin write made stale.
+ * <p>
+ * The resume token is persisted in {@code changeStreamResumeTokens} per {@code instance-id}, at most every
+ * {@code token-flush-interval}, and the stream resumes after it on restart or on a stream error. If the change
+ * history no longer reaches back to the token, or the stream is invalidated, a full invalidation is published
+ * and the stream restarts from now.
+ * <p>
+ * Change streams need a replica set; a single-node one (e.g. {@code mongod --replSet rs0} then {@code rs.initiate()})
+ * is enough. Enable with {@code entitlement.change-stream.enabled=true}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "entitlement.change-stream.enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class ChangeStreamInvalidator {
+
+    static final String TOKEN_COLLECTION = "changeStreamResumeTokens";
+    static final List<String> WATCHED_COLLECTIONS = List.of(
+            EntitlementChangeEvent.USERS, EntitlementChangeEvent.ROLES,
+            EntitlementChangeEvent.RESOURCES, EntitlementChangeEvent.GROUP_DEFAULT_ROLES);
+
+    // Server error codes for a resume token that has fallen off the oplog
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${entitlement.change-stream.instance-id:${HOSTNAME:local}}")
+    private String instanceId;
+
+    @Value("${entitlement.change-stream.token-flush-interval:5s}")
+    private Duration tokenFlushInterval;
+
+    private volatile BsonValue resumeToken;
+    private Disposable subscription;
+
+    @PostConstruct
+    void start() {
+        subscription = loadResumeToken()
+                .doOnNext(token -> resumeToken = token)
+                .thenMany(Flux.defer(this::watch)
+                        .repeat() // An invalidated stream completes
+                        .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                                .maxBackoff(Duration.ofSeconds(30))
+                                .doBeforeRetry(signal -> log.warn("Change stream failed, resuming: {}", signal.failure().getMessage()))))
+                .sample(tokenFlushInterval)
+                .concatMap(token -> saveResumeToken(token).onErrorResume(e -> {
+                    log.warn("Could not persist change stream resume token: {}", e.getMessage());
+                    return Mono.empty();
+                }))
+                .subscribe();
+        log.info("Watching {} for cache invalidation as instance '{}'", WATCHED_COLLECTIONS, instanceId);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+        BsonValue token = resumeToken;
+        if (token != null) {
+            saveResumeToken(token).block(Duration.ofSeconds(5));
+        }
+    }
+
+    /**
+     * Opens the stream after the last seen token, publishing one event per change.
+     *
+     * @return the resume token of each processed change
+     */
+    private Flux<BsonValue> watch() {
+        ChangeStreamOptions.ChangeStreamOptionsBuilder options = ChangeStreamOptions.builder()
+                .filter(new Document("$match", new Document("ns.coll", new Document("$in", WATCHED_COLLECTIONS))))
+                .fullDocumentLookup(FullDocument.UPDATE_LOOKUP); // Updates carry the user's staffId
+        BsonValue token = resumeToken;
+        if (token != null) {
+            options.resumeAfter(token);
+        }
+        return reactiveMongoTemplate.changeStream(null, options.build(), Document.class)
+                .onErrorResume(this::isHistoryLost, e -> {
+                    log.warn("Change stream history lost, invalidating all caches and restarting from now: {}", e.getMessage());
+                    resumeToken = null;
+                    eventPublisher.publishEvent(EntitlementChangeEvent.all());
+                    return Flux.error(e); // Retried without a token
+                })
+                .doOnNext(event -> {
+                    eventPublisher.publishEvent(toChange(event));
+                    // An invalidated stream cannot be resumed after its own token
+                    resumeToken = event.getOperationType() == OperationType.INVALIDATE ? null : event.getResumeToken();
+                })
+                .filter(event -> event.getOperationType() != OperationType.INVALIDATE)
+                .map(ChangeStreamEvent::getResumeToken);
+    }
+
+    static EntitlementChangeEvent toChange(ChangeStreamEvent<Document> event) {
+        BsonDocument documentKey = event.getRaw() != null ? event.getRaw().getDocumentKey() : null;
+        String documentId = documentKey != null && documentKey.containsKey("_id") ? idString(documentKey.get("_id")) : null;
+        return toChange(event.getCollectionName(), event.getOperationType(), documentId, event.getBody());
+    }
+
+    static EntitlementChangeEvent toChange(String collection, OperationType operationType, String documentId, Document fullDocument) {
+        if (collection == null || operationType == null) {
+            return EntitlementChangeEvent.all();
+        }
+        return switch (operationType) {
+            case INSERT, UPDATE, REPLACE -> new EntitlementChangeEvent(collection, documentId,
+                    EntitlementChangeEvent.USERS.equals(collection) && fullDocument != null ? fullDocument.getString("staffId") : null);
+            // The deleted user's staffId is gone with the document
+            case DELETE -> new EntitlementChangeEvent(collection, documentId, null);
+            default -> EntitlementChangeEvent.all(); // drop, rename, dropDatabase, invalidate
+        };
+    }
+
+    private static String idString(BsonValue id) {
+        return id.isObjectId() ? id.asObjectId().getValue().toHexString()
+                : id.isString() ? id.asString().getValue()
+                : id.toString();
+    }
+
+    private boolean isHistoryLost(Throwable e) {
+        return e instanceof MongoCommandException commandException
+                && (commandException.getErrorCode() == CHANGE_STREAM_HISTORY_LOST
+                || commandException.getErrorCode() == CHANGE_STREAM_FATAL_ERROR);
+    }
+
+    private Mono<BsonValue> loadResumeToken() {
+        return reactiveMongoTemplate.findById(instanceId, Document.class, TOKEN_COLLECTION)
+                .mapNotNull(document -> document.get("token", Document.class))
+                .map(token -> (BsonValue) BsonDocument.parse(token.toJson()))
+                .doOnNext(token -> log.info("Resuming change stream for instance '{}' after {}", instanceId, token));
+    }
+
+    private Mono<Void> saveResumeToken(BsonValue token) {
+        // Resume tokens are {_data: <hex string>}, so the JSON round trip is lossless
+        Document document = Document.parse(token.asDocument().toJson());
+        return reactiveMongoTemplate.upsert(query(where("_id").is(instanceId)),
+                        new Update().set("token", document).set("updatedAt", new Date()), TOKEN_COLLECTION)
+                .then();
+    }
+}
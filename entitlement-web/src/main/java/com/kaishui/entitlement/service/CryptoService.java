@@ -0,0 +1,138 @@
+package com.kaishui.entitlement.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.jasypt.encryption.pbe.PooledPBEStringEncryptor;
+import org.jasypt.encryption.pbe.config.SimpleStringPBEConfig;
+import org.jasypt.exceptions.EncryptionOperationNotPossibleException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+/**
+ * Jasypt encryption and decryption for the crypto endpoints, kept off the Netty event loop.
+ * <p>
+ * PBE key derivation is CPU-bound, so every operation runs on a dedicated scheduler with one worker per
+ * encryptor in a {@link PooledPBEStringEncryptor}. The pool defaults to one encryptor per core
+ * ({@code entitlement.crypto.pool-size}). It is configured from the same {@code jasypt.encryptor.*}
+ * properties, and with the same defaults, as the starter's property encryptor, so their outputs are interchangeable.
+ */
+@Slf4j
+@Service
+public class CryptoService {
+
+    private static final String ENC_PREFIX = "ENC(";
+    private static final String ENC_SUFFIX = ")";
+
+    @Value("${jasypt.encryptor.password}")
+    private String password;
+
+    @Value("${jasypt.encryptor.algorithm:PBEWITHHMACSHA512ANDAES_256}")
+    private String algorithm;
+
+    @Value("${jasypt.encryptor.key-obtention-iterations:1000}")
+    private String keyObtentionIterations;
+
+    @Value("${jasypt.encryptor.salt-generator-classname:org.jasypt.salt.RandomSaltGenerator}")
+    private String saltGeneratorClassName;
+
+    @Value("${jasypt.encryptor.iv-generator-classname:org.jasypt.iv.RandomIvGenerator}")
+    private String ivGeneratorClassName;
+
+    @Value("${jasypt.encryptor.string-output-type:base64}")
+    private String stringOutputType;
+
+    // 0 means one encryptor (and one scheduler worker) per available core
+    @Value("${entitlement.crypto.pool-size:0}")
+    private int configuredPoolSize;
+
+    private int poolSize;
+    private PooledPBEStringEncryptor encryptor;
+    private Scheduler cryptoScheduler;
+
+    @PostConstruct
+    void start() {
+        poolSize = configuredPoolSize > 0 ? configuredPoolSize : Runtime.getRuntime().availableProcessors();
+
+        SimpleStringPBEConfig config = new SimpleStringPBEConfig();
+        config.setPassword(password);
+        config.setAlgorithm(algorithm);
+        config.setKeyObtentionIterations(keyObtentionIterations);
+        config.setPoolSize(poolSize);
+        config.setSaltGeneratorClassName(saltGeneratorClassName);
+        config.setIvGeneratorClassName(ivGeneratorClassName);
+        config.setStringOutputType(stringOutputType);
+        encryptor = new PooledPBEStringEncryptor();
+        encryptor.setConfig(config);
+
+        cryptoScheduler = Schedulers.newParallel("crypto", poolSize);
+        log.info("Crypto service started with {} pooled encryptors", poolSize);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (cryptoScheduler != null) {
+            cryptoScheduler.dispose();
+        }
+    }
+
+    /**
+     * Encrypts a value on the crypto scheduler.
+     *
+     * @throws IllegalArgumentException (as an error signal) if the value is null or blank
+     */
+    public Mono<String> encrypt(String value) {
+        return Mono.fromCallable(() -> {
+                    requireValue(value, "encrypt");
+                    return encryptor.encrypt(value);
+                })
+                .subscribeOn(cryptoScheduler);
+    }
+
+    /**
+     * Decrypts a value on the crypto scheduler, unwrapping an {@code ENC(...)} wrapper if present.
+     *
+     * @throws IllegalArgumentException (as an error signal) if the value is blank or cannot be decrypted
+     */
+    public Mono<String> decrypt(String value) {
+        return Mono.fromCallable(() -> {
+                    requireValue(value, "decrypt");
+                    String valueToDecrypt = value;
+                    if (valueToDecrypt.startsWith(ENC_PREFIX) && valueToDecrypt.endsWith(ENC_SUFFIX)) {
+                        valueToDecrypt = valueToDecrypt.substring(ENC_PREFIX.length(), valueToDecrypt.length() - ENC_SUFFIX.length());
+                    }
+                    try {
+                        return encryptor.decrypt(valueToDecrypt);
+                    } catch (EncryptionOperationNotPossibleException e) {
+                        throw new IllegalArgumentException("Decryption failed. Invalid input or key.", e);
+                    }
+                })
+                .subscribeOn(cryptoScheduler);
+    }
+
+    /**
+     * Encrypts values in parallel across the encryptor pool, keeping the input order.
+     */
+    public Mono<List<String>> encryptAll(List<String> values) {
+        return Flux.fromIterable(values).flatMapSequential(this::encrypt, poolSize).collectList();
+    }
+
+    /**
+     * Decrypts values in parallel across the encryptor pool, keeping the input order.
+     */
+    public Mono<List<String>> decryptAll(List<String> values) {
+        return Flux.fromIterable(values).flatMapSequential(this::decrypt, poolSize).collectList();
+    }
+
+    private static void requireValue(String value, String operation) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Value to " + operation + " cannot be null or blank.");
+        }
+    }
+}
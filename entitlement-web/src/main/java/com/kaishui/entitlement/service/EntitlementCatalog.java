@@ -0,0 +1,366 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.repository.ResourceRepository;
+import com.kaishui.entitlement.repository.RoleRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * In-process catalog of all active roles and resources, indexed by id, roles by {@code userCase} and resources by
+ * {@code type}, so lookups on the request path do not query {@code roles} and {@code resources}.
+ * <p>
+ * Readers take the current {@link Snapshot}, which is immutable, without a lock. Every change builds a new snapshot
+ * with the next {@link #version()} and swaps it in: a full reload at startup, retried until it succeeds, and every
+ * {@code entitlement.catalog.refresh-interval}, and a copy-on-write patch of one document after admin writes through
+ * {@link RoleService} and {@link ResourceService} and on {@link EntitlementChangeEvent}s from other instances.
+ * Changes are applied one at a time in submission order, so a reload that read the collections before a patch can
+ * never overwrite it. A failed change keeps the current snapshot. Each new snapshot evicts the
+ * {@link PermissionDecisionCache}, so a decision computed from the previous one, even while the change was queued,
+ * is not served after it.
+ * <p>
+ * Returned roles and resources are shared by every reader and must not be modified.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class EntitlementCatalog {
+
+    private final RoleRepository roleRepository;
+    private final ResourceRepository resourceRepository;
+    private final PermissionDecisionCache permissionDecisionCache;
+
+    // Catches changes made by other instances when the change stream is disabled
+    @Value("${entitlement.catalog.refresh-interval:5m}")
+    private Duration refreshInterval;
+
+    private static final Duration INITIAL_LOAD_BACKOFF = Duration.ofSeconds(1);
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final Sinks.Many<Mono<Void>> changes = Sinks.many().unicast().onBackpressureBuffer();
+    private final AtomicReference<Mono<Snapshot>> initialLoad = new AtomicReference<>();
+    private Disposable changeTask;
+    private Disposable startupTask;
+    private Disposable refreshTask;
+
+    @PostConstruct
+    void start() {
+        changeTask = changes.asFlux().concatMap(Function.identity()).subscribe();
+        // Retried until MongoDB is reachable, rather than left empty until the first refresh
+        startupTask = Mono.defer(this::initialLoad)
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, INITIAL_LOAD_BACKOFF).maxBackoff(refreshInterval))
+                .subscribe();
+        refreshTask = Flux.interval(refreshInterval, refreshInterval, Schedulers.parallel())
+                .onBackpressureDrop()
+                .concatMap(tick -> refreshAll())
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (startupTask != null) {
+            startupTask.dispose();
+        }
+        if (refreshTask != null) {
+            refreshTask.dispose();
+        }
+        if (changeTask != null) {
+            changeTask.dispose();
+        }
+    }
+
+    /**
+     * Patches the changed role or resource in when any instance changes one, and reloads everything when the whole
+     * database changed.
+     */
+    @EventListener
+    public void onChange(EntitlementChangeEvent change) {
+        if (change.isAll()) {
+            refreshAll().subscribe();
+        } else if (EntitlementChangeEvent.ROLES.equals(change.collection()) && change.documentId() != null) {
+            refreshRole(change.documentId()).subscribe();
+        } else if (EntitlementChangeEvent.RESOURCES.equals(change.collection()) && change.documentId() != null) {
+            refreshResource(change.documentId()).subscribe();
+        }
+    }
+
+    /**
+     * Reloads all roles and resources. Errors are logged and the current snapshot is kept.
+     */
+    public Mono<Void> refreshAll() {
+        return Mono.defer(() -> submit(reload())).onErrorResume(e -> Mono.empty());
+    }
+
+    /**
+     * Re-reads one role and swaps in a copy of the snapshot with it added, replaced, or removed if it no longer
+     * exists or is inactive. Completes once the new snapshot is visible; errors are logged and the current snapshot is kept.
+     */
+    public Mono<Void> refreshRole(String id) {
+        return Mono.defer(() -> submit(patch(roleRepository.findById(id), (current, role) -> current.withRole(id, role))))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    /**
+     * Same as {@link #refreshRole} for a resource.
+     */
+    public Mono<Void> refreshResource(String id) {
+        return Mono.defer(() -> submit(patch(resourceRepository.findById(id), (current, resource) -> current.withResource(id, resource))))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    /**
+     * @return the version of the current snapshot, increased by every change; 0 before the first load
+     */
+    public long version() {
+        Snapshot current = snapshot.get();
+        return current == null ? 0 : current.version();
+    }
+
+    /**
+     * @return the active role with the given id, or empty
+     */
+    public Mono<Role> activeRole(String id) {
+        return id == null ? Mono.empty() : current().mapNotNull(loaded -> loaded.rolesById().get(id));
+    }
+
+    /**
+     * @return all active roles in id order
+     */
+    public Flux<Role> activeRoles() {
+        return current().flatMapIterable(Snapshot::roles);
+    }
+
+    /**
+     * @return the distinct active roles among {@code ids}, in the order of {@code ids}
+     */
+    public Flux<Role> activeRoles(Collection<String> ids) {
+        return current().flatMapIterable(loaded -> lookup(ids, loaded.rolesById()));
+    }
+
+    /**
+     * @return all active roles of the user case, in id order
+     */
+    public Flux<Role> activeRolesOfUserCase(String userCase) {
+        if (userCase == null) {
+            return Flux.empty();
+        }
+        return current().flatMapIterable(loaded -> loaded.rolesByUserCase().getOrDefault(userCase, List.of()));
+    }
+
+    /**
+     * @return the distinct active roles of the user case among {@code ids}, in the order of {@code ids}
+     */
+    public Flux<Role> activeRolesOfUserCase(Collection<String> ids, String userCase) {
+        return activeRoles(ids).filter(role -> userCase != null && userCase.equals(role.getUserCase()));
+    }
+
+    /**
+     * @return the distinct active resources of the type among {@code ids}, in the order of {@code ids}
+     */
+    public Flux<Resource> activeResources(Collection<String> ids, String type) {
+        if (type == null) {
+            return Flux.empty();
+        }
+        return current().flatMapIterable(loaded -> lookup(ids, loaded.resourcesByType().getOrDefault(type, Map.of())));
+    }
+
+    /**
+     * @return the distinct active resources among {@code ids} having at least one of {@code adGroups}, in the order of {@code ids}
+     */
+    public Flux<Resource> accessibleResources(Collection<String> ids, Collection<String> adGroups) {
+        Set<String> groups = adGroups == null ? Set.of() : new HashSet<>(adGroups);
+        return current().flatMapIterable(loaded -> lookup(ids, loaded.resourcesById()))
+                .filter(resource -> resource.getAdGroups() != null && resource.getAdGroups().stream().anyMatch(groups::contains));
+    }
+
+    private static <T> List<T> lookup(Collection<String> ids, Map<String, T> byId) {
+        if (CollectionUtils.isEmpty(ids)) {
+            return List.of();
+        }
+        List<T> found = new ArrayList<>(ids.size());
+        for (String id : new LinkedHashSet<>(ids)) {
+            T item = id == null ? null : byId.get(id);
+            if (item != null) {
+                found.add(item);
+            }
+        }
+        return found;
+    }
+
+    private Mono<Snapshot> current() {
+        Snapshot current = snapshot.get();
+        return current != null ? Mono.just(current) : Mono.defer(this::initialLoad);
+    }
+
+    /**
+     * The first load, which requests arriving before the first snapshot wait for instead of finding nothing. A failed
+     * load is dropped before its waiters get the error, so the next request or startup retry starts another one.
+     */
+    private Mono<Snapshot> initialLoad() {
+        Snapshot current = snapshot.get();
+        if (current != null) {
+            return Mono.just(current);
+        }
+        Mono<Snapshot> pending = initialLoad.get();
+        if (pending != null) {
+            return pending;
+        }
+        Sinks.One<Snapshot> loaded = Sinks.one();
+        Mono<Snapshot> load = loaded.asMono();
+        if (!initialLoad.compareAndSet(null, load)) {
+            return Mono.defer(this::initialLoad); // Another caller started it
+        }
+        submit(reload()).then(Mono.fromSupplier(snapshot::get)).subscribe(
+                loaded::tryEmitValue,
+                e -> {
+                    initialLoad.compareAndSet(load, null);
+                    loaded.tryEmitError(e);
+                },
+                loaded::tryEmitEmpty);
+        return load;
+    }
+
+    /**
+     * Queues a change behind the ones already submitted, when called rather than when subscribed to.
+     *
+     * @return completes, or fails, once the change was applied
+     */
+    private Mono<Void> submit(Mono<Snapshot> change) {
+        Sinks.Empty<Void> done = Sinks.empty();
+        Mono<Void> applied = change
+                .doOnNext(this::swap)
+                .doOnError(e -> log.error("Catalog change failed, keeping version {}: {}", version(), e.getMessage(), e))
+                .doOnError(done::tryEmitError)
+                .doOnSuccess(next -> done.tryEmitEmpty())
+                .onErrorResume(e -> Mono.empty())
+                .then();
+        changes.emitNext(applied, Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1)));
+        return done.asMono();
+    }
+
+    private Mono<Snapshot> reload() {
+        return Mono.defer(() -> Mono.zip(
+                roleRepository.findAllByIsActive(true).collectList(),
+                resourceRepository.findByIsActive(true).collectList(),
+                (roles, resources) -> Snapshot.of(version() + 1, roles, resources)));
+    }
+
+    private <T> Mono<Snapshot> patch(Mono<T> changed, BiFunction<Snapshot, T, Snapshot> apply) {
+        return Mono.defer(() -> {
+            if (snapshot.get() == null) {
+                return Mono.empty(); // Nothing to patch; the pending initial load or a later reload reads the change
+            }
+            return changed.map(Optional::of)
+                    .defaultIfEmpty(Optional.empty())
+                    .map(found -> apply.apply(snapshot.get(), found.orElse(null)));
+        });
+    }
+
+    private void swap(Snapshot next) {
+        if (snapshot.getAndSet(next) != null) {
+            permissionDecisionCache.evictAll();
+        }
+        log.debug("Catalog version {}: {} active roles, {} active resources",
+                next.version(), next.rolesById().size(), next.resourcesById().size());
+    }
+
+    /**
+     * An immutable catalog version. Only active roles and resources are held; roles and resources without a
+     * {@code userCase} or {@code type} are only found by id.
+     */
+    record Snapshot(long version,
+                    Map<String, Role> rolesById,
+                    List<Role> roles,
+                    Map<String, List<Role>> rolesByUserCase,
+                    Map<String, Resource> resourcesById,
+                    Map<String, Map<String, Resource>> resourcesByType) {
+
+        static Snapshot of(long version, Collection<Role> roles, Collection<Resource> resources) {
+            Map<String, Role> rolesById = new HashMap<>();
+            for (Role role : roles) {
+                if (role.getId() != null && role.isActive()) {
+                    rolesById.put(role.getId(), role);
+                }
+            }
+            Map<String, Resource> resourcesById = new HashMap<>();
+            for (Resource resource : resources) {
+                if (resource.getId() != null && Boolean.TRUE.equals(resource.getIsActive())) {
+                    resourcesById.put(resource.getId(), resource);
+                }
+            }
+
+            List<Role> sortedRoles = rolesById.values().stream().sorted(Comparator.comparing(Role::getId)).toList();
+            Map<String, List<Role>> rolesByUserCase = new HashMap<>();
+            for (Role role : sortedRoles) {
+                if (role.getUserCase() != null) {
+                    rolesByUserCase.computeIfAbsent(role.getUserCase(), userCase -> new ArrayList<>()).add(role);
+                }
+            }
+            Map<String, Map<String, Resource>> resourcesByType = new HashMap<>();
+            resourcesById.forEach((id, resource) -> {
+                if (resource.getType() != null) {
+                    resourcesByType.computeIfAbsent(resource.getType(), type -> new HashMap<>()).put(id, resource);
+                }
+            });
+
+            Map<String, List<Role>> immutableRolesByUserCase = new HashMap<>();
+            rolesByUserCase.forEach((userCase, caseRoles) -> immutableRolesByUserCase.put(userCase, List.copyOf(caseRoles)));
+            Map<String, Map<String, Resource>> immutableResourcesByType = new HashMap<>();
+            resourcesByType.forEach((type, typeResources) -> immutableResourcesByType.put(type, Map.copyOf(typeResources)));
+            return new Snapshot(version, Map.copyOf(rolesById), sortedRoles, Map.copyOf(immutableRolesByUserCase),
+                    Map.copyOf(resourcesById), Map.copyOf(immutableResourcesByType));
+        }
+
+        /**
+         * @param role the role as now stored, or null if it no longer exists
+         */
+        Snapshot withRole(String id, Role role) {
+            Map<String, Role> next = new HashMap<>(rolesById);
+            next.remove(id);
+            if (role != null) {
+                next.put(id, role);
+            }
+            return of(version + 1, next.values(), resourcesById.values());
+        }
+
+        /**
+         * @param resource the resource as now stored, or null if it no longer exists
+         */
+        Snapshot withResource(String id, Resource resource) {
+            Map<String, Resource> next = new HashMap<>(resourcesById);
+            next.remove(id);
+            if (resource != null) {
+                next.put(id, resource);
+            }
+            return of(version + 1, rolesById.values(), next.values());
+        }
+    }
+}
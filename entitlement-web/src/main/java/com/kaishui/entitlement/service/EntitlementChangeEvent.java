@@ -0,0 +1,36 @@
+package com.kaishui.entitlement.service;
+
+/**
+ * A change to entitlement data made by any service instance, published by {@link ChangeStreamInvalidator}
+ * for in-process caches to invalidate what they hold.
+ *
+ * @param collection the changed collection, or null if the whole database changed (dropped, or events were lost)
+ * @param documentId id of the changed document, if known
+ * @param staffId    staffId of the changed user, if the change is to a user that still exists
+ */
+public record EntitlementChangeEvent(String collection, String documentId, String staffId) {
+
+    public static final String USERS = "users";
+    public static final String ROLES = "roles";
+    public static final String RESOURCES = "resources";
+    public static final String GROUP_DEFAULT_ROLES = "groupDefaultRoles";
+
+    /**
+     * @return an event telling caches to drop everything, e.g. after the change history could not be resumed.
+     */
+    public static EntitlementChangeEvent all() {
+        return new EntitlementChangeEvent(null, null, null);
+    }
+
+    public boolean isAll() {
+        return collection == null;
+    }
+
+    /**
+     * @return true if the change can alter permission decisions: users, roles and resources, but not group
+     * default roles, which are only read on first login and whose effect arrives as a user change.
+     */
+    public boolean affectsPermissions() {
+        return isAll() || USERS.equals(collection) || ROLES.equals(collection) || RESOURCES.equals(collection);
+    }
+}
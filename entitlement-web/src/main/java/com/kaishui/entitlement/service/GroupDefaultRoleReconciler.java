@@ -0,0 +1,315 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation;
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation.Status;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.exception.ResourceNotFoundException;
+import com.mongodb.bulk.BulkWriteResult;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Applies changed group default role mappings to the existing users of the group, who otherwise only get default
+ * roles on their first login.
+ * <p>
+ * Each change starts a {@link GroupDefaultRoleReconciliation} job walking the group's active users in id order, in
+ * batches of {@code batch-size} with a pause of {@code batch-delay} between them. A batch is one unordered bulk
+ * write: an {@code $addToSet} per added role for users missing it, and a {@code $pull} per removed role for users
+ * none of whose other groups has it as a default. Users yet to log in for the first time are skipped, since they get
+ * the defaults then.
+ * <p>
+ * Roles granted as defaults, at first login, by a sync or by a job, are recorded in the user's {@code defaultRoleIds}
+ * besides {@code roleIds}, and only those are removed. A role the user already held is not recorded when a job adds
+ * it, so a role assigned directly is never removed by a mapping change, nor is any role of a user provisioned before
+ * {@code defaultRoleIds} was recorded.
+ * <p>
+ * The groups granting a removed role are read from {@code groupDefaultRoles} for every batch rather than from the
+ * {@link GroupDefaultRoleTable}, whose copy may predate the change being applied.
+ * <p>
+ * Progress is checkpointed after every batch. A job interrupted by a restart resumes after its last batch, on the
+ * same instance at startup or on any instance once its {@code lease} expires.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class GroupDefaultRoleReconciler {
+
+    private static final FindAndModifyOptions RETURN_NEW = FindAndModifyOptions.options().returnNew(true);
+    private static final int LIST_LIMIT = 100;
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final PermissionCheckerInterface permissionChecker;
+    private final PermissionDecisionCache permissionDecisionCache;
+
+    @Value("${entitlement.group-default-roles.reconciliation.enabled:true}")
+    private boolean enabled;
+
+    @Value("${entitlement.group-default-roles.reconciliation.batch-size:500}")
+    private int batchSize;
+
+    // Pause between batches, bounding the write rate on the users collection
+    @Value("${entitlement.group-default-roles.reconciliation.batch-delay:200ms}")
+    private Duration batchDelay;
+
+    // A running job not checkpointed by its owner within this time is taken over by another instance
+    @Value("${entitlement.group-default-roles.reconciliation.lease:2m}")
+    private Duration lease;
+
+    @Value("${entitlement.change-stream.instance-id:${HOSTNAME:local}}")
+    private String instanceId;
+
+    private final Disposable.Composite jobs = Disposables.composite();
+    // Ids of the jobs running on this instance, which must not be claimed again while a batch outlasts the lease
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    private Disposable claimTask;
+
+    @EventListener(ApplicationReadyEvent.class)
+    void resume() {
+        if (!enabled) {
+            return;
+        }
+        // Jobs this instance held before it restarted are heartbeated before this time
+        Date startedAt = new Date();
+        claimTask = Flux.interval(Duration.ZERO, lease, Schedulers.parallel())
+                .onBackpressureDrop()
+                .concatMap(tick -> claim(startedAt)
+                        .expand(claimed -> claim(startedAt))
+                        .onErrorResume(e -> {
+                            log.warn("Could not claim group default role reconciliations: {}", e.getMessage());
+                            return Mono.empty();
+                        }))
+                .subscribe(this::run);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (claimTask != null) {
+            claimTask.dispose();
+        }
+        jobs.dispose();
+    }
+
+    /**
+     * Starts applying a mapping change to the group's existing users in the background. Running jobs of the group
+     * are superseded and their pending removals carried over.
+     *
+     * @return the started job, or empty if the change adds and removes nothing
+     */
+    public Mono<GroupDefaultRoleReconciliation> reconcile(String groupName, List<String> previousRoleIds, List<String> roleIds) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        List<String> add = List.copyOf(new LinkedHashSet<>(nullToEmpty(roleIds)));
+        return supersede(groupName)
+                .map(pendingRemovals -> {
+                    Set<String> remove = new LinkedHashSet<>(nullToEmpty(previousRoleIds));
+                    remove.addAll(pendingRemovals);
+                    add.forEach(remove::remove);
+                    return List.copyOf(remove);
+                })
+                .filter(remove -> !add.isEmpty() || !remove.isEmpty())
+                .flatMap(remove -> reactiveMongoTemplate.insert(GroupDefaultRoleReconciliation.builder()
+                        .groupName(groupName)
+                        .addRoleIds(add)
+                        .removeRoleIds(remove)
+                        .status(Status.RUNNING)
+                        .owner(instanceId)
+                        .heartbeat(new Date())
+                        .build()))
+                .doOnNext(this::run);
+    }
+
+    public Mono<GroupDefaultRoleReconciliation> getReconciliation(String id) {
+        return reactiveMongoTemplate.findById(id, GroupDefaultRoleReconciliation.class)
+                .switchIfEmpty(Mono.error(new ResourceNotFoundException("Reconciliation not found with id: " + id)));
+    }
+
+    /**
+     * @return the latest jobs, of one group if {@code groupName} is given, newest first
+     */
+    public Flux<GroupDefaultRoleReconciliation> getReconciliations(String groupName) {
+        Query query = groupName == null ? new Query() : query(where("groupName").is(groupName));
+        return reactiveMongoTemplate.find(query.with(Sort.by(Sort.Direction.DESC, "id")).limit(LIST_LIMIT),
+                GroupDefaultRoleReconciliation.class);
+    }
+
+    /**
+     * Marks the group's running jobs superseded.
+     *
+     * @return the roles those jobs were still removing
+     */
+    private Mono<List<String>> supersede(String groupName) {
+        Query running = query(where("groupName").is(groupName).and("status").is(Status.RUNNING));
+        return reactiveMongoTemplate.find(running, GroupDefaultRoleReconciliation.class)
+                .collectList()
+                .flatMap(superseded -> superseded.isEmpty()
+                        ? Mono.just(Collections.<String>emptyList())
+                        : reactiveMongoTemplate.updateMulti(
+                                        query(where("id").in(superseded.stream().map(GroupDefaultRoleReconciliation::getId).toList())
+                                                .and("status").is(Status.RUNNING)),
+                                        new Update().set("status", Status.SUPERSEDED).set("completedDate", new Date()),
+                                        GroupDefaultRoleReconciliation.class)
+                                .thenReturn(superseded.stream()
+                                        .flatMap(job -> nullToEmpty(job.getRemoveRoleIds()).stream())
+                                        .toList()));
+    }
+
+    private Mono<GroupDefaultRoleReconciliation> claim(Date startedAt) {
+        Date expired = new Date(System.currentTimeMillis() - lease.toMillis());
+        Query claimable = query(where("status").is(Status.RUNNING).and("id").nin(List.copyOf(running)).orOperator(
+                where("owner").is(instanceId).and("heartbeat").lt(startedAt),
+                where("heartbeat").lt(expired)));
+        return reactiveMongoTemplate.findAndModify(claimable,
+                new Update().set("owner", instanceId).set("heartbeat", new Date()),
+                RETURN_NEW, GroupDefaultRoleReconciliation.class);
+    }
+
+    private void run(GroupDefaultRoleReconciliation job) {
+        if (!running.add(job.getId())) {
+            log.debug("Reconciliation {} of group '{}' is already running", job.getId(), job.getGroupName());
+            return;
+        }
+        log.info("Reconciling default roles of group '{}' (job {}, after user {})", job.getGroupName(), job.getId(), job.getLastUserId());
+        jobs.add(step(job)
+                .expand(next -> Mono.delay(batchDelay).then(step(next)))
+                .doFinally(signal -> running.remove(job.getId()))
+                .subscribe(null, e -> log.error("Reconciliation {} of group '{}' failed, it resumes once its lease expires: {}",
+                        job.getId(), job.getGroupName(), e.getMessage(), e)));
+    }
+
+    /**
+     * Applies the job to its next batch of users.
+     *
+     * @return the checkpointed job, or empty if it completed or no longer belongs to this instance
+     */
+    Mono<GroupDefaultRoleReconciliation> step(GroupDefaultRoleReconciliation job) {
+        return nextBatch(job)
+                .flatMap(batch -> batch.isEmpty()
+                        ? complete(job)
+                        : apply(job, batch).flatMap(updates -> checkpoint(job, batch, updates)));
+    }
+
+    private Mono<List<User>> nextBatch(GroupDefaultRoleReconciliation job) {
+        Criteria criteria = where("adGroups").is(job.getGroupName()).and("isActive").is(true).and("isFirstLogin").is(false);
+        if (job.getLastUserId() != null) {
+            criteria.and("id").gt(job.getLastUserId());
+        }
+        Query query = query(criteria).with(Sort.by("id")).limit(batchSize);
+        query.fields().include("id", "staffId");
+        return reactiveMongoTemplate.find(query, User.class).collectList();
+    }
+
+    private Mono<Long> apply(GroupDefaultRoleReconciliation job, List<User> batch) {
+        List<String> ids = batch.stream().map(User::getId).toList();
+        List<String> staffIds = batch.stream().map(User::getStaffId).toList();
+        List<String> add = nullToEmpty(job.getAddRoleIds());
+        // Resolved per batch, so a later change to another group's defaults applies to the remaining users
+        return groupsGranting(nullToEmpty(job.getRemoveRoleIds()))
+                .flatMap(removals -> {
+                    ReactiveBulkOperations bulkOps = reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class);
+                    for (String roleId : add) {
+                        bulkOps.updateMulti(query(where("id").in(ids).and("roleIds").ne(roleId)),
+                                new Update().addToSet("roleIds", roleId).addToSet("defaultRoleIds", roleId).inc("version", 1));
+                    }
+                    for (Map.Entry<String, Set<String>> removal : removals.entrySet()) {
+                        // Only users holding the role as a default, never one assigned directly
+                        Criteria holders = where("id").in(ids).and("defaultRoleIds").is(removal.getKey());
+                        if (!removal.getValue().isEmpty()) {
+                            holders.and("adGroups").nin(removal.getValue());
+                        }
+                        bulkOps.updateMulti(query(holders), new Update().pull("roleIds", removal.getKey())
+                                .pull("defaultRoleIds", removal.getKey()).inc("version", 1));
+                    }
+                    return bulkOps.execute();
+                })
+                .flatMap(result -> permissionChecker.refreshUsers(staffIds).thenReturn(result))
+                .doOnNext(result -> permissionDecisionCache.evictUsers(staffIds))
+                .map(BulkWriteResult::getModifiedCount)
+                .map(Integer::longValue);
+    }
+
+    /**
+     * @return the groups whose current mapping has each role as a default, by role
+     */
+    private Mono<Map<String, Set<String>>> groupsGranting(List<String> roleIds) {
+        if (roleIds.isEmpty()) {
+            return Mono.just(Collections.emptyMap());
+        }
+        Query query = query(where("roleIds").in(roleIds));
+        query.fields().include("groupName", "roleIds");
+        return reactiveMongoTemplate.find(query, GroupDefaultRole.class)
+                .collectList()
+                .map(mappings -> {
+                    Map<String, Set<String>> groups = new LinkedHashMap<>();
+                    roleIds.forEach(roleId -> groups.put(roleId, new HashSet<>()));
+                    for (GroupDefaultRole mapping : mappings) {
+                        nullToEmpty(mapping.getRoleIds()).stream()
+                                .filter(groups::containsKey)
+                                .forEach(roleId -> groups.get(roleId).add(mapping.getGroupName()));
+                    }
+                    return groups;
+                });
+    }
+
+    private Mono<GroupDefaultRoleReconciliation> checkpoint(GroupDefaultRoleReconciliation job, List<User> batch, long updates) {
+        return reactiveMongoTemplate.findAndModify(owned(job),
+                        new Update().set("lastUserId", batch.get(batch.size() - 1).getId())
+                                .set("heartbeat", new Date())
+                                .inc("usersScanned", batch.size())
+                                .inc("updates", updates),
+                        RETURN_NEW, GroupDefaultRoleReconciliation.class)
+                .switchIfEmpty(Mono.fromRunnable(() ->
+                        log.info("Reconciliation {} of group '{}' was superseded or taken over, stopping", job.getId(), job.getGroupName())));
+    }
+
+    private Mono<GroupDefaultRoleReconciliation> complete(GroupDefaultRoleReconciliation job) {
+        return reactiveMongoTemplate.updateFirst(owned(job),
+                        new Update().set("status", Status.COMPLETED).set("completedDate", new Date()).set("heartbeat", new Date()),
+                        GroupDefaultRoleReconciliation.class)
+                .doOnNext(result -> log.info("Reconciliation {} of group '{}' completed", job.getId(), job.getGroupName()))
+                .then(Mono.empty());
+    }
+
+    private Query owned(GroupDefaultRoleReconciliation job) {
+        return query(where("id").is(job.getId()).and("status").is(Status.RUNNING).and("owner").is(instanceId));
+    }
+
+    private static List<String> nullToEmpty(Collection<String> values) {
+        return values == null ? Collections.emptyList() : values.stream().filter(Objects::nonNull).toList();
+    }
+}
@@ -4,19 +4,24 @@ package com.kaishui.entitlement.service;
 import com.kaishui.entitlement.annotation.AuditLog; // Assuming you have this
 import com.kaishui.entitlement.entity.dto.CreateGroupDefaultRoleDto;
 import com.kaishui.entitlement.entity.dto.GroupDefaultRoleDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.UpdateGroupDefaultRoleDto;
 import com.kaishui.entitlement.entity.GroupDefaultRole;
 import com.kaishui.entitlement.exception.ConflictException;
 import com.kaishui.entitlement.exception.ResourceNotFoundException; // Re-use or create specific one
 import com.kaishui.entitlement.repository.GroupDefaultRoleRepository;
 import com.kaishui.entitlement.util.GroupDefaultRoleMapper;
+import com.kaishui.entitlement.util.KeysetCursor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuples;
 
+import java.util.ArrayList;
 import java.util.List;
 
 @Service
@@ -26,6 +31,8 @@ public class GroupDefaultRoleService {
 
     private final GroupDefaultRoleRepository groupDefaultRoleRepository;
     private final GroupDefaultRoleMapper groupDefaultRoleMapper;
+    private final GroupDefaultRoleTable groupDefaultRoleTable;
+    private final GroupDefaultRoleReconciler groupDefaultRoleReconciler;
 
     @AuditLog(action = "CREATE_GROUP_DEFAULT_ROLE")
     @Transactional
@@ -42,6 +49,7 @@ public class GroupDefaultRoleService {
                             // Auditing fields handled by framework
                             return groupDefaultRoleRepository.save(entity);
                         }))
+                .flatMap(saved -> applyToUsers(saved, List.of()))
                 .map(groupDefaultRoleMapper::toDto)
                 .doOnSuccess(savedDto -> log.info("Successfully created GroupDefaultRole with ID: {}", savedDto.getId()))
                 .doOnError(ConflictException.class, e -> log.warn(e.getMessage()))
@@ -55,6 +63,20 @@ public class GroupDefaultRoleService {
                 .doOnError(e -> log.error("Error fetching all GroupDefaultRoles: {}", e.getMessage(), e));
     }
 
+    /**
+     * Returns one page of mappings in ascending id order, after the position encoded in {@code cursor}.
+     */
+    public Mono<PageDto<GroupDefaultRoleDto>> getGroupDefaultRolesPage(String cursor, int limit) {
+        return Mono.defer(() -> {
+            String afterId = KeysetCursor.decode(cursor);
+            Limit fetchLimit = Limit.of(limit + 1);
+            Flux<GroupDefaultRole> mappings = afterId == null
+                    ? groupDefaultRoleRepository.findAllByOrderByIdAsc(fetchLimit)
+                    : groupDefaultRoleRepository.findByIdGreaterThanOrderByIdAsc(afterId, fetchLimit);
+            return KeysetCursor.page(mappings.map(groupDefaultRoleMapper::toDto), limit, GroupDefaultRoleDto::getId);
+        });
+    }
+
     public Mono<GroupDefaultRoleDto> getGroupDefaultRoleById(String id) {
         log.debug("Fetching GroupDefaultRole by ID: {}", id);
         return groupDefaultRoleRepository.findById(id)
@@ -88,17 +110,36 @@ public class GroupDefaultRoleService {
                 .switchIfEmpty(Mono.error(new ResourceNotFoundException("GroupDefaultRole not found for update with id: " + id)))
                 .zipWith(updateDtoMono, (existingEntity, updateDto) -> {
                     log.info("Attempting to update GroupDefaultRole ID: {}", id);
+                    // Copied before the mapper replaces them, to tell which roles were removed
+                    List<String> previousRoleIds = existingEntity.getRoleIds() == null
+                            ? List.of() : new ArrayList<>(existingEntity.getRoleIds());
                     groupDefaultRoleMapper.updateEntityFromDto(updateDto, existingEntity);
                     // Auditing fields handled by framework
-                    return existingEntity;
+                    return Tuples.of(existingEntity, previousRoleIds);
                 })
-                .flatMap(groupDefaultRoleRepository::save)
+                .flatMap(update -> groupDefaultRoleRepository.save(update.getT1())
+                        .flatMap(saved -> applyToUsers(saved, update.getT2())))
                 .map(groupDefaultRoleMapper::toDto)
                 .doOnSuccess(savedDto -> log.info("Successfully updated GroupDefaultRole ID: {}", savedDto.getId()))
                 .doOnError(ResourceNotFoundException.class, e -> log.warn("Update failed: {}", e.getMessage()))
                 .doOnError(e -> !(e instanceof ResourceNotFoundException), e -> log.error("Error updating GroupDefaultRole ID {}: {}", id, e.getMessage(), e));
     }
 
+    /**
+     * Rebuilds the default role table read by first logins, then starts reconciling the group's existing users in
+     * the background. A reconciliation that fails to start is logged and does not fail the mapping change.
+     */
+    private Mono<GroupDefaultRole> applyToUsers(GroupDefaultRole saved, List<String> previousRoleIds) {
+        return groupDefaultRoleTable.rebuild()
+                .then(Mono.defer(() -> groupDefaultRoleReconciler.reconcile(saved.getGroupName(), previousRoleIds, saved.getRoleIds())))
+                .doOnNext(job -> log.info("Started reconciliation {} of the users of group '{}'", job.getId(), saved.getGroupName()))
+                .onErrorResume(e -> {
+                    log.error("Could not start reconciliation of the users of group '{}': {}", saved.getGroupName(), e.getMessage(), e);
+                    return Mono.empty();
+                })
+                .thenReturn(saved);
+    }
+
     @AuditLog(action = "DELETE_GROUP_DEFAULT_ROLE")
     @Transactional
     public Mono<Void> deleteGroupDefaultRole(String id) {
@@ -110,6 +151,7 @@ public class GroupDefaultRoleService {
                     log.info("Found GroupDefaultRole for group '{}' for deletion.", entity.getGroupName());
                     return groupDefaultRoleRepository.delete(entity); // Use delete(entity) or deleteById(id)
                 })
+                .then(Mono.defer(groupDefaultRoleTable::rebuild))
                 .doOnSuccess(v -> log.info("Successfully deleted GroupDefaultRole ID: {}", id))
                 .doOnError(ResourceNotFoundException.class, e -> log.warn("Deletion failed: {}", e.getMessage()))
                 .doOnError(e -> !(e instanceof ResourceNotFoundException), e -> log.error("Error deleting GroupDefaultRole ID {}: {}", id, e.getMessage(), e));
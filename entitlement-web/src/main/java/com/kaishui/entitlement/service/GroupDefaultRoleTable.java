@@ -0,0 +1,208 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.repository.GroupDefaultRoleRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-memory table of the default roles of each AD group, so first logins resolve their default roles without
+ * querying {@code groupDefaultRoles}.
+ * <p>
+ * The table is loaded at startup, retrying until it succeeds, and rebuilt after every mapping change made through {@link GroupDefaultRoleService},
+ * on {@link EntitlementChangeEvent}s for mappings changed by other instances, and every
+ * {@code entitlement.group-default-roles.refresh-interval}. A rebuild replaces the whole table in one reference
+ * swap, so readers take no lock and never see a half-built table. A failed rebuild keeps the previous table.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class GroupDefaultRoleTable {
+
+    private final GroupDefaultRoleRepository groupDefaultRoleRepository;
+
+    // Catches changes made by other instances when the change stream is disabled
+    @Value("${entitlement.group-default-roles.refresh-interval:5m}")
+    private Duration refreshInterval;
+
+    private static final Duration INITIAL_LOAD_BACKOFF = Duration.ofSeconds(1);
+
+    private final AtomicReference<Table> table = new AtomicReference<>();
+    private final AtomicLong generations = new AtomicLong();
+    private final AtomicReference<Mono<Table>> initialLoad = new AtomicReference<>();
+    private Disposable startupTask;
+    private Disposable refreshTask;
+
+    @PostConstruct
+    void start() {
+        // Retried until MongoDB is reachable, rather than left empty until the first refresh
+        startupTask = Mono.defer(this::initialLoad)
+                .doOnError(e -> log.error("Initial group default role load failed: {}", e.getMessage(), e))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, INITIAL_LOAD_BACKOFF).maxBackoff(refreshInterval))
+                .subscribe();
+        refreshTask = Flux.interval(refreshInterval, refreshInterval, Schedulers.parallel())
+                .onBackpressureDrop()
+                .concatMap(tick -> rebuild())
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (startupTask != null) {
+            startupTask.dispose();
+        }
+        if (refreshTask != null) {
+            refreshTask.dispose();
+        }
+    }
+
+    /**
+     * Rebuilds the table when any instance changes group default roles.
+     */
+    @EventListener
+    public void onChange(EntitlementChangeEvent change) {
+        if (change.isAll() || EntitlementChangeEvent.GROUP_DEFAULT_ROLES.equals(change.collection())) {
+            rebuild().subscribe();
+        }
+    }
+
+    /**
+     * Reloads every mapping from MongoDB and swaps the new table in. Errors are logged and the previous table is kept.
+     */
+    public Mono<Void> rebuild() {
+        return load()
+                .onErrorResume(e -> {
+                    log.error("Group default role rebuild failed, keeping previous table: {}", e.getMessage(), e);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * @return the distinct default role ids of the given AD groups, in group order
+     */
+    public Mono<List<String>> defaultRoleIds(List<String> adGroups) {
+        if (CollectionUtils.isEmpty(adGroups)) {
+            return Mono.just(Collections.emptyList());
+        }
+        return current().map(loaded -> loaded.union(adGroups));
+    }
+
+    private Mono<Table> current() {
+        Table current = table.get();
+        return current != null ? Mono.just(current) : Mono.defer(this::initialLoad).map(loaded -> table.get());
+    }
+
+    /**
+     * The first load, which logins arriving before the first table wait for instead of getting no default roles.
+     * A failed load is dropped before its waiters get the error, so the next login or startup retry starts another one.
+     */
+    private Mono<Table> initialLoad() {
+        Table current = table.get();
+        if (current != null) {
+            return Mono.just(current);
+        }
+        Mono<Table> pending = initialLoad.get();
+        if (pending != null) {
+            return pending;
+        }
+        Sinks.One<Table> loaded = Sinks.one();
+        Mono<Table> load = loaded.asMono();
+        if (!initialLoad.compareAndSet(null, load)) {
+            return Mono.defer(this::initialLoad); // Another caller started it
+        }
+        load().subscribe(
+                loaded::tryEmitValue,
+                e -> {
+                    initialLoad.compareAndSet(load, null);
+                    loaded.tryEmitError(e);
+                },
+                loaded::tryEmitEmpty);
+        return load;
+    }
+
+    private Mono<Table> load() {
+        return Mono.defer(() -> {
+            long generation = generations.incrementAndGet();
+            return groupDefaultRoleRepository.findAll()
+                    .collectList()
+                    .map(mappings -> Table.of(generation, mappings))
+                    .doOnNext(this::swap);
+        });
+    }
+
+    // Rebuilds can overlap; one that started earlier must not replace the result of a later one
+    private void swap(Table loaded) {
+        table.accumulateAndGet(loaded, (current, next) ->
+                current == null || next.generation() > current.generation() ? next : current);
+        log.debug("Loaded default roles of {} AD groups ({} distinct roles)", loaded.groupRoles().size(), loaded.roleIds().length);
+    }
+
+    /**
+     * Each role id is stored once in {@code roleIds}; groups map to the distinct indexes of their roles, so a union
+     * marks ints in a {@code boolean[]} instead of hashing strings.
+     */
+    record Table(long generation, Map<String, int[]> groupRoles, String[] roleIds) {
+
+        static Table of(long generation, List<GroupDefaultRole> mappings) {
+            Map<String, Integer> indexes = new HashMap<>();
+            List<String> roleIds = new ArrayList<>();
+            Map<String, int[]> groupRoles = new HashMap<>();
+            for (GroupDefaultRole mapping : mappings) {
+                if (mapping.getGroupName() == null || CollectionUtils.isEmpty(mapping.getRoleIds())) {
+                    continue;
+                }
+                int[] roles = mapping.getRoleIds().stream()
+                        .filter(Objects::nonNull)
+                        .mapToInt(roleId -> indexes.computeIfAbsent(roleId, id -> {
+                            roleIds.add(id);
+                            return roleIds.size() - 1;
+                        }))
+                        .distinct()
+                        .toArray();
+                groupRoles.put(mapping.getGroupName(), roles);
+            }
+            return new Table(generation, Map.copyOf(groupRoles), roleIds.toArray(String[]::new));
+        }
+
+        List<String> union(List<String> adGroups) {
+            boolean[] seen = new boolean[roleIds.length];
+            List<String> union = new ArrayList<>();
+            for (String group : adGroups) {
+                int[] roles = group == null ? null : groupRoles.get(group);
+                if (roles == null) {
+                    continue;
+                }
+                for (int role : roles) {
+                    if (!seen[role]) {
+                        seen[role] = true;
+                        union.add(roleIds[role]);
+                    }
+                }
+            }
+            return union;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.UserEntitlement;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Declares the indexes of every entitlement collection, creates the missing ones once the application is ready,
+ * then verifies with {@code explain} that none of the hot queries runs as a collection scan.
+ * <p>
+ * Indexes serving queries that always filter on {@code isActive: true} are partial on it, so inactive documents
+ * cost no index space. Spring Data only creates {@code @Indexed} indexes with auto index creation enabled, so the
+ * unique indexes are declared here as well, under the names {@code @Indexed} gives them.
+ * <p>
+ * A collection scan is logged, and with {@code entitlement.indexes.on-collection-scan=fail} the instance also
+ * refuses traffic through the readiness probe until restarted with the index in place.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class IndexManager {
+
+    private static final String COLLECTION_SCAN = "COLLSCAN";
+    private static final String ANY = "?"; // Plans depend on the query shape, not on the values
+
+    static final Map<Class<?>, List<Index>> INDEXES = declareIndexes();
+
+    /**
+     * Hot queries by their shape. Aggregations starting with a {@code $match} are planned as the equivalent find.
+     */
+    static final List<HotQuery> HOT_QUERIES = List.of(
+            new HotQuery("user by staffId", "users", new Document("staffId", ANY), null),
+            new HotQuery("next level users", "users",
+                    new Document("adGroups", new Document("$in", List.of(ANY))).append("isActive", true), null),
+            new HotQuery("group reconciliation batch", "users",
+                    new Document("adGroups", ANY).append("isActive", true).append("isFirstLogin", false),
+                    new Document("_id", 1)),
+            new HotQuery("active roles", "roles", new Document("isActive", true), new Document("_id", 1)),
+            new HotQuery("active roles of a user case", "roles",
+                    new Document("userCase", ANY).append("isActive", true), null),
+            new HotQuery("active resources", "resources", new Document("isActive", true), null),
+            new HotQuery("active resources of a type", "resources",
+                    new Document("type", ANY).append("isActive", true), null),
+            new HotQuery("active resources of AD groups", "resources",
+                    new Document("adGroups", new Document("$in", List.of(ANY))).append("isActive", true), null),
+            new HotQuery("default roles of AD groups", "groupDefaultRoles",
+                    new Document("groupName", new Document("$in", List.of(ANY))), null),
+            new HotQuery("groups granting removed roles", "groupDefaultRoles",
+                    new Document("roleIds", new Document("$in", List.of(ANY))), null),
+            new HotQuery("running reconciliations of a group", "groupDefaultRoleReconciliations",
+                    new Document("groupName", ANY).append("status", GroupDefaultRoleReconciliation.Status.RUNNING.name()), null),
+            new HotQuery("expired reconciliations", "groupDefaultRoleReconciliations",
+                    new Document("status", GroupDefaultRoleReconciliation.Status.RUNNING.name())
+                            .append("heartbeat", new Document("$lt", new Date(0))), null),
+            new HotQuery("entitlements holding a role", "userEntitlements", new Document("$or", List.of(
+                    new Document("roleIds", ANY), new Document("building", true))), null),
+            new HotQuery("entitlements holding a resource", "userEntitlements", new Document("$or", List.of(
+                    new Document("resourceIds", ANY), new Document("building", true))), null));
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${entitlement.indexes.create:true}")
+    private boolean create;
+
+    @Value("${entitlement.indexes.verify:true}")
+    private boolean verify;
+
+    // warn: log collection scans, fail: also refuse traffic
+    @Value("${entitlement.indexes.on-collection-scan:warn}")
+    private String onCollectionScan;
+
+    /**
+     * @param sort null for none
+     */
+    record HotQuery(String name, String collection, Document filter, Document sort) {
+    }
+
+    private static Map<Class<?>, List<Index>> declareIndexes() {
+        PartialIndexFilter active = PartialIndexFilter.of(where("isActive").is(true));
+        Map<Class<?>, List<Index>> indexes = new LinkedHashMap<>();
+        // Login, sync and the first login write rely on staffId being unique
+        indexes.put(User.class, List.of(
+                new Index().on("staffId", Sort.Direction.ASC).unique().named("staffId"),
+                new Index().on("adGroups", Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+                        .partial(active).named("users_active_adGroups")));
+        indexes.put(Role.class, List.of(
+                new Index().on("roleName", Sort.Direction.ASC).unique().named("roleName"),
+                new Index().on("isActive", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("roles_isActive"),
+                new Index().on("userCase", Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+                        .partial(active).named("roles_active_userCase")));
+        List<Index> resourceIndexes = new ArrayList<>(ResourceService.SEARCH_INDEXES);
+        // The search indexes have a collation, so equality on type or adGroups without it needs indexes of its own
+        resourceIndexes.add(new Index().on("isActive", Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+                .named("resources_isActive"));
+        resourceIndexes.add(new Index().on("type", Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+                .partial(active).named("resources_active_type"));
+        resourceIndexes.add(new Index().on("adGroups", Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+                .partial(active).named("resources_active_adGroups"));
+        indexes.put(Resource.class, List.copyOf(resourceIndexes));
+        indexes.put(GroupDefaultRole.class, List.of(
+                new Index().on("groupName", Sort.Direction.ASC).unique().named("groupName"),
+                new Index().on("roleIds", Sort.Direction.ASC).named("groupDefaultRoles_roleIds")));
+        indexes.put(GroupDefaultRoleReconciliation.class, List.of(
+                new Index().on("groupName", Sort.Direction.ASC).on("status", Sort.Direction.ASC)
+                        .named("reconciliations_groupName_status"),
+                new Index().on("status", Sort.Direction.ASC).on("heartbeat", Sort.Direction.ASC)
+                        .named("reconciliations_status_heartbeat")));
+        // Invalidations also match the documents being built, a handful at any time
+        indexes.put(UserEntitlement.class, List.of(
+                new Index().on("roleIds", Sort.Direction.ASC).named("roleIds"),
+                new Index().on("resourceIds", Sort.Direction.ASC).named("resourceIds"),
+                new Index().on("building", Sort.Direction.ASC)
+                        .partial(PartialIndexFilter.of(where("building").is(true))).named("userEntitlements_building")));
+        return indexes;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        Mono<Void> indexes = create ? ensureIndexes() : Mono.empty();
+        indexes.then(verify ? verifyHotQueries() : Mono.just(List.<String>of()))
+                .subscribe(this::report, e -> log.warn("Could not verify index usage: {}", e.getMessage()));
+    }
+
+    /**
+     * Creates every declared index that is missing. A failure, e.g. duplicates preventing a unique index, is
+     * logged and the remaining indexes are still created.
+     */
+    public Mono<Void> ensureIndexes() {
+        return Flux.fromIterable(INDEXES.entrySet())
+                .concatMap(entry -> Flux.fromIterable(entry.getValue())
+                        .concatMap(index -> reactiveMongoTemplate.indexOps(entry.getKey()).ensureIndex(index)
+                                .doOnNext(indexName -> log.debug("Ensured index {} on {}", indexName, entry.getKey().getSimpleName()))
+                                .onErrorResume(e -> {
+                                    log.warn("Could not create index {} on {}: {}", index.getIndexOptions().get("name"),
+                                            entry.getKey().getSimpleName(), e.getMessage());
+                                    return Mono.empty();
+                                })))
+                .then();
+    }
+
+    /**
+     * @return names of the hot queries whose winning plan scans a whole collection
+     */
+    public Mono<List<String>> verifyHotQueries() {
+        return Flux.fromIterable(HOT_QUERIES)
+                .concatMap(hotQuery -> reactiveMongoTemplate.executeCommand(explain(hotQuery))
+                        .filter(IndexManager::isCollectionScan)
+                        .map(explained -> hotQuery.name()))
+                .collectList();
+    }
+
+    private static Document explain(HotQuery hotQuery) {
+        Document find = new Document("find", hotQuery.collection()).append("filter", hotQuery.filter());
+        if (hotQuery.sort() != null) {
+            find.append("sort", hotQuery.sort());
+        }
+        return new Document("explain", find).append("verbosity", "queryPlanner");
+    }
+
+    /**
+     * @return true if the winning plan has a collection scan stage, at any depth and on any shard
+     */
+    static boolean isCollectionScan(Document explained) {
+        Document queryPlanner = explained.get("queryPlanner", Document.class);
+        return queryPlanner != null && hasStage(queryPlanner.get("winningPlan"), COLLECTION_SCAN);
+    }
+
+    private static boolean hasStage(Object plan, String stage) {
+        if (plan instanceof Document node) {
+            return stage.equals(node.get("stage")) || node.values().stream().anyMatch(child -> hasStage(child, stage));
+        }
+        if (plan instanceof List<?> nodes) {
+            return nodes.stream().anyMatch(child -> hasStage(child, stage));
+        }
+        return false;
+    }
+
+    private void report(List<String> collectionScans) {
+        if (collectionScans.isEmpty()) {
+            log.info("Verified index usage of {} hot queries", HOT_QUERIES.size());
+            return;
+        }
+        if ("fail".equalsIgnoreCase(onCollectionScan)) {
+            log.error("Hot queries running as a collection scan, refusing traffic: {}", collectionScans);
+            AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        } else {
+            log.warn("Hot queries running as a collection scan: {}", collectionScans);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.UserDto;
+import com.kaishui.entitlement.exception.CommonException;
+import com.kaishui.entitlement.repository.UserRepository;
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.PartialUpdate;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The login call: stores the user's profile from the identity provider, assigns the group default roles on first
+ * login and resolves the user's roles and resources.
+ * <p>
+ * A returning user costs one {@code findAndModify} upsert, which returns the stored user, plus the entitlement
+ * resolution of {@link UserService#getRolesAndPermissionsByUser}: one read of the materialized entitlements, or
+ * none, the roles and resources being looked up in the {@link EntitlementCatalog}. The upsert only writes when it
+ * inserts; a profile that differs from the stored one adds one write of the changed fields, which bumps the user's
+ * {@code version}, so an unchanged login neither fails an admin update based on the version nor emits a change.
+ * A first login adds one write; its default roles come from the in-memory {@link GroupDefaultRoleTable}.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class LoginService {
+
+    private static final FindAndModifyOptions UPSERT_RETURN_NEW = FindAndModifyOptions.options().upsert(true).returnNew(true);
+    private static final FindAndModifyOptions RETURN_NEW = FindAndModifyOptions.options().returnNew(true);
+
+    // The fields taken from the identity provider's profile; a null value is not provided
+    private static final Map<String, Function<User, Object>> PROFILE_FIELDS = profileFields();
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final UserRepository userRepository;
+    private final UserService userService;
+    private final AuthorizationUtil authorizationUtil;
+    private final PermissionCheckerInterface permissionChecker;
+    private final PermissionDecisionCache permissionDecisionCache;
+
+    /**
+     * Logs the user in, creating them if new.
+     *
+     * @param profile the user's profile; roles and status in it are ignored
+     * @return the stored user with their active roles and accessible resources, or an error if the user is inactive
+     */
+    public Mono<UserDto> login(User profile) {
+        log.info("Logging in user with staffId: {}", profile.getStaffId());
+        return Mono.deferContextual(contextView -> upsert(profile, authorizationUtil.extractUsernameFromContext(contextView)))
+                .flatMap(this::provisionFirstLogin)
+                // AD groups, and on first login roles, may have changed
+                .flatMap(user -> permissionChecker.refreshUsers(List.of(user.getStaffId())).thenReturn(user))
+                .doOnNext(user -> permissionDecisionCache.evictUser(user.getStaffId()))
+                .flatMap(userService::getRolesAndPermissionsByUser);
+    }
+
+    private Mono<User> upsert(User profile, String modifiedBy) {
+        // Matching on staffId alone, so an inactive user is found and refused rather than inserted again as active
+        Mono<User> upsert = Mono.defer(() -> reactiveMongoTemplate.findAndModify(
+                query(where("staffId").is(profile.getStaffId())), insert(profile, modifiedBy), UPSERT_RETURN_NEW, User.class));
+        // The unique staffId index rejects the insert when a concurrent login just inserted the user; the retry finds it
+        return upsert.onErrorResume(DuplicateKeyException.class, e -> upsert)
+                .flatMap(user -> user.isActive() ? Mono.just(user)
+                        : Mono.error(new CommonException("Cannot update inactive user with staffId: " + profile.getStaffId())))
+                .flatMap(user -> updateProfile(user, profile, modifiedBy));
+    }
+
+    /**
+     * @return an update inserting the user from the profile if missing, and leaving an existing user untouched
+     */
+    private static Update insert(User profile, String modifiedBy) {
+        Date now = new Date();
+        Update update = new Update()
+                .setOnInsert("isActive", true)
+                .setOnInsert("isFirstLogin", true)
+                .setOnInsert("roleIds", Collections.emptyList())
+                .setOnInsert("createdBy", modifiedBy)
+                .setOnInsert("createdDate", now)
+                .setOnInsert("lastModifiedBy", modifiedBy)
+                .setOnInsert("lastModifiedDate", now)
+                .setOnInsert("version", 1L);
+        PROFILE_FIELDS.forEach((field, value) -> {
+            if (value.apply(profile) != null) {
+                update.setOnInsert(field, value.apply(profile));
+            }
+        });
+        return update;
+    }
+
+    /**
+     * Writes the profile fields that differ from the stored user, if any.
+     */
+    private Mono<User> updateProfile(User stored, User profile, String modifiedBy) {
+        PartialUpdate changes = new PartialUpdate();
+        PROFILE_FIELDS.forEach((field, value) -> {
+            if (!Objects.equals(value.apply(profile), value.apply(stored))) {
+                changes.set(field, value.apply(profile));
+            }
+        });
+        if (changes.isEmpty()) {
+            return Mono.just(stored);
+        }
+        return reactiveMongoTemplate.findAndModify(changes.filter(where("id").is(stored.getId()).and("isActive").is(true)),
+                        changes.audited(modifiedBy), RETURN_NEW, User.class)
+                // A concurrent login stored the same profile first
+                .switchIfEmpty(Mono.defer(() -> userRepository.findById(stored.getId())));
+    }
+
+    /**
+     * Assigns the default roles of the user's AD groups on their first login.
+     */
+    private Mono<User> provisionFirstLogin(User user) {
+        if (!user.isFirstLogin()) {
+            return Mono.just(user);
+        }
+        return userService.defaultRoleIds(user.getAdGroups())
+                .flatMap(roleIds -> reactiveMongoTemplate.findAndModify(
+                        query(where("id").is(user.getId()).and("isFirstLogin").is(true)),
+                        new Update().set("roleIds", roleIds).set("defaultRoleIds", roleIds).set("isFirstLogin", false).inc("version", 1),
+                        RETURN_NEW, User.class))
+                // A concurrent first login of the same user assigned them already
+                .switchIfEmpty(Mono.defer(() -> userRepository.findById(user.getId())));
+    }
+
+    private static Map<String, Function<User, Object>> profileFields() {
+        Map<String, Function<User, Object>> fields = new LinkedHashMap<>();
+        fields.put("username", User::getUsername);
+        fields.put("email", User::getEmail);
+        fields.put("department", User::getDepartment);
+        fields.put("functionalManager", User::getFunctionalManager);
+        fields.put("entityManager", User::getEntityManager);
+        fields.put("jobTitle", User::getJobTitle);
+        fields.put("adGroups", User::getAdGroups);
+        return Collections.unmodifiableMap(fields);
+    }
+}
@@ -1,7 +1,43 @@
 package com.kaishui.entitlement.service;
 
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 public interface PermissionCheckerInterface {
     Mono<Boolean> checkPermission(String staffId, String httpMethod, String requestUri);
+
+    /**
+     * Checks many (method, uri) pairs for one user, resolving the user's rules once.
+     *
+     * @return one decision per check, in the same order as {@code checks}.
+     */
+    Mono<List<Boolean>> checkPermissions(String staffId, List<PermissionCheckDto> checks);
+
+    /**
+     * Checks the same (method, uri) pairs for many users, resolving roles and resources shared by the users once.
+     *
+     * @return staffId -> one decision per check (same order as {@code checks}), in the order of {@code staffIds}.
+     */
+    Mono<Map<String, List<Boolean>>> checkPermissions(List<String> staffIds, List<PermissionCheckDto> checks);
+
+    /**
+     * Makes later checks see the current roles, AD groups and status of the given users after a local write to them,
+     * so a decision re-cached once their cached decisions are evicted is not computed from stale data.
+     *
+     * @return completes once the change is visible to checks; never fails
+     */
+    default Mono<Void> refreshUsers(Collection<String> staffIds) {
+        return Mono.empty(); // Users are read on every check
+    }
+
+    /**
+     * Same as {@link #refreshUsers} after a local write to a role or resource.
+     */
+    default Mono<Void> refreshRolesAndResources() {
+        return Mono.empty(); // Read from MongoDB, or from the EntitlementCatalog, which the write refreshed first
+    }
 }
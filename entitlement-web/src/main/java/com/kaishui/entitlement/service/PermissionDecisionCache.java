@@ -0,0 +1,179 @@
+package com.kaishui.entitlement.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, TTL-based cache of permission decisions keyed by (staffId, method, uri).
+ * <p>
+ * Concurrent misses for the same key share one in-flight load (single-flight). Keys are also indexed
+ * by staffId so one user's entries can be evicted without touching the rest of the cache. A load that was
+ * in flight while its user (or everything) was evicted is dropped once it completes, so a decision read
+ * before a change is never cached after it.
+ * Hits, misses, evictions and size are published as {@code cache.*} metrics with {@code cache=permission.decisions};
+ * explicit invalidations are counted in {@code permission.decisions.invalidations}.
+ */
+@Slf4j
+@Component
+public class PermissionDecisionCache {
+
+    public static final String CACHE_NAME = "permission.decisions";
+
+    private final boolean enabled;
+    private final AsyncCache<DecisionKey, Boolean> decisions;
+    // Replaced, never cleared, on eviction: a load compares the instances it started with once it completes
+    private final ConcurrentHashMap<String, UserKeys> keysByStaffId = new ConcurrentHashMap<>();
+    private volatile Object generation = new Object();
+    private final Counter userInvalidations;
+    private final Counter fullInvalidations;
+
+    public PermissionDecisionCache(MeterRegistry meterRegistry,
+                                   @Value("${entitlement.permission.decision-cache.maximum-size:100000}") long maximumSize,
+                                   @Value("${entitlement.permission.decision-cache.ttl:30s}") Duration ttl,
+                                   @Value("${entitlement.permission.decision-cache.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+        this.decisions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .removalListener((DecisionKey key, Boolean allowed, RemovalCause cause) -> onRemoval(key, cause))
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, decisions, CACHE_NAME);
+        this.userInvalidations = Counter.builder(CACHE_NAME + ".invalidations").tag("scope", "user").register(meterRegistry);
+        this.fullInvalidations = Counter.builder(CACHE_NAME + ".invalidations").tag("scope", "all").register(meterRegistry);
+    }
+
+    /**
+     * Returns the cached decision, or subscribes to {@code loader} once and shares its result with every
+     * concurrent caller for the same key. Errors and empty results are not cached.
+     */
+    public Mono<Boolean> get(String staffId, String httpMethod, String requestUri, Supplier<Mono<Boolean>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        DecisionKey key = new DecisionKey(staffId, httpMethod.toUpperCase(Locale.ROOT), requestUri);
+        // suppressCancel: a cancelled caller must not cancel the load other callers are waiting on
+        return Mono.fromFuture(() -> {
+            Object startedIn = generation;
+            UserKeys userKeys = keysByStaffId.computeIfAbsent(staffId, id -> new UserKeys());
+            CompletableFuture<Boolean> decision = decisions.get(key, (k, executor) -> {
+                userKeys.keys().add(k);
+                return loader.get().toFuture();
+            });
+            decision.whenComplete((allowed, error) -> {
+                if (allowed == null) {
+                    forgetKey(key); // Not stored by the cache, so no removal notification will follow
+                } else if (startedIn != generation || keysByStaffId.get(staffId) != userKeys) {
+                    decisions.asMap().remove(key, decision); // Evicted while loading
+                }
+            });
+            return decision;
+        }, true);
+    }
+
+    /**
+     * Evicts every cached decision of one user, e.g. after their roles or AD groups changed.
+     */
+    public void evictUser(String staffId) {
+        if (staffId != null) {
+            evictUsers(List.of(staffId));
+        }
+    }
+
+    /**
+     * Evicts every cached decision of the given users in one invalidation, e.g. after a batch of user writes.
+     */
+    public void evictUsers(Collection<String> staffIds) {
+        List<DecisionKey> keys = new ArrayList<>();
+        int users = 0;
+        for (String staffId : staffIds) {
+            if (staffId == null) {
+                continue;
+            }
+            UserKeys userKeys = keysByStaffId.remove(staffId);
+            if (userKeys != null) {
+                keys.addAll(userKeys.keys());
+            }
+            users++;
+        }
+        if (!keys.isEmpty()) {
+            decisions.synchronous().invalidateAll(keys);
+        }
+        userInvalidations.increment(users);
+        log.debug("Evicted {} cached permission decisions of {} users", keys.size(), users);
+    }
+
+    /**
+     * Evicts every cached decision, e.g. after a role or resource changed.
+     */
+    public void evictAll() {
+        generation = new Object();
+        decisions.synchronous().invalidateAll();
+        keysByStaffId.clear();
+        fullInvalidations.increment();
+        log.debug("Evicted all cached permission decisions");
+    }
+
+    /**
+     * Applies a user change made by any instance: evicts that user, or everything if the user is only known by id.
+     * Role, resource and full changes are evicted by the {@link EntitlementCatalog} once it has applied them, as
+     * evicting before would let a check re-cache a decision from the catalog that has not.
+     */
+    @EventListener
+    public void onChange(EntitlementChangeEvent change) {
+        if (!EntitlementChangeEvent.USERS.equals(change.collection())) {
+            return;
+        }
+        if (change.staffId() != null) {
+            evictUser(change.staffId());
+        } else {
+            evictAll();
+        }
+    }
+
+    public long size() {
+        return decisions.synchronous().estimatedSize();
+    }
+
+    private void onRemoval(DecisionKey key, RemovalCause cause) {
+        // Explicit invalidations already updated the index; the key may have been reloaded since
+        if (key != null && cause.wasEvicted() && !decisions.asMap().containsKey(key)) {
+            forgetKey(key);
+        }
+    }
+
+    private void forgetKey(DecisionKey key) {
+        keysByStaffId.computeIfPresent(key.staffId(), (staffId, userKeys) -> {
+            userKeys.keys().remove(key);
+            return userKeys.keys().isEmpty() ? null : userKeys;
+        });
+    }
+
+    private record UserKeys(Set<DecisionKey> keys) {
+        UserKeys() {
+            this(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    private record DecisionKey(String staffId, String httpMethod, String requestUri) {
+    }
+}
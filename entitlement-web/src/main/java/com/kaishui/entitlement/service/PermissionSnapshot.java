@@ -0,0 +1,193 @@
+package com.kaishui.entitlement.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kaishui.entitlement.constant.PermissionFieldConstant;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.util.AdGroupDictionary;
+import com.kaishui.entitlement.util.AdGroupSet;
+import com.kaishui.entitlement.util.UriPatternIndex;
+import lombok.Getter;
+import org.bson.Document;
+import org.springframework.util.CollectionUtils;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Immutable, in-memory view of everything needed to answer a URI permission check:
+ * users (staffId -> AD groups + role ids), active roles (role id -> resource ids) and
+ * active API resources (resource id -> method/uri rule + AD groups).
+ * <p>
+ * A snapshot is never modified after construction; the checker swaps in a new instance on refresh, or a copy with
+ * some users replaced by {@link #withUsers}.
+ */
+public class PermissionSnapshot {
+
+    private final Map<String, UserEntry> usersByStaffId;
+    private final Map<String, List<String>> resourceIdsByRoleId;
+    private final Map<String, ApiRule> apiRulesByResourceId;
+    // Shared with the copies made by withUsers, whose roles, resources and group ids are the same
+    private final AdGroupDictionary adGroupDictionary;
+    // Each user's visible rules compiled on first use, bounded; dropped together with the snapshot on refresh
+    private final Cache<String, CompiledRules> ruleIndexByStaffId;
+
+    @Getter
+    private final Instant builtAt;
+
+    private PermissionSnapshot(Map<String, UserEntry> usersByStaffId,
+                               Map<String, List<String>> resourceIdsByRoleId,
+                               Map<String, ApiRule> apiRulesByResourceId,
+                               AdGroupDictionary adGroupDictionary,
+                               Cache<String, CompiledRules> ruleIndexByStaffId) {
+        this.usersByStaffId = usersByStaffId;
+        this.resourceIdsByRoleId = resourceIdsByRoleId;
+        this.apiRulesByResourceId = apiRulesByResourceId;
+        this.adGroupDictionary = adGroupDictionary;
+        this.ruleIndexByStaffId = ruleIndexByStaffId;
+        this.builtAt = Instant.now();
+    }
+
+    /**
+     * Builds a snapshot from the given users, active roles and active API resources.
+     * Inactive roles/resources and API resources without a method/uri rule are skipped.
+     *
+     * @param ruleIndexCacheSize how many users' compiled rules are kept
+     */
+    public static PermissionSnapshot of(Collection<User> users, Collection<Role> roles, Collection<Resource> apiResources,
+                                        long ruleIndexCacheSize) {
+        // Snapshot-local dictionary: ids stay dense and are dropped with the snapshot
+        AdGroupDictionary adGroupDictionary = new AdGroupDictionary();
+        Map<String, UserEntry> usersByStaffId = new HashMap<>(users.size() * 2);
+        putUsers(usersByStaffId, users, adGroupDictionary);
+
+        Map<String, List<String>> resourceIdsByRoleId = new HashMap<>(roles.size() * 2);
+        for (Role role : roles) {
+            if (role.isActive() && !CollectionUtils.isEmpty(role.getResourceIds())) {
+                resourceIdsByRoleId.put(role.getId(), new ArrayList<>(role.getResourceIds()));
+            }
+        }
+
+        Map<String, ApiRule> apiRulesByResourceId = new HashMap<>(apiResources.size() * 2);
+        for (Resource resource : apiResources) {
+            ApiRule rule = ApiRule.from(resource, adGroupDictionary);
+            if (rule != null) {
+                apiRulesByResourceId.put(resource.getId(), rule);
+            }
+        }
+
+        return new PermissionSnapshot(Map.copyOf(usersByStaffId), Map.copyOf(resourceIdsByRoleId), Map.copyOf(apiRulesByResourceId),
+                adGroupDictionary, Caffeine.newBuilder().maximumSize(ruleIndexCacheSize).build());
+    }
+
+    public static PermissionSnapshot empty() {
+        return new PermissionSnapshot(Map.of(), Map.of(), Map.of(), new AdGroupDictionary(), Caffeine.newBuilder().maximumSize(0).build());
+    }
+
+    /**
+     * Copies the snapshot with the given users replaced by their current state, keeping the roles, resources and the
+     * compiled rules of every other user.
+     *
+     * @param staffIds the changed users
+     * @param users    the changed users as now stored; a changed user missing from it is removed
+     */
+    public PermissionSnapshot withUsers(Collection<String> staffIds, Collection<User> users) {
+        Map<String, UserEntry> next = new HashMap<>(usersByStaffId);
+        next.keySet().removeAll(staffIds);
+        putUsers(next, users, adGroupDictionary);
+        ruleIndexByStaffId.invalidateAll(staffIds);
+        return new PermissionSnapshot(Collections.unmodifiableMap(next), resourceIdsByRoleId, apiRulesByResourceId,
+                adGroupDictionary, ruleIndexByStaffId);
+    }
+
+    private static void putUsers(Map<String, UserEntry> usersByStaffId, Collection<User> users, AdGroupDictionary adGroupDictionary) {
+        for (User user : users) {
+            if (user.getStaffId() == null) {
+                continue;
+            }
+            usersByStaffId.put(user.getStaffId(), new UserEntry(
+                    adGroupDictionary.encode(user.getAdGroups()),
+                    user.getRoleIds() == null ? List.of() : new ArrayList<>(user.getRoleIds())));
+        }
+    }
+
+    /**
+     * Same decision as {@link UriPermissionCheckerService#checkPermission}: the user must hold an active role
+     * referencing an active API resource whose AD groups intersect the user's AD groups and whose rule
+     * matches the method and URI.
+     */
+    public boolean isAllowed(String staffId, String httpMethod, String requestUri) {
+        UserEntry user = usersByStaffId.get(staffId);
+        if (user == null || user.roleIds().isEmpty() || user.adGroups().isEmpty()) {
+            return false;
+        }
+        CompiledRules compiled = ruleIndexByStaffId.getIfPresent(staffId);
+        // Compiled for another version of the user, e.g. by the snapshot this one was copied from
+        if (compiled == null || compiled.user() != user) {
+            compiled = new CompiledRules(user, compileRules(user));
+            ruleIndexByStaffId.put(staffId, compiled);
+        }
+        return compiled.rules().matches(httpMethod, requestUri);
+    }
+
+    private UriPatternIndex<ApiRule> compileRules(UserEntry user) {
+        UriPatternIndex.Builder<ApiRule> builder = UriPatternIndex.builder();
+        for (String roleId : user.roleIds()) {
+            List<String> resourceIds = resourceIdsByRoleId.get(roleId);
+            if (resourceIds == null) {
+                continue;
+            }
+            for (String resourceId : resourceIds) {
+                ApiRule rule = apiRulesByResourceId.get(resourceId);
+                if (rule != null && rule.isVisibleTo(user.adGroups())) {
+                    builder.add(rule.methodPattern(), rule.uriPattern(), rule);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public boolean containsUser(String staffId) {
+        return usersByStaffId.containsKey(staffId);
+    }
+
+    public int userCount() {
+        return usersByStaffId.size();
+    }
+
+    public int roleCount() {
+        return resourceIdsByRoleId.size();
+    }
+
+    public int apiResourceCount() {
+        return apiRulesByResourceId.size();
+    }
+
+    private record UserEntry(AdGroupSet adGroups, List<String> roleIds) {
+    }
+
+    private record CompiledRules(UserEntry user, UriPatternIndex<ApiRule> rules) {
+    }
+
+    private record ApiRule(String methodPattern, String uriPattern, AdGroupSet adGroups) {
+
+        static ApiRule from(Resource resource, AdGroupDictionary adGroupDictionary) {
+            Document permission = resource.getPermission();
+            if (CollectionUtils.isEmpty(permission) || CollectionUtils.isEmpty(resource.getAdGroups())) {
+                return null;
+            }
+            String methodPattern = permission.getString(PermissionFieldConstant.METHOD);
+            String uriPattern = permission.getString(PermissionFieldConstant.URI);
+            if (methodPattern == null || uriPattern == null) {
+                return null;
+            }
+            return new ApiRule(methodPattern, uriPattern, adGroupDictionary.encode(resource.getAdGroups()));
+        }
+
+        boolean isVisibleTo(AdGroupSet userAdGroups) {
+            return adGroups.intersects(userAdGroups);
+        }
+    }
+}
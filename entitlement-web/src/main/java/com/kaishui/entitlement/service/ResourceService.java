@@ -3,33 +3,70 @@ package com.kaishui.entitlement.service;
 import com.kaishui.entitlement.annotation.AuditLog;
 import com.kaishui.entitlement.constant.ResourceType;
 import com.kaishui.entitlement.entity.dto.CreateResourceDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.ResourceDto;
 import com.kaishui.entitlement.entity.dto.UpdateResourceDto;
 import com.kaishui.entitlement.entity.Resource;
 import com.kaishui.entitlement.exception.ResourceNotFoundException; // Assuming you create this
+import com.kaishui.entitlement.util.KeysetCursor;
 import com.kaishui.entitlement.util.ResourceMapper; // Using MapStruct (recommended)
 import com.kaishui.entitlement.repository.ResourceRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Collation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional; // Optional for consistency if needed
 import org.springframework.util.CollectionUtils;
+import org.springframework.web.server.ServerWebInputException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class ResourceService {
 
+    static final String SORT_BY_ID = "id";
+    static final String SORT_BY_NAME = "name";
+
+    // Strength 2 compares case-insensitively; queries must use the same collation as the indexes to use them
+    static final Collation SEARCH_COLLATION = Collation.of("en").strength(2);
+    private static final String NAME_PREFIX_UPPER_BOUND = "\uffff";
+
+    // Each filter leads one index with _id after it, so a filtered page in id order is one index range.
+    // Created by IndexManager with the other indexes
+    static final List<Index> SEARCH_INDEXES = List.of(
+            searchIndex("resource_search_name", "name"),
+            searchIndex("resource_search_type", "type"),
+            searchIndex("resource_search_adGroups", "adGroups"));
+
     private final ResourceRepository resourceRepository;
     private final ResourceMapper resourceMapper; // Inject the mapper
+    private final PermissionCheckerInterface permissionChecker;
+    private final PermissionDecisionCache permissionDecisionCache;
+    private final UserEntitlementService userEntitlementService;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final EntitlementCatalog entitlementCatalog;
+
+    private static Index searchIndex(String indexName, String field) {
+        return new Index().on(field, Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+                .named(indexName)
+                .collation(SEARCH_COLLATION);
+    }
 
     @AuditLog(action = "CREATE_RESOURCE")
     @Transactional // Optional: Use if multiple reactive operations need atomicity (requires reactive transaction manager)
@@ -41,6 +78,7 @@ public class ResourceService {
                     // Auditing fields (createdBy, createdDate) are handled by @EnableReactiveMongoAuditing
                     return resourceRepository.save(resource);
                 })
+                .flatMap(saved -> entitlementCatalog.refreshResource(saved.getId()).thenReturn(saved))
                 .map(resourceMapper::toDto) // Map saved Entity back to DTO
                 .doOnSuccess(savedDto -> log.info("Successfully created resource with ID: {}", savedDto.getId()))
                 .doOnError(e -> log.error("Error creating resource: {}", e.getMessage(), e));
@@ -49,33 +87,96 @@ public class ResourceService {
     public Flux<ResourceDto> findResources(String name, String type, List<String> adGroups, Boolean isActive) {
         log.debug("Searching resources - Name: '{}', Type: '{}', Region: '{}', Active: {}", name, type, adGroups, isActive);
 
-        // Start with a base Flux (e.g., find by active status if provided, else find all)
-        Flux<Resource> results = (isActive != null)
-                ? resourceRepository.findByIsActive(isActive)
-                : resourceRepository.findAll();
+        Query query = searchQuery(name, type, adGroups, isActive).with(Sort.by(Sort.Direction.ASC, "_id"));
+        return reactiveMongoTemplate.find(query, Resource.class)
+                .map(resourceMapper::toDto)
+                .doOnError(e -> log.error("Error searching resources: {}", e.getMessage(), e))
+                .doOnComplete(() -> log.debug("Resource search completed."));
+    }
+
+    /**
+     * Same search as {@link #findResources}, returning one page sorted on {@code sortBy} ("id" or "name") in
+     * {@code direction} ("asc" or "desc"), after the position encoded in {@code cursor}. Ties on name are
+     * broken by id, so pages never skip or repeat a resource.
+     */
+    public Mono<PageDto<ResourceDto>> findResourcesPage(String name, String type, List<String> adGroups, Boolean isActive,
+                                                        String sortBy, String direction, String cursor, int limit) {
+        return Mono.defer(() -> {
+            Sort.Direction sortDirection = sortDirection(direction);
+            Query query = searchQuery(name, type, adGroups, isActive);
+            Function<Resource, String> cursorOf;
+            if (SORT_BY_NAME.equalsIgnoreCase(sortBy)) {
+                KeysetCursor.Position after = KeysetCursor.decodePosition(cursor);
+                if (after != null) {
+                    query.addCriteria(afterName(after, sortDirection));
+                }
+                query.with(Sort.by(sortDirection, "name", "_id"));
+                cursorOf = resource -> KeysetCursor.encode(new KeysetCursor.Position(resource.getName(), resource.getId()));
+            } else if (sortBy == null || SORT_BY_ID.equalsIgnoreCase(sortBy)) {
+                String afterId = KeysetCursor.decode(cursor);
+                if (afterId != null) {
+                    query.addCriteria(beyond(where("_id"), afterId, sortDirection));
+                }
+                query.with(Sort.by(sortDirection, "_id"));
+                cursorOf = resource -> KeysetCursor.encode(resource.getId());
+            } else {
+                throw new ServerWebInputException("Unsupported sort: " + sortBy);
+            }
+            query.limit(limit + 1);
+            return KeysetCursor.pageBy(reactiveMongoTemplate.find(query, Resource.class), limit, cursorOf)
+                    .map(page -> new PageDto<>(page.getItems().stream().map(resourceMapper::toDto).toList(), page.getNextCursor()));
+        });
+    }
 
-        // Apply filters reactively
+    /**
+     * Builds the search as one query so Mongo applies every filter through the search indexes
+     * (see {@link #SEARCH_INDEXES}). Name matches by case-insensitive prefix: a substring match
+     * cannot use an index. Type and AD groups match case-insensitively.
+     */
+    static Query searchQuery(String name, String type, List<String> adGroups, Boolean isActive) {
+        Query query = new Query().collation(SEARCH_COLLATION);
         if (name != null && !name.isBlank()) {
-            // Use repository method if available and indexed for better performance
-            // results = resourceRepository.findByNameContainingIgnoreCaseAndIsActive(name, isActive != null ? isActive : true); // Example repo method
-            // Or filter in memory (less efficient for large datasets without index)
-            results = results.filter(r -> r.getName() != null && r.getName().toLowerCase().contains(name.toLowerCase()));
+            // Under the collation U+FFFF sorts after every character, so this range is the prefix
+            query.addCriteria(where("name").gte(name).lt(name + NAME_PREFIX_UPPER_BOUND));
         }
         if (type != null && !type.isBlank()) {
-            results = results.filter(r -> type.equalsIgnoreCase(r.getType()));
+            query.addCriteria(where("type").is(type));
         }
         if (adGroups != null && !adGroups.isEmpty()) {
-            // Use the new repository method
-            results = results.filter(r-> r.getAdGroups() != null && !r.getAdGroups().isEmpty() && !java.util.Collections.disjoint(r.getAdGroups(),adGroups));
+            query.addCriteria(where("adGroups").in(adGroups));
         }
-        // isActive filter is already applied at the start if provided
+        if (isActive != null) {
+            query.addCriteria(where("isActive").is(isActive));
+        }
+        return query;
+    }
 
-        return results
-                .map(resourceMapper::toDto)
-                .doOnError(e -> log.error("Error searching resources: {}", e.getMessage(), e))
-                .doOnComplete(() -> log.debug("Resource search completed."));
+    private static Sort.Direction sortDirection(String direction) {
+        if (direction == null || direction.isBlank()) {
+            return Sort.Direction.ASC;
+        }
+        return Sort.Direction.fromOptionalString(direction)
+                .orElseThrow(() -> new ServerWebInputException("Unsupported sort direction: " + direction));
     }
 
+    /**
+     * Resources after the position in name, then id, order. Mongo sorts a missing or null name before every string,
+     * but {@code $gt} and {@code $lt} only compare values of the same type, so null names are matched explicitly.
+     */
+    private static Criteria afterName(KeysetCursor.Position after, Sort.Direction direction) {
+        Criteria sameName = beyond(where("name").is(after.sortValue()).and("_id"), after.id(), direction);
+        if (after.sortValue() == null) {
+            return direction.isAscending() ? new Criteria().orOperator(sameName, where("name").ne(null)) : sameName;
+        }
+        Criteria laterName = beyond(where("name"), after.sortValue(), direction);
+        return direction.isAscending()
+                ? new Criteria().orOperator(laterName, sameName)
+                : new Criteria().orOperator(laterName, sameName, where("name").is(null));
+    }
+
+    private static Criteria beyond(Criteria criteria, Object value, Sort.Direction direction) {
+        return direction.isAscending() ? criteria.gt(value) : criteria.lt(value);
+    }
 
     public Mono<ResourceDto> getResourceById(String id) {
         log.debug("Fetching resource by ID: {}", id);
@@ -99,6 +200,12 @@ public class ResourceService {
                     return existingResource;
                 })
                 .flatMap(resourceRepository::save) // Save the updated resource
+                // The catalog and permission checker first, so nothing reading them after the invalidation sees the old resource
+                .flatMap(saved -> entitlementCatalog.refreshResource(id)
+                        .then(userEntitlementService.invalidateResource(id))
+                        .then(permissionChecker.refreshRolesAndResources())
+                        .thenReturn(saved))
+                .doOnSuccess(saved -> permissionDecisionCache.evictAll()) // Any role referencing it may be affected
                 .map(resourceMapper::toDto)
                 .doOnSuccess(savedDto -> log.info("Successfully updated resource ID: {}", savedDto.getId()))
                 .doOnError(ResourceNotFoundException.class, e -> log.warn("Resource update failed: {}", e.getMessage()))
@@ -115,6 +222,10 @@ public class ResourceService {
                     log.info("Found resource '{}' for deletion.", resource.getName());
                     return resourceRepository.delete(resource); // Delete the found resource
                 })
+                .then(Mono.defer(() -> entitlementCatalog.refreshResource(id)))
+                .then(Mono.defer(() -> userEntitlementService.invalidateResource(id)))
+                .then(Mono.defer(permissionChecker::refreshRolesAndResources))
+                .doOnSuccess(v -> permissionDecisionCache.evictAll())
                 .doOnSuccess(v -> log.info("Successfully deleted resource ID: {}", id))
                 .doOnError(ResourceNotFoundException.class, e -> log.warn("Resource deletion failed: {}", e.getMessage()))
                 .doOnError(e -> !(e instanceof ResourceNotFoundException), e -> log.error("Error deleting resource ID {}: {}", id, e.getMessage(), e));
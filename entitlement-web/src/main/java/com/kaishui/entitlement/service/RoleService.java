@@ -1,17 +1,30 @@
 package com.kaishui.entitlement.service;
 
 import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.exception.CommonException; // Assuming you have this
+import com.kaishui.entitlement.exception.ConflictException;
 import com.kaishui.entitlement.repository.RoleRepository;
 import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.KeysetCursor;
+import com.kaishui.entitlement.util.PartialUpdate;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.Date;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 @Service
 @Slf4j
 @RequiredArgsConstructor
@@ -19,22 +32,42 @@ public class RoleService {
 
     private final RoleRepository roleRepository;
     private final AuthorizationUtil authorizationUtil;
+    private final PermissionCheckerInterface permissionChecker;
+    private final PermissionDecisionCache permissionDecisionCache;
+    private final UserEntitlementService userEntitlementService;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final EntitlementCatalog entitlementCatalog;
+
+    private static final FindAndModifyOptions RETURN_NEW = FindAndModifyOptions.options().returnNew(true);
 
     /**
-     * Get all active roles.
+     * Get all active roles, from the {@link EntitlementCatalog}.
      */
     public Flux<Role> getAllRoles() {
         log.info("Fetching all active roles");
-        return roleRepository.findAll().filter(Role::isActive); // Filter for active roles
+        return entitlementCatalog.activeRoles();
+    }
+
+    /**
+     * Get one page of active roles in ascending id order, after the position encoded in {@code cursor}.
+     */
+    public Mono<PageDto<Role>> getRolesPage(String cursor, int limit) {
+        return Mono.defer(() -> {
+            String afterId = KeysetCursor.decode(cursor);
+            Limit fetchLimit = Limit.of(limit + 1);
+            Flux<Role> roles = afterId == null
+                    ? roleRepository.findByIsActiveOrderByIdAsc(true, fetchLimit)
+                    : roleRepository.findByIsActiveAndIdGreaterThanOrderByIdAsc(true, afterId, fetchLimit);
+            return KeysetCursor.page(roles, limit, Role::getId);
+        });
     }
 
     /**
-     * Get a single role by its ID.
+     * Get a single active role by its ID, from the {@link EntitlementCatalog}.
      */
     public Mono<Role> getRoleById(String id) {
         log.info("Fetching role by id: {}", id);
-        return roleRepository.findById(id)
-                .filter(Role::isActive) // Ensure role is active
+        return entitlementCatalog.activeRole(id)
                 .switchIfEmpty(Mono.error(new CommonException("Active role not found with id: " + id)));
     }
 
@@ -64,12 +97,15 @@ public class RoleService {
 
                         log.info("Saving new role: {}", role.getRoleName());
                         return roleRepository.save(role);
-                    });
+                    })
+                    // Readable through the catalog once created
+                    .flatMap(saved -> entitlementCatalog.refreshRole(saved.getId()).thenReturn(saved));
         });
     }
 
     /**
-     * Update an existing role.
+     * Update an existing role: one findAndModify setting only the provided fields of the active role, failing if
+     * {@code version} is provided and the role changed since. Nothing is written when nothing changed.
      */
     public Mono<Role> updateRole(String id, Role roleUpdateData) {
         log.info("Attempting to update role with id: {}", id);
@@ -77,60 +113,66 @@ public class RoleService {
         return Mono.deferContextual(contextView -> {
             String updatedByUsername = authorizationUtil.extractUsernameFromContext(contextView);
 
-            return roleRepository.findById(id)
+            // Do NOT update: id, createdBy, createdDate, isActive (handled by delete)
+            PartialUpdate changes = new PartialUpdate()
+                    .set("roleName", roleUpdateData.getRoleName())
+                    .set("description", roleUpdateData.getDescription())
+                    .set("type", roleUpdateData.getType())
+                    .set("isApprover", roleUpdateData.getIsApprover())
+                    .set("resourceIds", roleUpdateData.getResourceIds()); // Replaces the list
+            Criteria updatable = where("id").is(id).and("isActive").is(true);
+            if (roleUpdateData.getVersion() != null) {
+                updatable.and("version").is(roleUpdateData.getVersion());
+            }
+            Mono<Role> updated = changes.isEmpty() ? Mono.empty()
+                    : checkRoleNameAvailable(id, roleUpdateData.getRoleName())
+                    .then(Mono.defer(() -> reactiveMongoTemplate.findAndModify(changes.filter(updatable),
+                            changes.audited(updatedByUsername), RETURN_NEW, Role.class)))
+                    .onErrorMap(DuplicateKeyException.class, // Lost a race for the name with another write
+                            e -> new CommonException("Role name '" + roleUpdateData.getRoleName() + "' already exists."))
+                    // Any user holding this role may be affected
+                    // The catalog and permission checker first, so nothing reading them after the invalidation sees the old role
+                    .flatMap(saved -> entitlementCatalog.refreshRole(id)
+                            .then(userEntitlementService.invalidateRole(id))
+                            .then(permissionChecker.refreshRolesAndResources())
+                            .thenReturn(saved))
+                    .doOnNext(saved -> permissionDecisionCache.evictAll());
+
+            // No match: the role is missing, inactive, changed since it was read, or already up to date
+            return updated.switchIfEmpty(Mono.defer(() -> roleRepository.findById(id)
+                    .switchIfEmpty(Mono.error(new CommonException("Role not found for update with id: " + id)))
                     .flatMap(existingRole -> {
                         if (!existingRole.isActive()) {
                             log.warn("Attempted to update inactive role with id: {}", id);
                             return Mono.error(new CommonException("Cannot update inactive role with id: " + id));
                         }
-
-                        // Check for role name conflict if name is being changed
-                        Mono<Role> updateMono = Mono.just(existingRole);
-                        if (roleUpdateData.getRoleName() != null && !roleUpdateData.getRoleName().equals(existingRole.getRoleName())) {
-                            updateMono = roleRepository.existsByRoleName(roleUpdateData.getRoleName())
-                                    .flatMap(exists -> {
-                                        if (exists) {
-                                            log.warn("Cannot update role id '{}': new name '{}' already exists.", id, roleUpdateData.getRoleName());
-                                            return Mono.error(new CommonException("Role name '" + roleUpdateData.getRoleName() + "' already exists."));
-                                        }
-                                        existingRole.setRoleName(roleUpdateData.getRoleName());
-                                        return Mono.just(existingRole);
-                                    });
+                        if (roleUpdateData.getVersion() != null && !roleUpdateData.getVersion().equals(existingRole.getVersion())) {
+                            return Mono.error(new ConflictException("Role with id " + id + " was modified concurrently, expected version "
+                                    + roleUpdateData.getVersion() + " but found " + existingRole.getVersion()));
                         }
-
-                        return updateMono.flatMap(roleToUpdate -> {
-                            mergeRoleInfo(roleUpdateData, roleToUpdate, updatedByUsername);
-                            log.info("Saving updated role data for id: {}", id);
-                            return roleRepository.save(roleToUpdate);
-                        });
-                    })
-                    .switchIfEmpty(Mono.error(new CommonException("Role not found for update with id: " + id)));
+                        log.info("No changes to save for role with id: {}", id);
+                        return Mono.just(existingRole);
+                    })));
         });
     }
 
-    private static void mergeRoleInfo(Role roleUpdateData, Role roleToUpdate, String updatedByUsername) {
-        // Update fields from roleUpdateData onto existingRole
-        if (roleUpdateData.getDescription() != null && !roleUpdateData.getDescription().equals(roleToUpdate.getDescription())) {
-            roleToUpdate.setDescription(roleUpdateData.getDescription());
-        }
-        if (roleUpdateData.getType() != null && !roleUpdateData.getType().equals(roleToUpdate.getType())) {
-            roleToUpdate.setType(roleUpdateData.getType());
-        }
-        if (roleUpdateData.getIsApprover() != null && !roleUpdateData.getIsApprover().equals(roleToUpdate.getIsApprover())) {
-            roleToUpdate.setIsApprover(roleUpdateData.getIsApprover());
-        }
-        if (roleUpdateData.getResourceIds() != null && !roleUpdateData.getResourceIds().equals(roleToUpdate.getResourceIds())) {
-            // Consider how to handle list updates (replace, merge?) - this replaces
-            roleToUpdate.setResourceIds(roleUpdateData.getResourceIds());
+    /**
+     * Fails if another role already has {@code roleName}.
+     */
+    private Mono<Void> checkRoleNameAvailable(String id, String roleName) {
+        if (roleName == null) {
+            return Mono.empty();
         }
-        // Do NOT update: id, createdBy, createdDate, isActive (handled by delete)
-
-        roleToUpdate.setLastModifiedBy(updatedByUsername);
-        roleToUpdate.setLastModifiedDate(new Date());
+        return roleRepository.findByRoleName(roleName)
+                .filter(other -> !other.getId().equals(id))
+                .flatMap(other -> {
+                    log.warn("Cannot update role id '{}': new name '{}' already exists.", id, roleName);
+                    return Mono.<Void>error(new CommonException("Role name '" + roleName + "' already exists."));
+                });
     }
 
     /**
-     * Delete a role (soft delete by setting isActive=false).
+     * Delete a role (soft delete by setting isActive=false) with one findAndModify on the active role.
      */
     public Mono<Void> deleteRole(String id) {
         log.info("Attempting to soft delete role with id: {}", id);
@@ -138,24 +180,22 @@ public class RoleService {
         return Mono.deferContextual(contextView -> {
             String deletedByUsername = authorizationUtil.extractUsernameFromContext(contextView);
 
-            return roleRepository.findById(id)
-                    .switchIfEmpty(Mono.error(new CommonException("Role not found for deletion with id: " + id)))
+            Update deactivate = new PartialUpdate().set("isActive", false).audited(deletedByUsername);
+            return reactiveMongoTemplate.findAndModify(query(where("id").is(id).and("isActive").is(true)), deactivate, Role.class)
                     .flatMap(role -> {
-                        if (!role.isActive()) {
-                            log.info("Role with id: {} is already inactive.", id);
-                            return Mono.empty(); // Already inactive, nothing to do
-                        }
-                        // ---> This line sets isActive to false <---
-                        role.setActive(false);
-                        role.setLastModifiedBy(deletedByUsername); // Mark who deactivated it
-                        role.setLastModifiedDate(new Date());
-                        log.info("Setting role with id: {} to inactive.", id);
-                        // ---> This line saves the updated role (with isActive=false) <---
-                        return roleRepository.save(role);
+                        log.info("Set role with id: {} to inactive.", id);
+                        return entitlementCatalog.refreshRole(id)
+                                .then(userEntitlementService.invalidateRole(id))
+                                .then(permissionChecker.refreshRolesAndResources())
+                                .thenReturn(role);
                     })
+                    .doOnNext(role -> permissionDecisionCache.evictAll())
+                    // No match: the role is missing or already inactive
+                    .switchIfEmpty(Mono.defer(() -> roleRepository.findById(id)
+                            .doOnNext(role -> log.info("Role with id: {} is already inactive.", id))
+                            .switchIfEmpty(Mono.error(new CommonException("Role not found for deletion with id: " + id)))))
                     .then(); // Convert Mono<Role> to Mono<Void>
         });
     }
 
-
 }
\ No newline at end of file
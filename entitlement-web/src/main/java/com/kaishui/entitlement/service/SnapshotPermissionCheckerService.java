@@ -0,0 +1,305 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.constant.ResourceType;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
+import com.kaishui.entitlement.repository.ResourceRepository;
+import com.kaishui.entitlement.repository.RoleRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * {@link PermissionCheckerInterface} that answers from an in-memory {@link PermissionSnapshot}
+ * instead of querying MongoDB on every call.
+ * <p>
+ * The snapshot is built at startup, retrying until it succeeds, and rebuilt in the background every
+ * {@code entitlement.permission.snapshot.refresh-interval}, shortly after any {@link EntitlementChangeEvent} on roles
+ * or resources, and after a local write to them. A change to users, local or from an event, only re-reads the changed
+ * users and patches them into a copy of the snapshot. Changes are applied one at a time in submission order, so a
+ * load that read the collections before a write can never overwrite one that read it after. Each new snapshot evicts
+ * the decisions the {@link PermissionDecisionCache} computed from the previous one: a user patch those of its users,
+ * a rebuild all of them. A failed refresh keeps the previous snapshot.
+ * Enable with {@code entitlement.permission.checker=snapshot}.
+ */
+@Service
+@ConditionalOnProperty(name = "entitlement.permission.checker", havingValue = "snapshot")
+@RequiredArgsConstructor
+@Slf4j
+public class SnapshotPermissionCheckerService implements PermissionCheckerInterface {
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final RoleRepository roleRepository;
+    private final ResourceRepository resourceRepository;
+    private final PermissionDecisionCache permissionDecisionCache;
+
+    @Value("${entitlement.permission.snapshot.refresh-interval:60s}")
+    private Duration refreshInterval;
+
+    // Changes arriving within this window are coalesced into one refresh, or one patch of the changed users
+    @Value("${entitlement.permission.snapshot.change-debounce:1s}")
+    private Duration changeDebounce;
+
+    @Value("${entitlement.permission.snapshot.rule-index-cache.maximum-size:10000}")
+    private long ruleIndexCacheSize;
+
+    private final Sinks.Many<EntitlementChangeEvent> changes = Sinks.many().multicast().directBestEffort();
+    private final Sinks.Many<Mono<Void>> loads = Sinks.many().unicast().onBackpressureBuffer();
+
+    private static final Duration INITIAL_LOAD_BACKOFF = Duration.ofSeconds(1);
+
+    private volatile PermissionSnapshot snapshot;
+    private final AtomicReference<Mono<PermissionSnapshot>> initialLoad = new AtomicReference<>();
+    private Disposable loadTask;
+    private Disposable startupTask;
+    private Disposable refreshTask;
+    private Disposable userChangeTask;
+
+    @PostConstruct
+    void start() {
+        loadTask = loads.asFlux().concatMap(Function.identity()).subscribe();
+        // Retried until MongoDB is reachable, rather than denying everything until the first refresh
+        startupTask = Mono.defer(this::initialLoad)
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, INITIAL_LOAD_BACKOFF).maxBackoff(refreshInterval))
+                .subscribe();
+        refreshTask = Flux.merge(
+                        Flux.interval(refreshInterval, refreshInterval, Schedulers.parallel()),
+                        changes.asFlux().filter(change -> !isUserChange(change)).sample(changeDebounce))
+                .onBackpressureDrop()
+                .concatMap(tick -> refresh())
+                .subscribe();
+        userChangeTask = changes.asFlux()
+                .filter(SnapshotPermissionCheckerService::isUserChange)
+                .map(EntitlementChangeEvent::staffId)
+                .buffer(changeDebounce)
+                .filter(staffIds -> !staffIds.isEmpty())
+                .onBackpressureBuffer()
+                .concatMap(staffIds -> refreshUsers(new HashSet<>(staffIds)))
+                .subscribe();
+    }
+
+    /**
+     * @return true for a change to one user that still exists; a deleted user is only known by document id
+     */
+    private static boolean isUserChange(EntitlementChangeEvent change) {
+        return EntitlementChangeEvent.USERS.equals(change.collection()) && change.staffId() != null;
+    }
+
+    @PreDestroy
+    void stop() {
+        if (startupTask != null) {
+            startupTask.dispose();
+        }
+        if (refreshTask != null) {
+            refreshTask.dispose();
+        }
+        if (userChangeTask != null) {
+            userChangeTask.dispose();
+        }
+        if (loadTask != null) {
+            loadTask.dispose();
+        }
+    }
+
+    /**
+     * Schedules a refresh, or a patch of the changed user, when any instance changes users, roles or resources.
+     */
+    @EventListener
+    public void onChange(EntitlementChangeEvent change) {
+        if (change.affectsPermissions()) {
+            changes.tryEmitNext(change);
+        }
+    }
+
+    @Override
+    public Mono<Boolean> checkPermission(String staffId, String httpMethod, String requestUri) {
+        log.debug("Checking permission (snapshot) for user '{}', method '{}', uri '{}'", staffId, httpMethod, requestUri);
+        return currentSnapshot()
+                .map(current -> {
+                    if (!current.containsUser(staffId)) {
+                        log.warn("User not found in permission snapshot: {}", staffId);
+                        return false;
+                    }
+                    return current.isAllowed(staffId, httpMethod, requestUri);
+                })
+                .doOnSuccess(hasPermission -> log.info("Permission check result (snapshot) for user '{}', method '{}', uri '{}': {}",
+                        staffId, httpMethod, requestUri, hasPermission))
+                .defaultIfEmpty(false);
+    }
+
+    @Override
+    public Mono<List<Boolean>> checkPermissions(String staffId, List<PermissionCheckDto> checks) {
+        log.debug("Checking {} permissions (snapshot) for user '{}'", checks.size(), staffId);
+        return currentSnapshot()
+                .defaultIfEmpty(PermissionSnapshot.empty())
+                .map(current -> {
+                    if (!current.containsUser(staffId)) {
+                        log.warn("User not found in permission snapshot: {}", staffId);
+                    }
+                    return evaluate(current, staffId, checks);
+                });
+    }
+
+    @Override
+    public Mono<Map<String, List<Boolean>>> checkPermissions(List<String> staffIds, List<PermissionCheckDto> checks) {
+        log.debug("Checking {} permissions (snapshot) for {} users", checks.size(), staffIds.size());
+        return currentSnapshot()
+                .defaultIfEmpty(PermissionSnapshot.empty())
+                .map(current -> {
+                    Map<String, List<Boolean>> decisions = new LinkedHashMap<>();
+                    for (String staffId : staffIds) {
+                        decisions.put(staffId, evaluate(current, staffId, checks));
+                    }
+                    return decisions;
+                });
+    }
+
+    private static List<Boolean> evaluate(PermissionSnapshot current, String staffId, List<PermissionCheckDto> checks) {
+        List<Boolean> decisions = new ArrayList<>(checks.size());
+        for (PermissionCheckDto check : checks) {
+            decisions.add(current.isAllowed(staffId, check.getHttpMethod(), check.getRequestUri()));
+        }
+        return decisions;
+    }
+
+    /**
+     * Rebuilds the snapshot from MongoDB and swaps it in. Errors are logged and the previous snapshot is kept.
+     */
+    public Mono<PermissionSnapshot> refresh() {
+        return Mono.defer(() -> submit(loadSnapshot(), permissionDecisionCache::evictAll))
+                .then(Mono.fromSupplier(() -> snapshot))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    /**
+     * Re-reads the given users and swaps in a copy of the snapshot with them replaced, or removed if they no longer
+     * exist. Errors are logged and the previous snapshot is kept.
+     */
+    @Override
+    public Mono<Void> refreshUsers(Collection<String> staffIds) {
+        List<String> changed = List.copyOf(staffIds);
+        return Mono.defer(() -> submit(patchUsers(changed), () -> permissionDecisionCache.evictUsers(changed)))
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    @Override
+    public Mono<Void> refreshRolesAndResources() {
+        return refresh().then();
+    }
+
+    Mono<PermissionSnapshot> currentSnapshot() {
+        PermissionSnapshot current = snapshot;
+        return current != null ? Mono.just(current) : Mono.defer(this::initialLoad);
+    }
+
+    /**
+     * The first load, which callers arriving before the first snapshot wait for instead of being denied. A failed
+     * load is dropped before its waiters get the error, so the next call or startup retry starts another one.
+     */
+    private Mono<PermissionSnapshot> initialLoad() {
+        PermissionSnapshot current = snapshot;
+        if (current != null) {
+            return Mono.just(current);
+        }
+        Mono<PermissionSnapshot> pending = initialLoad.get();
+        if (pending != null) {
+            return pending;
+        }
+        Sinks.One<PermissionSnapshot> loaded = Sinks.one();
+        Mono<PermissionSnapshot> load = loaded.asMono();
+        if (!initialLoad.compareAndSet(null, load)) {
+            return Mono.defer(this::initialLoad); // Another caller started it
+        }
+        submit(loadSnapshot(), permissionDecisionCache::evictAll).then(Mono.fromSupplier(() -> snapshot)).subscribe(
+                loaded::tryEmitValue,
+                e -> {
+                    initialLoad.compareAndSet(load, null);
+                    loaded.tryEmitError(e);
+                },
+                loaded::tryEmitEmpty);
+        return load;
+    }
+
+    private Mono<PermissionSnapshot> loadSnapshot() {
+        long start = System.nanoTime();
+        return Mono.zip(
+                        reactiveMongoTemplate.find(userQuery(), User.class).collectList(),
+                        roleRepository.findAllByIsActive(true).collectList(),
+                        resourceRepository.findByTypeAndIsActive(ResourceType.API.name(), true).collectList())
+                .map(tuple -> PermissionSnapshot.of(tuple.getT1(), tuple.getT2(), tuple.getT3(), ruleIndexCacheSize))
+                .doOnNext(loaded -> log.info("Loaded permission snapshot: {} users, {} roles, {} API resources in {} ms",
+                        loaded.userCount(), loaded.roleCount(), loaded.apiResourceCount(),
+                        Duration.ofNanos(System.nanoTime() - start).toMillis()));
+    }
+
+    private Mono<PermissionSnapshot> patchUsers(List<String> staffIds) {
+        return Mono.defer(() -> {
+            if (snapshot == null) {
+                return Mono.empty(); // Nothing to patch; the pending initial load or a later refresh reads the change
+            }
+            Query changedUsers = userQuery().addCriteria(where("staffId").in(staffIds));
+            return reactiveMongoTemplate.find(changedUsers, User.class).collectList()
+                    .map(users -> snapshot.withUsers(staffIds, users))
+                    .doOnNext(patched -> log.debug("Patched {} users into the permission snapshot", staffIds.size()));
+        });
+    }
+
+    private static Query userQuery() {
+        // Only the fields needed for the decision are loaded for users
+        Query query = new Query();
+        query.fields().include("staffId", "adGroups", "roleIds");
+        return query;
+    }
+
+    /**
+     * Queues a load behind the ones already submitted, when called rather than when subscribed to.
+     *
+     * @param evictStale evicts the cached decisions the load may have changed, once it is swapped in
+     * @return completes, or fails, once the loaded snapshot was swapped in
+     */
+    private Mono<Void> submit(Mono<PermissionSnapshot> load, Runnable evictStale) {
+        Sinks.Empty<Void> done = Sinks.empty();
+        Mono<Void> applied = load
+                .doOnNext(loaded -> swap(loaded, evictStale))
+                .doOnError(e -> log.error("Permission snapshot refresh failed, keeping previous snapshot: {}", e.getMessage(), e))
+                .doOnError(done::tryEmitError)
+                .doOnSuccess(loaded -> done.tryEmitEmpty())
+                .onErrorResume(e -> Mono.empty())
+                .then();
+        loads.emitNext(applied, Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1)));
+        return done.asMono();
+    }
+
+    private void swap(PermissionSnapshot loaded, Runnable evictStale) {
+        PermissionSnapshot previous = this.snapshot;
+        this.snapshot = loaded;
+        if (previous != null) {
+            evictStale.run();
+        }
+    }
+}
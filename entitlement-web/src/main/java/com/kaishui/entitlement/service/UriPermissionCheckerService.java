@@ -1,36 +1,52 @@
 package com.kaishui.entitlement.service;
 
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.kaishui.entitlement.constant.PermissionFieldConstant;
 import com.kaishui.entitlement.constant.ResourceType;
 import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
 import com.kaishui.entitlement.entity.User; // Assuming you have a User entity
-import com.kaishui.entitlement.repository.ResourceRepository;
-import com.kaishui.entitlement.repository.RoleRepository;
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
 import com.kaishui.entitlement.repository.UserRepository;
+import com.kaishui.entitlement.util.UriPatternIndex;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
-import org.springframework.util.AntPathMatcher;
 import org.springframework.util.CollectionUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 @Service
+@ConditionalOnProperty(name = "entitlement.permission.checker", havingValue = "mongo", matchIfMissing = true)
 @RequiredArgsConstructor
 @Slf4j
 public class UriPermissionCheckerService implements PermissionCheckerInterface {
 
     private final UserRepository userRepository;
-    private final RoleRepository roleRepository;
-    private final ResourceRepository resourceRepository;
+    private final EntitlementCatalog entitlementCatalog;
 
-    // AntPathMatcher for URI pattern matching
-    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    // queries: chained repository queries, aggregation: one server-side $lookup pipeline per user
+    @Value("${entitlement.permission.resolution:queries}")
+    private String resolution;
+
+    @Value("${entitlement.permission.rule-index-cache.maximum-size:10000}")
+    private long ruleIndexCacheSize;
+
+    // Compiled rules of each resource set resolved from the catalog, shared by the users reaching the same resources
+    private Cache<RuleSetKey, UriPatternIndex<Resource>> ruleIndexCache;
+
+    @PostConstruct
+    void start() {
+        ruleIndexCache = Caffeine.newBuilder().maximumSize(ruleIndexCacheSize).build();
+    }
 
     /**
      * Checks if a user has permission for a given HTTP method and URI,
@@ -45,6 +61,32 @@ public class UriPermissionCheckerService implements PermissionCheckerInterface {
     public Mono<Boolean> checkPermission(String staffId, String httpMethod, String requestUri) {
         log.debug("Checking permission for user '{}', method '{}', uri '{}'", staffId, httpMethod, requestUri);
 
+        Mono<UriPatternIndex<Resource>> ruleIndexMono = isAggregationResolution()
+                ? findAccessibleApiResources(staffId).collectList().map(this::buildRuleIndex)
+                : Mono.defer(() -> {
+                    long catalogVersion = entitlementCatalog.version();
+                    return findAccessibleApiResources(staffId)
+                            .collectList()
+                            .map(resources -> ruleIndex(catalogVersion, resources));
+                });
+        // The rules of the URI resources the user reaches via their roles AND matching AD groups, matched at once
+        return ruleIndexMono
+                .map(ruleIndex -> hasMatchingPermissionRule(ruleIndex, httpMethod, requestUri))
+                .doOnSuccess(hasPermission -> log.info("Permission check result for user '{}', method '{}', uri '{}': {}",
+                        staffId, httpMethod, requestUri, hasPermission))
+                .defaultIfEmpty(false); // Default to false if the stream was empty at any critical point
+    }
+
+    /**
+     * Finds the active API resources the user reaches through their active roles and whose AD groups
+     * intersect the user's, either with one aggregation or with chained queries depending on
+     * {@code entitlement.permission.resolution}.
+     */
+    private Flux<Resource> findAccessibleApiResources(String staffId) {
+        if (isAggregationResolution()) {
+            return userRepository.findAccessibleResourcesByStaffIdAndType(staffId, ResourceType.API.name());
+        }
+
         return userRepository.findByStaffId(staffId)
                 .switchIfEmpty(Mono.defer(() -> {
                     log.warn("User not found: {}", staffId);
@@ -57,93 +99,233 @@ public class UriPermissionCheckerService implements PermissionCheckerInterface {
                         return Flux.empty(); // No roles, no permissions from roles
                     }
 
-                    // Fetch roles associated with the user
-                    return roleRepository.findAllByIdAndIsActive(user.getRoleIds(), true)
+                    Set<String> userAdGroups = adGroupsOf(user);
+                    // Look up the user's active roles in the catalog
+                    return entitlementCatalog.activeRoles(user.getRoleIds())
                             .flatMap(role -> {
                                 if (CollectionUtils.isEmpty(role.getResourceIds())) {
                                     return Flux.empty(); // No resources in this role
                                 }
-                                // Fetch only URI resources associated with this role
-                                return resourceRepository.findAllByIdInAndTypeAndIsActive(role.getResourceIds(), ResourceType.API.name(), true);
+                                // Only the active URI resources associated with this role
+                                return entitlementCatalog.activeResources(role.getResourceIds(), ResourceType.API.name());
                             })
                             // Filter resources: Must have at least one AD Group matching the user's AD Groups
-                            .filter(resource -> checkAdGroupIntersection(user, resource));
-                })
-                // Now we have a Flux<Resource> containing only URI resources the user has access to
-                // via their roles AND matching AD groups.
-                .filter(resource -> hasMatchingPermissionRule(resource, httpMethod, requestUri))
-                .hasElements() // Check if *any* resource contained a matching permission rule after all filters
-                .doOnSuccess(hasPermission -> log.info("Permission check result for user '{}', method '{}', uri '{}': {}",
-                        staffId, httpMethod, requestUri, hasPermission))
-                .defaultIfEmpty(false); // Default to false if the stream was empty at any critical point
+                            .filter(resource -> checkAdGroupIntersection(user, userAdGroups, resource));
+                });
+    }
+
+    private boolean isAggregationResolution() {
+        return "aggregation".equalsIgnoreCase(resolution);
+    }
+
+    /**
+     * Checks many (method, uri) pairs for one user. The user's roles and resources are fetched once
+     * and compiled into a single rule index that answers every check.
+     */
+    @Override
+    public Mono<List<Boolean>> checkPermissions(String staffId, List<PermissionCheckDto> checks) {
+        log.debug("Checking {} permissions for user '{}'", checks.size(), staffId);
+
+        Mono<List<Boolean>> decisionsMono = isAggregationResolution()
+                ? findAccessibleApiResources(staffId)
+                        .collectList()
+                        .map(resources -> evaluate(buildRuleIndex(resources), checks))
+                : userRepository.findByStaffId(staffId)
+                        .flatMap(user -> resolveRuleIndexes(List.of(user)))
+                        .map(ruleIndexes -> evaluate(ruleIndexes.get(staffId), checks))
+                        .switchIfEmpty(Mono.fromSupplier(() -> {
+                            log.warn("User not found: {}", staffId);
+                            return evaluate(null, checks); // No user, no permission
+                        }));
+
+        return decisionsMono
+                .doOnSuccess(decisions -> log.info("Batch permission check for user '{}': {} of {} allowed",
+                        staffId, decisions.stream().filter(Boolean::booleanValue).count(), checks.size()));
+    }
+
+    /**
+     * Checks the same (method, uri) pairs for many users. Roles and resources are fetched once for all users,
+     * so roles shared between users are only resolved once. Unknown users are denied every check.
+     */
+    @Override
+    public Mono<Map<String, List<Boolean>>> checkPermissions(List<String> staffIds, List<PermissionCheckDto> checks) {
+        log.debug("Checking {} permissions for {} users", checks.size(), staffIds.size());
+
+        return userRepository.findByStaffIdIn(staffIds)
+                .collectList()
+                .flatMap(this::resolveRuleIndexes)
+                .map(ruleIndexes -> {
+                    Map<String, List<Boolean>> decisions = new LinkedHashMap<>();
+                    for (String staffId : staffIds) {
+                        decisions.put(staffId, evaluate(ruleIndexes.get(staffId), checks));
+                    }
+                    return decisions;
+                });
+    }
+
+    /**
+     * Resolves users -> active roles -> active API resources with one role lookup and one resource lookup in the catalog
+     * for all users, and compiles each user's AD-group-visible rules into a {@link UriPatternIndex}.
+     *
+     * @return staffId -> rule index. Users without roles map to an empty index.
+     */
+    private Mono<Map<String, UriPatternIndex<Resource>>> resolveRuleIndexes(List<User> users) {
+        return Mono.defer(() -> resolveRuleIndexes(users, entitlementCatalog.version()));
+    }
+
+    private Mono<Map<String, UriPatternIndex<Resource>>> resolveRuleIndexes(List<User> users, long catalogVersion) {
+        List<String> roleIds = users.stream()
+                .filter(user -> !CollectionUtils.isEmpty(user.getRoleIds()))
+                .flatMap(user -> user.getRoleIds().stream())
+                .distinct()
+                .toList();
+        if (roleIds.isEmpty()) {
+            return Mono.just(buildRuleIndexes(users, catalogVersion, Map.of(), Map.of()));
+        }
+
+        return entitlementCatalog.activeRoles(roleIds)
+                .collectMap(Role::getId)
+                .flatMap(rolesById -> {
+                    List<String> resourceIds = rolesById.values().stream()
+                            .filter(role -> !CollectionUtils.isEmpty(role.getResourceIds()))
+                            .flatMap(role -> role.getResourceIds().stream())
+                            .distinct()
+                            .toList();
+                    if (resourceIds.isEmpty()) {
+                        return Mono.just(buildRuleIndexes(users, catalogVersion, rolesById, Map.of()));
+                    }
+                    return entitlementCatalog.activeResources(resourceIds, ResourceType.API.name())
+                            .collectMap(Resource::getId)
+                            .map(resourcesById -> buildRuleIndexes(users, catalogVersion, rolesById, resourcesById));
+                });
+    }
+
+    private Map<String, UriPatternIndex<Resource>> buildRuleIndexes(List<User> users,
+                                                                   long catalogVersion,
+                                                                   Map<String, Role> rolesById,
+                                                                   Map<String, Resource> resourcesById) {
+        Map<String, UriPatternIndex<Resource>> ruleIndexes = new HashMap<>();
+        for (User user : users) {
+            Set<String> userAdGroups = adGroupsOf(user);
+            List<Resource> visibleResources = new ArrayList<>();
+            Set<String> seenResourceIds = new HashSet<>();
+            for (String roleId : Optional.ofNullable(user.getRoleIds()).orElse(List.of())) {
+                Role role = rolesById.get(roleId);
+                if (role == null || CollectionUtils.isEmpty(role.getResourceIds())) {
+                    continue;
+                }
+                for (String resourceId : role.getResourceIds()) {
+                    Resource resource = resourcesById.get(resourceId);
+                    if (resource != null && seenResourceIds.add(resourceId) && checkAdGroupIntersection(user, userAdGroups, resource)) {
+                        visibleResources.add(resource);
+                    }
+                }
+            }
+            ruleIndexes.put(user.getStaffId(), ruleIndex(catalogVersion, visibleResources));
+        }
+        return ruleIndexes;
+    }
+
+    /**
+     * Answers every check against the rule index; a null index denies all checks.
+     */
+    private List<Boolean> evaluate(UriPatternIndex<Resource> ruleIndex, List<PermissionCheckDto> checks) {
+        List<Boolean> decisions = new ArrayList<>(checks.size());
+        for (PermissionCheckDto check : checks) {
+            decisions.add(ruleIndex != null && ruleIndex.matches(check.getHttpMethod(), check.getRequestUri()));
+        }
+        return decisions;
+    }
+
+    /**
+     * The user's AD groups as a set, built once per user so each resource group is a hash lookup. A per-request
+     * set rather than the interned {@code AdGroupDictionary}, which would grow with every group name ever seen.
+     */
+    private static Set<String> adGroupsOf(User user) {
+        return CollectionUtils.isEmpty(user.getAdGroups()) ? Set.of() : new HashSet<>(user.getAdGroups());
     }
 
     /**
      * Checks if there's an intersection between the user's AD groups and the resource's AD groups.
      */
-    private boolean checkAdGroupIntersection(User user, Resource resource) {
-        List<String> userAdGroups = user.getAdGroups();
+    private boolean checkAdGroupIntersection(User user, Set<String> userAdGroups, Resource resource) {
         List<String> resourceAdGroups = resource.getAdGroups();
 
-        if (CollectionUtils.isEmpty(userAdGroups) || CollectionUtils.isEmpty(resourceAdGroups)) {
+        if (userAdGroups.isEmpty() || CollectionUtils.isEmpty(resourceAdGroups)) {
             log.trace("AD Group check: No intersection possible for resource '{}' because user ({}) or resource ({}) AD groups are empty/null.",
-                    resource.getName(), userAdGroups, resourceAdGroups);
+                    resource.getName(), user.getAdGroups(), resourceAdGroups);
             return false; // No intersection if either list is empty or null
         }
 
-        // Efficient check for any common element
-        boolean intersects = !Collections.disjoint(userAdGroups, resourceAdGroups);
-
-        // Alternative using streams (potentially less efficient for large lists):
-        // boolean intersects = userAdGroups.stream().anyMatch(resourceAdGroups::contains);
+        boolean intersects = resourceAdGroups.stream().anyMatch(userAdGroups::contains);
 
         if (intersects) {
             log.trace("AD Group check: Intersection found for resource '{}'. User groups: {}, Resource groups: {}",
-                    resource.getName(), userAdGroups, resourceAdGroups);
+                    resource.getName(), user.getAdGroups(), resourceAdGroups);
         } else {
             log.trace("AD Group check: No intersection found for resource '{}'. User groups: {}, Resource groups: {}",
-                    resource.getName(), userAdGroups, resourceAdGroups);
+                    resource.getName(), user.getAdGroups(), resourceAdGroups);
         }
         return intersects;
     }
 
 
     /**
-     * Checks if a specific resource contains a permission rule matching the method and URI.
-     * (This method remains the same as the previous version)
+     * Checks if the user's rules contain one matching the method and URI.
+     * All rules are compiled into a single {@link UriPatternIndex}, so the URI is walked once
+     * regardless of how many rules the user holds.
      */
-    private boolean hasMatchingPermissionRule(Resource resource, String httpMethod, String requestUri) {
-        if (CollectionUtils.isEmpty(resource.getPermission())) {
-            log.trace("Resource '{}' (ID: {}) has no permission rules defined.", resource.getName(), resource.getId());
-            return false;
+    private boolean hasMatchingPermissionRule(UriPatternIndex<Resource> ruleIndex, String httpMethod, String requestUri) {
+        Resource matched = ruleIndex.findMatch(httpMethod, requestUri);
+
+        if (matched != null) {
+            log.debug("Permission match found in resource '{}' (ID: {}): Rule='{}', Requested Method='{}', Requested URI='{}'",
+                    matched.getName(), matched.getId(), matched.getPermission().toJson(), httpMethod, requestUri);
+            return true; // Found a matching rule
         }
 
-        Document permissionDoc = resource.getPermission();
-        // Safely extract method and uri patterns from the BSON Document
-        // Adjust keys ("method", "uri") based on your actual structure in the permission Document
-        String methodPattern = permissionDoc.getString(PermissionFieldConstant.METHOD);
-        String uriPattern = permissionDoc.getString(PermissionFieldConstant.URI);
+        log.trace("No matching URI/method permission rule found in {} rules for method '{}', uri '{}'",
+                ruleIndex.size(), httpMethod, requestUri);
+        return false; // No rule matched
+    }
 
-        // IMPORTANT: Only consider rules that actually define a method and URI for this check
-        if (methodPattern == null || uriPattern == null) {
-            log.trace("Skipping non-URI/method permission rule in resource '{}': {}", resource.getName(), permissionDoc.toJson());
-            return false;
+    /**
+     * Returns the compiled rules of catalog resources, compiling them once per resource set and catalog version.
+     * The version is read before the resources are looked up, so an entry is never older than its key; a catalog
+     * change moves lookups to new keys and the old entries age out.
+     */
+    private UriPatternIndex<Resource> ruleIndex(long catalogVersion, List<Resource> resources) {
+        if (resources.isEmpty()) {
+            return buildRuleIndex(resources);
         }
+        List<String> resourceIds = resources.stream().map(Resource::getId).sorted().toList();
+        return ruleIndexCache.get(new RuleSetKey(catalogVersion, resourceIds), key -> buildRuleIndex(resources));
+    }
 
-        // 1. Check Method
-        boolean methodMatches = methodPattern.equals("*") || methodPattern.equalsIgnoreCase(httpMethod);
+    private UriPatternIndex<Resource> buildRuleIndex(List<Resource> resources) {
+        UriPatternIndex.Builder<Resource> builder = UriPatternIndex.builder();
+        for (Resource resource : resources) {
+            if (CollectionUtils.isEmpty(resource.getPermission())) {
+                log.trace("Resource '{}' (ID: {}) has no permission rules defined.", resource.getName(), resource.getId());
+                continue;
+            }
 
-        // 2. Check URI using AntPathMatcher
-        boolean uriMatches = pathMatcher.match(uriPattern, requestUri);
+            Document permissionDoc = resource.getPermission();
+            // Safely extract method and uri patterns from the BSON Document
+            // Adjust keys ("method", "uri") based on your actual structure in the permission Document
+            String methodPattern = permissionDoc.getString(PermissionFieldConstant.METHOD);
+            String uriPattern = permissionDoc.getString(PermissionFieldConstant.URI);
 
-        if (methodMatches && uriMatches) {
-            log.debug("Permission match found in resource '{}' (ID: {}): Rule='{}', Requested Method='{}', Requested URI='{}'",
-                    resource.getName(), resource.getId(), permissionDoc.toJson(), httpMethod, requestUri);
-            return true; // Found a matching rule
+            // IMPORTANT: Only consider rules that actually define a method and URI for this check
+            if (methodPattern == null || uriPattern == null) {
+                log.trace("Skipping non-URI/method permission rule in resource '{}': {}", resource.getName(), permissionDoc.toJson());
+                continue;
+            }
+            builder.add(methodPattern, uriPattern, resource);
         }
+        return builder.build();
+    }
 
-        log.trace("No matching URI/method permission rule found in resource '{}' (ID: {}) for method '{}', uri '{}'",
-                resource.getName(), resource.getId(), httpMethod, requestUri);
-        return false; // No rule in this resource matched
+    private record RuleSetKey(long catalogVersion, List<String> resourceIds) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,167 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.UserEntitlement;
+import com.kaishui.entitlement.entity.dto.RolesAndResourcesDto;
+import com.kaishui.entitlement.entity.dto.UserResourceDto;
+import com.mongodb.client.result.UpdateResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Maintains the {@link UserEntitlement} read model.
+ * <p>
+ * Role and resource changes only bump the version of the documents referencing them, a single multi-update;
+ * user changes need no write at all since the document records the roles and AD groups it was built from.
+ * Stale documents are rebuilt on their next read, or in bulk by a rebuild. A build first marks the document, creating
+ * it if missing, as building, which every invalidation also matches, and only replaces it if its version is still
+ * the one it marked, so an invalidation racing with it is never lost, not even for a user's first document.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class UserEntitlementService {
+
+    private static final FindAndModifyOptions UPSERT_RETURN_NEW = FindAndModifyOptions.options().upsert(true).returnNew(true);
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+
+    /**
+     * Returns the user's materialized entitlements, rebuilding them with {@code resolver} if missing or stale.
+     */
+    public Mono<UserEntitlement> getOrBuild(User user, Function<User, Mono<RolesAndResourcesDto>> resolver) {
+        return reactiveMongoTemplate.findById(user.getStaffId(), UserEntitlement.class)
+                .flatMap(existing -> existing.isCurrentFor(user) ? Mono.just(existing) : build(user, resolver))
+                .switchIfEmpty(Mono.defer(() -> build(user, resolver)));
+    }
+
+    /**
+     * Rebuilds the user's entitlements unconditionally.
+     */
+    public Mono<UserEntitlement> rebuild(User user, Function<User, Mono<RolesAndResourcesDto>> resolver) {
+        return build(user, resolver);
+    }
+
+    /**
+     * Marks the entitlements of every holder of the role as stale.
+     *
+     * @return the number of documents invalidated
+     */
+    public Mono<Long> invalidateRole(String roleId) {
+        return invalidate(where("roleIds").is(roleId), "role", roleId);
+    }
+
+    /**
+     * Marks the entitlements of every user holding a role that references the resource as stale.
+     *
+     * @return the number of documents invalidated
+     */
+    public Mono<Long> invalidateResource(String resourceId) {
+        return invalidate(where("resourceIds").is(resourceId), "resource", resourceId);
+    }
+
+    /**
+     * @return staffIds of documents invalidated by a role or resource change, or built by an older schema.
+     * Changes to a user's own roles or AD groups are only detected when the user is read or rebuilt.
+     */
+    public Flux<String> findStaleStaffIds() {
+        Query query = query(new Criteria().orOperator(
+                Criteria.expr(ComparisonOperators.valueOf("version").notEqualTo("builtVersion")),
+                where("schemaVersion").ne(UserEntitlement.SCHEMA_VERSION)));
+        query.fields().include("_id");
+        return reactiveMongoTemplate.find(query, UserEntitlement.class).map(UserEntitlement::getStaffId);
+    }
+
+    private Mono<Long> invalidate(Criteria criteria, String kind, String id) {
+        Query affected = query(new Criteria().orOperator(criteria, where("building").is(true)));
+        return reactiveMongoTemplate.updateMulti(affected, new Update().inc("version", 1), UserEntitlement.class)
+                .map(UpdateResult::getModifiedCount)
+                .doOnNext(count -> log.debug("Invalidated {} user entitlements after change to {} {}", count, kind, id));
+    }
+
+    private Mono<UserEntitlement> build(User user, Function<User, Mono<RolesAndResourcesDto>> resolver) {
+        return markBuilding(user.getStaffId())
+                .flatMap(marked -> resolver.apply(user)
+                        .map(rolesAndResources -> toEntitlement(user, marked.getVersion(), rolesAndResources)))
+                .flatMap(entitlement -> store(entitlement).thenReturn(entitlement));
+    }
+
+    /**
+     * Marks the document as building, inserting a stale placeholder if missing, so changes made while its content
+     * is resolved invalidate it.
+     *
+     * @return the marked document, whose version the built content is stored at
+     */
+    private Mono<UserEntitlement> markBuilding(String staffId) {
+        Mono<UserEntitlement> mark = Mono.defer(() -> reactiveMongoTemplate.findAndModify(query(where("_id").is(staffId)),
+                new Update().set("building", true).setOnInsert("version", 0L).setOnInsert("builtVersion", -1L),
+                UPSERT_RETURN_NEW, UserEntitlement.class));
+        // A concurrent build inserted the placeholder first; the retry marks it
+        return mark.onErrorResume(DuplicateKeyException.class, e -> mark);
+    }
+
+    private Mono<Void> store(UserEntitlement entitlement) {
+        // Matches only if nothing invalidated the document since it was read; otherwise the upsert collides on _id
+        Query expected = query(where("_id").is(entitlement.getStaffId()).and("version").is(entitlement.getVersion()));
+        return reactiveMongoTemplate.findAndReplace(expected, entitlement, FindAndReplaceOptions.options().upsert())
+                .onErrorResume(DuplicateKeyException.class, e -> {
+                    log.debug("User entitlements of '{}' changed while rebuilding, leaving them stale", entitlement.getStaffId());
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static UserEntitlement toEntitlement(User user, long version, RolesAndResourcesDto rolesAndResources) {
+        List<Role> roles = Objects.requireNonNullElse(rolesAndResources.getRoles(), Collections.emptyList());
+        List<Resource> resources = Objects.requireNonNullElse(rolesAndResources.getResources(), Collections.emptyList());
+        return UserEntitlement.builder()
+                .staffId(user.getStaffId())
+                .roleIds(user.getRoleIds())
+                .adGroups(user.getAdGroups())
+                .resourceIds(roles.stream()
+                        .filter(role -> !CollectionUtils.isEmpty(role.getResourceIds()))
+                        .flatMap(role -> role.getResourceIds().stream())
+                        .distinct()
+                        .toList())
+                .roles(roles)
+                .resources(resources.stream().map(UserEntitlementService::toUserResourceDto).toList())
+                .version(version)
+                .builtVersion(version)
+                .schemaVersion(UserEntitlement.SCHEMA_VERSION)
+                .builtAt(new Date())
+                .build();
+    }
+
+    static UserResourceDto toUserResourceDto(Resource resource) {
+        UserResourceDto dto = new UserResourceDto();
+        dto.setId(resource.getId());
+        dto.setName(resource.getName());
+        dto.setPermission(resource.getPermission());
+        dto.setType(resource.getType());
+        dto.setDescription(resource.getDescription());
+        return dto;
+    }
+}
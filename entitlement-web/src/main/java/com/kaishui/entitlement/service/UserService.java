@@ -1,22 +1,31 @@
 package com.kaishui.entitlement.service;
 
-import com.kaishui.entitlement.entity.GroupDefaultRole;
 import com.kaishui.entitlement.entity.Resource;
 import com.kaishui.entitlement.entity.Role;
 import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.NextLevelUserRowDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
+import com.kaishui.entitlement.entity.dto.RolesAndResourcesDto;
 import com.kaishui.entitlement.entity.dto.UserDto;
 import com.kaishui.entitlement.entity.dto.UserResourceDto;
 import com.kaishui.entitlement.exception.CommonException;
+import com.kaishui.entitlement.exception.ConflictException;
 import com.kaishui.entitlement.exception.ResourceNotFoundException;
-import com.kaishui.entitlement.repository.GroupDefaultRoleRepository;
-import com.kaishui.entitlement.repository.ResourceRepository;
 import com.kaishui.entitlement.repository.RoleRepository;
 import com.kaishui.entitlement.repository.UserRepository;
 import com.kaishui.entitlement.util.AdGroupUtil;
 import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.KeysetCursor;
+import com.kaishui.entitlement.util.PartialUpdate;
 import com.kaishui.entitlement.util.UserMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
@@ -25,9 +34,11 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 @Service
 @Slf4j
 @RequiredArgsConstructor
@@ -35,18 +46,50 @@ public class UserService {
 
     private final UserRepository userRepository;
     private final RoleRepository roleRepository;
-    private final ResourceRepository resourceRepository;
     private final AuthorizationUtil authorizationUtil;
     private final UserMapper userMapper;
     private final AdGroupUtil adGroupUtil;
+    private final PermissionDecisionCache permissionDecisionCache;
+    private final PermissionCheckerInterface permissionChecker;
+
+
+    private final GroupDefaultRoleTable groupDefaultRoleTable;
+    private final UserEntitlementService userEntitlementService;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final EntitlementCatalog entitlementCatalog;
 
+    private static final FindAndModifyOptions RETURN_NEW = FindAndModifyOptions.options().returnNew(true);
 
-    private final GroupDefaultRoleRepository groupDefaultRoleRepository;
+    private static final int REBUILD_BATCH_SIZE = 500;
+    private static final int REBUILD_CONCURRENCY = 16;
+    static final int NEXT_LEVEL_WINDOW_SIZE = 500;
+
+    // Serve roles and resources from the materialized userEntitlements collection instead of resolving per call
+    @Value("${entitlement.permission.read-model.enabled:true}")
+    private boolean readModelEnabled;
+
+    // queries: chained repository queries, aggregation: one server-side $lookup pipeline per user
+    @Value("${entitlement.permission.resolution:queries}")
+    private String resolution;
 
     public Flux<User> getAllUsers() {
         return userRepository.findAll();
     }
 
+    /**
+     * Returns one page of users in ascending id order, after the position encoded in {@code cursor}.
+     */
+    public Mono<PageDto<User>> getUsersPage(String cursor, int limit) {
+        return Mono.defer(() -> {
+            String afterId = KeysetCursor.decode(cursor);
+            Limit fetchLimit = Limit.of(limit + 1);
+            Flux<User> users = afterId == null
+                    ? userRepository.findAllByOrderByIdAsc(fetchLimit)
+                    : userRepository.findByIdGreaterThanOrderByIdAsc(afterId, fetchLimit);
+            return KeysetCursor.page(users, limit, User::getId);
+        });
+    }
+
     public Mono<User> getUserById(String id) {
         return userRepository.findById(id);
     }
@@ -54,13 +97,15 @@ public class UserService {
     @Transactional
     public Mono<User> createUser(User user) {
         log.info("Creating user: {}", user);
-        return userRepository.save(user);
+        return userRepository.save(user)
+                .flatMap(this::evictCachedDecisions);
     }
 
     /**
      * Updates an existing user's basic information based on staffId.
-     * Preserves fields like ID, creation details, roles, and first login status.
-     * Sets the updatedBy and lastModifiedDate fields.
+     * Only the provided fields are set, in one findAndModify on an active user, so concurrent updates of other
+     * fields are not lost. If {@code version} is provided, the update fails when the user changed since.
+     * Sets the lastModifiedBy and lastModifiedDate fields, unless nothing changed, in which case nothing is written.
      *
      * @param user User object containing the updated information and the staffId to match.
      * @return Mono emitting the updated User or an error if not found or inactive.
@@ -76,59 +121,52 @@ public class UserService {
         return Mono.deferContextual(contextView -> {
             String updatedByUsername = authorizationUtil.extractUsernameFromContext(contextView);
 
-            return userRepository.findByStaffId(user.getStaffId())
-                    .flatMap(existingUser -> { // Use flatMap for async operations
+            PartialUpdate changes = userInfoChanges(user);
+            Criteria updatable = where("staffId").is(user.getStaffId()).and("isActive").is(true);
+            if (user.getVersion() != null) {
+                updatable.and("version").is(user.getVersion());
+            }
+            Mono<User> updated = changes.isEmpty() ? Mono.empty()
+                    : reactiveMongoTemplate.findAndModify(changes.filter(updatable), changes.audited(updatedByUsername),
+                                    RETURN_NEW, User.class)
+                            .flatMap(this::evictCachedDecisions);
+
+            // No match: the user is missing, inactive, changed since it was read, or already up to date
+            return updated.switchIfEmpty(Mono.defer(() -> userRepository.findByStaffId(user.getStaffId())
+                    .flatMap(existingUser -> {
                         if (!existingUser.isActive()) {
                             log.warn("Attempted to update inactive user with staffId: {}", user.getStaffId());
-                            // Return Mono.error instead of throwing directly
                             return Mono.error(new CommonException("Cannot update inactive user with staffId: " + user.getStaffId()));
                         }
-
-                        mergeUserInfo(user, existingUser, updatedByUsername);
-                        log.info("Saving updated user data for staffId: {}", existingUser.getStaffId());
-                        return userRepository.save(existingUser); // Save the modified existingUser
+                        if (user.getVersion() != null && !user.getVersion().equals(existingUser.getVersion())) {
+                            return Mono.error(new ConflictException("User with staffId " + user.getStaffId()
+                                    + " was modified concurrently, expected version " + user.getVersion()
+                                    + " but found " + existingUser.getVersion()));
+                        }
+                        log.info("No changes to save for user with staffId: {}", user.getStaffId());
+                        return Mono.just(existingUser);
                     })
                     .switchIfEmpty(Mono.defer(() -> { // Use defer to create the error Mono lazily
                         // Handle case where user with staffId is not found
                         log.warn("User not found for update with staffId: {}", user.getStaffId());
                         return Mono.error(new CommonException("User not found for update with staffId: " + user.getStaffId()));
-                    }));
+                    }))));
         });
     }
 
-    private static void mergeUserInfo(User user, User existingUser, String updatedByUsername) {
-        // Update only the fields that should be updatable via this method
-        if (user.getUsername() != null && !user.getUsername().equals(existingUser.getUsername())) {
-            existingUser.setUsername(user.getUsername());
-        }
-        if (user.getEmail() != null && !user.getEmail().equals(existingUser.getEmail())) {
-            existingUser.setEmail(user.getEmail());
-        }
-        if (user.getDepartment() != null && !user.getDepartment().equals(existingUser.getDepartment())) {
-            existingUser.setDepartment(user.getDepartment());
-        }
-        if (user.getFunctionalManager() != null && !user.getFunctionalManager().equals(existingUser.getFunctionalManager())) {
-            existingUser.setFunctionalManager(user.getFunctionalManager());
-        }
-        if (user.getEntityManager() != null && !user.getEntityManager().equals(existingUser.getEntityManager())) {
-            existingUser.setEntityManager(user.getEntityManager());
-        }
-        if (user.getJobTitle() != null && !user.getJobTitle().equals(existingUser.getJobTitle())) {
-            existingUser.setJobTitle(user.getJobTitle());
-        }
-        // Decide if adGroups should be updatable via this method
-//                         if (user.getAdGroups() != null && !user.getAdGroups().equals(existingUser.getAdGroups())) {
-//                            existingUser.setAdGroups(user.getAdGroups());
-//                            changed = true;
-//                         }
-
-        // If changes were made, update audit fields and save
-        existingUser.setLastModifiedDate(new Date());
-        existingUser.setLastModifiedBy(updatedByUsername); // Set the user who performed the update
+    private static PartialUpdate userInfoChanges(User user) {
+        // Only the fields that should be updatable via this method; adGroups come from the AD sync
+        return new PartialUpdate()
+                .set("username", user.getUsername())
+                .set("email", user.getEmail())
+                .set("department", user.getDepartment())
+                .set("functionalManager", user.getFunctionalManager())
+                .set("entityManager", user.getEntityManager())
+                .set("jobTitle", user.getJobTitle());
     }
 
     /**
-     * Deletes a user (soft delete by setting isActive=false).
+     * Deletes a user (soft delete by setting isActive=false) with one findAndModify on the active user.
      *
      * @param id The ID (String) of the user to delete.
      * @return Mono<Void> indicating completion or error.
@@ -140,81 +178,40 @@ public class UserService {
         return Mono.deferContextual(contextView -> {
             String deletedByUsername = authorizationUtil.extractUsernameFromContext(contextView);
 
-            // Find the user by ID (assuming repository uses String ID)
-            return userRepository.findById(id)
-                    .flatMap(user -> {
-                        // Check if already inactive
-                        if (!user.isActive()) {
-                            log.info("User with id: {} is already inactive.", id);
-                            return Mono.empty(); // Nothing to do, complete successfully
-                        }
-                        // Set inactive and update audit fields
-                        user.setActive(false);
-                        user.setLastModifiedBy(deletedByUsername);
-                        user.setLastModifiedDate(new Date());
-                        log.info("Setting user with id: {} to inactive.", id);
-                        // Save the updated user
-                        return userRepository.save(user);
-                    })
-                    // Handle case where user is not found
-                    .switchIfEmpty(Mono.defer(() -> {
-                        log.warn("User not found for deletion with id: {}", id);
-                        return Mono.error(new CommonException("User not found for deletion with id: " + id));
-                    }))
+            Update deactivate = new PartialUpdate().set("isActive", false).audited(deletedByUsername);
+            return reactiveMongoTemplate.findAndModify(query(where("id").is(id).and("isActive").is(true)), deactivate, User.class)
+                    .doOnNext(user -> log.info("Set user with id: {} to inactive.", id))
+                    .flatMap(this::evictCachedDecisions)
+                    // No match: the user is missing or already inactive
+                    .switchIfEmpty(Mono.defer(() -> userRepository.findById(id)
+                            .doOnNext(user -> log.info("User with id: {} is already inactive.", id))
+                            .switchIfEmpty(Mono.defer(() -> {
+                                log.warn("User not found for deletion with id: {}", id);
+                                return Mono.error(new CommonException("User not found for deletion with id: " + id));
+                            }))))
                     // Ensure the final result is Mono<Void>
                     .then();
         });
     }
 
-    public Mono<User> processFirstLogin(User user) {
-        if (!user.isFirstLogin()) {
-            return Mono.just(user); // Not first login, do nothing
-        }
-
-        return groupDefaultRoleRepository.findByGroupNameIn(user.getAdGroups())
-                .map(GroupDefaultRole::getRoleIds)
-                .collectList()
-                .map(lists -> lists.stream().flatMap(List::stream).distinct().toList())
-                .flatMap(roleIds -> {
-                    user.setRoleIds(roleIds);
-                    user.setFirstLogin(false);
-                    return userRepository.save(user);
-                });
+    /**
+     * @return the distinct default role ids of the given AD groups, assigned to a user on first login
+     */
+    public Mono<List<String>> defaultRoleIds(List<String> adGroups) {
+        return groupDefaultRoleTable.defaultRoleIds(adGroups);
     }
 
-    @Transactional
-    public Mono<User> insertOrUpdateUser(User user) {
-        log.info("Inserting or updating user: {}", user);
-        return userRepository.findByStaffId(user.getStaffId())
-                .flatMap(existingUser -> {
-                    if (!existingUser.isActive()) {
-                        return Mono.error(new CommonException("Cannot update inactive user with staffId: " + user.getStaffId()));
-                    }
-                    // Update existing user's fields
-                    User updatedUser = User.builder()
-                            .id(existingUser.getId())
-                            .username(user.getUsername())
-                            .staffId(existingUser.getStaffId())
-                            .email(user.getEmail())
-                            .department(user.getDepartment())
-                            .functionalManager(user.getFunctionalManager())
-                            .entityManager(user.getEntityManager())
-                            .jobTitle(user.getJobTitle())
-                            .isActive(existingUser.isActive())
-                            .createdBy(existingUser.getCreatedBy())
-                            .lastModifiedBy(user.getLastModifiedBy())
-                            .createdDate(existingUser.getCreatedDate())
-                            .lastModifiedDate(user.getLastModifiedDate())
-                            .adGroups(user.getAdGroups())
-                            .roleIds(existingUser.getRoleIds())
-                            .isFirstLogin(existingUser.isFirstLogin())
-                            .build();
-                    return userRepository.save(updatedUser);
-                })
-                .switchIfEmpty(Mono.defer(() -> {
-                    // Insert new user
-                    return userRepository.save(user);
-                }));
+    /**
+     * Drops the user's cached permission decisions after their roles, AD groups or status may have changed, once
+     * the permission checker sees the change.
+     */
+    private Mono<User> evictCachedDecisions(User user) {
+        if (user.getStaffId() == null) {
+            return Mono.just(user); // Nothing can be cached for it
+        }
+        return permissionChecker.refreshUsers(List.of(user.getStaffId()))
+                .then(Mono.fromRunnable(() -> permissionDecisionCache.evictUser(user.getStaffId())))
+                .thenReturn(user);
     }
 
     public Mono<UserDto> getRolesAndPermissions(String staffId) {
@@ -227,87 +224,116 @@ public class UserService {
     }
 
     public Mono<UserDto> getRolesAndPermissionsByUser(User user) {
+        if (readModelEnabled) {
+            // One _id lookup on userEntitlements; resolved and stored only when missing or stale
+            return userEntitlementService.getOrBuild(user, this::queryRolesAndResources)
+                    .map(entitlement -> toUserDto(user, entitlement.getRoles(), entitlement.getResources()));
+        }
+        if (CollectionUtils.isEmpty(user.getRoleIds())) {
+            log.debug("User '{}' has no roles, skipping role and resource fetch.", user.getStaffId());
+            return Mono.just(userMapper.toDto(user));
+        }
+        return resolveRolesAndResources(user)
+                .map(rolesAndResources -> toUserDto(user, rolesAndResources.getRoles(),
+                        rolesAndResources.getResources().stream()
+                                .map(UserEntitlementService::toUserResourceDto)
+                                .collect(Collectors.toList())));
+    }
+
+    /**
+     * Rebuilds the materialized entitlements of every user, or only of those invalidated by role or resource changes.
+     *
+     * @return the number of users rebuilt
+     */
+    public Mono<Long> rebuildEntitlements(boolean staleOnly) {
+        Flux<User> users = staleOnly
+                ? userEntitlementService.findStaleStaffIds()
+                        .buffer(REBUILD_BATCH_SIZE)
+                        .concatMap(userRepository::findByStaffIdIn)
+                : userRepository.findAll();
+        return users
+                .flatMap(user -> userEntitlementService.rebuild(user, this::queryRolesAndResources), REBUILD_CONCURRENCY)
+                .count()
+                .doOnSuccess(count -> log.info("Rebuilt entitlements of {} users (staleOnly={})", count, staleOnly));
+    }
+
+    /**
+     * Resolves the user's active roles and the active resources of those roles visible to the user's AD groups.
+     */
+    private Mono<RolesAndResourcesDto> resolveRolesAndResources(User user) {
         // Get user's AD groups early
         List<String> userAdGroups = user.getAdGroups();
-        if (CollectionUtils.isEmpty(userAdGroups) || CollectionUtils.isEmpty(user.getRoleIds())) {
+        if (CollectionUtils.isEmpty(user.getRoleIds())) {
+            return Mono.just(new RolesAndResourcesDto(Collections.emptyList(), Collections.emptyList()));
+        }
+        if (CollectionUtils.isEmpty(userAdGroups)) {
             // Optimization: If user has no AD groups, they can't match any resource AD groups.
             // Return user with roles but empty resources immediately.
-            log.debug("User '{}' has no AD groups / roles, skipping resource fetch.", user.getStaffId());
-            if (CollectionUtils.isEmpty(user.getRoleIds())) {
-                return Mono.just(userMapper.toDto(user));
-            }
-            return roleRepository.findAllById(user.getRoleIds()).collectList()
-                    .map(roles -> {
-                        UserDto userDto = userMapper.toDto(user);
-                        userDto.setRoles(roles);
-                        userDto.setResources(Collections.emptyList()); // No resources possible
-                        return userDto;
-                    });
+            log.debug("User '{}' has no AD groups, skipping resource fetch.", user.getStaffId());
+            return entitlementCatalog.activeRoles(user.getRoleIds()).collectList()
+                    .map(roles -> new RolesAndResourcesDto(roles, Collections.emptyList())); // No resources possible
+        }
+        if ("aggregation".equalsIgnoreCase(resolution)) {
+            // Active roles and their AD-group-filtered resources resolved server-side in one command
+            return roleRepository.findRolesAndAccessibleResources(user.getRoleIds(), userAdGroups)
+                    .defaultIfEmpty(new RolesAndResourcesDto(Collections.emptyList(), Collections.emptyList()));
         }
-        // 1. Fetch all active roles for the user
-        Mono<List<Role>> rolesMono = roleRepository.findAllByIdAndIsActive(user.getRoleIds(), true)
-                .collectList();
-
-        // 2. Collect unique resource IDs and fetch *filtered* resources in one go
-        Mono<List<Resource>> accessibleResourcesMono = rolesMono.flatMap(roles -> {
-            List<String> uniqueResourceIds = roles.stream()
-                    .filter(role -> !CollectionUtils.isEmpty(role.getResourceIds()))
-                    .flatMap(role -> role.getResourceIds().stream())
-                    .distinct()
-                    .collect(Collectors.toList());
-
-            if (uniqueResourceIds.isEmpty()) {
-                log.debug("User '{}' roles have no associated resource IDs.", user.getStaffId());
-                return Mono.just(Collections.<Resource>emptyList());
-            }
-
-            log.debug("Fetching accessible resources for user '{}' with IDs: {} and AD Groups: {}",
-                    user.getStaffId(), uniqueResourceIds, userAdGroups);
 
-            return resourceRepository.findAllByIdInAndIsActiveAndAdGroupsIn(
-                            uniqueResourceIds,
-                            true,
-                            userAdGroups
-                    )
-                    .collectList();
-        });
+        // 1. Look up the user's active roles, then 2. only their resources visible to the user's AD groups, in the catalog
+        return entitlementCatalog.activeRoles(user.getRoleIds())
+                .collectList()
+                .flatMap(roles -> findAccessibleResources(user, roles)
+                        .map(resources -> new RolesAndResourcesDto(roles, resources))); // Resources are already filtered by the catalog
+    }
 
-        // 3. Zip roles and the *already filtered* resources
-        return Mono.zip(rolesMono, accessibleResourcesMono)
-                .map(tuple -> {
-                    UserDto userDto = userMapper.toDto(user); // Map user entity
-                    List<Role> roles = tuple.getT1();
-                    List<Resource> accessibleResources = tuple.getT2(); // These are already filtered by DB
+    /**
+     * Resolves like {@link #resolveRolesAndResources}, but always from MongoDB, for the read model: the catalog of
+     * this or another instance may not have seen a role or resource change yet, and a document built from it would
+     * be stored as current.
+     */
+    private Mono<RolesAndResourcesDto> queryRolesAndResources(User user) {
+        if (CollectionUtils.isEmpty(user.getRoleIds())) {
+            return Mono.just(new RolesAndResourcesDto(Collections.emptyList(), Collections.emptyList()));
+        }
+        if (CollectionUtils.isEmpty(user.getAdGroups())) {
+            return roleRepository.findAllByIdAndIsActive(user.getRoleIds(), true).collectList()
+                    .map(roles -> new RolesAndResourcesDto(roles, Collections.emptyList())); // No resources possible
+        }
+        return roleRepository.findRolesAndAccessibleResources(user.getRoleIds(), user.getAdGroups())
+                .defaultIfEmpty(new RolesAndResourcesDto(Collections.emptyList(), Collections.emptyList()));
+    }
 
-                    userDto.setRoles(roles); // Set the fetched roles
+    private Mono<List<Resource>> findAccessibleResources(User user, List<Role> roles) {
+        List<String> uniqueResourceIds = roles.stream()
+                .filter(role -> !CollectionUtils.isEmpty(role.getResourceIds()))
+                .flatMap(role -> role.getResourceIds().stream())
+                .distinct()
+                .collect(Collectors.toList());
 
-                    // 4. Map the filtered Resource entities to UserResourceDto
-                    List<UserResourceDto> accessibleResourceDtos = accessibleResources.stream()
-                            .map(this::mapToUserResourceDto) // Use your existing mapping helper
-                            .collect(Collectors.toList());
+        if (uniqueResourceIds.isEmpty()) {
+            log.debug("User '{}' roles have no associated resource IDs.", user.getStaffId());
+            return Mono.just(Collections.emptyList());
+        }
 
-                    if (log.isDebugEnabled()) {
-                        log.debug("User '{}' AD Groups: {}. Roles found: {}. Accessible Resources (from DB query): {}",
-                                user.getStaffId(), userAdGroups, roles.stream().map(Role::getId).collect(Collectors.toList()),
-                                accessibleResourceDtos.stream().map(UserResourceDto::getId).collect(Collectors.toList()));
-                    }
+        log.debug("Fetching accessible resources for user '{}' with IDs: {} and AD Groups: {}",
+                user.getStaffId(), uniqueResourceIds, user.getAdGroups());
 
-                    userDto.setResources(accessibleResourceDtos); // Set the filtered & mapped resources
-                    return userDto;
-                });
+        return entitlementCatalog.accessibleResources(uniqueResourceIds, user.getAdGroups())
+                .collectList();
     }
 
-    private UserResourceDto mapToUserResourceDto(Resource resource) {
-        if (resource == null) {
-            return null;
+    private UserDto toUserDto(User user, List<Role> roles, List<UserResourceDto> accessibleResourceDtos) {
+        UserDto userDto = userMapper.toDto(user); // Map user entity
+        userDto.setRoles(roles); // Set the fetched roles
+
+        if (log.isDebugEnabled()) {
+            log.debug("User '{}' AD Groups: {}. Roles found: {}. Accessible Resources: {}",
+                    user.getStaffId(), user.getAdGroups(), roles.stream().map(Role::getId).collect(Collectors.toList()),
+                    accessibleResourceDtos.stream().map(UserResourceDto::getId).collect(Collectors.toList()));
         }
-        UserResourceDto dto = new UserResourceDto();
-        dto.setId(resource.getId());
-        dto.setName(resource.getName());
-        dto.setPermission(resource.getPermission());
-        dto.setType(resource.getType());
-        dto.setDescription(resource.getDescription());
-        return dto;
+
+        userDto.setResources(accessibleResourceDtos); // Set the filtered & mapped resources
+        return userDto;
     }
 
 
@@ -327,16 +353,17 @@ public class UserService {
                     //1. if user has this userCase admin AD group, return all user case role
                     if (adGroupUtil.isAdmin(user.getAdGroups(), userCase)) {
                         log.info("User '{}' has admin AD group for userCase '{}', returning all user case roles", staffId, userCase);
-                        return roleRepository.findAllByUserCaseAndIsActive(userCase, true);
+                        return entitlementCatalog.activeRolesOfUserCase(userCase);
                     }
-                    return roleRepository.findAllByIdsAndUserCaseAndIsActive(roleIds, userCase, true);
+                    return entitlementCatalog.activeRolesOfUserCase(roleIds, userCase);
                 });
     }
 
     /**
      * Finds users belonging to the 'next level' AD group relative to the requesting user,
      * for a specific user case, and populates their DTOs with relevant roles for that case.
-     * Optimized to fetch roles in a single batch query.
+     * Users are streamed in windows of {@value #NEXT_LEVEL_WINDOW_SIZE}, fetching per window only the roles
+     * not fetched for an earlier window, so memory stays bounded however large the group is.
      * <p>
      * 1. If requesting user is Admin -> find Managers
      * 2. If requesting user is Manager -> find Users
@@ -347,75 +374,107 @@ public class UserService {
      * @return Flux emitting UserDto objects for the found 'next level' users, populated with their roles for the given userCase.
      */
     public Flux<UserDto> getNextLevelUser(String userCase, String staffId) {
+        return nextLevelUserWindows(userCase, staffId)
+                .concatMapIterable(window -> window.users().stream()
+                        .map(targetUser -> {
+                            UserDto dto = userMapper.toDto(targetUser);
+                            dto.setRoles(userCaseRoleIds(targetUser, window.roles()).stream()
+                                    .map(window.roles()::get)
+                                    .collect(Collectors.toList()));
+                            return dto;
+                        })
+                        .toList());
+    }
+
+    /**
+     * Same users as {@link #getNextLevelUser}, but each role of the user case is sent once, as its own row before
+     * the first user holding it, and user rows only reference their roles by id.
+     */
+    public Flux<NextLevelUserRowDto> getNextLevelUserRows(String userCase, String staffId) {
+        return nextLevelUserWindows(userCase, staffId)
+                .concatMapIterable(window -> {
+                    List<NextLevelUserRowDto> rows = new ArrayList<>(window.newRoles().size() + window.users().size());
+                    window.newRoles().forEach(role -> rows.add(NextLevelUserRowDto.ofRole(role)));
+                    window.users().forEach(targetUser ->
+                            rows.add(NextLevelUserRowDto.ofUser(userMapper.toDto(targetUser), userCaseRoleIds(targetUser, window.roles()))));
+                    return rows;
+                });
+    }
+
+    /**
+     * A window of next level users with the user case roles they hold, an immutable copy, of which {@code newRoles}
+     * were fetched for this window.
+     */
+    private record NextLevelWindow(List<User> users, Map<String, Role> roles, List<Role> newRoles) {
+    }
+
+    private Flux<NextLevelWindow> nextLevelUserWindows(String userCase, String staffId) {
         // 1. Find the requesting user
         return userRepository.findByStaffId(staffId)
                 .switchIfEmpty(Mono.defer(() -> {
                     log.warn("Requesting user not found for getNextLevelUser with staffId: {}", staffId);
                     return Mono.empty(); // Return empty if requesting user not found
                 }))
-                .flatMap(requestingUser -> {
+                .flatMapMany(requestingUser -> {
                     // 2. Determine the target AD group
                     String nextLevelADGroup = adGroupUtil.getNextLevelADGroup(userCase, requestingUser.getAdGroups());
 
                     if (!StringUtils.hasText(nextLevelADGroup)) {
                         log.warn("Could not determine next level AD group for userCase '{}' and requesting user '{}'. Returning empty.",
                                 userCase, staffId);
-                        return Mono.just(Collections.<User>emptyList()); // Return empty list if no target group
+                        return Flux.empty(); // No target group
                     }
 
                     log.info("Requesting user '{}' triggers search for users in AD group '{}' for userCase '{}'",
                             staffId, nextLevelADGroup, userCase);
 
-                    // 3. Find all active users belonging to the target AD group and collect them
-                    return userRepository.findByAdGroupAndIsActive(nextLevelADGroup, true).collectList();
-                })
-                .flatMapMany(targetUsers -> {
-                    if (targetUsers.isEmpty()) {
-                        return Flux.empty(); // No target users found
-                    }
+                    // Per request, only touched by the concatMap below, which prepares one window at a time. Windows
+                    // are read downstream while the next is prepared, so each gets its own copy of the roles it needs.
+                    Map<String, Role> roles = new HashMap<>();
+                    Set<String> fetchedRoleIds = new HashSet<>();
+
+                    // 3. Stream the active users of the target AD group, 4. fetching the roles new to each window
+                    return userRepository.findByAdGroupAndIsActive(nextLevelADGroup, true)
+                            .buffer(NEXT_LEVEL_WINDOW_SIZE)
+                            .concatMap(users -> fetchNewUserCaseRoles(users, userCase, fetchedRoleIds)
+                                    .map(newRoles -> {
+                                        newRoles.forEach(role -> roles.put(role.getId(), role));
+                                        return new NextLevelWindow(users, rolesOf(users, roles), newRoles);
+                                    }));
+                });
+    }
 
-                    // 4. Extract all unique role IDs from the target users
-                    Set<String> uniqueRoleIds = targetUsers.stream()
-                            .filter(u -> !CollectionUtils.isEmpty(u.getRoleIds()))
-                            .flatMap(u -> u.getRoleIds().stream())
-                            .collect(Collectors.toSet());
-
-                    // If no roles associated with any target user, map directly to DTOs with empty roles
-                    if (uniqueRoleIds.isEmpty()) {
-                        return Flux.fromIterable(targetUsers)
-                                .map(user -> {
-                                    UserDto dto = userMapper.toDto(user);
-                                    dto.setRoles(Collections.emptyList());
-                                    return dto;
-                                });
-                    }
+    private static Map<String, Role> rolesOf(List<User> users, Map<String, Role> roles) {
+        Map<String, Role> held = new HashMap<>();
+        for (User user : users) {
+            if (user.getRoleIds() != null) {
+                user.getRoleIds().stream().filter(roles::containsKey).forEach(roleId -> held.put(roleId, roles.get(roleId)));
+            }
+        }
+        return Map.copyOf(held);
+    }
 
-                    // 5. Fetch all relevant roles for the userCase in a single query
-                    Mono<Map<String, Role>> rolesMapMono = roleRepository.findAllByIdsAndUserCaseAndIsActive(
-                                    List.copyOf(uniqueRoleIds), // Convert Set to List for repository method
-                                    userCase,
-                                    true
-                            )
-                            .collectMap(Role::getId, Function.identity()); // Create a Map<RoleId, Role>
-
-                    // 6. Combine users and the roles map, then map to DTOs
-                    return rolesMapMono.flatMapMany(rolesMap ->
-                            Flux.fromIterable(targetUsers)
-                                    .map(targetUser -> {
-                                        UserDto dto = userMapper.toDto(targetUser);
-                                        List<Role> userSpecificRoles = Collections.emptyList();
-
-                                        // Filter the fetched roles based on the current user's roleIds
-                                        if (!CollectionUtils.isEmpty(targetUser.getRoleIds())) {
-                                            userSpecificRoles = targetUser.getRoleIds().stream()
-                                                    .map(rolesMap::get) // Look up role in the map
-                                                    .filter(java.util.Objects::nonNull) // Filter out roles not found (e.g., inactive or wrong userCase)
-                                                    .collect(Collectors.toList());
-                                        }
-                                        dto.setRoles(userSpecificRoles);
-                                        return dto;
-                                    })
-                    );
-                });
+    private Mono<List<Role>> fetchNewUserCaseRoles(List<User> users, String userCase, Set<String> fetchedRoleIds) {
+        Set<String> newRoleIds = users.stream()
+                .filter(u -> !CollectionUtils.isEmpty(u.getRoleIds()))
+                .flatMap(u -> u.getRoleIds().stream())
+                .filter(roleId -> !fetchedRoleIds.contains(roleId))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (newRoleIds.isEmpty()) {
+            return Mono.just(Collections.emptyList());
+        }
+        fetchedRoleIds.addAll(newRoleIds);
+        return entitlementCatalog.activeRolesOfUserCase(List.copyOf(newRoleIds), userCase)
+                .collectList();
+    }
+
+    /**
+     * @return ids of the user's roles found for the user case; others are inactive or of another user case
+     */
+    private static List<String> userCaseRoleIds(User user, Map<String, Role> roles) {
+        if (CollectionUtils.isEmpty(user.getRoleIds())) {
+            return Collections.emptyList();
+        }
+        return user.getRoleIds().stream().filter(roles::containsKey).toList();
     }
 }
\ No newline at end of file
@@ -0,0 +1,344 @@
+package com.kaishui.entitlement.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.UserSyncResultDto;
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Synchronizes users from an HR/AD feed in bulk.
+ * <p>
+ * Rows are read as a stream and handled in batches: each batch is sorted by staffId, diffed against the
+ * existing users read with one {@code $in} query, and only real changes are written with one unordered
+ * {@code bulkWrite}. New users, and existing users that never logged in, get their group default roles in
+ * the same write, as {@link LoginService} would on their first login.
+ * Inactive users are rejected, like {@link LoginService} does.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class UserSyncService {
+
+    static final int BATCH_SIZE = 1000;
+    static final int MAX_REPORTED_REJECTIONS = 100;
+
+    // CSV header names are the User fields; adGroups holds several groups separated by ';'
+    static final String CSV_LIST_SEPARATOR = ";";
+    static final Map<String, BiConsumer<User, String>> CSV_SETTERS = Map.of(
+            "staffId", User::setStaffId,
+            "username", User::setUsername,
+            "email", User::setEmail,
+            "department", User::setDepartment,
+            "functionalManager", User::setFunctionalManager,
+            "entityManager", User::setEntityManager,
+            "jobTitle", User::setJobTitle,
+            "adGroups", (user, value) -> user.setAdGroups(Arrays.stream(value.split(CSV_LIST_SEPARATOR))
+                    .map(String::trim)
+                    .filter(group -> !group.isEmpty())
+                    .toList()));
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final GroupDefaultRoleTable groupDefaultRoleTable;
+    private final AuthorizationUtil authorizationUtil;
+    private final PermissionCheckerInterface permissionChecker;
+    private final PermissionDecisionCache permissionDecisionCache;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * A parsed feed row: either a user or the reason it could not be parsed.
+     */
+    record Row(long line, User user, String error) {
+    }
+
+    /**
+     * Synchronizes users given as one JSON object per line.
+     */
+    public Mono<UserSyncResultDto> syncNdjson(Flux<String> lines) {
+        return sync(numbered(lines).map(line -> parseJson(line.getT1(), line.getT2())));
+    }
+
+    /**
+     * Synchronizes users given as CSV with a header line naming the columns, e.g.
+     * {@code staffId,username,email,department,jobTitle,adGroups}.
+     */
+    public Mono<UserSyncResultDto> syncCsv(Flux<String> lines) {
+        return sync(numbered(lines).switchOnFirst((first, rows) -> {
+            if (!first.hasValue()) {
+                return rows.thenMany(Flux.empty()); // Empty body, or an error to pass on
+            }
+            List<String> header = splitCsvLine(first.get().getT2()).stream().map(String::trim).toList();
+            if (!header.contains("staffId")) {
+                return Flux.error(new ServerWebInputException("CSV header must name a staffId column"));
+            }
+            return rows.skip(1).map(line -> parseCsv(line.getT1(), line.getT2(), header));
+        }));
+    }
+
+    private static Flux<Tuple2<Long, String>> numbered(Flux<String> lines) {
+        return lines.index((index, line) -> Tuples.of(index + 1, line))
+                .filter(line -> !line.getT2().isBlank());
+    }
+
+    private Mono<UserSyncResultDto> sync(Flux<Row> rows) {
+        return Mono.deferContextual(contextView -> {
+            String syncedBy = authorizationUtil.extractUsernameFromContext(contextView);
+            UserSyncResultDto result = new UserSyncResultDto();
+            return rows.buffer(BATCH_SIZE)
+                    .concatMap(batch -> syncBatch(batch, syncedBy, result)) // Batches update result one at a time
+                    .then(Mono.fromSupplier(() -> result))
+                    .doOnNext(done -> log.info("User sync by '{}': {} inserted, {} updated, {} unchanged, {} rejected",
+                            syncedBy, done.getInserted(), done.getUpdated(), done.getUnchanged(), done.getRejected()));
+        });
+    }
+
+    private Mono<Void> syncBatch(List<Row> batch, String syncedBy, UserSyncResultDto result) {
+        SortedMap<String, Row> incoming = new TreeMap<>();
+        for (Row row : batch) {
+            String error = row.error() != null ? row.error() : validate(row.user());
+            if (error != null) {
+                reject(result, row.line(), error);
+            } else if (incoming.putIfAbsent(row.user().getStaffId(), row) != null) {
+                reject(result, row.line(), "duplicate staffId " + row.user().getStaffId());
+            }
+        }
+        if (incoming.isEmpty()) {
+            return Mono.empty();
+        }
+        return reactiveMongoTemplate.find(query(where("staffId").in(incoming.keySet())).with(Sort.by("staffId")), User.class)
+                .collectMap(User::getStaffId)
+                .flatMap(existing -> defaultRoles(incoming.values(), existing)
+                        .flatMap(defaultRoles -> write(incoming, existing, defaultRoles, syncedBy, result)));
+    }
+
+    /**
+     * Resolves the default roles of the batch's users still to be provisioned from the in-memory
+     * {@link GroupDefaultRoleTable}, as a first login does.
+     *
+     * @return staffId -> default role ids
+     */
+    private Mono<Map<String, List<String>>> defaultRoles(Collection<Row> rows, Map<String, User> existing) {
+        return Flux.fromIterable(rows)
+                .map(Row::user)
+                .filter(user -> needsProvisioning(existing.get(user.getStaffId())))
+                .filter(user -> !CollectionUtils.isEmpty(user.getAdGroups()))
+                .concatMap(user -> groupDefaultRoleTable.defaultRoleIds(user.getAdGroups())
+                        .map(roleIds -> Tuples.of(user.getStaffId(), roleIds)))
+                .collectMap(Tuple2::getT1, Tuple2::getT2);
+    }
+
+    private Mono<Void> write(SortedMap<String, Row> incoming, Map<String, User> existing,
+                             Map<String, List<String>> defaultRoles, String syncedBy, UserSyncResultDto result) {
+        List<Consumer<ReactiveBulkOperations>> writes = new ArrayList<>();
+        List<Row> written = new ArrayList<>(); // Index of a write error -> row
+        Date now = new Date();
+        incoming.forEach((staffId, row) -> {
+            User user = row.user();
+            User current = existing.get(staffId);
+            if (current != null && !current.isActive()) {
+                reject(result, row.line(), "user " + staffId + " is inactive");
+                return;
+            }
+            Update update = current == null ? newUser(user, syncedBy, now) : changes(user, current);
+            if (needsProvisioning(current)) {
+                List<String> roleIds = defaultRoles.getOrDefault(staffId, Collections.emptyList());
+                update.set("roleIds", roleIds).set("defaultRoleIds", roleIds).set("isFirstLogin", false);
+            }
+            if (update.getUpdateObject().isEmpty()) {
+                result.setUnchanged(result.getUnchanged() + 1);
+                return;
+            }
+            update.set("lastModifiedBy", syncedBy).set("lastModifiedDate", now).inc("version", 1);
+            if (current == null) {
+                // An upsert, so a user inserted by a concurrent login is updated rather than duplicated
+                writes.add(bulkOps -> bulkOps.upsert(query(where("staffId").is(staffId)), update));
+            } else {
+                writes.add(bulkOps -> bulkOps.updateOne(query(where("staffId").is(staffId).and("isActive").is(true)), update));
+            }
+            written.add(row);
+        });
+        if (writes.isEmpty()) {
+            return Mono.empty();
+        }
+        List<String> staffIds = written.stream().map(row -> row.user().getStaffId()).toList();
+        ReactiveBulkOperations bulkOps = reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class);
+        writes.forEach(write -> write.accept(bulkOps));
+        return bulkOps.execute()
+                .doOnNext(bulkResult -> count(bulkResult, result))
+                .onErrorResume(e -> bulkWriteException(e) != null, e -> {
+                    MongoBulkWriteException bulkError = bulkWriteException(e);
+                    count(bulkError.getWriteResult(), result);
+                    for (BulkWriteError writeError : bulkError.getWriteErrors()) {
+                        reject(result, written.get(writeError.getIndex()).line(), writeError.getMessage());
+                    }
+                    return Mono.empty();
+                })
+                .then(Mono.defer(() -> permissionChecker.refreshUsers(staffIds)))
+                // Also on failure, since some of the writes may have been applied
+                .doOnTerminate(() -> permissionDecisionCache.evictUsers(staffIds));
+    }
+
+    private static Update newUser(User user, String syncedBy, Date now) {
+        Update update = new Update()
+                .setOnInsert("isActive", true)
+                .setOnInsert("createdBy", syncedBy)
+                .setOnInsert("createdDate", now);
+        setIfPresent(update, "username", user.getUsername());
+        setIfPresent(update, "email", user.getEmail());
+        setIfPresent(update, "department", user.getDepartment());
+        setIfPresent(update, "functionalManager", user.getFunctionalManager());
+        setIfPresent(update, "entityManager", user.getEntityManager());
+        setIfPresent(update, "jobTitle", user.getJobTitle());
+        setIfPresent(update, "adGroups", user.getAdGroups());
+        return update;
+    }
+
+    /**
+     * @return an update setting the fields the feed provides with a value different from the stored one
+     */
+    static Update changes(User user, User current) {
+        Update update = new Update();
+        setIfChanged(update, "username", user, current, User::getUsername);
+        setIfChanged(update, "email", user, current, User::getEmail);
+        setIfChanged(update, "department", user, current, User::getDepartment);
+        setIfChanged(update, "functionalManager", user, current, User::getFunctionalManager);
+        setIfChanged(update, "entityManager", user, current, User::getEntityManager);
+        setIfChanged(update, "jobTitle", user, current, User::getJobTitle);
+        // Group order carries no meaning, so a reordered list is not a change
+        if (user.getAdGroups() != null && (current.getAdGroups() == null
+                || !new HashSet<>(user.getAdGroups()).equals(new HashSet<>(current.getAdGroups())))) {
+            update.set("adGroups", user.getAdGroups());
+        }
+        return update;
+    }
+
+    private static <T> void setIfChanged(Update update, String field, User user, User current, Function<User, T> getter) {
+        T value = getter.apply(user);
+        if (value != null && !value.equals(getter.apply(current))) {
+            update.set(field, value);
+        }
+    }
+
+    private static void setIfPresent(Update update, String field, Object value) {
+        if (value != null) {
+            update.set(field, value);
+        }
+    }
+
+    private static boolean needsProvisioning(User current) {
+        return current == null || current.isFirstLogin();
+    }
+
+    private static void count(BulkWriteResult bulkResult, UserSyncResultDto result) {
+        result.setInserted(result.getInserted() + bulkResult.getUpserts().size());
+        result.setUpdated(result.getUpdated() + bulkResult.getModifiedCount());
+    }
+
+    private static MongoBulkWriteException bulkWriteException(Throwable e) {
+        // The template translates the driver exception, keeping it as the cause
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoBulkWriteException bulkWriteException) {
+                return bulkWriteException;
+            }
+        }
+        return null;
+    }
+
+    private static void reject(UserSyncResultDto result, long line, String reason) {
+        result.setRejected(result.getRejected() + 1);
+        if (result.getRejections().size() < MAX_REPORTED_REJECTIONS) {
+            result.getRejections().add("line " + line + ": " + reason);
+        }
+    }
+
+    private static String validate(User user) {
+        if (user.getStaffId() == null || user.getStaffId().isBlank()) {
+            return "staffId is required";
+        }
+        if (user.getUsername() == null || user.getUsername().isBlank()) {
+            return "username is required";
+        }
+        return null;
+    }
+
+    private Row parseJson(long line, String json) {
+        try {
+            return new Row(line, objectMapper.readValue(json, User.class), null);
+        } catch (JsonProcessingException e) {
+            return new Row(line, null, "invalid JSON: " + e.getOriginalMessage());
+        }
+    }
+
+    private static Row parseCsv(long line, String csv, List<String> header) {
+        List<String> values = splitCsvLine(csv);
+        if (values.size() != header.size()) {
+            return new Row(line, null, "expected " + header.size() + " columns but found " + values.size());
+        }
+        User user = new User();
+        for (int i = 0; i < header.size(); i++) {
+            BiConsumer<User, String> setter = CSV_SETTERS.get(header.get(i));
+            String value = values.get(i).trim();
+            if (setter != null && !value.isEmpty()) {
+                setter.accept(user, value);
+            }
+        }
+        return new Row(line, user, null);
+    }
+
+    /**
+     * Splits one CSV line on commas, honouring double-quoted fields with {@code ""} as an escaped quote.
+     * Quoted fields cannot span lines.
+     */
+    static List<String> splitCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,93 @@
+package com.kaishui.entitlement.util;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns AD group names to dense int ids so group sets can be stored as {@link AdGroupSet} bitsets
+ * and intersected with a word-level AND.
+ * <p>
+ * Names are matched exactly (case-sensitive), like {@code Collections.disjoint} and Mongo's {@code $in}.
+ * Ids are never reused, so a dictionary only grows: use one instance per data set that is replaced as a whole,
+ * e.g. a permission snapshot, never one that outlives the names it was fed. Thread-safe.
+ */
+public final class AdGroupDictionary {
+
+    private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * @return the id of the group, assigning a new one if the group has not been seen before.
+     */
+    public int intern(String adGroup) {
+        return idsByName.computeIfAbsent(adGroup, name -> nextId.getAndIncrement());
+    }
+
+    /**
+     * @return the id of the group, or -1 if it was never interned.
+     */
+    public int idOf(String adGroup) {
+        if (adGroup == null) {
+            return -1;
+        }
+        Integer id = idsByName.get(adGroup);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Interns every group and returns them as a bitset. Null names are ignored.
+     */
+    public AdGroupSet encode(Collection<String> adGroups) {
+        if (adGroups == null || adGroups.isEmpty()) {
+            return AdGroupSet.EMPTY;
+        }
+        int[] ids = new int[adGroups.size()];
+        int count = 0;
+        int maxId = -1;
+        for (String adGroup : adGroups) {
+            if (adGroup != null) {
+                int id = intern(adGroup);
+                ids[count++] = id;
+                maxId = Math.max(maxId, id);
+            }
+        }
+        if (count == 0) {
+            return AdGroupSet.EMPTY;
+        }
+        long[] words = new long[(maxId >>> 6) + 1];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            long bit = 1L << ids[i];
+            int word = ids[i] >>> 6;
+            if ((words[word] & bit) == 0) {
+                words[word] |= bit;
+                size++;
+            }
+        }
+        return new AdGroupSet(words, size);
+    }
+
+    /**
+     * Checks whether any of the named groups is in the set, without interning or allocating.
+     * Groups this dictionary has never seen cannot be in a set it built, so they are skipped.
+     */
+    public boolean intersects(AdGroupSet adGroupSet, Collection<String> adGroups) {
+        if (adGroupSet.isEmpty() || adGroups == null) {
+            return false;
+        }
+        for (String adGroup : adGroups) {
+            if (adGroupSet.contains(idOf(adGroup))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of interned groups.
+     */
+    public int size() {
+        return idsByName.size();
+    }
+}
@@ -0,0 +1,83 @@
+package com.kaishui.entitlement.util;
+
+import java.util.Arrays;
+
+/**
+ * Immutable bitset of AD group ids interned by an {@link AdGroupDictionary}.
+ * Intersection is a word-level AND instead of pairwise string comparisons.
+ * <p>
+ * Sets are only comparable when they were built by the same dictionary.
+ */
+public final class AdGroupSet {
+
+    public static final AdGroupSet EMPTY = new AdGroupSet(new long[0], 0);
+
+    private final long[] words;
+    private final int size;
+
+    AdGroupSet(long[] words, int size) {
+        this.words = words;
+        this.size = size;
+    }
+
+    /**
+     * @return true if both sets share at least one AD group.
+     */
+    public boolean intersects(AdGroupSet other) {
+        int common = Math.min(words.length, other.words.length);
+        for (int i = 0; i < common; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(int id) {
+        int word = id >>> 6;
+        return id >= 0 && word < words.length && (words[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return the number of AD groups in the set.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AdGroupSet other)) {
+            return false;
+        }
+        // Trailing zero words do not change the set
+        int common = Math.min(words.length, other.words.length);
+        for (int i = 0; i < common; i++) {
+            if (words[i] != other.words[i]) {
+                return false;
+            }
+        }
+        return size == other.size;
+    }
+
+    @Override
+    public int hashCode() {
+        int last = words.length;
+        while (last > 0 && words[last - 1] == 0) {
+            last--;
+        }
+        return Arrays.hashCode(Arrays.copyOf(words, last));
+    }
+
+    @Override
+    public String toString() {
+        return "AdGroupSet{size=" + size + "}";
+    }
+}
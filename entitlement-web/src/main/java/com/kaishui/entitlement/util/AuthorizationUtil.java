@@ -1,8 +1,11 @@
 package com.kaishui.entitlement.util;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
-import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.security.SecurityException; // Specific exception for key issues
 import lombok.extern.slf4j.Slf4j;
@@ -10,14 +13,18 @@ import org.springframework.beans.factory.annotation.Value; // For injecting the
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.stereotype.Component; // Keep as Component for injection
-import org.springframework.web.server.ServerWebExchange;
 import reactor.util.context.ContextView;
 
 import jakarta.annotation.PostConstruct; // For initializing the key
+import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.Date;
 import java.util.Optional;
 
 @Slf4j
@@ -32,13 +39,35 @@ public class AuthorizationUtil {
     @Value("${jwt.public.key}")
     private String rsaPublicKeyString;
 
+    // Claim carrying the staff id; tokens without it fall back to the subject
+    @Value("${jwt.claims.staff-id:staffId}")
+    private String staffIdClaim;
+
+    @Value("${jwt.cache.maximum-size:10000}")
+    private long claimsCacheMaximumSize;
+
+    // Used for tokens without an 'exp' claim, so they are still re-verified eventually
+    @Value("${jwt.cache.max-ttl:1h}")
+    private Duration claimsCacheMaxTtl;
+
     private PublicKey publicKey; // Hold the parsed public key
+    private JwtParser jwtParser; // Thread-safe, built once with the public key
+
+    // Verified claims keyed by token digest, each entry living until its token's 'exp'
+    private Cache<String, Claims> verifiedClaims;
 
     // Initialize the PublicKey after the bean is created
     @PostConstruct
     private void initPublicKey() {
+        this.verifiedClaims = Caffeine.newBuilder()
+                .maximumSize(claimsCacheMaximumSize)
+                .expireAfter(new TokenExpiry(claimsCacheMaxTtl))
+                .build();
         try {
             this.publicKey = loadPublicKey(rsaPublicKeyString);
+            this.jwtParser = Jwts.parser()
+                    .verifyWith(this.publicKey) // Specify the public key for verification
+                    .build();
             log.info("Successfully loaded JWT public key.");
         } catch (Exception e) {
             log.error("FATAL: Failed to load JWT public key. JWT validation will fail.", e);
@@ -47,58 +76,114 @@ public class AuthorizationUtil {
         }
     }
 
+    /**
+     * Returns the username of the {@link RequestPrincipal} resolved for the current request.
+     *
+     * @param contextView the Reactor context of the current request
+     * @return the username, or {@link #UNKNOWN_USER} outside an authenticated request
+     */
     public String extractUsernameFromContext(ContextView contextView) {
+        return RequestPrincipal.from(contextView)
+                .map(RequestPrincipal::username)
+                .orElseGet(() -> {
+                    log.debug("No request principal in Reactor Context for CreatedBy/UpdatedBy field.");
+                    return UNKNOWN_USER;
+                });
+    }
+
+    /**
+     * Returns the staff id of the {@link RequestPrincipal} resolved for the current request.
+     *
+     * @param contextView the Reactor context of the current request
+     * @return the staff id, or {@link #UNKNOWN_USER} outside an authenticated request
+     */
+    public String extractStaffIdFromContext(ContextView contextView) {
+        return RequestPrincipal.from(contextView)
+                .map(RequestPrincipal::staffId)
+                .filter(staffId -> !staffId.isBlank())
+                .orElse(UNKNOWN_USER);
+    }
+
+    /**
+     * Verifies the Bearer token of the request and builds its {@link RequestPrincipal}.
+     *
+     * @param request the current request
+     * @return the principal, or empty if the token is missing or invalid
+     */
+    public Optional<RequestPrincipal> resolvePrincipal(ServerHttpRequest request) {
         if (this.publicKey == null) {
             log.error("Public key is not loaded. Cannot validate JWT.");
-            return UNKNOWN_USER;
+            return Optional.empty();
         }
+        return verifiedClaims(request)
+                .filter(claims -> claims.getSubject() != null && !claims.getSubject().isBlank())
+                .map(claims -> new RequestPrincipal(claims.getSubject(), staffIdOf(claims), claims));
+    }
 
-        Optional<ServerWebExchange> exchangeOptional = contextView.getOrEmpty(ServerWebExchange.class);
-        if (exchangeOptional.isEmpty()) {
-            log.warn("ServerWebExchange not found in Reactor Context for CreatedBy/UpdatedBy field.");
+    /**
+     * Extracts the staff id from the verified Bearer token of the request, reading the configured
+     * staff id claim and falling back to the subject.
+     *
+     * @param request the current request
+     * @return the staff id, or {@link #UNKNOWN_USER} if the token is missing or invalid
+     */
+    public String getStaffIdFromToken(ServerHttpRequest request) {
+        if (this.publicKey == null) {
+            log.error("Public key is not loaded. Cannot validate JWT.");
             return UNKNOWN_USER;
         }
+        return verifiedClaims(request)
+                .map(this::staffIdOf)
+                .filter(staffId -> !staffId.isBlank())
+                .orElseGet(() -> {
+                    log.warn("JWT carries neither a '{}' nor a 'sub' claim.", staffIdClaim);
+                    return UNKNOWN_USER;
+                });
+    }
 
-        ServerHttpRequest request = exchangeOptional.get().getRequest();
-        HttpHeaders headers = request.getHeaders();
-        String authHeader = headers.getFirst(AUTHORIZATION_HEADER);
+    // Read as Object: identity providers may issue the staff id as a number, which get(name, String.class) rejects
+    private String staffIdOf(Claims claims) {
+        Object staffId = claims.get(staffIdClaim);
+        return staffId == null || staffId.toString().isBlank() ? claims.getSubject() : staffId.toString();
+    }
 
+    private Optional<Claims> verifiedClaims(ServerHttpRequest request) {
+        String authHeader = request.getHeaders().getFirst(AUTHORIZATION_HEADER);
         if (authHeader == null || !authHeader.startsWith(BEARER_PREFIX)) {
-            log.warn("Authorization header is missing, empty, or not a Bearer token.");
-            return UNKNOWN_USER;
+            log.debug("Authorization header is missing, empty, or not a Bearer token.");
+            return Optional.empty();
         }
-
         String token = authHeader.substring(BEARER_PREFIX.length());
 
+        // Verify the RSA signature at most once per token; failures are not cached
+        String digest = digest(token);
+        Claims cached = verifiedClaims.getIfPresent(digest);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
         try {
-            // Parse the token and verify signature using the public key
-            Jws<Claims> jws = Jwts.parser()
-                    .verifyWith(this.publicKey) // Specify the public key for verification
-                    .build()
-                    .parseSignedClaims(token); // Parse and verify
-
-            // Extract the subject claim (usually the username)
-            String username = jws.getPayload().getSubject();
-
-            if (username == null || username.isBlank()) {
-                log.warn("JWT 'sub' claim is missing or empty in the token.");
-                return UNKNOWN_USER;
-            }
-            log.debug("Extracted username '{}' from JWT token.", username);
-            return username;
-
+            Claims claims = jwtParser.parseSignedClaims(token).getPayload(); // Parse and verify
+            verifiedClaims.put(digest, claims);
+            return Optional.of(claims);
         } catch (SecurityException e) {
             // Specifically catch key-related issues if needed
             log.warn("JWT validation failed due to key issue: {}", e.getMessage());
-            return UNKNOWN_USER;
         } catch (JwtException e) {
             // Catches various JWT errors (expired, malformed, invalid signature etc.)
             log.warn("Failed to parse or verify JWT token: {}", e.getMessage());
-            return UNKNOWN_USER;
         } catch (Exception e) {
             // Catch unexpected errors
             log.error("Unexpected error occurred while processing JWT token.", e);
-            return UNKNOWN_USER;
+        }
+        return Optional.empty();
+    }
+
+    private static String digest(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Mandatory for every JRE
         }
     }
 
@@ -115,13 +200,27 @@ public class AuthorizationUtil {
         return keyFactory.generatePublic(keySpec);
     }
 
-    /**
-     * todo: replace this with real implementation
-     * @param request
-     * @return
-     */
-    public String getStaffIdFromToken(ServerHttpRequest request){
-        String authHeader = request.getHeaders().getFirst(AUTHORIZATION_HEADER);
-        return "12345";
+    // Keeps verified claims until the token expires, capped at maxTtl
+    private record TokenExpiry(Duration maxTtl) implements Expiry<String, Claims> {
+
+        @Override
+        public long expireAfterCreate(String digest, Claims claims, long currentTime) {
+            Date expiration = claims.getExpiration();
+            if (expiration == null) {
+                return maxTtl.toNanos();
+            }
+            long remainingMillis = expiration.getTime() - System.currentTimeMillis();
+            return Duration.ofMillis(Math.max(0, Math.min(maxTtl.toMillis(), remainingMillis))).toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(String digest, Claims claims, long currentTime, long currentDuration) {
+            return expireAfterCreate(digest, claims, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String digest, Claims claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.kaishui.entitlement.util;
+
+import com.kaishui.entitlement.entity.dto.PageDto;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Keyset pagination on {@code _id}: a page is the first {@code limit} documents with an id greater than the
+ * last id of the previous page, which the index answers directly however deep the page is.
+ * The last id travels to the client as an opaque cursor so its format can change without breaking clients.
+ * Listings sorted on another field carry that field's last value too, see {@link Position}.
+ */
+public final class KeysetCursor {
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private static final String PREFIX = "id:";
+    private static final String KEY_PREFIX = "key:";
+    private static final char SEPARATOR = '\u0000';
+
+    /**
+     * Position after the last item of a page sorted on {@code sortValue}, then on {@code id}.
+     * A null {@code sortValue} stands for a missing or null field, which Mongo sorts before every string.
+     */
+    public record Position(String sortValue, String id) {
+    }
+
+    private KeysetCursor() {
+    }
+
+    public static String encode(String lastId) {
+        return encode(PREFIX, lastId);
+    }
+
+    public static String encode(Position position) {
+        // A null sort value is encoded without a separator, so it cannot be confused with any string
+        return encode(KEY_PREFIX, position.sortValue() == null
+                ? position.id()
+                : position.id() + SEPARATOR + position.sortValue());
+    }
+
+    /**
+     * @return the id to continue after, or null to start from the first page
+     * @throws ServerWebInputException (400) if the cursor was not issued by {@link #encode(String)}
+     */
+    public static String decode(String cursor) {
+        return decode(cursor, PREFIX);
+    }
+
+    /**
+     * @return the position to continue after, or null to start from the first page
+     * @throws ServerWebInputException (400) if the cursor was not issued by {@link #encode(Position)}
+     */
+    public static Position decodePosition(String cursor) {
+        String payload = decode(cursor, KEY_PREFIX);
+        if (payload == null) {
+            return null;
+        }
+        int separator = payload.indexOf(SEPARATOR);
+        if (separator == 0) {
+            throw new ServerWebInputException("Invalid cursor: " + cursor);
+        }
+        if (separator < 0) {
+            return new Position(null, payload);
+        }
+        return new Position(payload.substring(separator + 1), payload.substring(0, separator));
+    }
+
+    private static String encode(String prefix, String payload) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((prefix + payload).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String cursor, String prefix) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (decoded.startsWith(prefix) && decoded.length() > prefix.length()) {
+                return decoded.substring(prefix.length());
+            }
+        } catch (IllegalArgumentException e) {
+            // Not Base64, rejected below
+        }
+        throw new ServerWebInputException("Invalid cursor: " + cursor);
+    }
+
+    /**
+     * Clamps a requested page size to [1, {@link #MAX_LIMIT}], defaulting to {@link #DEFAULT_LIMIT}.
+     */
+    public static int limit(Integer requested) {
+        if (requested == null) {
+            return DEFAULT_LIMIT;
+        }
+        return Math.max(1, Math.min(requested, MAX_LIMIT));
+    }
+
+    /**
+     * Builds a page from items in ascending id order after the cursor. Only {@code limit + 1} items are
+     * requested from {@code items}: the extra one tells whether another page follows.
+     */
+    public static <T> Mono<PageDto<T>> page(Flux<T> items, int limit, Function<T, String> idOf) {
+        return pageBy(items, limit, item -> encode(idOf.apply(item)));
+    }
+
+    /**
+     * Like {@link #page}, with the next cursor built by {@code cursorOf} from the last item of the page.
+     */
+    public static <T> Mono<PageDto<T>> pageBy(Flux<T> items, int limit, Function<T, String> cursorOf) {
+        return items.take(limit + 1L)
+                .collectList()
+                .map(fetched -> {
+                    if (fetched.size() <= limit) {
+                        return new PageDto<>(fetched, null);
+                    }
+                    List<T> pageItems = fetched.subList(0, limit);
+                    return new PageDto<>(pageItems, cursorOf.apply(pageItems.get(limit - 1)));
+                });
+    }
+}
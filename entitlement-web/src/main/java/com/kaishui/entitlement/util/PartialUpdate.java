@@ -0,0 +1,55 @@
+package com.kaishui.entitlement.util;
+
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * A {@code $set} of the fields a caller provided, for single round-trip {@code findAndModify} updates.
+ * <p>
+ * The filter only matches a document where at least one provided field differs, so an update that would change
+ * nothing writes nothing and the caller can tell it apart by reading the document on a miss. Every write bumps
+ * {@code version}, which callers can put in the filter to reject updates based on a stale read.
+ */
+public final class PartialUpdate {
+
+    private final Update update = new Update();
+    private final List<Criteria> differences = new ArrayList<>();
+
+    /**
+     * Sets {@code field} to {@code value}, unless the value is null (not provided).
+     */
+    public PartialUpdate set(String field, Object value) {
+        if (value != null) {
+            update.set(field, value);
+            differences.add(where(field).ne(value));
+        }
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return differences.isEmpty();
+    }
+
+    /**
+     * @return a query for documents matching {@code criteria} in which at least one provided field differs
+     */
+    public Query filter(Criteria criteria) {
+        return Query.query(criteria.orOperator(differences));
+    }
+
+    /**
+     * @return the {@code $set} of the provided fields, plus the audit fields and the version increment
+     */
+    public Update audited(String modifiedBy) {
+        return update.set("lastModifiedBy", modifiedBy)
+                .set("lastModifiedDate", new Date())
+                .inc("version", 1);
+    }
+}
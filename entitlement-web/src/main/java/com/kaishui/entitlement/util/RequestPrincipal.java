@@ -0,0 +1,21 @@
+package com.kaishui.entitlement.util;
+
+import io.jsonwebtoken.Claims;
+import reactor.util.context.ContextView;
+
+import java.util.Optional;
+
+/**
+ * The caller of the current request, resolved once from its verified JWT by
+ * {@link com.kaishui.entitlement.web.PrincipalContextFilter} and stored in the Reactor context under this class.
+ *
+ * @param username the token subject
+ * @param staffId  the staff id claim, or the subject if the token carries none
+ * @param claims   the verified claims
+ */
+public record RequestPrincipal(String username, String staffId, Claims claims) {
+
+    public static Optional<RequestPrincipal> from(ContextView contextView) {
+        return contextView.getOrEmpty(RequestPrincipal.class);
+    }
+}
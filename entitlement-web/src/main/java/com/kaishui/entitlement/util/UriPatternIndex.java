@@ -0,0 +1,323 @@
+package com.kaishui.entitlement.util;
+
+import org.springframework.util.StringUtils;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled index over many (method, uri pattern) rules that answers "does any rule match this request"
+ * in a single walk over the request URI's segments, instead of running {@code AntPathMatcher.match}
+ * once per rule.
+ * <p>
+ * Rules are stored in a segment trie (one per method, plus one for {@code "*"}). Literal segments are
+ * hash lookups, glob segments ({@code ?}, {@code *}, {@code {var}}, {@code {var:regex}}) are compiled once,
+ * and {@code **} nodes match zero or more segments. The URI semantics are the same as Spring's
+ * {@code AntPathMatcher} with default settings (including its trailing-slash rules); the method matches
+ * when the rule's method is {@code "*"} or equal ignoring case.
+ * <p>
+ * Instances are immutable and thread-safe once built.
+ *
+ * @param <T> the value attached to each rule, returned by {@link #findMatch}
+ */
+public final class UriPatternIndex<T> {
+
+    private static final String PATH_SEPARATOR = "/";
+    private static final String ANY_METHOD = "*";
+    private static final String DOUBLE_STAR = "**";
+
+    // Same glob syntax AntPathMatcher uses for a single path segment
+    private static final Pattern GLOB_PATTERN = Pattern.compile("\\?|\\*|\\{((?:\\{[^/]+?\\}|[^/{}]|\\\\[{}])+?)\\}");
+    private static final String DEFAULT_VARIABLE_PATTERN = "((?s).*)";
+
+    private final Map<String, Roots<T>> rootsByMethod;
+    private final Roots<T> anyMethodRoots;
+    private final int size;
+
+    private UriPatternIndex(Map<String, Roots<T>> rootsByMethod, Roots<T> anyMethodRoots, int size) {
+        this.rootsByMethod = rootsByMethod;
+        this.anyMethodRoots = anyMethodRoots;
+        this.size = size;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * @return true if at least one rule matches the method and URI.
+     */
+    public boolean matches(String httpMethod, String requestUri) {
+        return findMatch(httpMethod, requestUri) != null;
+    }
+
+    /**
+     * Returns the value of a rule matching the method and URI, or {@code null} if none does.
+     * When several rules match, which one is returned is unspecified.
+     */
+    public T findMatch(String httpMethod, String requestUri) {
+        if (requestUri == null || size == 0) {
+            return null;
+        }
+        boolean absolute = requestUri.startsWith(PATH_SEPARATOR);
+        String[] segments = tokenize(requestUri);
+        boolean trailingSlash = requestUri.endsWith(PATH_SEPARATOR);
+
+        T match = anyMethodRoots.root(absolute).match(segments, trailingSlash);
+        if (match == null && httpMethod != null) {
+            Roots<T> methodRoots = rootsByMethod.get(httpMethod);
+            if (methodRoots != null) {
+                match = methodRoots.root(absolute).match(segments, trailingSlash);
+            }
+        }
+        return match;
+    }
+
+    /**
+     * @return the number of rules in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static String[] tokenize(String path) {
+        return StringUtils.tokenizeToStringArray(path, PATH_SEPARATOR, false, true);
+    }
+
+    public static final class Builder<T> {
+
+        private final Map<String, Roots<T>> rootsByMethod = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final Roots<T> anyMethodRoots = new Roots<>();
+        // Compiled segment patterns are shared across all rules of the index
+        private final Map<String, Pattern> segmentPatterns = new HashMap<>();
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a rule. Rules with a null method or uri pattern are ignored.
+         *
+         * @param methodPattern HTTP method, or {@code "*"} for any method.
+         * @param uriPattern    Ant-style URI pattern, e.g. {@code /users/{id}/**}.
+         * @param value         Value returned by {@link UriPatternIndex#findMatch} when this rule matches.
+         */
+        public Builder<T> add(String methodPattern, String uriPattern, T value) {
+            if (methodPattern == null || uriPattern == null) {
+                return this;
+            }
+            Roots<T> roots = ANY_METHOD.equals(methodPattern)
+                    ? anyMethodRoots
+                    : rootsByMethod.computeIfAbsent(methodPattern, m -> new Roots<>());
+            insert(roots.root(uriPattern.startsWith(PATH_SEPARATOR)), uriPattern, value);
+            size++;
+            return this;
+        }
+
+        public UriPatternIndex<T> build() {
+            return new UriPatternIndex<>(rootsByMethod, anyMethodRoots, size);
+        }
+
+        private void insert(Node<T> root, String uriPattern, T value) {
+            String[] tokens = tokenize(uriPattern);
+            boolean hasDoubleStar = false;
+            for (String token : tokens) {
+                if (DOUBLE_STAR.equals(token)) {
+                    hasDoubleStar = true;
+                    break;
+                }
+            }
+
+            Node<T> parent = null;
+            Node<T> node = root;
+            for (String token : tokens) {
+                parent = node;
+                node = node.child(token, this::compileSegment);
+            }
+
+            if (hasDoubleStar && DOUBLE_STAR.equals(tokens[tokens.length - 1])) {
+                // A trailing ** makes the trailing slash irrelevant
+                node.acceptWithSlash(value);
+                node.acceptWithoutSlash(value);
+            } else if (uriPattern.endsWith(PATH_SEPARATOR)) {
+                node.acceptWithSlash(value);
+            } else {
+                node.acceptWithoutSlash(value);
+            }
+
+            // AntPathMatcher lets "/a/*" match "/a/": a final "*" may match nothing when the path ends with a slash
+            if (!hasDoubleStar && parent != null && "*".equals(tokens[tokens.length - 1])) {
+                parent.acceptWithSlash(value);
+            }
+        }
+
+        private Pattern compileSegment(String token) {
+            return segmentPatterns.computeIfAbsent(token, UriPatternIndex::toSegmentRegex);
+        }
+    }
+
+    /**
+     * Translates one glob segment to a regex the way AntPathMatcher does, or returns null for a literal segment.
+     */
+    private static Pattern toSegmentRegex(String token) {
+        Matcher matcher = GLOB_PATTERN.matcher(token);
+        StringBuilder regex = new StringBuilder();
+        int end = 0;
+        while (matcher.find()) {
+            regex.append(quote(token, end, matcher.start()));
+            String match = matcher.group();
+            if ("?".equals(match)) {
+                regex.append('.');
+            } else if ("*".equals(match)) {
+                regex.append(".*");
+            } else {
+                int colonIdx = match.indexOf(':');
+                if (colonIdx == -1) {
+                    regex.append(DEFAULT_VARIABLE_PATTERN);
+                } else {
+                    regex.append('(').append(match, colonIdx + 1, match.length() - 1).append(')');
+                }
+            }
+            end = matcher.end();
+        }
+        if (end == 0) {
+            return null;
+        }
+        regex.append(quote(token, end, token.length()));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static String quote(String s, int start, int end) {
+        return start == end ? "" : Pattern.quote(s.substring(start, end));
+    }
+
+    /**
+     * Separate tries for absolute and relative patterns: AntPathMatcher never matches one against the other.
+     */
+    private static final class Roots<T> {
+        private final Node<T> absolute = new Node<>(false);
+        private final Node<T> relative = new Node<>(false);
+
+        Node<T> root(boolean isAbsolute) {
+            return isAbsolute ? absolute : relative;
+        }
+    }
+
+    private static final class Node<T> {
+
+        private final boolean doubleStar;
+        private Map<String, Node<T>> literalChildren;
+        private Map<String, GlobEdge<T>> globChildren;
+        private Node<T> doubleStarChild;
+        private T valueWithSlash;
+        private T valueWithoutSlash;
+
+        Node(boolean doubleStar) {
+            this.doubleStar = doubleStar;
+        }
+
+        Node<T> child(String token, Function<String, Pattern> compiler) {
+            if (DOUBLE_STAR.equals(token)) {
+                if (doubleStarChild == null) {
+                    doubleStarChild = new Node<>(true);
+                }
+                return doubleStarChild;
+            }
+            Pattern pattern = compiler.apply(token);
+            if (pattern == null) {
+                if (literalChildren == null) {
+                    literalChildren = new HashMap<>();
+                }
+                return literalChildren.computeIfAbsent(token, t -> new Node<>(false));
+            }
+            if (globChildren == null) {
+                globChildren = new LinkedHashMap<>();
+            }
+            return globChildren.computeIfAbsent(token, t -> new GlobEdge<>(pattern, new Node<>(false))).target();
+        }
+
+        void acceptWithSlash(T value) {
+            if (valueWithSlash == null) {
+                valueWithSlash = value;
+            }
+        }
+
+        void acceptWithoutSlash(T value) {
+            if (valueWithoutSlash == null) {
+                valueWithoutSlash = value;
+            }
+        }
+
+        /**
+         * Walks the trie as an NFA: the active node set advances one URI segment at a time,
+         * with {@code **} nodes staying active (consuming the segment) and entered without consuming anything.
+         */
+        T match(String[] segments, boolean trailingSlash) {
+            List<Node<T>> active = new ArrayList<>();
+            addWithClosure(active, this);
+            for (String segment : segments) {
+                if (active.isEmpty()) {
+                    return null;
+                }
+                List<Node<T>> next = new ArrayList<>();
+                for (Node<T> node : active) {
+                    node.step(segment, next);
+                }
+                active = next;
+            }
+            for (Node<T> node : active) {
+                T value = trailingSlash ? node.valueWithSlash : node.valueWithoutSlash;
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        private void step(String segment, List<Node<T>> next) {
+            if (doubleStar) {
+                addWithClosure(next, this);
+            }
+            if (literalChildren != null) {
+                Node<T> literal = literalChildren.get(segment);
+                if (literal != null) {
+                    addWithClosure(next, literal);
+                }
+            }
+            if (globChildren != null) {
+                for (GlobEdge<T> edge : globChildren.values()) {
+                    if (edge.pattern().matcher(segment).matches()) {
+                        addWithClosure(next, edge.target());
+                    }
+                }
+            }
+        }
+
+        private static <T> void addWithClosure(List<Node<T>> nodes, Node<T> node) {
+            // The active set stays small (bounded by the number of ** branches), so a linear scan is cheaper than a set
+            for (Node<T> n = node; n != null; n = n.doubleStarChild) {
+                if (!containsIdentity(nodes, n)) {
+                    nodes.add(n);
+                }
+            }
+        }
+
+        private static <T> boolean containsIdentity(List<Node<T>> nodes, Node<T> node) {
+            for (Node<T> n : nodes) {
+                if (n == node) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private record GlobEdge<T>(Pattern pattern, Node<T> target) {
+    }
+}
@@ -1,13 +1,12 @@
 package com.kaishui.entitlement.web;
 
 
+import com.kaishui.entitlement.entity.dto.CryptoBatchRequest;
 import com.kaishui.entitlement.entity.dto.CryptoRequest;
+import com.kaishui.entitlement.service.CryptoService;
+import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.jasypt.encryption.StringEncryptor;
-import org.jasypt.exceptions.EncryptionOperationNotPossibleException;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -22,9 +21,8 @@ import reactor.core.publisher.Mono;
 @Slf4j
 public class EncryptionController {
 
-    // Inject the specific StringEncryptor bean configured in JasyptConfig
-    @Autowired
-    private final StringEncryptor stringEncryptor;
+    // Runs the PBE work on a dedicated scheduler instead of the Netty event loop
+    private final CryptoService cryptoService;
 
     /**
      * Encrypts the provided plain text value.
@@ -37,17 +35,13 @@ public class EncryptionController {
     @PostMapping("/encrypt")
     public Mono<ResponseEntity<CryptoRequest>> encrypt(@RequestBody Mono<CryptoRequest> requestMono) {
         return requestMono
-                .map(request -> {
-                    if (request.getValue() == null || request.getValue().isBlank()) {
-                        throw new IllegalArgumentException("Value to encrypt cannot be null or blank.");
-                    }
+                .flatMap(request -> {
                     log.info("Encrypting value..."); // Avoid logging the actual value
-                    String encryptedValue = stringEncryptor.encrypt(request.getValue());
                     // Optionally wrap with ENC() if needed for direct use in YAML,
                     // but often just the encrypted value is sufficient for API response.
-                    // return new CryptoRequest("ENC(" + encryptedValue + ")");
-                    return new CryptoRequest(encryptedValue);
+                    return cryptoService.encrypt(request.getValue());
                 })
+                .map(CryptoRequest::new)
                 .map(ResponseEntity::ok)
                 .doOnError(IllegalArgumentException.class, e -> log.warn("Encryption failed: {}", e.getMessage()))
                 .onErrorResume(IllegalArgumentException.class, e ->
@@ -71,25 +65,11 @@ public class EncryptionController {
     @PostMapping("/decrypt")
     public Mono<ResponseEntity<CryptoRequest>> decrypt(@RequestBody Mono<CryptoRequest> requestMono) {
         return requestMono
-                .map(request -> {
-                    if (request.getValue() == null || request.getValue().isBlank()) {
-                        throw new IllegalArgumentException("Value to decrypt cannot be null or blank.");
-                    }
-                    String valueToDecrypt = request.getValue();
-                    // Remove ENC() wrapper if present
-                    if (valueToDecrypt.startsWith("ENC(") && valueToDecrypt.endsWith(")")) {
-                        valueToDecrypt = valueToDecrypt.substring(4, valueToDecrypt.length() - 1);
-                    }
+                .flatMap(request -> {
                     log.info("Decrypting value...");
-                    try {
-                        String decryptedValue = stringEncryptor.decrypt(valueToDecrypt);
-                        return new CryptoRequest(decryptedValue);
-                    } catch (EncryptionOperationNotPossibleException e) {
-                        log.warn("Decryption failed. Input might not be valid encrypted data or wrong key used.");
-                        // Throw a specific exception type or handle differently
-                        throw new IllegalArgumentException("Decryption failed. Invalid input or key.", e);
-                    }
+                    return cryptoService.decrypt(request.getValue()); // Removes an ENC() wrapper if present
                 })
+                .map(CryptoRequest::new)
                 .map(ResponseEntity::ok)
                 .doOnError(IllegalArgumentException.class, e -> log.warn("Decryption failed: {}", e.getMessage()))
                 .onErrorResume(IllegalArgumentException.class, e ->
@@ -100,4 +80,38 @@ public class EncryptionController {
                         Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(new CryptoRequest("Internal server error during decryption.")))
                 );
     }
+
+    /**
+     * Encrypts a list of values in parallel; results are returned in the input order.
+     *
+     * @param request the values to encrypt.
+     * @return Mono containing the encrypted values.
+     */
+    @PostMapping("/encrypt/batch")
+    public Mono<ResponseEntity<CryptoBatchRequest>> encryptBatch(@Valid @RequestBody CryptoBatchRequest request) {
+        log.info("Encrypting {} values...", request.getValues().size());
+        return cryptoService.encryptAll(request.getValues())
+                .map(values -> ResponseEntity.ok(new CryptoBatchRequest(values)))
+                .doOnError(e -> log.error("Batch encryption error: {}", e.getMessage(), e))
+                .onErrorResume(e -> Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).<CryptoBatchRequest>build()));
+    }
+
+    /**
+     * Decrypts a list of values in parallel; results are returned in the input order.
+     * Fails as a whole with 400 if any value cannot be decrypted.
+     *
+     * @param request the values to decrypt, optionally wrapped with ENC().
+     * @return Mono containing the decrypted values.
+     */
+    @PostMapping("/decrypt/batch")
+    public Mono<ResponseEntity<CryptoBatchRequest>> decryptBatch(@Valid @RequestBody CryptoBatchRequest request) {
+        log.info("Decrypting {} values...", request.getValues().size());
+        return cryptoService.decryptAll(request.getValues())
+                .map(values -> ResponseEntity.ok(new CryptoBatchRequest(values)))
+                .doOnError(IllegalArgumentException.class, e -> log.warn("Batch decryption failed: {}", e.getMessage()))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().<CryptoBatchRequest>build()))
+                .doOnError(e -> !(e instanceof IllegalArgumentException), e -> log.error("Batch decryption error: {}", e.getMessage(), e))
+                .onErrorResume(e -> !(e instanceof IllegalArgumentException), e ->
+                        Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).<CryptoBatchRequest>build()));
+    }
 }
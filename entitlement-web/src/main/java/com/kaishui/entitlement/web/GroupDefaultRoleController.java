@@ -1,9 +1,13 @@
 package com.kaishui.entitlement.web; // Assuming controller is in this package
 
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation;
 import com.kaishui.entitlement.entity.dto.CreateGroupDefaultRoleDto;
 import com.kaishui.entitlement.entity.dto.GroupDefaultRoleDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.UpdateGroupDefaultRoleDto;
+import com.kaishui.entitlement.service.GroupDefaultRoleReconciler;
 import com.kaishui.entitlement.service.GroupDefaultRoleService;
+import com.kaishui.entitlement.util.KeysetCursor;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -28,10 +32,12 @@ import java.util.List;
 public class GroupDefaultRoleController {
 
     private final GroupDefaultRoleService groupDefaultRoleService;
+    private final GroupDefaultRoleReconciler groupDefaultRoleReconciler;
 
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.CREATED)
     @Operation(summary = "Create a group default role mapping",
+            description = "Existing users of the group get the roles by a background reconciliation, see /reconciliations.",
             responses = {
                     @ApiResponse(responseCode = "201", description = "Mapping created successfully"),
                     @ApiResponse(responseCode = "400", description = "Invalid input data"),
@@ -43,18 +49,57 @@ public class GroupDefaultRoleController {
     }
 
     @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
-    @Operation(summary = "Get all group default role mappings",
-            description = "Retrieves all mappings or filters by a list of group names.",
-            responses = @ApiResponse(responseCode = "200", description = "Successfully retrieved mappings"))
-    public Flux<GroupDefaultRoleDto> getGroupDefaultRoles(
+    @Operation(summary = "Get group default role mappings",
+            description = "Retrieves a page of mappings in ascending id order, or all mappings of the given group names as a single page.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Successfully retrieved mappings"),
+                    @ApiResponse(responseCode = "400", description = "Invalid cursor")
+            })
+    public Mono<PageDto<GroupDefaultRoleDto>> getGroupDefaultRoles(
             @Parameter(description = "Optional list of group names to filter by")
-            @RequestParam(required = false) List<String> groupNames) {
+            @RequestParam(required = false) List<String> groupNames,
+            @Parameter(description = "nextCursor of the previous page, omit for the first page")
+            @RequestParam(required = false) String cursor,
+            @Parameter(description = "Page size, 1 to 1000, default 100")
+            @RequestParam(required = false) Integer limit) {
         if (groupNames != null && !groupNames.isEmpty()) {
-            return groupDefaultRoleService.findByGroupNames(groupNames);
+            // Bounded by the number of requested groups
+            return groupDefaultRoleService.findByGroupNames(groupNames)
+                    .collectList()
+                    .map(mappings -> new PageDto<>(mappings, null));
         }
+        return groupDefaultRoleService.getGroupDefaultRolesPage(cursor, KeysetCursor.limit(limit));
+    }
+
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Export all group default role mappings",
+            description = "Streams every mapping as newline-delimited JSON, at the pace the client reads.",
+            responses = @ApiResponse(responseCode = "200", description = "Successfully streamed mappings"))
+    public Flux<GroupDefaultRoleDto> exportGroupDefaultRoles() {
         return groupDefaultRoleService.getAllGroupDefaultRoles();
     }
 
+    @GetMapping(value = "/reconciliations", produces = MediaType.APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get the latest reconciliations of existing users with changed mappings",
+            description = "Returns up to 100 jobs, newest first.",
+            responses = @ApiResponse(responseCode = "200", description = "Successfully retrieved reconciliations"))
+    public Flux<GroupDefaultRoleReconciliation> getReconciliations(
+            @Parameter(description = "Optional AD group to filter by")
+            @RequestParam(required = false) String groupName) {
+        return groupDefaultRoleReconciler.getReconciliations(groupName);
+    }
+
+    @GetMapping(value = "/reconciliations/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @Operation(summary = "Get the progress of a reconciliation",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Reconciliation found"),
+                    @ApiResponse(responseCode = "404", description = "Reconciliation not found")
+            })
+    public Mono<GroupDefaultRoleReconciliation> getReconciliation(
+            @Parameter(description = "ID of the reconciliation", required = true) @PathVariable String id) {
+        return groupDefaultRoleReconciler.getReconciliation(id);
+    }
+
     @GetMapping(value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
     @Operation(summary = "Get a mapping by ID",
             responses = {
@@ -83,7 +128,9 @@ public class GroupDefaultRoleController {
 
     @PutMapping(value = "/{id}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
     @Operation(summary = "Update a mapping by ID",
-            description = "Updates the list of role IDs for a given mapping ID.",
+            description = "Updates the list of role IDs for a given mapping ID. Existing users of the group gain the added "
+                    + "and lose the removed roles by a background reconciliation, see /reconciliations. Only roles granted "
+                    + "as group defaults are removed, a role assigned to the user directly is kept.",
             responses = {
                     @ApiResponse(responseCode = "200", description = "Mapping updated successfully"),
                     @ApiResponse(responseCode = "400", description = "Invalid input data"),
@@ -1,15 +1,21 @@
 package com.kaishui.entitlement.web; // Adjust package name as needed
 
+import com.kaishui.entitlement.entity.dto.BatchPermissionCheckDto;
+import com.kaishui.entitlement.entity.dto.MultiUserPermissionCheckDto;
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
+import com.kaishui.entitlement.entity.dto.PermissionCheckResultDto;
 import com.kaishui.entitlement.service.PermissionCheckerInterface;
+import com.kaishui.entitlement.service.PermissionDecisionCache;
+import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Mono;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -19,6 +25,7 @@ import java.util.Map;
 public class PermissionCheckController {
 
     private final PermissionCheckerInterface permissionChecker; // Inject the service interface
+    private final PermissionDecisionCache decisionCache;
 
     /**
      * Checks if a user has permission for a specific HTTP method and URI.
@@ -45,7 +52,9 @@ public class PermissionCheckController {
             return Mono.just(ResponseEntity.badRequest().body(Map.of("allowed", false)));
         }
 
-        return permissionChecker.checkPermission(staffId, httpMethod, requestUri)
+        // Repeated checks are answered from the decision cache; concurrent misses share one lookup
+        return decisionCache.get(staffId, httpMethod, requestUri,
+                        () -> permissionChecker.checkPermission(staffId, httpMethod, requestUri))
                 .map(allowed -> {
                     log.info("Permission check result for staffId='{}', method='{}', uri='{}': {}",
                             staffId, httpMethod, requestUri, allowed);
@@ -63,4 +72,61 @@ public class PermissionCheckController {
                     // Or: return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Permission check failed")));
                 });
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks many (method, uri) pairs for one user in a single call. The user's rules are resolved once.
+     *
+     * @param request The staff ID and the checks to perform.
+     * @return A Mono containing a ResponseEntity whose body lists one decision per check, in request order.
+     */
+    @PostMapping("/check/batch")
+    public Mono<ResponseEntity<List<PermissionCheckResultDto>>> checkUriPermissions(
+            @Valid @RequestBody BatchPermissionCheckDto request) {
+
+        log.info("Received batch permission check request: staffId='{}', checks={}",
+                request.getStaffId(), request.getChecks().size());
+
+        return permissionChecker.checkPermissions(request.getStaffId(), request.getChecks())
+                .map(decisions -> ResponseEntity.ok(toResults(request.getChecks(), decisions)))
+                .onErrorResume(ex -> {
+                    log.warn("Error during batch permission check for staffId='{}': {}",
+                            request.getStaffId(), ex.getMessage(), ex);
+                    return Mono.just(ResponseEntity.internalServerError().build());
+                });
+    }
+
+    /**
+     * Checks the same (method, uri) pairs for many users in a single call. Roles shared by the users are resolved once.
+     *
+     * @param request The staff IDs and the checks to perform for each of them.
+     * @return A Mono containing a ResponseEntity whose body maps each staff ID to one decision per check, in request order.
+     */
+    @PostMapping("/check/batch/users")
+    public Mono<ResponseEntity<Map<String, List<PermissionCheckResultDto>>>> checkUriPermissionsForUsers(
+            @Valid @RequestBody MultiUserPermissionCheckDto request) {
+
+        log.info("Received multi-user permission check request: users={}, checks={}",
+                request.getStaffIds().size(), request.getChecks().size());
+
+        return permissionChecker.checkPermissions(request.getStaffIds(), request.getChecks())
+                .map(decisionsByStaffId -> {
+                    Map<String, List<PermissionCheckResultDto>> results = new LinkedHashMap<>();
+                    decisionsByStaffId.forEach((staffId, decisions) -> results.put(staffId, toResults(request.getChecks(), decisions)));
+                    return ResponseEntity.ok(results);
+                })
+                .onErrorResume(ex -> {
+                    log.warn("Error during multi-user permission check for {} users: {}",
+                            request.getStaffIds().size(), ex.getMessage(), ex);
+                    return Mono.just(ResponseEntity.internalServerError().build());
+                });
+    }
+
+    private List<PermissionCheckResultDto> toResults(List<PermissionCheckDto> checks, List<Boolean> decisions) {
+        List<PermissionCheckResultDto> results = new ArrayList<>(checks.size());
+        for (int i = 0; i < checks.size(); i++) {
+            PermissionCheckDto check = checks.get(i);
+            results.add(new PermissionCheckResultDto(check.getHttpMethod(), check.getRequestUri(), decisions.get(i)));
+        }
+        return results;
+    }
+}
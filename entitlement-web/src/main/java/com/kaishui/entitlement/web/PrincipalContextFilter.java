@@ -0,0 +1,31 @@
+package com.kaishui.entitlement.web;
+
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.RequestPrincipal;
+import lombok.RequiredArgsConstructor;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * Resolves the caller once per request and exposes it as a {@link RequestPrincipal} in the Reactor context,
+ * so services, the audit aspect and the Mongo auditor never parse the Authorization header themselves.
+ * Requests without a valid Bearer token pass through without a principal.
+ */
+@Component
+@RequiredArgsConstructor
+public class PrincipalContextFilter implements WebFilter {
+
+    private final AuthorizationUtil authorizationUtil;
+
+    @Override
+    @NonNull
+    public Mono<Void> filter(@NonNull ServerWebExchange exchange, @NonNull WebFilterChain chain) {
+        return authorizationUtil.resolvePrincipal(exchange.getRequest())
+                .map(principal -> chain.filter(exchange).contextWrite(ctx -> ctx.put(RequestPrincipal.class, principal)))
+                .orElseGet(() -> chain.filter(exchange));
+    }
+}
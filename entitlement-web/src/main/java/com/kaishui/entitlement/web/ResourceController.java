@@ -2,9 +2,11 @@ package com.kaishui.entitlement.web;
 
 
 import com.kaishui.entitlement.entity.dto.CreateResourceDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.ResourceDto;
 import com.kaishui.entitlement.entity.dto.UpdateResourceDto;
 import com.kaishui.entitlement.service.ResourceService;
+import com.kaishui.entitlement.util.KeysetCursor;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -48,20 +50,48 @@ public class ResourceController {
 
     @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
     @Operation(summary = "Find resources",
-            description = "Retrieves a list of resources, optionally filtered by name, type, region, or active status.",
+            description = "Retrieves a page of resources sorted by id or name, optionally filtered by name, type, region, or active status. "
+                    + "Pass the returned nextCursor with the same filters and sort to get the next page.",
             responses = {
-                    @ApiResponse(responseCode = "200", description = "Successfully retrieved resources")
+                    @ApiResponse(responseCode = "200", description = "Successfully retrieved resources"),
+                    @ApiResponse(responseCode = "400", description = "Invalid cursor")
             })
-    public Flux<ResourceDto> findResources(
-            @Parameter(description = "Filter by resource name (case-insensitive, partial match)")
+    public Mono<PageDto<ResourceDto>> findResources(
+            @Parameter(description = "Filter by resource name (case-insensitive prefix match)")
             @RequestParam(required = false) String name,
-            @Parameter(description = "Filter by resource type (exact match)")
+            @Parameter(description = "Filter by resource type (case-insensitive match)")
             @RequestParam(required = false) String type,
-            @Parameter(description = "Filter by AD groups (exact match)")
+            @Parameter(description = "Filter by AD groups (case-insensitive match of any)")
             @RequestParam(required = false) List<String> adGroups,
             @Parameter(description = "Filter by active status (true or false)")
-            @RequestParam(required = false) Boolean isActive) {
+            @RequestParam(required = false) Boolean isActive,
+            @Parameter(description = "Sort field: id (default) or name")
+            @RequestParam(required = false) String sort,
+            @Parameter(description = "Sort direction: asc (default) or desc")
+            @RequestParam(required = false) String direction,
+            @Parameter(description = "nextCursor of the previous page, omit for the first page")
+            @RequestParam(required = false) String cursor,
+            @Parameter(description = "Page size, 1 to 1000, default 100")
+            @RequestParam(required = false) Integer limit) {
         // Service method handles the filtering logic
+        return resourceService.findResourcesPage(name, type, adGroups, isActive, sort, direction, cursor, KeysetCursor.limit(limit));
+    }
+
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Export resources",
+            description = "Streams every matching resource as newline-delimited JSON, at the pace the client reads.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Successfully streamed resources")
+            })
+    public Flux<ResourceDto> exportResources(
+            @Parameter(description = "Filter by resource name (case-insensitive prefix match)")
+            @RequestParam(required = false) String name,
+            @Parameter(description = "Filter by resource type (case-insensitive match)")
+            @RequestParam(required = false) String type,
+            @Parameter(description = "Filter by AD groups (case-insensitive match of any)")
+            @RequestParam(required = false) List<String> adGroups,
+            @Parameter(description = "Filter by active status (true or false)")
+            @RequestParam(required = false) Boolean isActive) {
         return resourceService.findResources(name, type, adGroups, isActive);
     }
 
@@ -2,12 +2,15 @@ package com.kaishui.entitlement.web;
 
 import com.kaishui.entitlement.annotation.AuditLog;
 import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.service.RoleService;
+import com.kaishui.entitlement.util.KeysetCursor;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.validation.Valid; // For request body validation
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
@@ -22,9 +25,17 @@ public class RoleController {
     private final RoleService roleService;
 
     @GetMapping
-    @Operation(summary = "Get all active roles")
+    @Operation(summary = "Get a page of active roles", description = "Roles in ascending id order; pass the returned nextCursor to get the next page.")
     @AuditLog(action = "GET_ALL_ROLES")
-    public Flux<Role> getAllRoles() {
+    public Mono<PageDto<Role>> getRoles(@RequestParam(required = false) String cursor,
+                                        @RequestParam(required = false) Integer limit) {
+        return roleService.getRolesPage(cursor, KeysetCursor.limit(limit));
+    }
+
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Export all active roles as newline-delimited JSON")
+    @AuditLog(action = "EXPORT_ROLES")
+    public Flux<Role> exportRoles() {
         return roleService.getAllRoles();
     }
 
@@ -3,9 +3,15 @@ package com.kaishui.entitlement.web;
 import com.kaishui.entitlement.annotation.AuditLog;
 import com.kaishui.entitlement.entity.Role;
 import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.NextLevelUserRowDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.UserDto;
+import com.kaishui.entitlement.entity.dto.UserSyncResultDto;
+import com.kaishui.entitlement.service.LoginService;
 import com.kaishui.entitlement.service.UserService;
+import com.kaishui.entitlement.service.UserSyncService;
 import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.KeysetCursor;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -16,12 +22,14 @@ import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Map;
+
 @RestController
 @RequestMapping("/v1/api/users")
 @Tag(name = "User", description = "User API")
@@ -29,13 +37,26 @@ import reactor.core.publisher.Mono;
 public class UserController {
 
     private final UserService userService;
+    private final UserSyncService userSyncService;
+    private final LoginService loginService;
     private final AuthorizationUtil authorizationUtil;
 
-    @Operation(summary = "Get all users", responses = {
-            @ApiResponse(responseCode = "200", description = "Successful operation", content = @Content(mediaType = "application/json", schema = @Schema(implementation = User.class)))
+    @Operation(summary = "Get a page of users", description = "Users in ascending id order; pass the returned nextCursor to get the next page.", responses = {
+            @ApiResponse(responseCode = "200", description = "Successful operation", content = @Content(mediaType = "application/json", schema = @Schema(implementation = PageDto.class))),
+            @ApiResponse(responseCode = "400", description = "Invalid cursor")
     })
     @GetMapping
-    public Flux<User> getAllUsers() {
+    public Mono<PageDto<User>> getUsers(
+            @Parameter(description = "nextCursor of the previous page, omit for the first page") @RequestParam(required = false) String cursor,
+            @Parameter(description = "Page size, 1 to 1000, default 100") @RequestParam(required = false) Integer limit) {
+        return userService.getUsersPage(cursor, KeysetCursor.limit(limit));
+    }
+
+    @Operation(summary = "Export all users", description = "Streams every user as newline-delimited JSON, at the pace the client reads.", responses = {
+            @ApiResponse(responseCode = "200", description = "Successful operation", content = @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE, schema = @Schema(implementation = User.class)))
+    })
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<User> exportUsers() {
         return userService.getAllUsers();
     }
 
@@ -55,16 +76,15 @@ public class UserController {
     })
     @PostMapping
     public Mono<ResponseEntity<UserDto>> createUser(@Valid @RequestBody User user) { // Add @Valid
-        return userService.insertOrUpdateUser(user)
-                .flatMap(userService::processFirstLogin) // Process first login
-                .flatMap(userService::getRolesAndPermissionsByUser)
+        return loginService.login(user)
                 .map(createdUser -> ResponseEntity.status(HttpStatus.CREATED).body(createdUser))
                 .onErrorResume(DuplicateKeyException.class, e -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build()));
     }
 
     @Operation(summary = "Update an existing user", responses = {
             @ApiResponse(responseCode = "200", description = "User updated", content = @Content(mediaType = "application/json", schema = @Schema(implementation = User.class))),
-            @ApiResponse(responseCode = "404", description = "User not found")
+            @ApiResponse(responseCode = "404", description = "User not found"),
+            @ApiResponse(responseCode = "409", description = "User changed since the provided version")
     })
     @PutMapping
     @AuditLog(action = "Update User", detail = "Updated user details")
@@ -91,9 +111,9 @@ public class UserController {
     })
     @GetMapping("/current/roles")
     public Flux<Role> findRolesByUserCase(
-            @Parameter(description = "User Case", required = true) @RequestParam String userCase, ServerHttpRequest request) {
-        String staffId = authorizationUtil.getStaffIdFromToken(request);
-        return userService.findRolesByUserCase(userCase, staffId);
+            @Parameter(description = "User Case", required = true) @RequestParam String userCase) {
+        return Flux.deferContextual(contextView ->
+                userService.findRolesByUserCase(userCase, authorizationUtil.extractStaffIdFromContext(contextView)));
     }
 
     @Operation(summary = "Find current user roles by user case ", responses = {
@@ -102,9 +122,68 @@ public class UserController {
     })
     @GetMapping("/next/users")
     public Flux<UserDto> getNextLevelUser(
-            @Parameter(description = "User Case", required = true) @RequestParam String userCase, ServerHttpRequest request) {
-        String staffId = authorizationUtil.getStaffIdFromToken(request);
-        return userService.getNextLevelUser(userCase, staffId);
+            @Parameter(description = "User Case", required = true) @RequestParam String userCase) {
+        return Flux.deferContextual(contextView ->
+                userService.getNextLevelUser(userCase, authorizationUtil.extractStaffIdFromContext(contextView)));
+    }
+
+    @Operation(summary = "Stream next level users by user case",
+            description = "Each user with their roles as newline-delimited JSON, streamed at the pace the client reads.", responses = {
+            @ApiResponse(responseCode = "200", description = "Successful operation", content = @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE, schema = @Schema(implementation = UserDto.class)))
+    })
+    @GetMapping(value = "/next/users/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<UserDto> exportNextLevelUsers(
+            @Parameter(description = "User Case", required = true) @RequestParam String userCase) {
+        return Flux.deferContextual(contextView ->
+                userService.getNextLevelUser(userCase, authorizationUtil.extractStaffIdFromContext(contextView)));
+    }
+
+    @Operation(summary = "Stream next level users by user case, with each role sent once",
+            description = "Newline-delimited JSON: a line with 'role' defines a role before the first user holding it; "
+                    + "a line with 'user' references the user's roles by 'roleIds'.", responses = {
+            @ApiResponse(responseCode = "200", description = "Successful operation", content = @Content(mediaType = MediaType.APPLICATION_NDJSON_VALUE, schema = @Schema(implementation = NextLevelUserRowDto.class)))
+    })
+    @GetMapping(value = "/next/users/compact", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<NextLevelUserRowDto> exportNextLevelUsersCompact(
+            @Parameter(description = "User Case", required = true) @RequestParam String userCase) {
+        return Flux.deferContextual(contextView ->
+                userService.getNextLevelUserRows(userCase, authorizationUtil.extractStaffIdFromContext(contextView)));
+    }
+
+    @Operation(summary = "Synchronize users from an NDJSON HR/AD feed",
+            description = "One user JSON object per line. Only changed users are written; new users get their group default roles.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Counts of inserted, updated, unchanged and rejected rows",
+                            content = @Content(mediaType = "application/json", schema = @Schema(implementation = UserSyncResultDto.class)))
+            })
+    @PostMapping(value = "/sync", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    @AuditLog(action = "Sync Users", detail = "Bulk synchronized users from an NDJSON feed")
+    public Mono<UserSyncResultDto> syncUsersNdjson(@RequestBody Flux<String> lines) {
+        return userSyncService.syncNdjson(lines);
+    }
+
+    @Operation(summary = "Synchronize users from a CSV HR/AD feed",
+            description = "A header line naming the User fields (staffId required), then one user per line; separate adGroups with ';'.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Counts of inserted, updated, unchanged and rejected rows",
+                            content = @Content(mediaType = "application/json", schema = @Schema(implementation = UserSyncResultDto.class))),
+                    @ApiResponse(responseCode = "400", description = "Missing staffId column")
+            })
+    @PostMapping(value = "/sync", consumes = "text/csv")
+    @AuditLog(action = "Sync Users", detail = "Bulk synchronized users from a CSV feed")
+    public Mono<UserSyncResultDto> syncUsersCsv(@RequestBody Flux<String> lines) {
+        return userSyncService.syncCsv(lines);
+    }
+
+    @Operation(summary = "Rebuild materialized user entitlements", responses = {
+            @ApiResponse(responseCode = "200", description = "Number of users rebuilt")
+    })
+    @PostMapping("/entitlements/rebuild")
+    @AuditLog(action = "Rebuild Entitlements", detail = "Rebuilt materialized user entitlements")
+    public Mono<Map<String, Long>> rebuildEntitlements(
+            @Parameter(description = "Only rebuild entitlements invalidated by role or resource changes") @RequestParam(defaultValue = "false") boolean staleOnly) {
+        return userService.rebuildEntitlements(staleOnly)
+                .map(count -> Map.of("rebuilt", count));
     }
 
 
@@ -0,0 +1,218 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.AuditLogEntity;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("AuditLogWriter Tests")
+class AuditLogWriterTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    private SimpleMeterRegistry meterRegistry;
+    private AuditLogWriter auditLogWriter;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        auditLogWriter = new AuditLogWriter(reactiveMongoTemplate, meterRegistry);
+        ReflectionTestUtils.setField(auditLogWriter, "queueCapacity", 10);
+        ReflectionTestUtils.setField(auditLogWriter, "batchSize", 2);
+        ReflectionTestUtils.setField(auditLogWriter, "flushInterval", Duration.ofHours(1)); // Only size and shutdown flushes
+        ReflectionTestUtils.setField(auditLogWriter, "overflowPolicy", AuditLogWriter.OverflowPolicy.DROP);
+        ReflectionTestUtils.setField(auditLogWriter, "blockTimeout", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(auditLogWriter, "overflowConcurrency", 16);
+        ReflectionTestUtils.setField(auditLogWriter, "shutdownTimeout", Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        auditLogWriter.stop();
+    }
+
+    private AuditLogEntity entry(String action) {
+        return AuditLogEntity.builder().action(action).createdBy("tester").createdDate(new Date()).build();
+    }
+
+    private double events(String outcome) {
+        return meterRegistry.get("audit.log.events").tag("outcome", outcome).counter().count();
+    }
+
+    @Test
+    @DisplayName("Entries should be written in batches, with the remainder flushed on shutdown")
+    @SuppressWarnings("unchecked")
+    void write_BatchesBySizeAndFlushesOnShutdown() {
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class))).thenReturn(Flux.empty());
+        auditLogWriter.start();
+
+        for (int i = 0; i < 5; i++) {
+            auditLogWriter.write(entry("ACTION_" + i));
+        }
+        auditLogWriter.stop();
+
+        ArgumentCaptor<Collection<AuditLogEntity>> batches = ArgumentCaptor.forClass(Collection.class);
+        verify(reactiveMongoTemplate, times(3)).insert(batches.capture(), eq(AuditLogEntity.class));
+        assertEquals(List.of(2, 2, 1), batches.getAllValues().stream().map(Collection::size).toList());
+        assertEquals(5.0, events("written"));
+    }
+
+    @Test
+    @DisplayName("A full queue should drop new entries under the drop policy")
+    void write_DropsWhenFull() {
+        ReflectionTestUtils.setField(auditLogWriter, "queueCapacity", 1);
+        ReflectionTestUtils.setField(auditLogWriter, "batchSize", 10);
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class))).thenReturn(Flux.empty()); // Shutdown flush
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("FIRST"));
+        auditLogWriter.write(entry("SECOND"));
+
+        assertEquals(1.0, events("dropped"));
+        verify(reactiveMongoTemplate, never()).insert(any(AuditLogEntity.class));
+    }
+
+    @Test
+    @DisplayName("A full queue should insert new entries directly under the spill policy")
+    void write_SpillsWhenFull() {
+        ReflectionTestUtils.setField(auditLogWriter, "queueCapacity", 1);
+        ReflectionTestUtils.setField(auditLogWriter, "batchSize", 10);
+        ReflectionTestUtils.setField(auditLogWriter, "overflowPolicy", AuditLogWriter.OverflowPolicy.SPILL);
+        AuditLogEntity second = entry("SECOND");
+        when(reactiveMongoTemplate.insert(second)).thenReturn(Mono.just(second));
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class))).thenReturn(Flux.empty()); // Shutdown flush
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("FIRST"));
+        auditLogWriter.write(second);
+
+        verify(reactiveMongoTemplate).insert(second);
+        assertEquals(1.0, events("spilled"));
+        assertEquals(0.0, events("dropped"));
+    }
+
+    @Test
+    @DisplayName("Spills beyond the overflow concurrency should be dropped rather than piling up single inserts")
+    void write_SpillsAreBounded() {
+        ReflectionTestUtils.setField(auditLogWriter, "queueCapacity", 1);
+        ReflectionTestUtils.setField(auditLogWriter, "batchSize", 10);
+        ReflectionTestUtils.setField(auditLogWriter, "overflowPolicy", AuditLogWriter.OverflowPolicy.SPILL);
+        ReflectionTestUtils.setField(auditLogWriter, "overflowConcurrency", 1);
+        AuditLogEntity second = entry("SECOND");
+        when(reactiveMongoTemplate.insert(second)).thenReturn(Mono.never()); // Overloaded database
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class))).thenReturn(Flux.empty()); // Shutdown flush
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("FIRST"));
+        auditLogWriter.write(second);
+        auditLogWriter.write(entry("THIRD"));
+
+        assertEquals(1.0, events("spilled"));
+        assertEquals(1.0, events("dropped"));
+    }
+
+    @Test
+    @DisplayName("A full queue should queue new entries once there is room under the block policy, without blocking the caller")
+    @SuppressWarnings("unchecked")
+    void write_BlockRetriesInBackground() {
+        ReflectionTestUtils.setField(auditLogWriter, "queueCapacity", 1);
+        ReflectionTestUtils.setField(auditLogWriter, "batchSize", 10);
+        ReflectionTestUtils.setField(auditLogWriter, "overflowPolicy", AuditLogWriter.OverflowPolicy.BLOCK);
+        ReflectionTestUtils.setField(auditLogWriter, "blockTimeout", Duration.ofSeconds(5));
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class))).thenReturn(Flux.empty());
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("FIRST"));
+        long start = System.nanoTime();
+        auditLogWriter.write(entry("SECOND")); // Its retry requests the flush making room
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1000);
+        auditLogWriter.stop();
+
+        ArgumentCaptor<Collection<AuditLogEntity>> batches = ArgumentCaptor.forClass(Collection.class);
+        verify(reactiveMongoTemplate, times(2)).insert(batches.capture(), eq(AuditLogEntity.class));
+        assertEquals(0.0, events("dropped"));
+    }
+
+    @Test
+    @DisplayName("An entry still not queued after the block timeout should be dropped")
+    void write_BlockTimesOut() {
+        ReflectionTestUtils.setField(auditLogWriter, "queueCapacity", 1);
+        ReflectionTestUtils.setField(auditLogWriter, "batchSize", 10);
+        ReflectionTestUtils.setField(auditLogWriter, "overflowPolicy", AuditLogWriter.OverflowPolicy.BLOCK);
+        Sinks.Empty<Void> slowInsert = Sinks.empty();
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class)))
+                .thenReturn(slowInsert.asMono().thenMany(Flux.empty()), Flux.empty());
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("FIRST"));
+        auditLogWriter.write(entry("SECOND")); // Queued once the flush it requests drains FIRST
+        auditLogWriter.write(entry("THIRD")); // No room while that flush is still writing
+
+        StepVerifier.create(Mono.fromCallable(() -> events("dropped") == 1.0)
+                        .filter(Boolean::booleanValue)
+                        .repeatWhenEmpty(attempts -> attempts.delayElements(Duration.ofMillis(20)).take(100)))
+                .expectNext(true)
+                .verifyComplete();
+        slowInsert.tryEmitEmpty();
+    }
+
+    @Test
+    @DisplayName("Shutdown should let a batch being written finish instead of cancelling it")
+    void stop_WaitsForFlushInProgress() {
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class)))
+                .thenReturn(Flux.empty().delaySubscription(Duration.ofMillis(200)));
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("A"));
+        auditLogWriter.write(entry("B")); // Drained from the queue by a size-triggered flush
+        auditLogWriter.stop();
+
+        assertEquals(2.0, events("written"));
+    }
+
+    @Test
+    @DisplayName("A failed batch should be counted and not stop later batches")
+    void flush_FailedBatchIsCounted() {
+        when(reactiveMongoTemplate.insert(anyCollection(), eq(AuditLogEntity.class)))
+                .thenReturn(Flux.error(new RuntimeException("mongo down")))
+                .thenReturn(Flux.empty());
+        auditLogWriter.start();
+
+        auditLogWriter.write(entry("A"));
+        auditLogWriter.write(entry("B"));
+        auditLogWriter.write(entry("C"));
+        auditLogWriter.write(entry("D"));
+
+        assertEquals(2.0, events("failed"));
+        assertEquals(2.0, events("written"));
+    }
+}
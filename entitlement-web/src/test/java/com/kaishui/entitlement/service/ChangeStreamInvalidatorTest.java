@@ -0,0 +1,54 @@
+package com.kaishui.entitlement.service;
+
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.Document;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayName("ChangeStreamInvalidator Tests")
+class ChangeStreamInvalidatorTest {
+
+    @Test
+    @DisplayName("User inserts and updates should carry the staffId of the looked-up document")
+    void toChange_UserUpdate() {
+        EntitlementChangeEvent change = ChangeStreamInvalidator.toChange(EntitlementChangeEvent.USERS, OperationType.UPDATE,
+                "user1", new Document("_id", "user1").append("staffId", "staff001"));
+
+        assertEquals(new EntitlementChangeEvent(EntitlementChangeEvent.USERS, "user1", "staff001"), change);
+        assertTrue(change.affectsPermissions());
+    }
+
+    @Test
+    @DisplayName("Deletes should only carry the document id")
+    void toChange_Delete() {
+        EntitlementChangeEvent change = ChangeStreamInvalidator.toChange(EntitlementChangeEvent.USERS, OperationType.DELETE, "user1", null);
+
+        assertEquals(new EntitlementChangeEvent(EntitlementChangeEvent.USERS, "user1", null), change);
+    }
+
+    @Test
+    @DisplayName("Role, resource and group default role changes should not carry a staffId")
+    void toChange_OtherCollections() {
+        EntitlementChangeEvent roleChange = ChangeStreamInvalidator.toChange(EntitlementChangeEvent.ROLES, OperationType.REPLACE,
+                "role1", new Document("_id", "role1").append("staffId", "ignored"));
+        EntitlementChangeEvent groupChange = ChangeStreamInvalidator.toChange(EntitlementChangeEvent.GROUP_DEFAULT_ROLES, OperationType.INSERT,
+                "group1", new Document("_id", "group1"));
+
+        assertEquals(new EntitlementChangeEvent(EntitlementChangeEvent.ROLES, "role1", null), roleChange);
+        assertTrue(roleChange.affectsPermissions());
+        assertFalse(groupChange.affectsPermissions());
+    }
+
+    @Test
+    @DisplayName("Drops, renames and invalidations should invalidate everything")
+    void toChange_CollectionLevelEvents() {
+        assertTrue(ChangeStreamInvalidator.toChange(EntitlementChangeEvent.ROLES, OperationType.DROP, null, null).isAll());
+        assertTrue(ChangeStreamInvalidator.toChange(EntitlementChangeEvent.USERS, OperationType.RENAME, null, null).isAll());
+        assertTrue(ChangeStreamInvalidator.toChange(null, OperationType.INVALIDATE, null, null).isAll());
+        assertTrue(EntitlementChangeEvent.all().affectsPermissions());
+    }
+}
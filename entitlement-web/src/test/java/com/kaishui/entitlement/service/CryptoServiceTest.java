@@ -0,0 +1,72 @@
+package com.kaishui.entitlement.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayName("CryptoService Tests")
+class CryptoServiceTest {
+
+    private CryptoService cryptoService;
+
+    @BeforeEach
+    void setUp() {
+        cryptoService = new CryptoService();
+        ReflectionTestUtils.setField(cryptoService, "password", "test-password");
+        ReflectionTestUtils.setField(cryptoService, "algorithm", "PBEWITHHMACSHA512ANDAES_256");
+        ReflectionTestUtils.setField(cryptoService, "keyObtentionIterations", "1000");
+        ReflectionTestUtils.setField(cryptoService, "saltGeneratorClassName", "org.jasypt.salt.RandomSaltGenerator");
+        ReflectionTestUtils.setField(cryptoService, "ivGeneratorClassName", "org.jasypt.iv.RandomIvGenerator");
+        ReflectionTestUtils.setField(cryptoService, "stringOutputType", "base64");
+        ReflectionTestUtils.setField(cryptoService, "configuredPoolSize", 2);
+        cryptoService.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        cryptoService.stop();
+    }
+
+    @Test
+    @DisplayName("Encrypted values should decrypt back, with or without the ENC() wrapper, off the calling thread")
+    void encryptDecrypt_RoundTrip() {
+        String callingThread = Thread.currentThread().getName();
+        String encrypted = cryptoService.encrypt("secret").block();
+        assertNotEquals("secret", encrypted);
+
+        StepVerifier.create(cryptoService.decrypt(encrypted)).expectNext("secret").verifyComplete();
+        StepVerifier.create(cryptoService.decrypt("ENC(" + encrypted + ")")).expectNext("secret").verifyComplete();
+        StepVerifier.create(cryptoService.encrypt("secret").map(value -> Thread.currentThread().getName()))
+                .assertNext(thread -> {
+                    assertNotEquals(callingThread, thread);
+                    assertTrue(thread.startsWith("crypto"));
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Batch operations should keep the input order")
+    void encryptAllDecryptAll_KeepOrder() {
+        List<String> values = List.of("a", "b", "c", "d", "e");
+
+        StepVerifier.create(cryptoService.encryptAll(values).flatMap(cryptoService::decryptAll))
+                .expectNext(values)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Blank values and undecryptable input should fail with IllegalArgumentException")
+    void invalidInput_Fails() {
+        StepVerifier.create(cryptoService.encrypt(" ")).expectError(IllegalArgumentException.class).verify();
+        StepVerifier.create(cryptoService.decrypt("not-encrypted")).expectError(IllegalArgumentException.class).verify();
+        StepVerifier.create(cryptoService.decryptAll(List.of("not-encrypted"))).expectError(IllegalArgumentException.class).verify();
+    }
+}
@@ -0,0 +1,225 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.repository.ResourceRepository;
+import com.kaishui.entitlement.repository.RoleRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("EntitlementCatalog Tests")
+class EntitlementCatalogTest {
+
+    @Mock
+    private RoleRepository roleRepository;
+    @Mock
+    private ResourceRepository resourceRepository;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+
+    @InjectMocks
+    private EntitlementCatalog catalog;
+
+    private final Role admin = role("r-admin", "CASE_A", true);
+    private final Role viewer = role("r-viewer", "CASE_A", true);
+    private final Role other = role("r-other", "CASE_B", true);
+    private final Resource api = resource("res-api", "API", "G1");
+    private final Resource page = resource("res-page", "PAGE", "G2");
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(catalog, "refreshInterval", Duration.ofMinutes(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        catalog.stop();
+    }
+
+    private static Role role(String id, String userCase, boolean active) {
+        return Role.builder().id(id).roleName(id).userCase(userCase).isActive(active).build();
+    }
+
+    private static Resource resource(String id, String type, String... adGroups) {
+        return Resource.builder().id(id).name(id).type(type).isActive(true).adGroups(Arrays.asList(adGroups)).build();
+    }
+
+    private void givenCatalog() {
+        when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.just(viewer, other, admin));
+        when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(api, page));
+        catalog.start();
+    }
+
+    @Test
+    @DisplayName("Lookups by id, user case and type should be served from the loaded snapshot")
+    void lookups_ServedFromSnapshot() {
+        givenCatalog();
+
+        StepVerifier.create(catalog.activeRoles())
+                .expectNext(admin, other, viewer) // id order
+                .verifyComplete();
+        StepVerifier.create(catalog.activeRole("r-admin"))
+                .expectNext(admin)
+                .verifyComplete();
+        StepVerifier.create(catalog.activeRolesOfUserCase("CASE_A"))
+                .expectNext(admin, viewer)
+                .verifyComplete();
+        StepVerifier.create(catalog.activeRolesOfUserCase(List.of("r-viewer", "r-other", "r-missing", "r-viewer"), "CASE_A"))
+                .expectNext(viewer)
+                .verifyComplete();
+        StepVerifier.create(catalog.activeResources(List.of("res-page", "res-api"), "API"))
+                .expectNext(api)
+                .verifyComplete();
+        StepVerifier.create(catalog.accessibleResources(List.of("res-api", "res-page"), List.of("G2", "G3")))
+                .expectNext(page)
+                .verifyComplete();
+
+        assertEquals(1, catalog.version());
+        verify(roleRepository, times(1)).findAllByIsActive(true);
+        verify(roleRepository, never()).findById(anyString());
+    }
+
+    @Test
+    @DisplayName("A role refresh should swap in a copy with the role replaced, or removed once inactive")
+    void refreshRole_CopyOnWrite() {
+        givenCatalog();
+        Role renamed = role("r-admin", "CASE_B", true);
+        when(roleRepository.findById("r-admin")).thenReturn(Mono.just(renamed), Mono.just(role("r-admin", "CASE_B", false)));
+
+        StepVerifier.create(catalog.refreshRole("r-admin")).verifyComplete();
+
+        assertEquals(2, catalog.version());
+        StepVerifier.create(catalog.activeRolesOfUserCase("CASE_A"))
+                .expectNext(viewer)
+                .verifyComplete();
+        StepVerifier.create(catalog.activeRolesOfUserCase("CASE_B"))
+                .expectNext(renamed, other)
+                .verifyComplete();
+
+        StepVerifier.create(catalog.refreshRole("r-admin")).verifyComplete();
+
+        assertEquals(3, catalog.version());
+        StepVerifier.create(catalog.activeRole("r-admin")).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A resource refresh should drop a deleted resource")
+    void refreshResource_Deleted() {
+        givenCatalog();
+        when(resourceRepository.findById("res-api")).thenReturn(Mono.empty());
+
+        StepVerifier.create(catalog.refreshResource("res-api")).verifyComplete();
+
+        StepVerifier.create(catalog.activeResources(List.of("res-api"), "API")).verifyComplete();
+        StepVerifier.create(catalog.accessibleResources(List.of("res-page"), List.of("G2")))
+                .expectNext(page)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A failed reload should keep the current snapshot and version")
+    void refreshAll_FailureKeepsSnapshot() {
+        when(roleRepository.findAllByIsActive(true))
+                .thenReturn(Flux.just(admin), Flux.error(new IllegalStateException("boom")));
+        when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(api));
+        catalog.start();
+
+        StepVerifier.create(catalog.refreshAll()).verifyComplete();
+
+        assertEquals(1, catalog.version());
+        StepVerifier.create(catalog.activeRole("r-admin"))
+                .expectNext(admin)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A failed startup load should be retried by the next lookup instead of failing every lookup")
+    void start_FailedLoadRetried() {
+        when(roleRepository.findAllByIsActive(true))
+                .thenReturn(Flux.error(new IllegalStateException("mongo down")), Flux.just(admin));
+        when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(api));
+        catalog.start();
+
+        assertEquals(0, catalog.version());
+        StepVerifier.create(catalog.activeRole("r-admin"))
+                .expectNext(admin)
+                .verifyComplete();
+        assertEquals(1, catalog.version());
+    }
+
+    @Test
+    @DisplayName("A refresh submitted during a slow reload should be applied after it, not overwritten by it")
+    void refreshRole_AppliedAfterPendingReload() {
+        Sinks.One<Role> slow = Sinks.one();
+        when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.just(admin), slow.asMono().flux());
+        when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(api));
+        Role renamed = role("r-admin", "CASE_B", true);
+        when(roleRepository.findById("r-admin")).thenReturn(Mono.just(renamed));
+        catalog.start();
+
+        catalog.refreshAll().subscribe();
+        catalog.refreshRole("r-admin").subscribe();
+        slow.tryEmitValue(admin); // The reload read the role before it changed
+
+        assertEquals(3, catalog.version());
+        StepVerifier.create(catalog.activeRole("r-admin"))
+                .expectNext(renamed)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Role and resource changes should be patched in, a whole database change reloaded, others ignored")
+    void onChange_RoutesChanges() {
+        givenCatalog();
+        when(roleRepository.findById("r-admin")).thenReturn(Mono.just(admin));
+        when(resourceRepository.findById("res-api")).thenReturn(Mono.just(api));
+
+        catalog.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.USERS, "u1", "s1"));
+        catalog.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.ROLES, "r-admin", null));
+        catalog.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.RESOURCES, "res-api", null));
+        catalog.onChange(EntitlementChangeEvent.all());
+
+        verify(roleRepository).findById("r-admin");
+        verify(resourceRepository).findById("res-api");
+        verify(roleRepository, times(2)).findAllByIsActive(true);
+        assertEquals(4, catalog.version());
+    }
+
+    @Test
+    @DisplayName("Decisions should be evicted once a change is applied, not when it is received")
+    void onChange_EvictsDecisionsAfterSwap() {
+        givenCatalog();
+        Sinks.One<Role> slow = Sinks.one();
+        when(roleRepository.findById("r-admin")).thenReturn(slow.asMono());
+
+        catalog.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.ROLES, "r-admin", null));
+        verify(permissionDecisionCache, never()).evictAll();
+
+        slow.tryEmitValue(admin);
+        verify(permissionDecisionCache).evictAll();
+        assertEquals(2, catalog.version());
+    }
+}
@@ -0,0 +1,227 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation;
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation.Status;
+import com.kaishui.entitlement.entity.User;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("GroupDefaultRoleReconciler Tests")
+class GroupDefaultRoleReconcilerTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    @Mock
+    private PermissionCheckerInterface permissionChecker;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+    @Mock
+    private ReactiveBulkOperations bulkOps;
+
+    @InjectMocks
+    private GroupDefaultRoleReconciler reconciler;
+
+    @BeforeEach
+    void setUp() {
+        lenient().when(permissionChecker.refreshUsers(any())).thenReturn(Mono.empty());
+        ReflectionTestUtils.setField(reconciler, "enabled", true);
+        ReflectionTestUtils.setField(reconciler, "batchSize", 2);
+        ReflectionTestUtils.setField(reconciler, "batchDelay", Duration.ZERO);
+        ReflectionTestUtils.setField(reconciler, "lease", Duration.ofMinutes(2));
+        ReflectionTestUtils.setField(reconciler, "instanceId", "node-1");
+    }
+
+    @AfterEach
+    void tearDown() {
+        reconciler.stop();
+    }
+
+    private static GroupDefaultRoleReconciliation job(List<String> add, List<String> remove, String lastUserId) {
+        return GroupDefaultRoleReconciliation.builder().id("job1").groupName("G1").addRoleIds(add).removeRoleIds(remove)
+                .status(Status.RUNNING).owner("node-1").lastUserId(lastUserId).build();
+    }
+
+    private static User user(String id, String staffId) {
+        return User.builder().id(id).staffId(staffId).build();
+    }
+
+    private void givenBulkWrite(int modified) {
+        when(reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class)).thenReturn(bulkOps);
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getModifiedCount()).thenReturn(modified);
+        when(bulkOps.execute()).thenReturn(Mono.just(result));
+    }
+
+    @Test
+    @DisplayName("A change should supersede the group's running job, carry over its removals and start a new job")
+    void reconcile_SupersedesAndStarts() {
+        GroupDefaultRoleReconciliation running = job(List.of("r1"), List.of("r-old"), "u9");
+        running.setId("job0");
+        when(reactiveMongoTemplate.find(any(Query.class), eq(GroupDefaultRoleReconciliation.class))).thenReturn(Flux.just(running));
+        when(reactiveMongoTemplate.updateMulti(any(Query.class), any(Update.class), eq(GroupDefaultRoleReconciliation.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(reactiveMongoTemplate.insert(any(GroupDefaultRoleReconciliation.class))).thenAnswer(invocation -> {
+            GroupDefaultRoleReconciliation inserted = invocation.getArgument(0);
+            inserted.setId("job1");
+            return Mono.just(inserted);
+        });
+        // The new job finds no users and completes
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.empty());
+        ArgumentCaptor<Update> completion = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), completion.capture(), eq(GroupDefaultRoleReconciliation.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(reconciler.reconcile("G1", List.of("r1", "r2"), List.of("r2", "r3", "r2")))
+                .assertNext(started -> {
+                    assertEquals(List.of("r2", "r3"), started.getAddRoleIds());
+                    assertEquals(List.of("r1", "r-old"), started.getRemoveRoleIds());
+                    assertEquals(Status.RUNNING, started.getStatus());
+                    assertEquals("node-1", started.getOwner());
+                })
+                .verifyComplete();
+
+        ArgumentCaptor<Update> superseded = ArgumentCaptor.forClass(Update.class);
+        verify(reactiveMongoTemplate).updateMulti(any(Query.class), superseded.capture(), eq(GroupDefaultRoleReconciliation.class));
+        assertEquals(Status.SUPERSEDED, superseded.getValue().getUpdateObject().get("$set", Document.class).get("status"));
+        assertEquals(Status.COMPLETED, completion.getValue().getUpdateObject().get("$set", Document.class).get("status"));
+    }
+
+    @Test
+    @DisplayName("A change adding and removing nothing should start no job")
+    void reconcile_NothingToChange() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(GroupDefaultRoleReconciliation.class))).thenReturn(Flux.empty());
+
+        StepVerifier.create(reconciler.reconcile("G1", null, List.of()))
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).insert(any(GroupDefaultRoleReconciliation.class));
+    }
+
+    @Test
+    @DisplayName("A batch should be one bulk write of $addToSet and a $pull guarded to default grants, then checkpointed")
+    void step_AppliesBatchAndCheckpoints() {
+        ArgumentCaptor<Query> usersQuery = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(usersQuery.capture(), eq(User.class)))
+                .thenReturn(Flux.just(user("u1", "s1"), user("u2", "s2")));
+        ArgumentCaptor<Query> mappingsQuery = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(mappingsQuery.capture(), eq(GroupDefaultRole.class)))
+                .thenReturn(Flux.just(GroupDefaultRole.builder().groupName("G2").roleIds(List.of("r0", "r1")).build()));
+        givenBulkWrite(3);
+        GroupDefaultRoleReconciliation checkpointed = job(List.of("r2"), List.of("r1"), "u2");
+        ArgumentCaptor<Update> checkpoint = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), checkpoint.capture(), any(FindAndModifyOptions.class),
+                eq(GroupDefaultRoleReconciliation.class))).thenReturn(Mono.just(checkpointed));
+
+        StepVerifier.create(reconciler.step(job(List.of("r2"), List.of("r1"), "u0")))
+                .expectNext(checkpointed)
+                .verifyComplete();
+
+        Document usersFilter = usersQuery.getValue().getQueryObject();
+        assertEquals("G1", usersFilter.get("adGroups"));
+        assertEquals(false, usersFilter.get("isFirstLogin"));
+        assertEquals("u0", usersFilter.get("id", Document.class).get("$gt"));
+        assertEquals(2, usersQuery.getValue().getLimit());
+
+        ArgumentCaptor<Query> writeQueries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> writes = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOps, times(2)).updateMulti(writeQueries.capture(), writes.capture());
+        assertEquals("r2", writeQueries.getAllValues().get(0).getQueryObject().get("roleIds", Document.class).get("$ne"));
+        Document addToSet = writes.getAllValues().get(0).getUpdateObject().get("$addToSet", Document.class);
+        assertEquals("r2", addToSet.get("roleIds"));
+        assertEquals("r2", addToSet.get("defaultRoleIds"));
+        assertEquals(List.of("r1"), mappingsQuery.getValue().getQueryObject().get("roleIds", Document.class).get("$in"));
+        Document pullFilter = writeQueries.getAllValues().get(1).getQueryObject();
+        assertEquals("r1", pullFilter.get("defaultRoleIds"));
+        assertFalse(pullFilter.containsKey("roleIds"));
+        assertEquals(Set.of("G2"), Set.copyOf((Collection<?>) pullFilter.get("adGroups", Document.class).get("$nin")));
+        Document pull = writes.getAllValues().get(1).getUpdateObject().get("$pull", Document.class);
+        assertEquals("r1", pull.get("roleIds"));
+        assertEquals("r1", pull.get("defaultRoleIds"));
+
+        Document progress = checkpoint.getValue().getUpdateObject();
+        assertEquals("u2", progress.get("$set", Document.class).get("lastUserId"));
+        assertEquals(2, progress.get("$inc", Document.class).get("usersScanned"));
+        assertEquals(3L, progress.get("$inc", Document.class).get("updates"));
+        verify(permissionDecisionCache).evictUsers(List.of("s1", "s2"));
+    }
+
+    @Test
+    @DisplayName("A job superseded or taken over should stop after its current batch")
+    void step_StopsWhenNoLongerOwned() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.just(user("u1", "s1")));
+        givenBulkWrite(1);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(GroupDefaultRoleReconciliation.class))).thenReturn(Mono.empty());
+
+        StepVerifier.create(reconciler.step(job(List.of("r2"), List.of(), null)))
+                .verifyComplete();
+
+        verify(bulkOps).updateMulti(any(Query.class), any(Update.class));
+        verify(reactiveMongoTemplate, never()).updateFirst(any(Query.class), any(Update.class), eq(GroupDefaultRoleReconciliation.class));
+    }
+
+    @Test
+    @DisplayName("A job still running on this instance should not be claimed again by it")
+    void resume_SkipsJobsRunningHere() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(GroupDefaultRoleReconciliation.class))).thenReturn(Flux.empty());
+        when(reactiveMongoTemplate.insert(any(GroupDefaultRoleReconciliation.class))).thenAnswer(invocation -> {
+            GroupDefaultRoleReconciliation inserted = invocation.getArgument(0);
+            inserted.setId("job1");
+            return Mono.just(inserted);
+        });
+        // The first batch outlasts the lease
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.never());
+        ArgumentCaptor<Query> claimable = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.findAndModify(claimable.capture(), any(Update.class), any(FindAndModifyOptions.class),
+                eq(GroupDefaultRoleReconciliation.class))).thenReturn(Mono.empty());
+
+        StepVerifier.create(reconciler.reconcile("G1", null, List.of("r1")))
+                .expectNextCount(1)
+                .verifyComplete();
+        reconciler.resume();
+
+        verify(reactiveMongoTemplate, timeout(1000)).findAndModify(any(Query.class), any(Update.class),
+                any(FindAndModifyOptions.class), eq(GroupDefaultRoleReconciliation.class));
+        assertEquals(List.of("job1"), claimable.getValue().getQueryObject().get("id", Document.class).get("$nin"));
+    }
+}
@@ -38,6 +38,12 @@ class GroupDefaultRoleServiceTest {
     @Mock
     private GroupDefaultRoleMapper groupDefaultRoleMapper;
 
+    @Mock
+    private GroupDefaultRoleTable groupDefaultRoleTable;
+
+    @Mock
+    private GroupDefaultRoleReconciler groupDefaultRoleReconciler;
+
     @InjectMocks
     private GroupDefaultRoleService groupDefaultRoleService;
 
@@ -139,6 +145,8 @@ class GroupDefaultRoleServiceTest {
         when(groupDefaultRoleMapper.toEntity(any(CreateGroupDefaultRoleDto.class))).thenReturn(newEntity);
         when(groupDefaultRoleRepository.save(any(GroupDefaultRole.class))).thenReturn(Mono.just(savedEntity));
         when(groupDefaultRoleMapper.toDto(any(GroupDefaultRole.class))).thenReturn(finalDto);
+        when(groupDefaultRoleTable.rebuild()).thenReturn(Mono.empty());
+        when(groupDefaultRoleReconciler.reconcile(newGroupName, List.of(), createDto.getRoleIds())).thenReturn(Mono.empty());
 
         // Execution
         Mono<GroupDefaultRoleDto> result = groupDefaultRoleService.createGroupDefaultRole(Mono.just(createDto));
@@ -153,6 +161,8 @@ class GroupDefaultRoleServiceTest {
         verify(groupDefaultRoleMapper).toEntity(createDto);
         verify(groupDefaultRoleRepository).save(newEntity);
         verify(groupDefaultRoleMapper).toDto(savedEntity);
+        verify(groupDefaultRoleTable).rebuild();
+        verify(groupDefaultRoleReconciler).reconcile(newGroupName, List.of(), createDto.getRoleIds());
     }
 
     @Test
@@ -173,6 +183,7 @@ class GroupDefaultRoleServiceTest {
         verify(groupDefaultRoleMapper, never()).toEntity(any());
         verify(groupDefaultRoleRepository, never()).save(any());
         verify(groupDefaultRoleMapper, never()).toDto(any());
+        verify(groupDefaultRoleTable, never()).rebuild();
     }
 
     @Test
@@ -303,6 +314,10 @@ class GroupDefaultRoleServiceTest {
         doNothing().when(groupDefaultRoleMapper).updateEntityFromDto(any(UpdateGroupDefaultRoleDto.class), any(GroupDefaultRole.class));
         when(groupDefaultRoleRepository.save(any(GroupDefaultRole.class))).thenReturn(Mono.just(updatedEntityState));
         when(groupDefaultRoleMapper.toDto(any(GroupDefaultRole.class))).thenReturn(finalDto);
+        when(groupDefaultRoleTable.rebuild()).thenReturn(Mono.empty());
+        // Reconciled against the roles before the update; failing to start it must not fail the update
+        when(groupDefaultRoleReconciler.reconcile(groupName1, List.of("role-id-1", "role-id-2"), updateDto.getRoleIds()))
+                .thenReturn(Mono.error(new IllegalStateException("Mongo unavailable")));
 
         Mono<GroupDefaultRoleDto> result = groupDefaultRoleService.updateGroupDefaultRole(groupRoleId1, Mono.just(updateDto));
 
@@ -315,6 +330,8 @@ class GroupDefaultRoleServiceTest {
         verify(groupDefaultRoleMapper).updateEntityFromDto(updateDto, groupRole1);
         verify(groupDefaultRoleRepository).save(groupRole1); // The object passed to save is the one modified by the mapper
         verify(groupDefaultRoleMapper).toDto(updatedEntityState);
+        verify(groupDefaultRoleTable).rebuild();
+        verify(groupDefaultRoleReconciler).reconcile(groupName1, List.of("role-id-1", "role-id-2"), updateDto.getRoleIds());
     }
 
     @Test
@@ -332,6 +349,7 @@ class GroupDefaultRoleServiceTest {
         verify(groupDefaultRoleMapper, never()).updateEntityFromDto(any(), any());
         verify(groupDefaultRoleRepository, never()).save(any());
         verify(groupDefaultRoleMapper, never()).toDto(any());
+        verify(groupDefaultRoleTable, never()).rebuild();
     }
 
     @Test
@@ -339,6 +357,7 @@ class GroupDefaultRoleServiceTest {
     void deleteGroupDefaultRole_Success() {
         when(groupDefaultRoleRepository.findById(groupRoleId1)).thenReturn(Mono.just(groupRole1));
         when(groupDefaultRoleRepository.delete(groupRole1)).thenReturn(Mono.empty()); // delete returns Mono<Void>
+        when(groupDefaultRoleTable.rebuild()).thenReturn(Mono.empty());
 
         Mono<Void> result = groupDefaultRoleService.deleteGroupDefaultRole(groupRoleId1);
 
@@ -347,6 +366,8 @@ class GroupDefaultRoleServiceTest {
 
         verify(groupDefaultRoleRepository).findById(groupRoleId1);
         verify(groupDefaultRoleRepository).delete(groupRole1);
+        verify(groupDefaultRoleTable).rebuild();
+        verify(groupDefaultRoleReconciler, never()).reconcile(any(), any(), any());
     }
 
     @Test
@@ -362,5 +383,6 @@ class GroupDefaultRoleServiceTest {
 
         verify(groupDefaultRoleRepository).findById("nonexistent-id");
         verify(groupDefaultRoleRepository, never()).delete(any());
+        verify(groupDefaultRoleTable, never()).rebuild();
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.repository.GroupDefaultRoleRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("GroupDefaultRoleTable Tests")
+class GroupDefaultRoleTableTest {
+
+    @Mock
+    private GroupDefaultRoleRepository groupDefaultRoleRepository;
+
+    @InjectMocks
+    private GroupDefaultRoleTable table;
+
+    private final GroupDefaultRole admins = mapping("G-ADMIN", "r-admin", "r-user");
+    private final GroupDefaultRole users = mapping("G-USER", "r-user", "r-guest", "r-user");
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(table, "refreshInterval", Duration.ofMinutes(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        table.stop();
+    }
+
+    private static GroupDefaultRole mapping(String groupName, String... roleIds) {
+        return GroupDefaultRole.builder().groupName(groupName).roleIds(Arrays.asList(roleIds)).build();
+    }
+
+    @Test
+    @DisplayName("Default roles should be the distinct union over the user's groups, without querying per call")
+    void defaultRoleIds_Union() {
+        when(groupDefaultRoleRepository.findAll())
+                .thenReturn(Flux.just(admins, users, mapping("G-EMPTY"), mapping("G-NULL", "r-x", null)));
+        table.start();
+
+        StepVerifier.create(table.defaultRoleIds(List.of("G-USER", "G-UNKNOWN", "G-ADMIN")))
+                .expectNext(List.of("r-user", "r-guest", "r-admin"))
+                .verifyComplete();
+        StepVerifier.create(table.defaultRoleIds(Arrays.asList("G-EMPTY", null, "G-NULL")))
+                .expectNext(List.of("r-x"))
+                .verifyComplete();
+        StepVerifier.create(table.defaultRoleIds(null))
+                .expectNext(List.of())
+                .verifyComplete();
+
+        verify(groupDefaultRoleRepository, times(1)).findAll();
+    }
+
+    @Test
+    @DisplayName("A failed startup load should be retried by the next login instead of failing every login")
+    void start_FailedLoadRetried() {
+        when(groupDefaultRoleRepository.findAll())
+                .thenReturn(Flux.error(new IllegalStateException("mongo down")), Flux.just(admins));
+        table.start();
+
+        StepVerifier.create(table.defaultRoleIds(List.of("G-ADMIN")))
+                .expectNext(List.of("r-admin", "r-user"))
+                .verifyComplete();
+        verify(groupDefaultRoleRepository, times(2)).findAll();
+    }
+
+    @Test
+    @DisplayName("A rebuild should swap in the current mappings")
+    void rebuild_SwapsTable() {
+        when(groupDefaultRoleRepository.findAll())
+                .thenReturn(Flux.just(admins), Flux.just(mapping("G-ADMIN", "r-root")));
+        table.start();
+
+        StepVerifier.create(table.rebuild()).verifyComplete();
+
+        StepVerifier.create(table.defaultRoleIds(List.of("G-ADMIN")))
+                .expectNext(List.of("r-root"))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A failed rebuild should keep the previous table")
+    void rebuild_FailureKeepsTable() {
+        when(groupDefaultRoleRepository.findAll())
+                .thenReturn(Flux.just(admins), Flux.error(new IllegalStateException("boom")));
+        table.start();
+
+        StepVerifier.create(table.rebuild()).verifyComplete();
+
+        StepVerifier.create(table.defaultRoleIds(List.of("G-ADMIN")))
+                .expectNext(List.of("r-admin", "r-user"))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A rebuild finishing after a later one should not replace its table")
+    void rebuild_StaleResultIgnored() {
+        Sinks.One<GroupDefaultRole> slow = Sinks.one();
+        when(groupDefaultRoleRepository.findAll())
+                .thenReturn(Flux.just(admins), slow.asMono().flux(), Flux.just(mapping("G-ADMIN", "r-new")));
+        table.start();
+
+        table.rebuild().subscribe();
+        StepVerifier.create(table.rebuild()).verifyComplete();
+        slow.tryEmitValue(mapping("G-ADMIN", "r-old"));
+
+        StepVerifier.create(table.defaultRoleIds(List.of("G-ADMIN")))
+                .expectNext(List.of("r-new"))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Only group default role changes should trigger a rebuild")
+    void onChange_RebuildsOnGroupDefaultRoleChanges() {
+        when(groupDefaultRoleRepository.findAll()).thenReturn(Flux.just(admins));
+        table.start();
+
+        table.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.ROLES, "r-admin", null));
+        verify(groupDefaultRoleRepository, times(1)).findAll();
+
+        table.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.GROUP_DEFAULT_ROLES, "g1", null));
+        table.onChange(EntitlementChangeEvent.all());
+        verify(groupDefaultRoleRepository, times(3)).findAll();
+    }
+}
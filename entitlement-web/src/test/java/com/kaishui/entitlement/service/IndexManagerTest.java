@@ -0,0 +1,157 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.User;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.ReactiveIndexOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("IndexManager Tests")
+class IndexManagerTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+    @Mock
+    private ReactiveIndexOperations indexOps;
+
+    @InjectMocks
+    private IndexManager indexManager;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(indexManager, "create", false);
+        ReflectionTestUtils.setField(indexManager, "verify", true);
+        ReflectionTestUtils.setField(indexManager, "onCollectionScan", "warn");
+    }
+
+    private static Document plan(Document winningPlan) {
+        return new Document("queryPlanner", new Document("winningPlan", winningPlan));
+    }
+
+    private static Document indexScan() {
+        return plan(new Document("stage", "FETCH").append("inputStage", new Document("stage", "IXSCAN")));
+    }
+
+    private static Document collectionScan() {
+        return plan(new Document("stage", "COLLSCAN"));
+    }
+
+    @Test
+    @DisplayName("Every declared index should be created, continuing past one that fails")
+    void ensureIndexes_CreatesAll() {
+        int declared = IndexManager.INDEXES.values().stream().mapToInt(List::size).sum();
+        when(reactiveMongoTemplate.indexOps(any(Class.class))).thenReturn(indexOps);
+        when(indexOps.ensureIndex(any(IndexDefinition.class)))
+                .thenReturn(Mono.error(new IllegalStateException("E11000 duplicate key")), Mono.just("created"));
+
+        StepVerifier.create(indexManager.ensureIndexes()).verifyComplete();
+
+        verify(indexOps, times(declared)).ensureIndex(any(IndexDefinition.class));
+    }
+
+    @Test
+    @DisplayName("Indexes of queries filtering on active documents only should be partial on isActive")
+    void indexes_PartialOnActive() {
+        Index activeAdGroups = IndexManager.INDEXES.get(User.class).stream()
+                .filter(index -> "users_active_adGroups".equals(index.getIndexOptions().get("name")))
+                .findFirst().orElseThrow();
+
+        assertEquals(new Document("isActive", true), activeAdGroups.getIndexOptions().get("partialFilterExpression"));
+        assertEquals(new Document("adGroups", 1).append("_id", 1), activeAdGroups.getIndexKeys());
+    }
+
+    @Test
+    @DisplayName("A collection scan should be found at any depth of the winning plan, including on shards")
+    void isCollectionScan_NestedPlans() {
+        assertFalse(IndexManager.isCollectionScan(indexScan()));
+        assertTrue(IndexManager.isCollectionScan(collectionScan()));
+        assertTrue(IndexManager.isCollectionScan(plan(new Document("stage", "SHARD_MERGE").append("shards", List.of(
+                new Document("winningPlan", new Document("stage", "IXSCAN")),
+                new Document("winningPlan", new Document("stage", "FETCH")
+                        .append("inputStage", new Document("stage", "COLLSCAN"))))))));
+        assertFalse(IndexManager.isCollectionScan(new Document("ok", 1)));
+    }
+
+    @Test
+    @DisplayName("Verification should name each hot query explained as a collection scan")
+    void verifyHotQueries_NamesCollectionScans() {
+        ArgumentCaptor<Document> commands = ArgumentCaptor.forClass(Document.class);
+        when(reactiveMongoTemplate.executeCommand(commands.capture()))
+                .thenReturn(Mono.just(collectionScan()), Mono.just(indexScan()));
+
+        StepVerifier.create(indexManager.verifyHotQueries())
+                .expectNext(List.of(IndexManager.HOT_QUERIES.get(0).name()))
+                .verifyComplete();
+
+        Document first = commands.getAllValues().get(0);
+        assertEquals("queryPlanner", first.get("verbosity"));
+        assertEquals("users", first.get("explain", Document.class).get("find"));
+        assertEquals(IndexManager.HOT_QUERIES.size(), commands.getAllValues().size());
+    }
+
+    @Test
+    @DisplayName("A collection scan should only be logged in warn mode")
+    void onReady_WarnKeepsReadiness() {
+        when(reactiveMongoTemplate.executeCommand(any(Document.class))).thenReturn(Mono.just(collectionScan()));
+
+        indexManager.onReady();
+
+        verify(eventPublisher, never()).publishEvent(any(ApplicationEvent.class));
+    }
+
+    @Test
+    @DisplayName("A collection scan should refuse traffic in fail mode")
+    void onReady_FailRefusesTraffic() {
+        ReflectionTestUtils.setField(indexManager, "onCollectionScan", "fail");
+        when(reactiveMongoTemplate.executeCommand(any(Document.class)))
+                .thenReturn(Mono.just(indexScan()), Mono.just(collectionScan()));
+
+        indexManager.onReady();
+
+        ArgumentCaptor<ApplicationEvent> event = ArgumentCaptor.forClass(ApplicationEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertEquals(ReadinessState.REFUSING_TRAFFIC, ((AvailabilityChangeEvent<?>) event.getValue()).getState());
+    }
+
+    @Test
+    @DisplayName("Readiness should be kept when every hot query uses an index")
+    void onReady_AllIndexed() {
+        ReflectionTestUtils.setField(indexManager, "onCollectionScan", "fail");
+        when(reactiveMongoTemplate.executeCommand(any(Document.class))).thenReturn(Mono.just(indexScan()));
+
+        indexManager.onReady();
+
+        verify(eventPublisher, never()).publishEvent(any(ApplicationEvent.class));
+        verify(reactiveMongoTemplate, never()).indexOps(any(Class.class));
+    }
+}
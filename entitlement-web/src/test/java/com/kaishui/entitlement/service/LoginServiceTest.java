@@ -0,0 +1,230 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.GroupDefaultRole;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.exception.CommonException;
+import com.kaishui.entitlement.repository.GroupDefaultRoleRepository;
+import com.kaishui.entitlement.repository.ResourceRepository;
+import com.kaishui.entitlement.repository.RoleRepository;
+import com.kaishui.entitlement.repository.UserRepository;
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.UserMapper;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mapstruct.factory.Mappers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("LoginService Tests")
+class LoginServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    @Mock
+    private UserRepository userRepository;
+    @Mock
+    private RoleRepository roleRepository;
+    @Mock
+    private ResourceRepository resourceRepository;
+    @Mock
+    private GroupDefaultRoleRepository groupDefaultRoleRepository;
+    @Mock
+    private AuthorizationUtil authorizationUtil;
+    @Mock
+    private PermissionCheckerInterface permissionChecker;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+
+    private GroupDefaultRoleTable groupDefaultRoleTable;
+    private EntitlementCatalog entitlementCatalog;
+    private LoginService loginService;
+
+    // Every subscription to a stubbed repository or template publisher is one command sent to MongoDB
+    private final AtomicInteger commands = new AtomicInteger();
+
+    private final User profile = User.builder().staffId("staff001").username("alice").email("alice@example.com")
+            .adGroups(List.of("G1")).roleIds(List.of("ignored")).build();
+    private final Role reader = Role.builder().id("r1").roleName("Reader").isActive(true).resourceIds(List.of("res1")).build();
+    private final Resource report = Resource.builder().id("res1").name("Report").isActive(true).adGroups(List.of("G1")).build();
+
+    @BeforeEach
+    void setUp() {
+        // Loaded once at startup, so not counted as a login command
+        lenient().when(groupDefaultRoleRepository.findAll())
+                .thenReturn(Flux.just(GroupDefaultRole.builder().groupName("G1").roleIds(List.of("r1")).build()));
+        groupDefaultRoleTable = new GroupDefaultRoleTable(groupDefaultRoleRepository);
+        ReflectionTestUtils.setField(groupDefaultRoleTable, "refreshInterval", Duration.ofMinutes(10));
+        groupDefaultRoleTable.start();
+        lenient().when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.just(reader));
+        lenient().when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(report));
+        entitlementCatalog = new EntitlementCatalog(roleRepository, resourceRepository, permissionDecisionCache);
+        ReflectionTestUtils.setField(entitlementCatalog, "refreshInterval", Duration.ofMinutes(10));
+        entitlementCatalog.start();
+        // Resolve entitlements from the catalog rather than the read model
+        UserService userService = new UserService(userRepository, roleRepository, authorizationUtil,
+                Mappers.getMapper(UserMapper.class), null, permissionDecisionCache, permissionChecker, groupDefaultRoleTable, null,
+                reactiveMongoTemplate, entitlementCatalog);
+        ReflectionTestUtils.setField(userService, "readModelEnabled", false);
+        ReflectionTestUtils.setField(userService, "resolution", "queries");
+        loginService = new LoginService(reactiveMongoTemplate, userRepository, userService, authorizationUtil, permissionChecker,
+                permissionDecisionCache);
+        lenient().when(permissionChecker.refreshUsers(any())).thenReturn(Mono.empty());
+        lenient().when(authorizationUtil.extractUsernameFromContext(any())).thenReturn("alice");
+    }
+
+    @AfterEach
+    void tearDown() {
+        groupDefaultRoleTable.stop();
+        entitlementCatalog.stop();
+    }
+
+    private <T> Mono<T> command(Mono<T> result) {
+        return result.doOnSubscribe(subscription -> commands.incrementAndGet());
+    }
+
+    private <T> Flux<T> command(Flux<T> result) {
+        return result.doOnSubscribe(subscription -> commands.incrementAndGet());
+    }
+
+    private User stored(boolean firstLogin, List<String> roleIds) {
+        return User.builder().id("u1").staffId("staff001").username("alice").email("alice@example.com").adGroups(List.of("G1"))
+                .roleIds(roleIds).isActive(true).isFirstLogin(firstLogin).build();
+    }
+
+    @Test
+    @DisplayName("A returning user with an unchanged profile should cost one upsert writing nothing, resolving roles and resources from the catalog")
+    void login_ReturningUser_OneCommand() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        ArgumentCaptor<FindAndModifyOptions> options = ArgumentCaptor.forClass(FindAndModifyOptions.class);
+        when(reactiveMongoTemplate.findAndModify(query.capture(), update.capture(), options.capture(), eq(User.class)))
+                .thenReturn(command(Mono.just(stored(false, List.of("r1")))));
+
+        StepVerifier.create(loginService.login(profile))
+                .assertNext(dto -> {
+                    assertEquals("staff001", dto.getStaffId());
+                    assertEquals(List.of(reader), dto.getRoles());
+                    assertEquals("res1", dto.getResources().get(0).getId());
+                })
+                .verifyComplete();
+
+        assertEquals(1, commands.get());
+        assertEquals(new Document("staffId", "staff001"), query.getValue().getQueryObject());
+        assertTrue(options.getValue().isUpsert());
+        assertTrue(options.getValue().isReturnNew());
+        Document upsert = update.getValue().getUpdateObject();
+        assertEquals(Set.of("$setOnInsert"), upsert.keySet()); // Neither the audit fields nor the version of an existing user
+        assertEquals("alice@example.com", upsert.get("$setOnInsert", Document.class).get("email"));
+        assertEquals(List.of(), upsert.get("$setOnInsert", Document.class).get("roleIds")); // Never taken from the profile
+        assertEquals(true, upsert.get("$setOnInsert", Document.class).get("isFirstLogin"));
+        assertEquals(true, upsert.get("$setOnInsert", Document.class).get("isActive"));
+        // The checker first, so the next check does not re-cache a decision from before the login
+        InOrder order = inOrder(permissionChecker, permissionDecisionCache);
+        order.verify(permissionChecker).refreshUsers(List.of("staff001"));
+        order.verify(permissionDecisionCache).evictUser("staff001");
+    }
+
+    @Test
+    @DisplayName("A changed profile should add one write of the changed fields, bumping the version")
+    void login_ChangedProfile_WritesChangedFields() {
+        User changedProfile = User.builder().staffId("staff001").username("alice").email("alice@new.example.com")
+                .adGroups(List.of("G1")).build();
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.findAndModify(query.capture(), update.capture(), any(FindAndModifyOptions.class), eq(User.class)))
+                .thenReturn(command(Mono.just(stored(false, List.of("r1")))), command(Mono.just(stored(false, List.of("r1")))));
+
+        StepVerifier.create(loginService.login(changedProfile))
+                .assertNext(dto -> assertEquals(List.of(reader), dto.getRoles()))
+                .verifyComplete();
+
+        assertEquals(2, commands.get());
+        Document filter = query.getAllValues().get(1).getQueryObject();
+        assertEquals("u1", filter.get("id"));
+        assertEquals(List.of(new Document("email", new Document("$ne", "alice@new.example.com"))), filter.get("$or"));
+        Document write = update.getAllValues().get(1).getUpdateObject();
+        assertEquals(Set.of("email", "lastModifiedBy", "lastModifiedDate"), write.get("$set", Document.class).keySet());
+        assertEquals(1, write.get("$inc", Document.class).get("version"));
+    }
+
+    @Test
+    @DisplayName("A first login should add one write, taking default roles from the in-memory table")
+    void login_FirstLogin_TwoCommands() {
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), update.capture(), any(FindAndModifyOptions.class), eq(User.class)))
+                .thenReturn(command(Mono.just(stored(true, List.of()))), command(Mono.just(stored(false, List.of("r1")))));
+
+        StepVerifier.create(loginService.login(profile))
+                .assertNext(dto -> assertEquals(List.of(reader), dto.getRoles()))
+                .verifyComplete();
+
+        assertEquals(2, commands.get());
+        assertEquals(List.of("r1"), update.getAllValues().get(1).getUpdateObject().get("$set", Document.class).get("roleIds"));
+        assertEquals(List.of("r1"), update.getAllValues().get(1).getUpdateObject().get("$set", Document.class).get("defaultRoleIds"));
+        verify(groupDefaultRoleRepository, never()).findByGroupNameIn(any());
+    }
+
+    @Test
+    @DisplayName("An inactive user should be refused, without inserting an active duplicate")
+    void login_InactiveUser() {
+        User inactive = stored(false, List.of("r1"));
+        inactive.setActive(false);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(User.class)))
+                .thenReturn(Mono.just(inactive));
+
+        StepVerifier.create(loginService.login(profile))
+                .expectErrorMatches(e -> e instanceof CommonException
+                        && e.getMessage().contains("Cannot update inactive user with staffId: staff001"))
+                .verify();
+
+        verify(reactiveMongoTemplate).findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(User.class));
+        verify(permissionDecisionCache, never()).evictUser(any());
+    }
+
+    @Test
+    @DisplayName("An insert racing a concurrent first login should be retried as an update")
+    void login_ConcurrentInsert_Retried() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(User.class)))
+                .thenReturn(Mono.error(new DuplicateKeyException("E11000 duplicate key error collection: users index: staffId")),
+                        Mono.just(stored(false, List.of("r1"))));
+
+        StepVerifier.create(loginService.login(profile))
+                .assertNext(dto -> assertEquals(List.of(reader), dto.getRoles()))
+                .verifyComplete();
+
+        verify(userRepository, never()).findByStaffId(any());
+    }
+}
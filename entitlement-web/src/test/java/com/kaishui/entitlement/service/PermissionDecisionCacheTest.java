@@ -0,0 +1,159 @@
+package com.kaishui.entitlement.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DisplayName("PermissionDecisionCache Tests")
+class PermissionDecisionCacheTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private PermissionDecisionCache cache;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new PermissionDecisionCache(meterRegistry, 1000, Duration.ofMinutes(5), true);
+        loads = new AtomicInteger();
+    }
+
+    private Mono<Boolean> load(boolean allowed) {
+        return Mono.fromSupplier(() -> {
+            loads.incrementAndGet();
+            return allowed;
+        });
+    }
+
+    @Test
+    @DisplayName("Repeated checks should be answered from the cache, ignoring method case")
+    void get_CachesDecision() {
+        StepVerifier.create(cache.get("staff001", "GET", "/users/1", () -> load(true))).expectNext(true).verifyComplete();
+        StepVerifier.create(cache.get("staff001", "get", "/users/1", () -> load(false))).expectNext(true).verifyComplete();
+
+        assertEquals(1, loads.get());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", PermissionDecisionCache.CACHE_NAME).tag("result", "hit")
+                .functionCounter().count());
+    }
+
+    @Test
+    @DisplayName("Concurrent misses for the same key should share one load")
+    void get_SingleFlight() {
+        Sinks.One<Boolean> pending = Sinks.one();
+        AtomicInteger subscriptions = new AtomicInteger();
+        Mono<Boolean> slowLoad = pending.asMono().doOnSubscribe(s -> subscriptions.incrementAndGet());
+
+        Mono<Boolean> first = cache.get("staff001", "GET", "/users/1", () -> slowLoad);
+        Mono<Boolean> second = cache.get("staff001", "GET", "/users/1", () -> slowLoad);
+
+        StepVerifier.create(Mono.zip(first, second))
+                .then(() -> pending.tryEmitValue(true))
+                .expectNextMatches(tuple -> tuple.getT1() && tuple.getT2())
+                .verifyComplete();
+        assertEquals(1, subscriptions.get());
+    }
+
+    @Test
+    @DisplayName("Errors should not be cached")
+    void get_ErrorNotCached() {
+        StepVerifier.create(cache.get("staff001", "GET", "/users/1", () -> Mono.error(new IllegalStateException("mongo down"))))
+                .expectError(IllegalStateException.class)
+                .verify();
+        StepVerifier.create(cache.get("staff001", "GET", "/users/1", () -> load(true))).expectNext(true).verifyComplete();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    @DisplayName("Evicting a user should only drop that user's decisions")
+    void evictUser_OnlyThatUser() {
+        cache.get("staff001", "GET", "/users/1", () -> load(true)).block();
+        cache.get("staff002", "GET", "/users/1", () -> load(true)).block();
+
+        cache.evictUser("staff001");
+
+        StepVerifier.create(cache.get("staff001", "GET", "/users/1", () -> load(false))).expectNext(false).verifyComplete();
+        StepVerifier.create(cache.get("staff002", "GET", "/users/1", () -> load(false))).expectNext(true).verifyComplete();
+        assertEquals(3, loads.get());
+        assertEquals(1.0, meterRegistry.get(PermissionDecisionCache.CACHE_NAME + ".invalidations").tag("scope", "user").counter().count());
+    }
+
+    @Test
+    @DisplayName("A load in flight when its user is evicted should not be cached")
+    void evictUser_DropsLoadInFlight() {
+        Sinks.One<Boolean> pending = Sinks.one();
+        Mono<Boolean> inFlight = cache.get("staff001", "GET", "/users/1", () -> pending.asMono());
+
+        StepVerifier.create(inFlight)
+                .then(() -> cache.evictUser("staff001"))
+                .then(() -> pending.tryEmitValue(true))
+                .expectNext(true)
+                .verifyComplete();
+
+        StepVerifier.create(cache.get("staff001", "GET", "/users/1", () -> load(false))).expectNext(false).verifyComplete();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    @DisplayName("Evicting many users should drop only their decisions, counting each user")
+    void evictUsers_OnlyThoseUsers() {
+        cache.get("staff001", "GET", "/users/1", () -> load(true)).block();
+        cache.get("staff002", "GET", "/users/1", () -> load(true)).block();
+        cache.get("staff003", "GET", "/users/1", () -> load(true)).block();
+
+        cache.evictUsers(List.of("staff001", "staff002"));
+
+        assertEquals(1, cache.size());
+        assertEquals(2.0, meterRegistry.get(PermissionDecisionCache.CACHE_NAME + ".invalidations").tag("scope", "user").counter().count());
+    }
+
+    @Test
+    @DisplayName("Evicting all should drop every decision")
+    void evictAll_DropsEverything() {
+        cache.get("staff001", "GET", "/users/1", () -> load(true)).block();
+        cache.get("staff002", "GET", "/users/1", () -> load(true)).block();
+
+        cache.evictAll();
+
+        assertEquals(0, cache.size());
+        StepVerifier.create(cache.get("staff002", "GET", "/users/1", () -> load(false))).expectNext(false).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A disabled cache should always call the loader")
+    void get_Disabled() {
+        PermissionDecisionCache disabled = new PermissionDecisionCache(meterRegistry, 1000, Duration.ofMinutes(5), false);
+        disabled.get("staff001", "GET", "/users/1", () -> load(true)).block();
+        disabled.get("staff001", "GET", "/users/1", () -> load(true)).block();
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    @DisplayName("User change events should evict the changed user, leaving role and resource changes to the catalog")
+    void onChange_EvictsAffectedDecisions() {
+        cache.get("staff001", "GET", "/users/1", () -> load(true)).block();
+        cache.get("staff002", "GET", "/users/1", () -> load(true)).block();
+
+        cache.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.GROUP_DEFAULT_ROLES, "group1", null));
+        assertEquals(2, cache.size());
+
+        cache.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.USERS, "user1", "staff001"));
+        assertEquals(1, cache.size());
+
+        cache.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.RESOURCES, "res1", null));
+        cache.onChange(EntitlementChangeEvent.all());
+        assertEquals(1, cache.size());
+
+        cache.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.USERS, "user2", null));
+        assertEquals(0, cache.size());
+    }
+}
@@ -7,6 +7,7 @@ import com.kaishui.entitlement.entity.dto.UpdateResourceDto;
 import com.kaishui.entitlement.exception.ResourceNotFoundException;
 import com.kaishui.entitlement.repository.ResourceRepository;
 import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.KeysetCursor;
 import com.kaishui.entitlement.util.ResourceMapper;
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -15,10 +16,14 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.web.server.ServerWebInputException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
@@ -26,8 +31,10 @@ import reactor.test.StepVerifier;
 import java.util.Date;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -39,6 +46,20 @@ class ResourceServiceTest {
     @Mock
     private ResourceMapper resourceMapper;
 
+    @Mock
+    private PermissionCheckerInterface permissionChecker;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+
+    @Mock
+    private UserEntitlementService userEntitlementService;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private EntitlementCatalog entitlementCatalog;
+
     // Mock AuthorizationUtil if needed for context propagation tests, though auditing might handle it
     @Mock
     private AuthorizationUtil authorizationUtil;
@@ -62,6 +83,9 @@ class ResourceServiceTest {
 
     @BeforeEach
     void setUp() {
+        lenient().when(entitlementCatalog.refreshResource(any())).thenReturn(Mono.empty());
+        lenient().when(permissionChecker.refreshRolesAndResources()).thenReturn(Mono.empty());
+
         // Sample Entities
         resource1 = Resource.builder()
                 .id(resourceId1)
@@ -266,6 +290,7 @@ class ResourceServiceTest {
         // Mock the void mapper method - it doesn't return anything, just modifies the target
         doNothing().when(resourceMapper).updateEntityFromDto(any(UpdateResourceDto.class), any(Resource.class));
         when(resourceRepository.save(any(Resource.class))).thenReturn(Mono.just(updatedEntityState)); // Return the state *after* save
+        when(userEntitlementService.invalidateResource(resourceId1)).thenReturn(Mono.just(1L));
         when(resourceMapper.toDto(any(Resource.class))).thenReturn(finalDto);
 
         Mono<ResourceDto> result = resourceService.updateResource(resourceId1, Mono.just(updateDto));
@@ -282,6 +307,7 @@ class ResourceServiceTest {
         verify(resourceMapper).updateEntityFromDto(updateDto, resource1);
         // Verify save was called with the (mocked) updated entity state
         verify(resourceRepository).save(resource1); // The object passed to save is the one modified by the mapper
+        verify(entitlementCatalog).refreshResource(resourceId1);
         verify(resourceMapper).toDto(updatedEntityState);
     }
 
@@ -308,6 +334,7 @@ class ResourceServiceTest {
     void deleteResource_Success() {
         when(resourceRepository.findById(resourceId1)).thenReturn(Mono.just(resource1));
         when(resourceRepository.delete(resource1)).thenReturn(Mono.empty()); // delete returns Mono<Void>
+        when(userEntitlementService.invalidateResource(resourceId1)).thenReturn(Mono.just(1L));
 
         Mono<Void> result = resourceService.deleteResource(resourceId1);
 
@@ -316,6 +343,8 @@ class ResourceServiceTest {
 
         verify(resourceRepository).findById(resourceId1);
         verify(resourceRepository).delete(resource1);
+        verify(userEntitlementService).invalidateResource(resourceId1);
+        verify(entitlementCatalog).refreshResource(resourceId1); // Dropped from the catalog
     }
 
     @Test
@@ -336,138 +365,111 @@ class ResourceServiceTest {
     // --- Tests for findResources ---
 
     @Test
-    @DisplayName("findResources should return all active when no filters")
-    void findResources_NoFilters_ActiveOnly() {
-        Resource inactive = Resource.builder().id("res3").name("Inactive").isActive(false).build();
-        ResourceDto inactiveDto = new ResourceDto(); // Assume mapper maps this
-        inactiveDto.setId("res3");
-        inactiveDto.setName("Inactive");
-        inactiveDto.setIsActive(false);
-
-        when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(resource1, resource2));
+    @DisplayName("findResources should run every filter in one collated query sorted by id")
+    void findResources_FiltersPushedDown() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(query.capture(), eq(Resource.class))).thenReturn(Flux.just(resource1));
         when(resourceMapper.toDto(resource1)).thenReturn(resourceDto1);
-        when(resourceMapper.toDto(resource2)).thenReturn(resourceDto2);
 
-        Flux<ResourceDto> result = resourceService.findResources(null, null, null, true);
-
-        StepVerifier.create(result)
+        StepVerifier.create(resourceService.findResources("Res", "api", List.of("group-a"), true))
                 .expectNext(resourceDto1)
-                .expectNext(resourceDto2)
                 .verifyComplete();
 
-        verify(resourceRepository).findByIsActive(true);
-        verify(resourceRepository, never()).findAll();
-        verify(resourceMapper, times(2)).toDto(any(Resource.class));
+        org.bson.Document filter = query.getValue().getQueryObject();
+        assertEquals(new org.bson.Document("$gte", "Res").append("$lt", "Res\uffff"), filter.get("name"));
+        assertEquals("api", filter.get("type"));
+        assertEquals(new org.bson.Document("$in", List.of("group-a")), filter.get("adGroups"));
+        assertEquals(true, filter.get("isActive"));
+        assertEquals(new org.bson.Document("_id", 1), query.getValue().getSortObject());
+        assertEquals(ResourceService.SEARCH_COLLATION.toDocument(), query.getValue().getCollation().orElseThrow().toDocument());
+        verifyNoInteractions(resourceRepository);
     }
 
     @Test
-    @DisplayName("findResources should return all when isActive is null")
-    void findResources_NoFilters_All() {
-        Resource inactive = Resource.builder().id("res3").name("Inactive").isActive(false).build();
-        ResourceDto inactiveDto = new ResourceDto();
-        inactiveDto.setId("res3");
-        inactiveDto.setName("Inactive");
-        inactiveDto.setIsActive(false);
-
-        when(resourceRepository.findAll()).thenReturn(Flux.just(resource1, resource2, inactive));
+    @DisplayName("findResources should not filter when no filters are given")
+    void findResources_NoFilters() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(query.capture(), eq(Resource.class))).thenReturn(Flux.just(resource1, resource2));
         when(resourceMapper.toDto(resource1)).thenReturn(resourceDto1);
         when(resourceMapper.toDto(resource2)).thenReturn(resourceDto2);
-        when(resourceMapper.toDto(inactive)).thenReturn(inactiveDto);
-
-
-        Flux<ResourceDto> result = resourceService.findResources(null, null, null, null);
 
-        StepVerifier.create(result)
+        StepVerifier.create(resourceService.findResources(null, " ", List.of(), null))
                 .expectNext(resourceDto1)
                 .expectNext(resourceDto2)
-                .expectNext(inactiveDto)
                 .verifyComplete();
 
-        verify(resourceRepository, never()).findByIsActive(anyBoolean());
-        verify(resourceRepository).findAll();
-        verify(resourceMapper, times(3)).toDto(any(Resource.class));
+        assertTrue(query.getValue().getQueryObject().isEmpty());
     }
 
     @Test
-    @DisplayName("findResources should filter by name (case-insensitive)")
-    void findResources_FilterByName() {
-        when(resourceRepository.findAll()).thenReturn(Flux.just(resource1, resource2)); // Assume isActive=null
+    @DisplayName("findResourcesPage should continue after the cursor by id and return a cursor to the next page")
+    void findResourcesPage_ById() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(query.capture(), eq(Resource.class))).thenReturn(Flux.just(resource1, resource2));
         when(resourceMapper.toDto(resource1)).thenReturn(resourceDto1);
-        // resourceDto2 is NOT expected
-
-        Flux<ResourceDto> result = resourceService.findResources("one", null, null, null); // Filter for "one"
 
-        StepVerifier.create(result)
-                .expectNext(resourceDto1) // Only resource1 matches "one"
+        StepVerifier.create(resourceService.findResourcesPage(null, null, null, true, null, null, KeysetCursor.encode("a"), 1))
+                .expectNextMatches(page -> page.getItems().equals(List.of(resourceDto1))
+                        && page.getNextCursor().equals(KeysetCursor.encode(resourceId1)))
                 .verifyComplete();
 
-        verify(resourceRepository).findAll();
-        verify(resourceMapper).toDto(resource1);
-        verify(resourceMapper, never()).toDto(resource2); // Verify resource2 wasn't mapped
+        assertEquals(new org.bson.Document("$gt", "a"), query.getValue().getQueryObject().get("_id"));
+        assertEquals(2, query.getValue().getLimit());
+        verify(resourceMapper, never()).toDto(resource2);
     }
 
     @Test
-    @DisplayName("findResources should filter by type (case-insensitive)")
-    void findResources_FilterByType() {
-        when(resourceRepository.findAll()).thenReturn(Flux.just(resource1, resource2)); // Assume isActive=null
-        when(resourceMapper.toDto(resource1)).thenReturn(resourceDto1);
-        // resourceDto2 is NOT expected
-
-        Flux<ResourceDto> result = resourceService.findResources(null, "api", null, null); // Filter for "api" (case-insensitive)
+    @DisplayName("findResourcesPage sorted by name descending should continue before the cursor's name, then id")
+    void findResourcesPage_ByNameDescending() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(query.capture(), eq(Resource.class))).thenReturn(Flux.just(resource2));
+        when(resourceMapper.toDto(resource2)).thenReturn(resourceDto2);
+        String cursor = KeysetCursor.encode(new KeysetCursor.Position("Resource Zed", "z"));
 
-        StepVerifier.create(result)
-                .expectNext(resourceDto1) // Only resource1 has type "API"
+        StepVerifier.create(resourceService.findResourcesPage(null, null, null, null, "name", "desc", cursor, 10))
+                .expectNextMatches(page -> page.getItems().equals(List.of(resourceDto2)) && page.getNextCursor() == null)
                 .verifyComplete();
 
-        verify(resourceRepository).findAll();
-        verify(resourceMapper).toDto(resource1);
-        verify(resourceMapper, never()).toDto(resource2);
+        assertEquals(List.of(
+                        new org.bson.Document("name", new org.bson.Document("$lt", "Resource Zed")),
+                        new org.bson.Document("name", "Resource Zed").append("_id", new org.bson.Document("$lt", "z")),
+                        new org.bson.Document("name", null)),
+                query.getValue().getQueryObject().get("$or"));
+        assertEquals(new org.bson.Document("name", -1).append("_id", -1), query.getValue().getSortObject());
     }
 
     @Test
-    @DisplayName("findResources should filter by adGroups")
-    void findResources_FilterByAdGroups() {
-        when(resourceRepository.findAll()).thenReturn(Flux.just(resource1, resource2)); // Assume isActive=null
-        when(resourceMapper.toDto(resource2)).thenReturn(resourceDto2);
-
-        List<String> searchGroups = List.of("group-c"); // Search for group-c
-
-        Flux<ResourceDto> result = resourceService.findResources(null, null, searchGroups, null);
-
-        StepVerifier.create(result)
-                .expectNext(resourceDto2) // Only resource2 has "group-c"
+    @DisplayName("findResourcesPage sorted by name should continue after a resource without a name among the null names, then every named one")
+    void findResourcesPage_ByNameAfterNullName() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        Resource unnamed = Resource.builder().id("c").build();
+        when(reactiveMongoTemplate.find(query.capture(), eq(Resource.class))).thenReturn(Flux.just(unnamed, resource1));
+        when(resourceMapper.toDto(unnamed)).thenReturn(new ResourceDto());
+        String cursor = KeysetCursor.encode(new KeysetCursor.Position(null, "b"));
+
+        StepVerifier.create(resourceService.findResourcesPage(null, null, null, null, "name", "asc", cursor, 1))
+                .expectNextMatches(page -> new KeysetCursor.Position(null, "c").equals(KeysetCursor.decodePosition(page.getNextCursor())))
                 .verifyComplete();
 
-        verify(resourceRepository).findAll();
-        verify(resourceMapper, never()).toDto(resource1);
-        verify(resourceMapper).toDto(resource2);
+        assertEquals(List.of(
+                        new org.bson.Document("name", null).append("_id", new org.bson.Document("$gt", "b")),
+                        new org.bson.Document("name", new org.bson.Document("$ne", null))),
+                query.getValue().getQueryObject().get("$or"));
     }
 
     @Test
-    @DisplayName("findResources should combine filters (e.g., isActive and type)")
-    void findResources_CombineFilters() {
-        // resource1: type=API, active=true
-        // resource2: type=PAGE, active=true
-        Resource apiInactive = Resource.builder().id("res4").name("API Inactive").type("API").isActive(false).build();
-        ResourceDto apiInactiveDto = new ResourceDto();
-        apiInactiveDto.setId("res4");
-        apiInactiveDto.setName("API Inactive");
-        apiInactiveDto.setType("API");
-        apiInactiveDto.setIsActive(false);
-
-
-        when(resourceRepository.findByIsActive(true)).thenReturn(Flux.just(resource1, resource2));
-        when(resourceMapper.toDto(resource1)).thenReturn(resourceDto1);
-        // resourceDto2 is filtered out by type
-
-        Flux<ResourceDto> result = resourceService.findResources(null, "API", null, true); // Active=true, Type=API
-
-        StepVerifier.create(result)
-                .expectNext(resourceDto1) // Only resource1 matches both
-                .verifyComplete();
+    @DisplayName("findResourcesPage should reject unknown sorts and cursors issued for another sort")
+    void findResourcesPage_InvalidSort() {
+        StepVerifier.create(resourceService.findResourcesPage(null, null, null, null, "createdBy", null, null, 10))
+                .expectError(ServerWebInputException.class)
+                .verify();
+        StepVerifier.create(resourceService.findResourcesPage(null, null, null, null, "id", "sideways", null, 10))
+                .expectError(ServerWebInputException.class)
+                .verify();
+        StepVerifier.create(resourceService.findResourcesPage(null, null, null, null, "name", null, KeysetCursor.encode("a"), 10))
+                .expectError(ServerWebInputException.class)
+                .verify();
 
-        verify(resourceRepository).findByIsActive(true);
-        verify(resourceMapper).toDto(resource1);
-        verify(resourceMapper, never()).toDto(resource2);
+        verifyNoInteractions(reactiveMongoTemplate);
     }
-}
\ No newline at end of file
+}
@@ -2,19 +2,29 @@ package com.kaishui.entitlement.service;
 
 import com.kaishui.entitlement.entity.Role;
 import com.kaishui.entitlement.exception.CommonException;
+import com.kaishui.entitlement.exception.ConflictException;
 import com.kaishui.entitlement.repository.RoleRepository;
 import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.KeysetCursor;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.web.server.ServerWebInputException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
@@ -23,7 +33,11 @@ import reactor.util.context.Context;
 import java.util.Date;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -34,6 +48,16 @@ class RoleServiceTest {
     private RoleRepository roleRepository;
     @Mock
     private AuthorizationUtil authorizationUtil;
+    @Mock
+    private PermissionCheckerInterface permissionChecker;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+    @Mock
+    private UserEntitlementService userEntitlementService;
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    @Mock
+    private EntitlementCatalog entitlementCatalog;
 
 
     @InjectMocks
@@ -52,6 +76,7 @@ class RoleServiceTest {
 
     @BeforeEach
     void setUp() {
+        lenient().when(permissionChecker.refreshRolesAndResources()).thenReturn(Mono.empty());
         activeRole1 = Role.builder()
                 .id(roleId1)
                 .roleName("Admin")
@@ -84,6 +109,7 @@ class RoleServiceTest {
 
         // Mock the static method authorizationUtil.extractUsernameFromContext
         mockedAuthorizationUtil = Mockito.mockStatic(AuthorizationUtil.class);
+        lenient().when(entitlementCatalog.refreshRole(anyString())).thenReturn(Mono.empty());
 
     }
 
@@ -94,54 +120,54 @@ class RoleServiceTest {
     }
 
     @Test
-    @DisplayName("getAllRoles should return only active roles")
+    @DisplayName("getAllRoles should return the active roles of the catalog")
     void getAllRoles_ReturnsActiveOnly() {
-        when(roleRepository.findAll()).thenReturn(Flux.just(activeRole1, activeRole2, inactiveRole));
+        when(entitlementCatalog.activeRoles()).thenReturn(Flux.just(activeRole1, activeRole2));
 
         StepVerifier.create(roleService.getAllRoles())
                 .expectNext(activeRole1)
                 .expectNext(activeRole2)
                 .verifyComplete();
 
-        verify(roleRepository).findAll();
+        verifyNoInteractions(roleRepository);
     }
 
     @Test
     @DisplayName("getRoleById should return active role when found")
     void getRoleById_FoundActive() {
-        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(activeRole1));
+        when(entitlementCatalog.activeRole(roleId1)).thenReturn(Mono.just(activeRole1));
 
         StepVerifier.create(roleService.getRoleById(roleId1))
                 .expectNext(activeRole1)
                 .verifyComplete();
 
-        verify(roleRepository).findById(roleId1);
+        verifyNoInteractions(roleRepository);
     }
 
     @Test
     @DisplayName("getRoleById should return error when role is inactive")
     void getRoleById_FoundInactive() {
-        when(roleRepository.findById(inactiveRoleId)).thenReturn(Mono.just(inactiveRole));
+        when(entitlementCatalog.activeRole(inactiveRoleId)).thenReturn(Mono.empty()); // The catalog only holds active roles
 
         StepVerifier.create(roleService.getRoleById(inactiveRoleId))
                 .expectErrorMatches(throwable -> throwable instanceof CommonException &&
                         throwable.getMessage().contains("Active role not found with id: " + inactiveRoleId))
                 .verify();
 
-        verify(roleRepository).findById(inactiveRoleId);
+        verify(entitlementCatalog).activeRole(inactiveRoleId);
     }
 
     @Test
     @DisplayName("getRoleById should return error when role not found")
     void getRoleById_NotFound() {
-        when(roleRepository.findById(anyString())).thenReturn(Mono.empty());
+        when(entitlementCatalog.activeRole(anyString())).thenReturn(Mono.empty());
 
         StepVerifier.create(roleService.getRoleById("nonexistent"))
                 .expectErrorMatches(throwable -> throwable instanceof CommonException &&
                         throwable.getMessage().contains("Active role not found with id: nonexistent"))
                 .verify();
 
-        verify(roleRepository).findById("nonexistent");
+        verify(entitlementCatalog).activeRole("nonexistent");
     }
 
     @Test
@@ -187,6 +213,7 @@ class RoleServiceTest {
 
         verify(roleRepository).existsByRoleName("NewRole");
         verify(roleRepository).save(any(Role.class));
+        verify(entitlementCatalog).refreshRole(savedRole.getId()); // Readable through the catalog once created
     }
 
     @Test
@@ -214,7 +241,7 @@ class RoleServiceTest {
 
 
     @Test
-    @DisplayName("updateRole should succeed for active role with valid data")
+    @DisplayName("updateRole should set the provided fields of the active role in one findAndModify")
     void updateRole_Success() {
         // Also mock the ContextView variant if used internally by your actual util or tests
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
@@ -225,49 +252,51 @@ class RoleServiceTest {
                 .isApprover(true)
                 .resourceIds(List.of("res1", "res2"))
                 .build();
-
-        // Make a copy to avoid modifying the original mock object state
-        Role existingRoleCopy = Role.builder()
-                .id(activeRole1.getId())
-                .roleName(activeRole1.getRoleName())
-                .type(activeRole1.getType())
-                .description(activeRole1.getDescription())
-                .isActive(activeRole1.isActive())
-                .createdBy(activeRole1.getCreatedBy())
-                .createdDate(activeRole1.getCreatedDate())
-                .isApprover(activeRole1.getIsApprover())
-                .resourceIds(activeRole1.getResourceIds())
+        Role updatedRole = Role.builder()
+                .id(roleId1)
+                .roleName("AdminUpdated")
+                .description("Updated Desc")
+                .isApprover(true)
+                .resourceIds(List.of("res1", "res2"))
+                .isActive(true)
+                .lastModifiedBy(testUsername)
+                .version(1L)
                 .build();
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
 
-
-        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(existingRoleCopy));
-        when(roleRepository.existsByRoleName("AdminUpdated")).thenReturn(Mono.just(false)); // New name is unique
-        when(roleRepository.save(any(Role.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0))); // Return saved entity
+        when(roleRepository.findByRoleName("AdminUpdated")).thenReturn(Mono.empty()); // New name is unique
+        when(reactiveMongoTemplate.findAndModify(queryCaptor.capture(), updateCaptor.capture(), any(FindAndModifyOptions.class), eq(Role.class)))
+                .thenReturn(Mono.just(updatedRole));
+        when(userEntitlementService.invalidateRole(roleId1)).thenReturn(Mono.just(1L));
 
         Mono<Role> result = roleService.updateRole(roleId1, updateData)
                 .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
 
         StepVerifier.create(result)
-                .expectNextMatches(updatedRole ->
-                        updatedRole.getId().equals(roleId1) &&
-                                updatedRole.getRoleName().equals("AdminUpdated") && // Name updated
-                                updatedRole.getDescription().equals("Updated Desc") && // Desc updated
-                                updatedRole.getIsApprover().equals(true) && // Approver updated
-                                updatedRole.getResourceIds().equals(List.of("res1", "res2")) && // Resources updated
-                                updatedRole.getLastModifiedBy().equals(testUsername) &&
-                                updatedRole.getLastModifiedDate() != null &&
-                                updatedRole.getCreatedBy().equals(activeRole1.getCreatedBy()) // CreatedBy unchanged
-                )
+                .expectNext(updatedRole)
                 .verifyComplete();
 
-        verify(roleRepository).findById(roleId1);
-        verify(roleRepository).existsByRoleName("AdminUpdated");
-        verify(roleRepository).save(any(Role.class));
+        Document filter = queryCaptor.getValue().getQueryObject();
+        assertEquals(roleId1, filter.get("id"));
+        assertEquals(true, filter.get("isActive"));
+        assertEquals(4, filter.getList("$or", Document.class).size()); // Matches only if a provided field differs
+        Document set = updateCaptor.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals("AdminUpdated", set.get("roleName"));
+        assertEquals(List.of("res1", "res2"), set.get("resourceIds"));
+        assertEquals(testUsername, set.get("lastModifiedBy"));
+        assertFalse(set.containsKey("type")); // Not provided, not touched
+        assertFalse(set.containsKey("createdBy"));
+        verify(roleRepository, never()).findById(anyString());
+        verify(roleRepository, never()).save(any(Role.class));
+        verify(userEntitlementService).invalidateRole(roleId1); // Materialized entitlements of role holders go stale
+        verify(entitlementCatalog).refreshRole(roleId1);
+        verify(permissionDecisionCache).evictAll(); // Cached decisions of role holders must be dropped
     }
 
     @Test
-    @DisplayName("updateRole should succeed when only non-name fields change")
-    void updateRole_Success_NoNameChange() {
+    @DisplayName("updateRole should accept the role's own name")
+    void updateRole_Success_SameName() {
         // Also mock the ContextView variant if used internally by your actual util or tests
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
                 .thenReturn(testUsername);
@@ -276,35 +305,39 @@ class RoleServiceTest {
                 .description("Updated Desc Only")
                 .build();
 
-        // Make a copy to avoid modifying the original mock object state
-        Role existingRoleCopy = Role.builder()
-                .id(activeRole1.getId())
-                .roleName(activeRole1.getRoleName())
-                .type(activeRole1.getType())
-                .description(activeRole1.getDescription())
-                .isActive(activeRole1.isActive())
-                .createdBy(activeRole1.getCreatedBy())
-                .createdDate(activeRole1.getCreatedDate())
-                .build();
+        when(roleRepository.findByRoleName("Admin")).thenReturn(Mono.just(activeRole1));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Role.class)))
+                .thenReturn(Mono.just(activeRole1));
+        when(userEntitlementService.invalidateRole(roleId1)).thenReturn(Mono.just(1L));
+
+        Mono<Role> result = roleService.updateRole(roleId1, updateData)
+                .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
+
+        StepVerifier.create(result)
+                .expectNext(activeRole1)
+                .verifyComplete();
+    }
 
-        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(existingRoleCopy));
-        // existsByRoleName should NOT be called if name doesn't change
-        when(roleRepository.save(any(Role.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    @Test
+    @DisplayName("updateRole should return the stored role without writing or invalidating when nothing changed")
+    void updateRole_NoChanges() {
+        // Also mock the ContextView variant if used internally by your actual util or tests
+        mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
+                .thenReturn(testUsername);
+        Role updateData = Role.builder().description(activeRole1.getDescription()).build();
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Role.class)))
+                .thenReturn(Mono.empty()); // No provided field differs
+        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(activeRole1));
 
         Mono<Role> result = roleService.updateRole(roleId1, updateData)
                 .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
 
         StepVerifier.create(result)
-                .expectNextMatches(updatedRole ->
-                        updatedRole.getDescription().equals("Updated Desc Only") &&
-                                updatedRole.getLastModifiedBy().equals(testUsername) &&
-                                updatedRole.getLastModifiedDate() != null
-                )
+                .expectNext(activeRole1)
                 .verifyComplete();
 
-        verify(roleRepository).findById(roleId1);
-        verify(roleRepository, never()).existsByRoleName(anyString()); // Should not be called
-        verify(roleRepository).save(any(Role.class));
+        verify(userEntitlementService, never()).invalidateRole(anyString());
+        verify(permissionDecisionCache, never()).evictAll();
     }
 
 
@@ -315,6 +348,8 @@ class RoleServiceTest {
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
                 .thenReturn(testUsername);
         Role updateData = Role.builder().description("Update").build();
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Role.class)))
+                .thenReturn(Mono.empty());
         when(roleRepository.findById("nonexistent")).thenReturn(Mono.empty());
 
         Mono<Role> result = roleService.updateRole("nonexistent", updateData)
@@ -326,8 +361,8 @@ class RoleServiceTest {
                 .verify();
 
         verify(roleRepository).findById("nonexistent");
-        verify(roleRepository, never()).existsByRoleName(anyString());
-        verify(roleRepository, never()).save(any(Role.class));
+        verify(permissionDecisionCache, never()).evictAll();
+        verify(userEntitlementService, never()).invalidateRole(anyString());
     }
 
     @Test
@@ -337,6 +372,8 @@ class RoleServiceTest {
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
                 .thenReturn(testUsername);
         Role updateData = Role.builder().description("Update").build();
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Role.class)))
+                .thenReturn(Mono.empty()); // The filter only matches active roles
         when(roleRepository.findById(inactiveRoleId)).thenReturn(Mono.just(inactiveRole));
 
         Mono<Role> result = roleService.updateRole(inactiveRoleId, updateData)
@@ -348,8 +385,31 @@ class RoleServiceTest {
                 .verify();
 
         verify(roleRepository).findById(inactiveRoleId);
-        verify(roleRepository, never()).existsByRoleName(anyString());
-        verify(roleRepository, never()).save(any(Role.class));
+        verify(permissionDecisionCache, never()).evictAll();
+    }
+
+    @Test
+    @DisplayName("updateRole should fail with a conflict when the role changed since the provided version")
+    void updateRole_StaleVersion() {
+        // Also mock the ContextView variant if used internally by your actual util or tests
+        mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
+                .thenReturn(testUsername);
+        Role updateData = Role.builder().description("Update").version(1L).build();
+        activeRole1.setVersion(2L);
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.findAndModify(queryCaptor.capture(), any(Update.class), any(FindAndModifyOptions.class), eq(Role.class)))
+                .thenReturn(Mono.empty());
+        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(activeRole1));
+
+        Mono<Role> result = roleService.updateRole(roleId1, updateData)
+                .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
+
+        StepVerifier.create(result)
+                .expectError(ConflictException.class)
+                .verify();
+
+        assertEquals(1L, queryCaptor.getValue().getQueryObject().get("version"));
+        verify(permissionDecisionCache, never()).evictAll();
     }
 
     @Test
@@ -360,19 +420,7 @@ class RoleServiceTest {
                 .thenReturn(testUsername);
         Role updateData = Role.builder().roleName("User").description("Update").build(); // Try to use existing 'User' name
 
-        // Make a copy to avoid modifying the original mock object state
-        Role existingRoleCopy = Role.builder()
-                .id(activeRole1.getId())
-                .roleName(activeRole1.getRoleName()) // Original name is 'Admin'
-                .type(activeRole1.getType())
-                .description(activeRole1.getDescription())
-                .isActive(activeRole1.isActive())
-                .createdBy(activeRole1.getCreatedBy())
-                .createdDate(activeRole1.getCreatedDate())
-                .build();
-
-        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(existingRoleCopy));
-        when(roleRepository.existsByRoleName("User")).thenReturn(Mono.just(true)); // The target name 'User' exists
+        when(roleRepository.findByRoleName("User")).thenReturn(Mono.just(activeRole2)); // The target name 'User' exists
 
         Mono<Role> result = roleService.updateRole(roleId1, updateData)
                 .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
@@ -382,30 +430,21 @@ class RoleServiceTest {
                         throwable.getMessage().contains("Role name 'User' already exists."))
                 .verify();
 
-        verify(roleRepository).findById(roleId1);
-        verify(roleRepository).existsByRoleName("User");
-        verify(roleRepository, never()).save(any(Role.class));
+        verify(roleRepository).findByRoleName("User");
+        verifyNoInteractions(reactiveMongoTemplate);
     }
 
     @Test
-    @DisplayName("deleteRole should soft delete active role")
+    @DisplayName("deleteRole should soft delete active role in one findAndModify")
     void deleteRole_SuccessActive() {
         // Also mock the ContextView variant if used internally by your actual util or tests
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
                 .thenReturn(testUsername);
-        // Make a copy to avoid modifying the original mock object state
-        Role existingRoleCopy = Role.builder()
-                .id(activeRole1.getId())
-                .roleName(activeRole1.getRoleName())
-                .type(activeRole1.getType())
-                .description(activeRole1.getDescription())
-                .isActive(true) // Ensure it starts active
-                .createdBy(activeRole1.getCreatedBy())
-                .createdDate(activeRole1.getCreatedDate())
-                .build();
-
-        when(roleRepository.findById(roleId1)).thenReturn(Mono.just(existingRoleCopy));
-        when(roleRepository.save(any(Role.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.findAndModify(queryCaptor.capture(), updateCaptor.capture(), eq(Role.class)))
+                .thenReturn(Mono.just(activeRole1));
+        when(userEntitlementService.invalidateRole(roleId1)).thenReturn(Mono.just(1L));
 
         Mono<Void> result = roleService.deleteRole(roleId1)
                 .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
@@ -413,12 +452,14 @@ class RoleServiceTest {
         StepVerifier.create(result)
                 .verifyComplete();
 
-        verify(roleRepository).findById(roleId1);
-        verify(roleRepository).save(argThat(role ->
-                !role.isActive() && // Check if inactive
-                        role.getLastModifiedBy().equals(testUsername) &&
-                        role.getLastModifiedDate() != null
-        ));
+        assertEquals(true, queryCaptor.getValue().getQueryObject().get("isActive"));
+        Document set = updateCaptor.getValue().getUpdateObject().get("$set", Document.class);
+        assertEquals(false, set.get("isActive"));
+        assertEquals(testUsername, set.get("lastModifiedBy"));
+        assertNotNull(set.get("lastModifiedDate"));
+        verify(roleRepository, never()).findById(anyString());
+        verify(entitlementCatalog).refreshRole(roleId1); // Dropped from the catalog
+        verify(permissionDecisionCache).evictAll();
     }
 
     @Test
@@ -427,16 +468,18 @@ class RoleServiceTest {
         // Also mock the ContextView variant if used internally by your actual util or tests
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
                 .thenReturn(testUsername);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(Role.class))).thenReturn(Mono.empty());
         when(roleRepository.findById(inactiveRoleId)).thenReturn(Mono.just(inactiveRole)); // Return the inactive role
 
         Mono<Void> result = roleService.deleteRole(inactiveRoleId)
                 .contextWrite(ctx -> ctx.put("USER_INFO", testUsername));
 
         StepVerifier.create(result)
-                .verifyComplete(); // Should complete without error and without saving
+                .verifyComplete(); // Should complete without error and without invalidating
 
         verify(roleRepository).findById(inactiveRoleId);
-        verify(roleRepository, never()).save(any(Role.class)); // Save should not be called
+        verify(userEntitlementService, never()).invalidateRole(anyString());
+        verify(permissionDecisionCache, never()).evictAll();
     }
 
     @Test
@@ -445,6 +488,7 @@ class RoleServiceTest {
         // Also mock the ContextView variant if used internally by your actual util or tests
         mockedAuthorizationUtil.when(() -> authorizationUtil.extractUsernameFromContext(any(reactor.util.context.ContextView.class)))
                 .thenReturn(testUsername);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), eq(Role.class))).thenReturn(Mono.empty());
         when(roleRepository.findById("nonexistent")).thenReturn(Mono.empty());
 
         Mono<Void> result = roleService.deleteRole("nonexistent")
@@ -456,6 +500,29 @@ class RoleServiceTest {
                 .verify();
 
         verify(roleRepository).findById("nonexistent");
-        verify(roleRepository, never()).save(any(Role.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("getRolesPage should continue after the cursor and return a cursor to the next page")
+    void getRolesPage_NextPage() {
+        when(roleRepository.findByIsActiveAndIdGreaterThanOrderByIdAsc(true, "a", Limit.of(2)))
+                .thenReturn(Flux.just(activeRole1, activeRole2));
+
+        StepVerifier.create(roleService.getRolesPage(KeysetCursor.encode("a"), 1))
+                .expectNextMatches(page -> page.getItems().equals(List.of(activeRole1))
+                        && page.getNextCursor().equals(KeysetCursor.encode(roleId1)))
+                .verifyComplete();
+
+        verify(roleRepository, never()).findByIsActiveOrderByIdAsc(anyBoolean(), any());
+    }
+
+    @Test
+    @DisplayName("getRolesPage should reject a cursor it did not issue")
+    void getRolesPage_InvalidCursor() {
+        StepVerifier.create(roleService.getRolesPage("not-a-cursor", 10))
+                .expectError(ServerWebInputException.class)
+                .verify();
+
+        verifyNoInteractions(roleRepository);
+    }
+}
@@ -0,0 +1,263 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.constant.ResourceType;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
+import com.kaishui.entitlement.repository.ResourceRepository;
+import com.kaishui.entitlement.repository.RoleRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("SnapshotPermissionCheckerService Tests")
+class SnapshotPermissionCheckerServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    @Mock
+    private RoleRepository roleRepository;
+    @Mock
+    private ResourceRepository resourceRepository;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+
+    @InjectMocks
+    private SnapshotPermissionCheckerService checker;
+
+    private static final String STAFF_ID = "staff001";
+    private static final String AD_GROUP = "AD-CaseA-USER";
+
+    private User user;
+    private Role role;
+    private Resource userApi;
+    private Resource adminApi;
+
+    @BeforeEach
+    void setUp() {
+        user = User.builder().staffId(STAFF_ID).adGroups(List.of(AD_GROUP)).roleIds(List.of("role1")).build();
+        role = Role.builder().id("role1").roleName("User").isActive(true).resourceIds(List.of("res1", "res2")).build();
+        userApi = Resource.builder().id("res1").type(ResourceType.API.name())
+                .permission(new Document("method", "GET").append("uri", "/users/**"))
+                .adGroups(List.of(AD_GROUP)).build();
+        adminApi = Resource.builder().id("res2").type(ResourceType.API.name())
+                .permission(new Document("method", "*").append("uri", "/admin/*"))
+                .adGroups(List.of("AD-CaseA-ADMIN")).build();
+
+        ReflectionTestUtils.setField(checker, "refreshInterval", Duration.ofMinutes(10));
+        ReflectionTestUtils.setField(checker, "changeDebounce", Duration.ofMillis(50));
+        ReflectionTestUtils.setField(checker, "ruleIndexCacheSize", 100L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        checker.stop();
+    }
+
+    private void givenData(List<User> users, List<Role> roles, List<Resource> resources) {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.fromIterable(users));
+        when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.fromIterable(roles));
+        when(resourceRepository.findByTypeAndIsActive(ResourceType.API.name(), true)).thenReturn(Flux.fromIterable(resources));
+    }
+
+    @Test
+    @DisplayName("Should allow when an API rule matches and AD groups intersect")
+    void checkPermission_Allowed() {
+        givenData(List.of(user), List.of(role), List.of(userApi, adminApi));
+        checker.start();
+
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "get", "/users/1/profile"))
+                .expectNext(true)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Should deny when the matching rule's AD groups do not intersect the user's")
+    void checkPermission_DeniedByAdGroup() {
+        givenData(List.of(user), List.of(role), List.of(userApi, adminApi));
+        checker.start();
+
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "DELETE", "/admin/settings"))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Should deny when the method does not match")
+    void checkPermission_DeniedByMethod() {
+        givenData(List.of(user), List.of(role), List.of(userApi));
+        checker.start();
+
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "POST", "/users/1"))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Should deny unknown users")
+    void checkPermission_UnknownUser() {
+        givenData(List.of(user), List.of(role), List.of(userApi));
+        checker.start();
+
+        StepVerifier.create(checker.checkPermission("unknown", "GET", "/users/1"))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Should ignore inactive roles")
+    void checkPermission_InactiveRole() {
+        role.setActive(false);
+        givenData(List.of(user), List.of(role), List.of(userApi));
+        checker.start();
+
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1"))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Refresh should swap in new data and keep the previous snapshot on failure")
+    void refresh_SwapsAndKeepsPreviousOnFailure() {
+        givenData(List.of(user), List.of(), List.of(userApi));
+        checker.start();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(false).verifyComplete();
+
+        when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.just(role));
+        StepVerifier.create(checker.refresh()).expectNextCount(1).verifyComplete();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(true).verifyComplete();
+
+        when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.error(new RuntimeException("mongo down")));
+        StepVerifier.create(checker.refresh()).verifyComplete();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(true).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A local write should be visible once refreshUsers completes, patching only its users and evicting their decisions")
+    void refreshUsers_PatchesBeforeCompleting() {
+        User other = User.builder().staffId("staff002").adGroups(List.of(AD_GROUP)).roleIds(List.of("role1")).build();
+        givenData(List.of(user, other), List.of(role), List.of(userApi));
+        checker.start();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(true).verifyComplete();
+
+        User revoked = User.builder().staffId(STAFF_ID).adGroups(List.of(AD_GROUP)).roleIds(List.of()).build();
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(query.capture(), eq(User.class))).thenReturn(Flux.just(revoked));
+        StepVerifier.create(checker.refreshUsers(List.of(STAFF_ID))).verifyComplete();
+
+        assertEquals(new Document("staffId", new Document("$in", List.of(STAFF_ID))), query.getValue().getQueryObject());
+        verify(roleRepository, times(1)).findAllByIsActive(true); // Roles and resources are kept
+        verify(permissionDecisionCache).evictUsers(List.of(STAFF_ID));
+        verify(permissionDecisionCache, never()).evictAll();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(false).verifyComplete();
+        StepVerifier.create(checker.checkPermission("staff002", "GET", "/users/1")).expectNext(true).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A user change event should patch that user instead of rebuilding the snapshot")
+    void onChange_PatchesChangedUser() {
+        givenData(List.of(user), List.of(role), List.of(userApi));
+        checker.start();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(true).verifyComplete();
+
+        User revoked = User.builder().staffId(STAFF_ID).adGroups(List.of(AD_GROUP)).roleIds(List.of()).build();
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.just(revoked));
+        checker.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.USERS, "id1", STAFF_ID));
+
+        StepVerifier.create(Mono.defer(() -> checker.checkPermission(STAFF_ID, "GET", "/users/1"))
+                        .filter(allowed -> !allowed)
+                        .repeatWhenEmpty(attempts -> attempts.delayElements(Duration.ofMillis(20)).take(100)))
+                .expectNext(false)
+                .verifyComplete();
+        verify(roleRepository, times(1)).findAllByIsActive(true);
+        verify(permissionDecisionCache, timeout(1000)).evictUsers(List.of(STAFF_ID));
+    }
+
+    @Test
+    @DisplayName("A failed startup load should be retried by the next check instead of failing every check")
+    void start_FailedLoadRetried() {
+        givenData(List.of(user), List.of(role), List.of(userApi));
+        when(roleRepository.findAllByIsActive(true))
+                .thenReturn(Flux.error(new RuntimeException("mongo down")), Flux.just(role));
+        checker.start();
+
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(true).verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Changes to users, roles or resources should trigger a refresh, group default role changes should not")
+    void onChange_RefreshesSnapshot() throws InterruptedException {
+        givenData(List.of(user), List.of(), List.of(userApi));
+        checker.start();
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(false).verifyComplete();
+
+        when(roleRepository.findAllByIsActive(true)).thenReturn(Flux.just(role));
+        checker.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.GROUP_DEFAULT_ROLES, "group1", null));
+        Thread.sleep(200);
+        StepVerifier.create(checker.checkPermission(STAFF_ID, "GET", "/users/1")).expectNext(false).verifyComplete();
+
+        checker.onChange(new EntitlementChangeEvent(EntitlementChangeEvent.ROLES, "role1", null));
+        StepVerifier.create(Mono.defer(() -> checker.checkPermission(STAFF_ID, "GET", "/users/1"))
+                        .filter(Boolean::booleanValue)
+                        .repeatWhenEmpty(attempts -> attempts.delayElements(Duration.ofMillis(20)).take(100)))
+                .expectNext(true)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Batch check should return one decision per check in order")
+    void checkPermissions_Batch() {
+        givenData(List.of(user), List.of(role), List.of(userApi, adminApi));
+        checker.start();
+
+        List<PermissionCheckDto> checks = List.of(
+                new PermissionCheckDto("GET", "/users/1"),
+                new PermissionCheckDto("DELETE", "/admin/settings"),
+                new PermissionCheckDto("POST", "/users/1"));
+
+        StepVerifier.create(checker.checkPermissions(STAFF_ID, checks))
+                .expectNext(List.of(true, false, false))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Multi-user check should deny every check for unknown users")
+    void checkPermissions_MultiUser() {
+        givenData(List.of(user), List.of(role), List.of(userApi));
+        checker.start();
+
+        List<PermissionCheckDto> checks = List.of(new PermissionCheckDto("GET", "/users/1"));
+
+        StepVerifier.create(checker.checkPermissions(List.of(STAFF_ID, "unknown"), checks))
+                .expectNext(Map.of(STAFF_ID, List.of(true), "unknown", List.of(false)))
+                .verifyComplete();
+    }
+}
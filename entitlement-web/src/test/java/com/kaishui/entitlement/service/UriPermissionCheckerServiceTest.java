@@ -0,0 +1,154 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.constant.ResourceType;
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
+import com.kaishui.entitlement.repository.UserRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("UriPermissionCheckerService Tests")
+class UriPermissionCheckerServiceTest {
+
+    @Mock
+    private UserRepository userRepository;
+    @Mock
+    private EntitlementCatalog entitlementCatalog;
+
+    @InjectMocks
+    private UriPermissionCheckerService checker;
+
+    private static final String AD_GROUP = "AD-CaseA-USER";
+
+    private User user;
+    private User otherUser;
+    private Role role;
+    private Resource userApi;
+    private Resource adminApi;
+    private List<PermissionCheckDto> checks;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(checker, "ruleIndexCacheSize", 100L);
+        checker.start();
+        user = User.builder().staffId("staff001").adGroups(List.of(AD_GROUP)).roleIds(List.of("role1")).build();
+        otherUser = User.builder().staffId("staff002").adGroups(List.of("AD-CaseA-ADMIN")).roleIds(List.of("role1")).build();
+        role = Role.builder().id("role1").roleName("User").isActive(true).resourceIds(List.of("res1", "res2")).build();
+        userApi = Resource.builder().id("res1").type(ResourceType.API.name())
+                .permission(new Document("method", "GET").append("uri", "/users/**"))
+                .adGroups(List.of(AD_GROUP)).build();
+        adminApi = Resource.builder().id("res2").type(ResourceType.API.name())
+                .permission(new Document("method", "*").append("uri", "/admin/*"))
+                .adGroups(List.of("AD-CaseA-ADMIN")).build();
+        checks = List.of(
+                new PermissionCheckDto("GET", "/users/1"),
+                new PermissionCheckDto("DELETE", "/admin/settings"));
+    }
+
+    @Test
+    @DisplayName("Batch check should resolve the user's rules once and answer every check")
+    void checkPermissions_Batch() {
+        when(userRepository.findByStaffId("staff001")).thenReturn(Mono.just(user));
+        when(entitlementCatalog.activeRoles(List.of("role1"))).thenReturn(Flux.just(role));
+        when(entitlementCatalog.activeResources(List.of("res1", "res2"), ResourceType.API.name()))
+                .thenReturn(Flux.just(userApi, adminApi));
+
+        StepVerifier.create(checker.checkPermissions("staff001", checks))
+                .expectNext(List.of(true, false))
+                .verifyComplete();
+
+        verify(entitlementCatalog, times(1)).activeResources(anyList(), eq(ResourceType.API.name()));
+    }
+
+    @Test
+    @DisplayName("Batch check should deny every check for an unknown user")
+    void checkPermissions_UnknownUser() {
+        when(userRepository.findByStaffId("unknown")).thenReturn(Mono.empty());
+
+        StepVerifier.create(checker.checkPermissions("unknown", checks))
+                .expectNext(List.of(false, false))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Multi-user check should resolve shared roles once and apply each user's AD groups")
+    void checkPermissions_MultiUser() {
+        when(userRepository.findByStaffIdIn(List.of("staff001", "staff002", "unknown"))).thenReturn(Flux.just(user, otherUser));
+        when(entitlementCatalog.activeRoles(List.of("role1"))).thenReturn(Flux.just(role));
+        when(entitlementCatalog.activeResources(List.of("res1", "res2"), ResourceType.API.name()))
+                .thenReturn(Flux.just(userApi, adminApi));
+
+        StepVerifier.create(checker.checkPermissions(List.of("staff001", "staff002", "unknown"), checks))
+                .expectNext(Map.of(
+                        "staff001", List.of(true, false),
+                        "staff002", List.of(false, true),
+                        "unknown", List.of(false, false)))
+                .verifyComplete();
+
+        verify(entitlementCatalog, times(1)).activeRoles(anyList());
+    }
+
+    @Test
+    @DisplayName("Aggregation resolution should answer from one repository call")
+    void checkPermission_AggregationResolution() {
+        ReflectionTestUtils.setField(checker, "resolution", "aggregation");
+        when(userRepository.findAccessibleResourcesByStaffIdAndType("staff001", ResourceType.API.name()))
+                .thenReturn(Flux.just(userApi));
+
+        StepVerifier.create(checker.checkPermission("staff001", "GET", "/users/1"))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(checker.checkPermissions("staff001", checks))
+                .expectNext(List.of(true, false))
+                .verifyComplete();
+
+        verifyNoInteractions(entitlementCatalog);
+    }
+
+    @Test
+    @DisplayName("Rules should be compiled once per resource set and catalog version")
+    void checkPermission_RuleIndexCachedPerCatalogVersion() {
+        Resource renamedApi = Resource.builder().id("res1").type(ResourceType.API.name())
+                .permission(new Document("method", "GET").append("uri", "/accounts/**"))
+                .adGroups(List.of(AD_GROUP)).build();
+        when(userRepository.findByStaffId("staff001")).thenReturn(Mono.just(user));
+        when(entitlementCatalog.version()).thenReturn(1L, 1L, 2L);
+        when(entitlementCatalog.activeRoles(List.of("role1"))).thenReturn(Flux.just(role));
+        when(entitlementCatalog.activeResources(List.of("res1", "res2"), ResourceType.API.name()))
+                .thenReturn(Flux.just(userApi), Flux.just(renamedApi), Flux.just(renamedApi));
+
+        StepVerifier.create(checker.checkPermission("staff001", "GET", "/users/1"))
+                .expectNext(true)
+                .verifyComplete();
+        // Same version, same resource ids: the compiled rules are reused
+        StepVerifier.create(checker.checkPermission("staff001", "GET", "/users/1"))
+                .expectNext(true)
+                .verifyComplete();
+        StepVerifier.create(checker.checkPermission("staff001", "GET", "/users/1"))
+                .expectNext(false)
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,191 @@
+package com.kaishui.entitlement.service;
+
+import com.kaishui.entitlement.entity.Resource;
+import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.UserEntitlement;
+import com.kaishui.entitlement.entity.dto.RolesAndResourcesDto;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("UserEntitlementService Tests")
+class UserEntitlementServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    private UserEntitlementService userEntitlementService;
+
+    private final AtomicInteger resolutions = new AtomicInteger();
+    private User user;
+    private Role role;
+    private Resource resource;
+    private Function<User, Mono<RolesAndResourcesDto>> resolver;
+
+    @BeforeEach
+    void setUp() {
+        userEntitlementService = new UserEntitlementService(reactiveMongoTemplate);
+        user = User.builder().staffId("staff1").roleIds(List.of("role1")).adGroups(List.of("AD-CASE-USER")).build();
+        role = Role.builder().id("role1").resourceIds(List.of("res1", "res2")).build();
+        resource = Resource.builder().id("res1").name("Resource 1").type("API").adGroups(List.of("AD-CASE-USER")).build();
+        resolver = u -> {
+            resolutions.incrementAndGet();
+            return Mono.just(new RolesAndResourcesDto(List.of(role), List.of(resource)));
+        };
+    }
+
+    private void givenMarkedAt(long version) {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(UserEntitlement.class)))
+                .thenReturn(Mono.just(UserEntitlement.builder().staffId("staff1").version(version).building(true).build()));
+    }
+
+    private UserEntitlement entitlement(long version, long builtVersion, List<String> adGroups) {
+        return UserEntitlement.builder()
+                .staffId("staff1")
+                .roleIds(List.of("role1"))
+                .adGroups(adGroups)
+                .roles(List.of(role))
+                .resources(List.of())
+                .version(version)
+                .builtVersion(builtVersion)
+                .schemaVersion(UserEntitlement.SCHEMA_VERSION)
+                .build();
+    }
+
+    @Test
+    @DisplayName("A current document should be served without resolving")
+    void getOrBuild_Current() {
+        UserEntitlement current = entitlement(3, 3, List.of("AD-CASE-USER"));
+        when(reactiveMongoTemplate.findById("staff1", UserEntitlement.class)).thenReturn(Mono.just(current));
+
+        StepVerifier.create(userEntitlementService.getOrBuild(user, resolver))
+                .expectNext(current)
+                .verifyComplete();
+
+        assertEquals(0, resolutions.get());
+        verify(reactiveMongoTemplate, never()).findAndReplace(any(Query.class), any(UserEntitlement.class), any(FindAndReplaceOptions.class));
+    }
+
+    @Test
+    @DisplayName("A missing document should be resolved and stored at version 0")
+    void getOrBuild_Missing() {
+        when(reactiveMongoTemplate.findById("staff1", UserEntitlement.class)).thenReturn(Mono.empty());
+        givenMarkedAt(0);
+        when(reactiveMongoTemplate.findAndReplace(any(Query.class), any(UserEntitlement.class), any(FindAndReplaceOptions.class)))
+                .thenAnswer(invocation -> Mono.just(invocation.getArgument(1)));
+
+        StepVerifier.create(userEntitlementService.getOrBuild(user, resolver))
+                .expectNextMatches(built -> built.getVersion() == 0
+                        && built.getBuiltVersion() == 0
+                        && built.getResourceIds().equals(List.of("res1", "res2"))
+                        && built.getResources().size() == 1
+                        && built.getResources().get(0).getId().equals("res1")
+                        && !built.isBuilding())
+                .verifyComplete();
+
+        assertEquals(1, resolutions.get());
+    }
+
+    @Test
+    @DisplayName("A first build should insert a stale placeholder marked as building before resolving")
+    void getOrBuild_Missing_PlaceholderBeforeResolving() {
+        ArgumentCaptor<Update> mark = ArgumentCaptor.forClass(Update.class);
+        ArgumentCaptor<FindAndModifyOptions> options = ArgumentCaptor.forClass(FindAndModifyOptions.class);
+        when(reactiveMongoTemplate.findById("staff1", UserEntitlement.class)).thenReturn(Mono.empty());
+        givenMarkedAt(0);
+        when(reactiveMongoTemplate.findAndReplace(any(Query.class), any(UserEntitlement.class), any(FindAndReplaceOptions.class)))
+                .thenReturn(Mono.error(new DuplicateKeyException("E11000 duplicate key error"))); // Invalidated meanwhile
+        Function<User, Mono<RolesAndResourcesDto>> checkedResolver = u -> {
+            verify(reactiveMongoTemplate).findAndModify(any(Query.class), mark.capture(), options.capture(), eq(UserEntitlement.class));
+            return resolver.apply(u);
+        };
+
+        StepVerifier.create(userEntitlementService.getOrBuild(user, checkedResolver))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        assertEquals(true, mark.getValue().getUpdateObject().get("$set", Document.class).get("building"));
+        assertEquals(-1L, mark.getValue().getUpdateObject().get("$setOnInsert", Document.class).get("builtVersion"));
+        assertEquals(true, options.getValue().isUpsert());
+    }
+
+    @Test
+    @DisplayName("Invalidated documents and documents built from other AD groups should be rebuilt at their current version")
+    void getOrBuild_Stale() {
+        ArgumentCaptor<Query> expected = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.findById("staff1", UserEntitlement.class))
+                .thenReturn(Mono.just(entitlement(4, 3, List.of("AD-CASE-USER"))))
+                .thenReturn(Mono.just(entitlement(4, 4, List.of("AD-CASE-MANAGER"))));
+        givenMarkedAt(4);
+        when(reactiveMongoTemplate.findAndReplace(expected.capture(), any(UserEntitlement.class), any(FindAndReplaceOptions.class)))
+                .thenAnswer(invocation -> Mono.just(invocation.getArgument(1)));
+
+        StepVerifier.create(userEntitlementService.getOrBuild(user, resolver))
+                .expectNextMatches(built -> built.getVersion() == 4 && built.getBuiltVersion() == 4)
+                .verifyComplete();
+        StepVerifier.create(userEntitlementService.getOrBuild(user, resolver))
+                .expectNextMatches(built -> built.getAdGroups().equals(List.of("AD-CASE-USER")))
+                .verifyComplete();
+
+        assertEquals(2, resolutions.get());
+        assertEquals(4L, expected.getValue().getQueryObject().get("version"));
+    }
+
+    @Test
+    @DisplayName("A rebuild racing with an invalidation should still serve its result but leave the document stale")
+    void getOrBuild_ConcurrentInvalidation() {
+        when(reactiveMongoTemplate.findById("staff1", UserEntitlement.class)).thenReturn(Mono.just(entitlement(1, 0, List.of("AD-CASE-USER"))));
+        givenMarkedAt(1);
+        when(reactiveMongoTemplate.findAndReplace(any(Query.class), any(UserEntitlement.class), any(FindAndReplaceOptions.class)))
+                .thenReturn(Mono.error(new DuplicateKeyException("E11000 duplicate key error")));
+
+        StepVerifier.create(userEntitlementService.getOrBuild(user, resolver))
+                .expectNextMatches(built -> built.getRoles().equals(List.of(role)))
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("Role and resource changes should bump the version of the referencing documents and of those being built")
+    void invalidate_BumpsVersion() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.updateMulti(query.capture(), update.capture(), eq(UserEntitlement.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(5, 5L, null)));
+
+        StepVerifier.create(userEntitlementService.invalidateRole("role1")).expectNext(5L).verifyComplete();
+        assertEquals(new Document("$or", List.of(new Document("roleIds", "role1"), new Document("building", true))),
+                query.getValue().getQueryObject());
+
+        StepVerifier.create(userEntitlementService.invalidateResource("res1")).expectNext(5L).verifyComplete();
+        assertEquals(new Document("$or", List.of(new Document("resourceIds", "res1"), new Document("building", true))),
+                query.getValue().getQueryObject());
+        assertEquals(new Document("version", 1), update.getValue().getUpdateObject().get("$inc"));
+    }
+}
@@ -3,8 +3,8 @@ package com.kaishui.entitlement.service;
 
 import com.kaishui.entitlement.entity.Role;
 import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.NextLevelUserRowDto;
 import com.kaishui.entitlement.entity.dto.UserDto;
-import com.kaishui.entitlement.repository.RoleRepository;
 import com.kaishui.entitlement.repository.UserRepository;
 import com.kaishui.entitlement.util.AdGroupUtil;
 import com.kaishui.entitlement.util.UserMapper;
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors; // Added for clarity in assertions
+import java.util.stream.IntStream;
 
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
@@ -36,7 +37,7 @@ class UserServiceGetNextLevelUserTest {
     @Mock
     private UserRepository userRepository;
     @Mock
-    private RoleRepository roleRepository;
+    private EntitlementCatalog entitlementCatalog;
     @Mock
     private AdGroupUtil adGroupUtil;
     @Mock
@@ -125,7 +126,7 @@ class UserServiceGetNextLevelUserTest {
                     .verifyComplete();
 
             verify(userRepository).findByStaffId(UNKNOWN_STAFF_ID);
-            verifyNoInteractions(adGroupUtil, roleRepository, userMapper);
+            verifyNoInteractions(adGroupUtil, entitlementCatalog, userMapper);
         }
 
         @Test
@@ -145,7 +146,7 @@ class UserServiceGetNextLevelUserTest {
             verify(userRepository).findByStaffId(NO_GROUP_USER_STAFF_ID);
             verify(adGroupUtil).getNextLevelADGroup(USER_CASE_A, requestingUserNoGroup.getAdGroups());
             verify(userRepository, never()).findByAdGroupAndIsActive(anyString(), anyBoolean());
-            verifyNoInteractions(roleRepository, userMapper); // Verify userMapper is not called
+            verifyNoInteractions(entitlementCatalog, userMapper); // Verify userMapper is not called
         }
 
         @Test
@@ -162,7 +163,7 @@ class UserServiceGetNextLevelUserTest {
             verify(userRepository).findByStaffId(ADMIN_STAFF_ID);
             verify(adGroupUtil).getNextLevelADGroup(USER_CASE_A, requestingAdmin.getAdGroups());
             verify(userRepository).findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true);
-            verifyNoInteractions(roleRepository, userMapper);
+            verifyNoInteractions(entitlementCatalog, userMapper);
         }
 
         @Test
@@ -187,7 +188,7 @@ class UserServiceGetNextLevelUserTest {
             verify(userRepository).findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true);
             verify(userMapper).toDto(targetManagerNoRoles);
             // Role repository should not be called in this case
-            verifyNoInteractions(roleRepository);
+            verifyNoInteractions(entitlementCatalog);
         }
     }
 
@@ -207,7 +208,7 @@ class UserServiceGetNextLevelUserTest {
             when(userRepository.findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true)).thenReturn(Flux.just(targetManager1));
             when(userMapper.toDto(targetManager1)).thenReturn(targetManagerDto1);
             // Mock role repo to return empty because no roles match the *specific* userCase "CaseA" AND the IDs
-            when(roleRepository.findAllByIdsAndUserCaseAndIsActive(anyList(), anyString(), anyBoolean()))
+            when(entitlementCatalog.activeRolesOfUserCase(anyList(), anyString()))
                     .thenReturn(Flux.empty());
 
             StepVerifier.create(userService.getNextLevelUser(USER_CASE_A, ADMIN_STAFF_ID))
@@ -222,7 +223,7 @@ class UserServiceGetNextLevelUserTest {
             verify(adGroupUtil).getNextLevelADGroup(USER_CASE_A, requestingAdmin.getAdGroups());
             verify(userRepository).findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true);
             verify(userMapper).toDto(targetManager1);
-            verify(roleRepository).findAllByIdsAndUserCaseAndIsActive(anyList(), anyString(), anyBoolean());
+            verify(entitlementCatalog).activeRolesOfUserCase(anyList(), anyString());
         }
 
         @Test
@@ -239,7 +240,7 @@ class UserServiceGetNextLevelUserTest {
             when(userMapper.toDto(targetManager1)).thenReturn(targetManagerDto1);
             when(userMapper.toDto(targetManager2)).thenReturn(targetManagerDto2);
             // Mock role repo to return only the role matching the userCaseA
-            when(roleRepository.findAllByIdsAndUserCaseAndIsActive(anyList(), anyString(), anyBoolean()))
+            when(entitlementCatalog.activeRolesOfUserCase(anyList(), anyString()))
                     .thenReturn(Flux.empty());
 
             StepVerifier.create(userService.getNextLevelUser(USER_CASE_A, ADMIN_STAFF_ID))
@@ -261,7 +262,7 @@ class UserServiceGetNextLevelUserTest {
             verify(userRepository).findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true);
             verify(userMapper).toDto(targetManager1);
             verify(userMapper).toDto(targetManager2);
-            verify(roleRepository).findAllByIdsAndUserCaseAndIsActive(anyList(), anyString(), anyBoolean());
+            verify(entitlementCatalog).activeRolesOfUserCase(anyList(), anyString());
         }
 
         @Test
@@ -277,7 +278,7 @@ class UserServiceGetNextLevelUserTest {
             when(userRepository.findByAdGroupAndIsActive(USER_GROUP_CASE_A, true)).thenReturn(Flux.just(targetUser1));
             when(userMapper.toDto(targetUser1)).thenReturn(targetUserDto1);
             // Mock role repo to return the matching role
-            when(roleRepository.findAllByIdsAndUserCaseAndIsActive(eq(uniqueRoleIdsList), eq(USER_CASE_A), eq(true)))
+            when(entitlementCatalog.activeRolesOfUserCase(eq(uniqueRoleIdsList), eq(USER_CASE_A)))
                     .thenReturn(Flux.just(roleUserCaseA));
 
             StepVerifier.create(userService.getNextLevelUser(USER_CASE_A, MANAGER_STAFF_ID))
@@ -293,7 +294,7 @@ class UserServiceGetNextLevelUserTest {
             verify(adGroupUtil).getNextLevelADGroup(USER_CASE_A, requestingManager.getAdGroups());
             verify(userRepository).findByAdGroupAndIsActive(USER_GROUP_CASE_A, true);
             verify(userMapper).toDto(targetUser1);
-            verify(roleRepository).findAllByIdsAndUserCaseAndIsActive(eq(uniqueRoleIdsList), eq(USER_CASE_A), eq(true));
+            verify(entitlementCatalog).activeRolesOfUserCase(eq(uniqueRoleIdsList), eq(USER_CASE_A));
         }
 
         @Test
@@ -310,7 +311,7 @@ class UserServiceGetNextLevelUserTest {
             when(userRepository.findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true)).thenReturn(Flux.just(targetManager1));
             when(userMapper.toDto(targetManager1)).thenReturn(targetManagerDto1);
             // Mock role repo to return only the role matching the userCaseA
-            when(roleRepository.findAllByIdsAndUserCaseAndIsActive(anyList(), anyString(), anyBoolean()))
+            when(entitlementCatalog.activeRolesOfUserCase(anyList(), anyString()))
                     .thenReturn(Flux.just(roleManagerCaseA));
 
             StepVerifier.create(userService.getNextLevelUser(USER_CASE_A, USER_STAFF_ID))
@@ -326,11 +327,64 @@ class UserServiceGetNextLevelUserTest {
             verify(adGroupUtil).getNextLevelADGroup(USER_CASE_A, requestingUser.getAdGroups());
             verify(userRepository).findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true);
             verify(userMapper).toDto(targetManager1);
-            verify(roleRepository).findAllByIdsAndUserCaseAndIsActive(
+            verify(entitlementCatalog).activeRolesOfUserCase(
                     argThat(list -> list != null && list.size() == uniqueRoleIds.size() && uniqueRoleIds.containsAll(list)),
-                    eq(USER_CASE_A),
-                    eq(true)
+                    eq(USER_CASE_A)
             );
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    @DisplayName("Streaming Scenarios")
+    class StreamingScenarios {
+
+        @Test
+        @DisplayName("Should fetch each role once across windows of users")
+        void getNextLevelUser_FetchesRolesOncePerRequest() {
+            List<User> targets = IntStream.range(0, UserService.NEXT_LEVEL_WINDOW_SIZE + 1)
+                    .mapToObj(i -> User.builder().staffId("user" + i).roleIds(List.of(ROLE_ID_USER_CASE_A)).isActive(true).build())
+                    .toList();
+            when(userRepository.findByStaffId(MANAGER_STAFF_ID)).thenReturn(Mono.just(requestingManager));
+            when(adGroupUtil.getNextLevelADGroup(USER_CASE_A, requestingManager.getAdGroups())).thenReturn(USER_GROUP_CASE_A);
+            when(userRepository.findByAdGroupAndIsActive(USER_GROUP_CASE_A, true)).thenReturn(Flux.fromIterable(targets));
+            when(userMapper.toDto(any(User.class))).thenAnswer(invocation -> new UserDto());
+            when(entitlementCatalog.activeRolesOfUserCase(List.of(ROLE_ID_USER_CASE_A), USER_CASE_A))
+                    .thenReturn(Flux.just(roleUserCaseA));
+
+            StepVerifier.create(userService.getNextLevelUser(USER_CASE_A, MANAGER_STAFF_ID))
+                    .thenConsumeWhile(dto -> dto.getRoles().equals(List.of(roleUserCaseA)))
+                    .verifyComplete();
+
+            // The second window holds no new role ids
+            verify(entitlementCatalog, times(1)).activeRolesOfUserCase(anyList(), anyString());
+            verify(userMapper, times(targets.size())).toDto(any(User.class));
+        }
+
+        @Test
+        @DisplayName("Compact rows should send each role once, before the first user referencing it by id")
+        void getNextLevelUserRows_RoleDictionary() {
+            User otherManager = User.builder().staffId("manager103").adGroups(List.of(MANAGER_GROUP_CASE_A))
+                    .roleIds(List.of(ROLE_ID_MANAGER_CASE_A)).isActive(true).build();
+            UserDto otherManagerDto = UserDto.builder().staffId("manager103").build();
+            when(userRepository.findByStaffId(ADMIN_STAFF_ID)).thenReturn(Mono.just(requestingAdmin));
+            when(adGroupUtil.getNextLevelADGroup(USER_CASE_A, requestingAdmin.getAdGroups())).thenReturn(MANAGER_GROUP_CASE_A);
+            when(userRepository.findByAdGroupAndIsActive(MANAGER_GROUP_CASE_A, true))
+                    .thenReturn(Flux.just(targetManager1, targetManager2, otherManager));
+            when(userMapper.toDto(targetManager1)).thenReturn(targetManagerDto1);
+            when(userMapper.toDto(targetManager2)).thenReturn(targetManagerDto2);
+            when(userMapper.toDto(otherManager)).thenReturn(otherManagerDto);
+            // ROLE_ID_OTHER_CASE belongs to another user case, so it is not found
+            when(entitlementCatalog.activeRolesOfUserCase(List.of(ROLE_ID_MANAGER_CASE_A, ROLE_ID_OTHER_CASE), USER_CASE_A))
+                    .thenReturn(Flux.just(roleManagerCaseA));
+
+            StepVerifier.create(userService.getNextLevelUserRows(USER_CASE_A, ADMIN_STAFF_ID))
+                    .expectNext(NextLevelUserRowDto.ofRole(roleManagerCaseA))
+                    .expectNext(NextLevelUserRowDto.ofUser(targetManagerDto1, List.of(ROLE_ID_MANAGER_CASE_A)))
+                    .expectNext(NextLevelUserRowDto.ofUser(targetManagerDto2, List.of()))
+                    .expectNext(NextLevelUserRowDto.ofUser(otherManagerDto, List.of(ROLE_ID_MANAGER_CASE_A)))
+                    .verifyComplete();
+
+            assertThat(targetManagerDto1.getRoles()).isNull(); // Roles are not embedded in user rows
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.kaishui.entitlement.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.ReactiveBulkOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@DisplayName("UserSyncService Tests")
+class UserSyncServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    @Mock
+    private ReactiveBulkOperations bulkOps;
+    @Mock
+    private GroupDefaultRoleTable groupDefaultRoleTable;
+    @Mock
+    private AuthorizationUtil authorizationUtil;
+    @Mock
+    private PermissionCheckerInterface permissionChecker;
+    @Mock
+    private PermissionDecisionCache permissionDecisionCache;
+
+    private UserSyncService userSyncService;
+
+    @BeforeEach
+    void setUp() {
+        ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        userSyncService = new UserSyncService(reactiveMongoTemplate, groupDefaultRoleTable, authorizationUtil,
+                permissionChecker, permissionDecisionCache, objectMapper);
+        lenient().when(permissionChecker.refreshUsers(any())).thenReturn(Mono.empty());
+        lenient().when(authorizationUtil.extractUsernameFromContext(any())).thenReturn("hr-feed");
+    }
+
+    private static User existing(String staffId, String email, boolean active, boolean firstLogin) {
+        return User.builder().id("id-" + staffId).staffId(staffId).username(staffId).email(email)
+                .adGroups(List.of("G1", "G2")).roleIds(List.of("old")).isActive(active).isFirstLogin(firstLogin).build();
+    }
+
+    private static BulkWriteResult bulkResult(int upserts, int modified) {
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getUpserts()).thenReturn(IntStream.range(0, upserts)
+                .mapToObj(i -> new BulkWriteUpsert(i, new BsonObjectId()))
+                .toList());
+        when(result.getModifiedCount()).thenReturn(modified);
+        return result;
+    }
+
+    @Test
+    @DisplayName("NDJSON rows should be diffed, written in one unordered bulk write and counted")
+    void syncNdjson_DiffsAndCounts() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.just(
+                existing("s2", "s2@example.com", true, false),
+                existing("s3", "old@example.com", true, false),
+                existing("s4", "s4@example.com", false, false)));
+        when(groupDefaultRoleTable.defaultRoleIds(List.of("G1"))).thenReturn(Mono.just(List.of("r1", "r2")));
+        when(reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class)).thenReturn(bulkOps);
+        BulkWriteResult written = bulkResult(1, 1);
+        when(bulkOps.execute()).thenReturn(Mono.just(written));
+
+        Flux<String> lines = Flux.just(
+                "{\"staffId\":\"s1\",\"username\":\"new\",\"adGroups\":[\"G1\"]}",
+                "{\"staffId\":\"s2\",\"username\":\"s2\",\"email\":\"s2@example.com\",\"adGroups\":[\"G2\",\"G1\"]}",
+                "{\"staffId\":\"s3\",\"username\":\"s3\",\"email\":\"new@example.com\"}",
+                "{\"staffId\":\"s4\",\"username\":\"s4\"}",
+                "",
+                "{not json",
+                "{\"staffId\":\"s5\"}",
+                "{\"staffId\":\"s1\",\"username\":\"again\"}");
+
+        StepVerifier.create(userSyncService.syncNdjson(lines))
+                .assertNext(result -> {
+                    assertEquals(1, result.getInserted());
+                    assertEquals(1, result.getUpdated());
+                    assertEquals(1, result.getUnchanged());
+                    assertEquals(4, result.getRejected());
+                    assertTrue(result.getRejections().get(0).startsWith("line 6: invalid JSON: "));
+                    assertEquals(List.of(
+                            "line 7: username is required",
+                            "line 8: duplicate staffId s1",
+                            "line 4: user s4 is inactive"), result.getRejections().subList(1, 4));
+                })
+                .verifyComplete();
+
+        ArgumentCaptor<Update> inserted = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOps).upsert(any(Query.class), inserted.capture());
+        Document insertSet = (Document) inserted.getValue().getUpdateObject().get("$set");
+        assertEquals("new", insertSet.get("username"));
+        assertEquals(List.of("r1", "r2"), insertSet.get("roleIds"));
+        assertEquals(List.of("r1", "r2"), insertSet.get("defaultRoleIds"));
+        assertEquals(false, insertSet.get("isFirstLogin"));
+        assertEquals("hr-feed", ((Document) inserted.getValue().getUpdateObject().get("$setOnInsert")).get("createdBy"));
+
+        ArgumentCaptor<Query> updatedQuery = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updated = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOps).updateOne(updatedQuery.capture(), updated.capture());
+        assertEquals("s3", updatedQuery.getValue().getQueryObject().get("staffId"));
+        Document updateSet = (Document) updated.getValue().getUpdateObject().get("$set");
+        assertEquals("new@example.com", updateSet.get("email"));
+        assertFalse(updateSet.containsKey("username"));
+        assertFalse(updateSet.containsKey("roleIds"));
+        assertFalse(updateSet.containsKey("defaultRoleIds"));
+        verify(permissionDecisionCache).evictUsers(argThat(staffIds -> staffIds.contains("s3")));
+    }
+
+    @Test
+    @DisplayName("Nothing should be written when every row is unchanged")
+    void syncNdjson_AllUnchanged() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class)))
+                .thenReturn(Flux.just(existing("s2", "s2@example.com", true, false)));
+
+        StepVerifier.create(userSyncService.syncNdjson(Flux.just("{\"staffId\":\"s2\",\"username\":\"s2\"}")))
+                .assertNext(result -> assertEquals(1, result.getUnchanged()))
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).bulkOps(any(BulkOperations.BulkMode.class), eq(User.class));
+        verify(groupDefaultRoleTable, never()).defaultRoleIds(any());
+    }
+
+    @Test
+    @DisplayName("Failed writes of a partially applied bulk write should be rejected by line")
+    void syncNdjson_PartialBulkFailure() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.empty());
+        when(reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class)).thenReturn(bulkOps);
+        BulkWriteResult partial = bulkResult(1, 0);
+        MongoBulkWriteException bulkError = mock(MongoBulkWriteException.class);
+        when(bulkError.getWriteResult()).thenReturn(partial);
+        when(bulkError.getWriteErrors()).thenReturn(List.of(new BulkWriteError(11000, "E11000 duplicate key", new BsonDocument(), 1)));
+        when(bulkOps.execute()).thenReturn(Mono.error(new DuplicateKeyException("E11000 duplicate key", bulkError)));
+
+        StepVerifier.create(userSyncService.syncNdjson(Flux.just(
+                        "{\"staffId\":\"a\",\"username\":\"a\"}",
+                        "{\"staffId\":\"b\",\"username\":\"b\"}")))
+                .assertNext(result -> {
+                    assertEquals(1, result.getInserted());
+                    assertEquals(1, result.getRejected());
+                    assertEquals(List.of("line 2: E11000 duplicate key"), result.getRejections());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("CSV rows should be mapped by header name")
+    void syncCsv_MapsColumns() {
+        when(reactiveMongoTemplate.find(any(Query.class), eq(User.class))).thenReturn(Flux.empty());
+        when(groupDefaultRoleTable.defaultRoleIds(List.of("G1", "G2"))).thenReturn(Mono.just(List.of()));
+        when(reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, User.class)).thenReturn(bulkOps);
+        BulkWriteResult written = bulkResult(1, 0);
+        when(bulkOps.execute()).thenReturn(Mono.just(written));
+
+        StepVerifier.create(userSyncService.syncCsv(Flux.just(
+                        "staffId,username,jobTitle,adGroups,unknown",
+                        "s1,\"Doe, Jane\",\"Lead \"\"Ops\"\"\",G1; G2,x",
+                        "s2,only-two")))
+                .assertNext(result -> {
+                    assertEquals(1, result.getInserted());
+                    assertEquals(List.of("line 3: expected 5 columns but found 2"), result.getRejections());
+                })
+                .verifyComplete();
+
+        ArgumentCaptor<Update> inserted = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOps).upsert(any(Query.class), inserted.capture());
+        Document insertSet = (Document) inserted.getValue().getUpdateObject().get("$set");
+        assertEquals("Doe, Jane", insertSet.get("username"));
+        assertEquals("Lead \"Ops\"", insertSet.get("jobTitle"));
+        assertEquals(List.of("G1", "G2"), insertSet.get("adGroups"));
+        assertEquals(List.of(), insertSet.get("roleIds"));
+    }
+
+    @Test
+    @DisplayName("A CSV without a staffId column should be rejected as a whole")
+    void syncCsv_MissingStaffIdColumn() {
+        StepVerifier.create(userSyncService.syncCsv(Flux.just("username,email", "a,a@example.com")))
+                .expectError(ServerWebInputException.class)
+                .verify();
+    }
+
+    @Test
+    @DisplayName("changes should only set fields the feed provides with a new value")
+    void changes_OnlyRealChanges() {
+        User current = existing("s1", "a@example.com", true, false);
+        User incoming = User.builder().staffId("s1").username("s1").email("a@example.com").adGroups(List.of("G2", "G1")).build();
+
+        assertTrue(UserSyncService.changes(incoming, current).getUpdateObject().isEmpty());
+
+        incoming.setJobTitle("Engineer");
+        incoming.setAdGroups(List.of("G1"));
+        Document set = (Document) UserSyncService.changes(incoming, current).getUpdateObject().get("$set");
+        assertEquals("Engineer", set.get("jobTitle"));
+        assertEquals(List.of("G1"), set.get("adGroups"));
+        assertNull(set.get("email"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.kaishui.entitlement.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("AdGroupDictionary Tests")
+class AdGroupDictionaryTest {
+
+    private AdGroupDictionary dictionary;
+
+    @BeforeEach
+    void setUp() {
+        dictionary = new AdGroupDictionary();
+    }
+
+    @Test
+    @DisplayName("Interning the same name should return the same id")
+    void intern_SameNameSameId() {
+        int id = dictionary.intern("AD-CaseA-USER");
+        assertEquals(id, dictionary.intern("AD-CaseA-USER"));
+        assertNotEquals(id, dictionary.intern("AD-CaseA-ADMIN"));
+        assertEquals(-1, dictionary.idOf("AD-Unknown"));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    @DisplayName("Encoding should ignore nulls and duplicates")
+    void encode_IgnoresNullsAndDuplicates() {
+        AdGroupSet set = dictionary.encode(Arrays.asList("a", null, "b", "a"));
+        assertEquals(2, set.size());
+        assertSame(AdGroupSet.EMPTY, dictionary.encode(null));
+        assertSame(AdGroupSet.EMPTY, dictionary.encode(Collections.singletonList(null)));
+    }
+
+    @Test
+    @DisplayName("Names should match exactly (case-sensitive)")
+    void intersects_CaseSensitive() {
+        AdGroupSet user = dictionary.encode(List.of("AD-CaseA-USER"));
+        assertTrue(dictionary.intersects(user, List.of("other", "AD-CaseA-USER")));
+        assertFalse(dictionary.intersects(user, List.of("ad-casea-user")));
+        assertFalse(dictionary.intersects(user, null));
+        assertFalse(dictionary.intersects(AdGroupSet.EMPTY, List.of("AD-CaseA-USER")));
+    }
+
+    @Test
+    @DisplayName("Sets spanning several words should intersect like Collections.disjoint")
+    void intersects_SameAsDisjoint() {
+        Random random = new Random(7);
+        List<String> universe = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            universe.add("AD-Group-" + i);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            List<String> userGroups = randomGroups(random, universe, 1 + random.nextInt(220));
+            List<String> resourceGroups = randomGroups(random, universe, 1 + random.nextInt(5));
+            boolean expected = !Collections.disjoint(userGroups, resourceGroups);
+
+            AdGroupSet userSet = dictionary.encode(userGroups);
+            AdGroupSet resourceSet = dictionary.encode(resourceGroups);
+            assertEquals(expected, userSet.intersects(resourceSet), () -> userGroups + " vs " + resourceGroups);
+            assertEquals(expected, resourceSet.intersects(userSet), () -> resourceGroups + " vs " + userGroups);
+            assertEquals(expected, dictionary.intersects(userSet, resourceGroups), () -> userGroups + " vs " + resourceGroups);
+        }
+    }
+
+    @Test
+    @DisplayName("Equal sets should be equal regardless of insertion order")
+    void equals_IgnoresOrder() {
+        AdGroupSet first = dictionary.encode(List.of("a", "b", "c"));
+        AdGroupSet second = dictionary.encode(List.of("c", "a", "b"));
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, dictionary.encode(List.of("a", "b")));
+    }
+
+    private static List<String> randomGroups(Random random, List<String> universe, int count) {
+        List<String> groups = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            groups.add(universe.get(random.nextInt(universe.size())));
+        }
+        return groups;
+    }
+}
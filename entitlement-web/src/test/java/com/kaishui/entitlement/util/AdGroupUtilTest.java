@@ -183,4 +183,4 @@ class AdGroupUtilTest {
             assertFalse(adGroupUtil.isUser(adGroups, null));
         }
     }
-}
\ No newline at end of file
+}
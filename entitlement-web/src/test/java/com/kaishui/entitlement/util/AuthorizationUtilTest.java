@@ -0,0 +1,157 @@
+package com.kaishui.entitlement.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import io.jsonwebtoken.Jwts;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.util.context.Context;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DisplayName("AuthorizationUtil Tests")
+class AuthorizationUtilTest {
+
+    private AuthorizationUtil authorizationUtil;
+    private KeyPair keyPair;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+
+        authorizationUtil = new AuthorizationUtil();
+        ReflectionTestUtils.setField(authorizationUtil, "rsaPublicKeyString",
+                Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+        ReflectionTestUtils.setField(authorizationUtil, "staffIdClaim", "staffId");
+        ReflectionTestUtils.setField(authorizationUtil, "claimsCacheMaximumSize", 100L);
+        ReflectionTestUtils.setField(authorizationUtil, "claimsCacheMaxTtl", Duration.ofHours(1));
+        ReflectionTestUtils.invokeMethod(authorizationUtil, "initPublicKey");
+    }
+
+    private String token(String subject, String staffId, Instant expiration) {
+        var builder = Jwts.builder().subject(subject).expiration(Date.from(expiration));
+        if (staffId != null) {
+            builder.claim("staffId", staffId);
+        }
+        return builder.signWith(keyPair.getPrivate()).compact();
+    }
+
+    private MockServerHttpRequest request(String token) {
+        return MockServerHttpRequest.get("/v1/api/users/current/roles")
+                .header(HttpHeaders.AUTHORIZATION, AuthorizationUtil.BEARER_PREFIX + token)
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private long cachedTokens() {
+        Cache<String, ?> cache = (Cache<String, ?>) ReflectionTestUtils.getField(authorizationUtil, "verifiedClaims");
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    @Test
+    @DisplayName("getStaffIdFromToken should read the staff id claim and verify the token once")
+    void getStaffIdFromToken_StaffIdClaim() {
+        String token = token("alice", "staff001", Instant.now().plusSeconds(300));
+
+        assertEquals("staff001", authorizationUtil.getStaffIdFromToken(request(token)));
+        assertEquals("staff001", authorizationUtil.getStaffIdFromToken(request(token)));
+        assertEquals(1, cachedTokens());
+    }
+
+    @Test
+    @DisplayName("A numeric staff id claim should be read as a string, not fail the request")
+    void resolvePrincipal_NumericStaffIdClaim() {
+        String token = Jwts.builder().subject("alice").claim("staffId", 12345)
+                .expiration(Date.from(Instant.now().plusSeconds(300)))
+                .signWith(keyPair.getPrivate()).compact();
+
+        assertEquals("12345", authorizationUtil.resolvePrincipal(request(token)).orElseThrow().staffId());
+        assertEquals("12345", authorizationUtil.getStaffIdFromToken(request(token)));
+    }
+
+    @Test
+    @DisplayName("getStaffIdFromToken should fall back to the subject")
+    void getStaffIdFromToken_FallsBackToSubject() {
+        String token = token("staff002", null, Instant.now().plusSeconds(300));
+
+        assertEquals("staff002", authorizationUtil.getStaffIdFromToken(request(token)));
+    }
+
+    @Test
+    @DisplayName("getStaffIdFromToken should reject tokens signed with another key and not cache them")
+    void getStaffIdFromToken_InvalidSignature() throws Exception {
+        KeyPair otherKeys = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        String forged = Jwts.builder().subject("mallory").claim("staffId", "staff001")
+                .expiration(Date.from(Instant.now().plusSeconds(300)))
+                .signWith(otherKeys.getPrivate()).compact();
+
+        assertEquals(AuthorizationUtil.UNKNOWN_USER, authorizationUtil.getStaffIdFromToken(request(forged)));
+        assertEquals(0, cachedTokens());
+    }
+
+    @Test
+    @DisplayName("getStaffIdFromToken should reject expired tokens")
+    void getStaffIdFromToken_Expired() {
+        String token = token("alice", "staff001", Instant.now().minusSeconds(300));
+
+        assertEquals(AuthorizationUtil.UNKNOWN_USER, authorizationUtil.getStaffIdFromToken(request(token)));
+    }
+
+    @Test
+    @DisplayName("getStaffIdFromToken should return unknown without a Bearer header")
+    void getStaffIdFromToken_MissingHeader() {
+        MockServerHttpRequest request = MockServerHttpRequest.get("/v1/api/users/current/roles").build();
+
+        assertEquals(AuthorizationUtil.UNKNOWN_USER, authorizationUtil.getStaffIdFromToken(request));
+    }
+
+    @Test
+    @DisplayName("resolvePrincipal should expose username, staff id and claims")
+    void resolvePrincipal_ValidToken() {
+        String token = token("alice", "staff001", Instant.now().plusSeconds(300));
+
+        RequestPrincipal principal = authorizationUtil.resolvePrincipal(request(token)).orElseThrow();
+
+        assertEquals("alice", principal.username());
+        assertEquals("staff001", principal.staffId());
+        assertEquals("staff001", principal.claims().get("staffId", String.class));
+    }
+
+    @Test
+    @DisplayName("resolvePrincipal should be empty without a valid token")
+    void resolvePrincipal_MissingHeader() {
+        assertTrue(authorizationUtil.resolvePrincipal(MockServerHttpRequest.get("/").build()).isEmpty());
+    }
+
+    @Test
+    @DisplayName("extractUsernameFromContext should read the principal from the Reactor context")
+    void extractUsernameFromContext_ReadsPrincipal() {
+        RequestPrincipal principal = new RequestPrincipal("alice", "staff001", Jwts.claims().subject("alice").build());
+
+        assertEquals("alice", authorizationUtil.extractUsernameFromContext(Context.of(RequestPrincipal.class, principal)));
+        assertEquals(AuthorizationUtil.UNKNOWN_USER, authorizationUtil.extractUsernameFromContext(Context.empty()));
+    }
+
+    @Test
+    @DisplayName("extractStaffIdFromContext should read the principal's staff id from the Reactor context")
+    void extractStaffIdFromContext_ReadsPrincipal() {
+        RequestPrincipal principal = new RequestPrincipal("alice", "staff001", Jwts.claims().subject("alice").build());
+
+        assertEquals("staff001", authorizationUtil.extractStaffIdFromContext(Context.of(RequestPrincipal.class, principal)));
+        assertEquals(AuthorizationUtil.UNKNOWN_USER, authorizationUtil.extractStaffIdFromContext(Context.empty()));
+    }
+}
@@ -0,0 +1,89 @@
+package com.kaishui.entitlement.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@DisplayName("KeysetCursor Tests")
+class KeysetCursorTest {
+
+    @Test
+    @DisplayName("A cursor should decode back to the id it was encoded from")
+    void encodeDecode_RoundTrip() {
+        String id = "65f1c0ffee0000000000abcd";
+
+        assertEquals(id, KeysetCursor.decode(KeysetCursor.encode(id)));
+        assertNull(KeysetCursor.decode(null));
+        assertNull(KeysetCursor.decode(" "));
+    }
+
+    @Test
+    @DisplayName("A position cursor should decode back to its sort value and id, and not as an id cursor")
+    void encodeDecode_Position() {
+        KeysetCursor.Position position = new KeysetCursor.Position("Product Catalog: API", "65f1c0ffee0000000000abcd");
+        String cursor = KeysetCursor.encode(position);
+
+        assertEquals(position, KeysetCursor.decodePosition(cursor));
+        assertNull(KeysetCursor.decodePosition(null));
+        assertThrows(ServerWebInputException.class, () -> KeysetCursor.decode(cursor));
+        assertThrows(ServerWebInputException.class, () -> KeysetCursor.decodePosition(KeysetCursor.encode("65f1c0ffee0000000000abcd")));
+    }
+
+    @Test
+    @DisplayName("A position without a sort value should decode back to a null sort value, not the string \"null\"")
+    void encodeDecode_NullSortValue() {
+        KeysetCursor.Position unnamed = new KeysetCursor.Position(null, "65f1c0ffee0000000000abcd");
+        KeysetCursor.Position named = new KeysetCursor.Position("null", "65f1c0ffee0000000000abcd");
+
+        assertEquals(unnamed, KeysetCursor.decodePosition(KeysetCursor.encode(unnamed)));
+        assertEquals(named, KeysetCursor.decodePosition(KeysetCursor.encode(named)));
+        assertEquals(new KeysetCursor.Position("", "65f1c0ffee0000000000abcd"),
+                KeysetCursor.decodePosition(KeysetCursor.encode(new KeysetCursor.Position("", "65f1c0ffee0000000000abcd"))));
+    }
+
+    @Test
+    @DisplayName("Cursors not issued by encode should be rejected")
+    void decode_Invalid() {
+        assertThrows(ServerWebInputException.class, () -> KeysetCursor.decode("%%%"));
+        assertThrows(ServerWebInputException.class, () -> KeysetCursor.decode("Zm9v")); // "foo"
+        assertThrows(ServerWebInputException.class, () -> KeysetCursor.decode(KeysetCursor.encode("")));
+    }
+
+    @Test
+    @DisplayName("Limits should default and be clamped")
+    void limit_Clamped() {
+        assertEquals(KeysetCursor.DEFAULT_LIMIT, KeysetCursor.limit(null));
+        assertEquals(1, KeysetCursor.limit(0));
+        assertEquals(50, KeysetCursor.limit(50));
+        assertEquals(KeysetCursor.MAX_LIMIT, KeysetCursor.limit(1_000_000));
+    }
+
+    @Test
+    @DisplayName("A page should point at its last item only when more items follow")
+    void page_NextCursor() {
+        StepVerifier.create(KeysetCursor.page(Flux.just("a", "b", "c"), 2, Function.identity()))
+                .expectNextMatches(page -> page.getItems().equals(List.of("a", "b"))
+                        && KeysetCursor.decode(page.getNextCursor()).equals("b"))
+                .verifyComplete();
+        StepVerifier.create(KeysetCursor.page(Flux.just("a", "b"), 2, Function.identity()))
+                .expectNextMatches(page -> page.getItems().equals(List.of("a", "b")) && page.getNextCursor() == null)
+                .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("A page should request no more than limit + 1 items")
+    void page_BoundedDemand() {
+        StepVerifier.create(KeysetCursor.page(Flux.range(0, Integer.MAX_VALUE).map(String::valueOf), 3, Function.identity()))
+                .expectNextMatches(page -> page.getItems().size() == 3)
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,172 @@
+package com.kaishui.entitlement.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("UriPatternIndex Tests")
+class UriPatternIndexTest {
+
+    private static final AntPathMatcher PATH_MATCHER = new AntPathMatcher();
+
+    private static final List<String> PATTERNS = List.of(
+            "/", "", "*", "/*", "/**", "**", "/**/", "/*/",
+            "/users", "/users/", "/users/*", "/users/*/", "/users/**", "/users/**/",
+            "/users/{id}", "/users/{id}/profile", "/users/{id:\\d+}", "/users/{id:[a-z]+}/roles/**",
+            "/users/*/profile", "/users/**/profile", "/users/**/profile/", "/users/**/*.json",
+            "/users/?", "/users/a?c", "/users/*.json", "/users/file-{name}.{ext}",
+            "/**/admin", "/**/admin/**", "/a/**/b/**/c", "/a/**/**/b", "/a/*/**", "/a/**/*",
+            "/a/b/c", "/a/b/*", "/a/*/c", "/a/*/*", "/a/{x}/{y}", "a/b", "a/*", "a/**",
+            "/api/v1/**", "/api/v?/users", "/api/{version}/users/{id}", "/api/**/users/{id}");
+
+    private static final List<String> PATHS = List.of(
+            "/", "", "//", "/users", "/users/", "/users//", "/users/1", "/users/1/", "/users/abc",
+            "/users/1/profile", "/users/1/profile/", "/users/1/2/profile", "/users/profile",
+            "/users/1.json", "/users/a/b/c.json", "/users/abc", "/users/a", "/users/ab",
+            "/users/file-report.pdf", "/users/file-.pdf", "/users/x/roles", "/users/x/roles/1",
+            "/users/123/roles/1", "/admin", "/admin/", "/x/admin", "/x/y/admin/z", "/a/b/c", "/a/b/c/",
+            "/a/x/b/y/c", "/a/b/b/c", "/a/b", "/a/b/", "/a", "/a/", "/a/x/y/b", "a/b", "a/c", "a",
+            "/api/v1/users", "/api/v2/users", "/api/v10/users", "/api/v1/users/9", "/api/x/y/users/9",
+            "/a//b", "users/1");
+
+    private static UriPatternIndex<String> singleRuleIndex(String method, String pattern) {
+        return UriPatternIndex.<String>builder().add(method, pattern, pattern).build();
+    }
+
+    private static void assertSameAsAntPathMatcher(String pattern, String path) {
+        boolean expected = PATH_MATCHER.match(pattern, path);
+        boolean actual = singleRuleIndex("GET", pattern).matches("GET", path);
+        assertEquals(expected, actual, () -> "pattern '" + pattern + "' vs path '" + path + "'");
+    }
+
+    @Nested
+    @DisplayName("Differential tests against AntPathMatcher")
+    class DifferentialTests {
+
+        @Test
+        @DisplayName("Each curated pattern should agree with AntPathMatcher on every curated path")
+        void curatedPatternsAndPaths() {
+            for (String pattern : PATTERNS) {
+                for (String path : PATHS) {
+                    assertSameAsAntPathMatcher(pattern, path);
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("An index of all curated patterns should match iff any pattern matches")
+        void combinedIndex() {
+            UriPatternIndex.Builder<String> builder = UriPatternIndex.builder();
+            PATTERNS.forEach(pattern -> builder.add("GET", pattern, pattern));
+            UriPatternIndex<String> index = builder.build();
+
+            for (String path : PATHS) {
+                boolean expected = PATTERNS.stream().anyMatch(pattern -> PATH_MATCHER.match(pattern, path));
+                String match = index.findMatch("GET", path);
+                assertEquals(expected, match != null, () -> "path '" + path + "'");
+                if (match != null) {
+                    assertTrue(PATH_MATCHER.match(match, path), () -> "returned rule '" + match + "' does not match '" + path + "'");
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("Randomly generated patterns and paths should agree with AntPathMatcher")
+        void randomizedPatternsAndPaths() {
+            Random random = new Random(42);
+            String[] patternSegments = {"a", "b", "c", "*", "**", "?", "a*", "*b", "{id}", "{id:[ab]}", "a?c", "**"};
+            String[] pathSegments = {"a", "b", "c", "ab", "abc", "ba", "x", ""};
+
+            for (int i = 0; i < 300; i++) {
+                List<String> patterns = new ArrayList<>();
+                for (int p = 0; p < 1 + random.nextInt(20); p++) {
+                    patterns.add(randomPath(random, patternSegments, 5));
+                }
+                UriPatternIndex.Builder<String> builder = UriPatternIndex.builder();
+                patterns.forEach(pattern -> builder.add("GET", pattern, pattern));
+                UriPatternIndex<String> index = builder.build();
+
+                for (int q = 0; q < 30; q++) {
+                    String path = randomPath(random, pathSegments, 6);
+                    boolean expected = patterns.stream().anyMatch(pattern -> PATH_MATCHER.match(pattern, path));
+                    assertEquals(expected, index.matches("GET", path), () -> "patterns " + patterns + " vs path '" + path + "'");
+                }
+            }
+        }
+
+        private String randomPath(Random random, String[] segments, int maxSegments) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextInt(10) > 0) {
+                sb.append('/');
+            }
+            int count = random.nextInt(maxSegments + 1);
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append('/');
+                }
+                sb.append(segments[random.nextInt(segments.length)]);
+            }
+            if (random.nextInt(4) == 0) {
+                sb.append('/');
+            }
+            return sb.toString();
+        }
+    }
+
+    @Nested
+    @DisplayName("Method matching Tests")
+    class MethodTests {
+
+        @Test
+        @DisplayName("Method should match ignoring case")
+        void method_IgnoresCase() {
+            UriPatternIndex<String> index = singleRuleIndex("GET", "/users/**");
+            assertTrue(index.matches("get", "/users/1"));
+            assertFalse(index.matches("POST", "/users/1"));
+        }
+
+        @Test
+        @DisplayName("Wildcard method should match any method, including null")
+        void method_Wildcard() {
+            UriPatternIndex<String> index = singleRuleIndex("*", "/users/**");
+            assertTrue(index.matches("DELETE", "/users/1"));
+            assertTrue(index.matches(null, "/users/1"));
+        }
+
+        @Test
+        @DisplayName("Rules for different methods should not leak into each other")
+        void method_SeparateTries() {
+            UriPatternIndex<String> index = UriPatternIndex.<String>builder()
+                    .add("GET", "/users/*", "read")
+                    .add("POST", "/users", "create")
+                    .build();
+            assertEquals("read", index.findMatch("GET", "/users/1"));
+            assertNull(index.findMatch("POST", "/users/1"));
+            assertEquals("create", index.findMatch("post", "/users"));
+        }
+    }
+
+    @Test
+    @DisplayName("Rules with a null method or uri should be ignored")
+    void add_NullRuleIgnored() {
+        UriPatternIndex<String> index = UriPatternIndex.<String>builder()
+                .add(null, "/users", "a")
+                .add("GET", null, "b")
+                .build();
+        assertTrue(index.isEmpty());
+        assertFalse(index.matches("GET", "/users"));
+    }
+
+    @Test
+    @DisplayName("A null URI should never match")
+    void findMatch_NullUri() {
+        assertNull(singleRuleIndex("*", "/**").findMatch("GET", null));
+    }
+}
@@ -1,11 +1,15 @@
 package com.kaishui.entitlement.web;
 
+import com.kaishui.entitlement.entity.GroupDefaultRoleReconciliation;
 import com.kaishui.entitlement.entity.dto.CreateGroupDefaultRoleDto;
 import com.kaishui.entitlement.entity.dto.GroupDefaultRoleDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.UpdateGroupDefaultRoleDto;
 import com.kaishui.entitlement.exception.ConflictException;
 import com.kaishui.entitlement.exception.ResourceNotFoundException;
+import com.kaishui.entitlement.service.GroupDefaultRoleReconciler;
 import com.kaishui.entitlement.service.GroupDefaultRoleService;
+import com.kaishui.entitlement.util.KeysetCursor;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -26,6 +30,7 @@ import java.util.Date;
 import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -38,6 +43,9 @@ class GroupDefaultRoleControllerTest {
     @Mock
     private GroupDefaultRoleService groupDefaultRoleService;
 
+    @Mock
+    private GroupDefaultRoleReconciler groupDefaultRoleReconciler;
+
     @InjectMocks
     private GroupDefaultRoleController groupDefaultRoleController;
 
@@ -129,10 +137,11 @@ class GroupDefaultRoleControllerTest {
 
 
     @Test
-    @DisplayName("GET /v1/api/group-default-roles - Should return all mappings when no filter")
+    @DisplayName("GET /v1/api/group-default-roles - Should return the first page of mappings when no filter")
     void getGroupDefaultRoles_All() {
         // Arrange
-        when(groupDefaultRoleService.getAllGroupDefaultRoles()).thenReturn(Flux.just(groupRoleDto1, groupRoleDto2));
+        when(groupDefaultRoleService.getGroupDefaultRolesPage(null, KeysetCursor.DEFAULT_LIMIT))
+                .thenReturn(Mono.just(new PageDto<>(List.of(groupRoleDto1, groupRoleDto2), null)));
 
         // Act & Assert
         webTestClient.get().uri("/v1/api/group-default-roles")
@@ -140,13 +149,29 @@ class GroupDefaultRoleControllerTest {
                 .exchange()
                 .expectStatus().isOk()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBodyList(GroupDefaultRoleDto.class).hasSize(2).contains(groupRoleDto1, groupRoleDto2);
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(2)
+                .jsonPath("$.items[0].id").isEqualTo(groupRoleDto1.getId())
+                .jsonPath("$.nextCursor").doesNotExist();
 
         // Verify
-        verify(groupDefaultRoleService).getAllGroupDefaultRoles();
+        verify(groupDefaultRoleService).getGroupDefaultRolesPage(null, KeysetCursor.DEFAULT_LIMIT);
         verify(groupDefaultRoleService, never()).findByGroupNames(any());
     }
 
+    @Test
+    @DisplayName("GET /v1/api/group-default-roles/export - Should stream all mappings as NDJSON")
+    void exportGroupDefaultRoles() {
+        when(groupDefaultRoleService.getAllGroupDefaultRoles()).thenReturn(Flux.just(groupRoleDto1, groupRoleDto2));
+
+        webTestClient.get().uri("/v1/api/group-default-roles/export")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(GroupDefaultRoleDto.class).hasSize(2).contains(groupRoleDto1, groupRoleDto2);
+    }
+
     @Test
     @DisplayName("GET /v1/api/group-default-roles - Should return filtered mappings")
     void getGroupDefaultRoles_Filtered() {
@@ -163,11 +188,14 @@ class GroupDefaultRoleControllerTest {
                 .exchange()
                 .expectStatus().isOk()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBodyList(GroupDefaultRoleDto.class).hasSize(1).contains(groupRoleDto1);
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(1)
+                .jsonPath("$.items[0].id").isEqualTo(groupRoleDto1.getId())
+                .jsonPath("$.nextCursor").doesNotExist();
 
         // Verify
         verify(groupDefaultRoleService).findByGroupNames(filterNames);
-        verify(groupDefaultRoleService, never()).getAllGroupDefaultRoles();
+        verify(groupDefaultRoleService, never()).getGroupDefaultRolesPage(any(), anyInt());
     }
 
     @Test
@@ -205,6 +233,26 @@ class GroupDefaultRoleControllerTest {
         verify(groupDefaultRoleService).getGroupDefaultRoleById(nonExistentId);
     }
 
+    @Test
+    @DisplayName("GET /v1/api/group-default-roles/reconciliations/{id} - Should return the job's progress")
+    void getReconciliation_Found() {
+        GroupDefaultRoleReconciliation job = GroupDefaultRoleReconciliation.builder().id("job1").groupName(groupName1)
+                .addRoleIds(List.of("role-id-1")).removeRoleIds(List.of())
+                .status(GroupDefaultRoleReconciliation.Status.RUNNING).usersScanned(500).updates(120).build();
+        when(groupDefaultRoleReconciler.getReconciliation("job1")).thenReturn(Mono.just(job));
+
+        webTestClient.get().uri("/v1/api/group-default-roles/reconciliations/{id}", "job1")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.status").isEqualTo("RUNNING")
+                .jsonPath("$.usersScanned").isEqualTo(500)
+                .jsonPath("$.updates").isEqualTo(120);
+
+        verify(groupDefaultRoleService, never()).getGroupDefaultRoleById(anyString());
+    }
+
     @Test
     @DisplayName("GET /v1/api/group-default-roles/by-group/{groupName} - Should return mapping when found")
     void getGroupDefaultRoleByGroupName_Found() {
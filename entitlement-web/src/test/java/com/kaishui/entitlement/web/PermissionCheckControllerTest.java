@@ -0,0 +1,139 @@
+package com.kaishui.entitlement.web;
+
+import com.kaishui.entitlement.entity.dto.BatchPermissionCheckDto;
+import com.kaishui.entitlement.entity.dto.MultiUserPermissionCheckDto;
+import com.kaishui.entitlement.entity.dto.PermissionCheckDto;
+import com.kaishui.entitlement.exception.CommonException;
+import com.kaishui.entitlement.service.PermissionCheckerInterface;
+import com.kaishui.entitlement.service.PermissionDecisionCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class PermissionCheckControllerTest {
+
+    private WebTestClient webTestClient;
+
+    @Mock
+    private PermissionCheckerInterface permissionChecker;
+
+    private List<PermissionCheckDto> checks;
+
+    @BeforeEach
+    void setUp() {
+        PermissionDecisionCache decisionCache = new PermissionDecisionCache(new SimpleMeterRegistry(), 100, Duration.ofMinutes(1), true);
+        webTestClient = WebTestClient.bindToController(new PermissionCheckController(permissionChecker, decisionCache)).build();
+        checks = List.of(
+                new PermissionCheckDto("GET", "/users/1"),
+                new PermissionCheckDto("DELETE", "/admin/settings"));
+    }
+
+    @Test
+    @DisplayName("GET /v1/api/permissions/check - Should return the single decision")
+    void checkUriPermission_Success() {
+        when(permissionChecker.checkPermission("staff001", "GET", "/users/1")).thenReturn(Mono.just(true));
+
+        webTestClient.get().uri(uriBuilder -> uriBuilder.path("/v1/api/permissions/check")
+                        .queryParam("staffId", "staff001")
+                        .queryParam("httpMethod", "GET")
+                        .queryParam("requestUri", "/users/1")
+                        .build())
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.allowed").isEqualTo(true);
+    }
+
+    @Test
+    @DisplayName("POST /v1/api/permissions/check/batch - Should return one decision per check in order")
+    void checkUriPermissions_Success() {
+        BatchPermissionCheckDto request = new BatchPermissionCheckDto();
+        request.setStaffId("staff001");
+        request.setChecks(checks);
+        when(permissionChecker.checkPermissions(eq("staff001"), anyList())).thenReturn(Mono.just(List.of(true, false)));
+
+        webTestClient.post().uri("/v1/api/permissions/check/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(request)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[0].httpMethod").isEqualTo("GET")
+                .jsonPath("$[0].requestUri").isEqualTo("/users/1")
+                .jsonPath("$[0].allowed").isEqualTo(true)
+                .jsonPath("$[1].requestUri").isEqualTo("/admin/settings")
+                .jsonPath("$[1].allowed").isEqualTo(false);
+
+        verify(permissionChecker).checkPermissions(eq("staff001"), anyList());
+    }
+
+    @Test
+    @DisplayName("POST /v1/api/permissions/check/batch - Should return 400 when checks are missing")
+    void checkUriPermissions_ValidationError() {
+        BatchPermissionCheckDto request = new BatchPermissionCheckDto();
+        request.setStaffId("staff001");
+        request.setChecks(List.of());
+
+        webTestClient.post().uri("/v1/api/permissions/check/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(request)
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    @DisplayName("POST /v1/api/permissions/check/batch - Should return 5xx when the checker fails")
+    void checkUriPermissions_ServiceError() {
+        BatchPermissionCheckDto request = new BatchPermissionCheckDto();
+        request.setStaffId("staff001");
+        request.setChecks(checks);
+        when(permissionChecker.checkPermissions(eq("staff001"), anyList())).thenReturn(Mono.error(new CommonException("DB error")));
+
+        webTestClient.post().uri("/v1/api/permissions/check/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(request)
+                .exchange()
+                .expectStatus().is5xxServerError();
+    }
+
+    @Test
+    @DisplayName("POST /v1/api/permissions/check/batch/users - Should return decisions keyed by staffId")
+    void checkUriPermissionsForUsers_Success() {
+        MultiUserPermissionCheckDto request = new MultiUserPermissionCheckDto();
+        request.setStaffIds(List.of("staff001", "staff002"));
+        request.setChecks(checks);
+        Map<String, List<Boolean>> decisions = new LinkedHashMap<>();
+        decisions.put("staff001", List.of(true, false));
+        decisions.put("staff002", List.of(false, false));
+        when(permissionChecker.checkPermissions(eq(List.of("staff001", "staff002")), anyList())).thenReturn(Mono.just(decisions));
+
+        webTestClient.post().uri("/v1/api/permissions/check/batch/users")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(request)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.staff001[0].allowed").isEqualTo(true)
+                .jsonPath("$.staff001[1].allowed").isEqualTo(false)
+                .jsonPath("$.staff002[0].httpMethod").isEqualTo("GET")
+                .jsonPath("$.staff002[0].allowed").isEqualTo(false);
+    }
+}
@@ -1,10 +1,12 @@
 package com.kaishui.entitlement.web;
 
 import com.kaishui.entitlement.entity.dto.CreateResourceDto;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.entity.dto.ResourceDto;
 import com.kaishui.entitlement.entity.dto.UpdateResourceDto;
 import com.kaishui.entitlement.exception.ResourceNotFoundException; // Assuming this exception exists
 import com.kaishui.entitlement.service.ResourceService;
+import com.kaishui.entitlement.util.KeysetCursor;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
@@ -142,8 +144,8 @@ class ResourceControllerTest {
         String typeFilter = "API";
         List<String> adGroupFilter = List.of("group-a");
         Boolean activeFilter = true;
-        when(resourceService.findResources(nameFilter, typeFilter, adGroupFilter, activeFilter))
-                .thenReturn(Flux.just(resourceDto1)); // Assume only resourceDto1 matches these filters
+        when(resourceService.findResourcesPage(nameFilter, typeFilter, adGroupFilter, activeFilter, null, null, null, KeysetCursor.DEFAULT_LIMIT))
+                .thenReturn(Mono.just(new PageDto<>(List.of(resourceDto1), null))); // Assume only resourceDto1 matches these filters
 
         // Act & Assert
         webTestClient.get().uri(uriBuilder -> uriBuilder
@@ -157,17 +159,21 @@ class ResourceControllerTest {
                 .exchange()
                 .expectStatus().isOk()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBodyList(ResourceDto.class).hasSize(1).contains(resourceDto1);
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(1)
+                .jsonPath("$.items[0].id").isEqualTo(resourceDto1.getId())
+                .jsonPath("$.nextCursor").doesNotExist();
 
         // Verify service interaction
-        verify(resourceService).findResources(nameFilter, typeFilter, adGroupFilter, activeFilter);
+        verify(resourceService).findResourcesPage(nameFilter, typeFilter, adGroupFilter, activeFilter, null, null, null, KeysetCursor.DEFAULT_LIMIT);
     }
 
     @Test
     @DisplayName("GET /v1/api/resources - Should return empty list when no resources match")
     void findResources_NoMatch() {
         // Arrange
-        when(resourceService.findResources(any(), any(), any(), any())).thenReturn(Flux.empty());
+        when(resourceService.findResourcesPage(any(), any(), any(), any(), any(), any(), any(), eq(KeysetCursor.DEFAULT_LIMIT)))
+                .thenReturn(Mono.just(new PageDto<>(List.of(), null)));
 
         // Act & Assert
         webTestClient.get().uri("/v1/api/resources?name=nonexistent")
@@ -175,10 +181,40 @@ class ResourceControllerTest {
                 .exchange()
                 .expectStatus().isOk()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBodyList(ResourceDto.class).hasSize(0);
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(0);
 
         // Verify
-        verify(resourceService).findResources(eq("nonexistent"), any(), any(), any());
+        verify(resourceService).findResourcesPage(eq("nonexistent"), any(), any(), any(), any(), any(), any(), eq(KeysetCursor.DEFAULT_LIMIT));
+    }
+
+    @Test
+    @DisplayName("GET /v1/api/resources - Should pass the sort, cursor and clamped limit through")
+    void findResources_NextPage() {
+        String cursor = KeysetCursor.encode(resourceDto1.getId());
+        when(resourceService.findResourcesPage(null, null, null, null, "name", "desc", cursor, 1))
+                .thenReturn(Mono.just(new PageDto<>(List.of(resourceDto2), KeysetCursor.encode(resourceDto2.getId()))));
+
+        webTestClient.get().uri("/v1/api/resources?sort=name&direction=desc&cursor={cursor}&limit=0", cursor)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.items[0].id").isEqualTo(resourceDto2.getId())
+                .jsonPath("$.nextCursor").isEqualTo(KeysetCursor.encode(resourceDto2.getId()));
+    }
+
+    @Test
+    @DisplayName("GET /v1/api/resources/export - Should stream matching resources as NDJSON")
+    void exportResources_Success() {
+        when(resourceService.findResources(null, "API", null, null)).thenReturn(Flux.just(resourceDto1, resourceDto2));
+
+        webTestClient.get().uri("/v1/api/resources/export?type=API")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(ResourceDto.class).hasSize(2).contains(resourceDto1, resourceDto2);
     }
 
 
@@ -1,8 +1,10 @@
 package com.kaishui.entitlement.web;
 
 import com.kaishui.entitlement.entity.Role;
+import com.kaishui.entitlement.entity.dto.PageDto;
 import com.kaishui.entitlement.exception.CommonException;
 import com.kaishui.entitlement.service.RoleService;
+import com.kaishui.entitlement.util.KeysetCursor;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -17,6 +19,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.Date;
+import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -67,10 +70,10 @@ class RoleControllerTest {
     }
 
     @Test
-    @DisplayName("GET /v1/api/roles - Should return all active roles")
+    @DisplayName("GET /v1/api/roles - Should return the first page of active roles")
     void getAllRoles_Success() {
         // Arrange: Mock service behavior
-        when(roleService.getAllRoles()).thenReturn(Flux.just(role1, role2));
+        when(roleService.getRolesPage(null, KeysetCursor.DEFAULT_LIMIT)).thenReturn(Mono.just(new PageDto<>(List.of(role1, role2), null)));
 
         // Act & Assert
         webTestClient.get().uri("/v1/api/roles")
@@ -78,10 +81,27 @@ class RoleControllerTest {
                 .exchange()
                 .expectStatus().isOk()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBodyList(Role.class).hasSize(2).contains(role1, role2);
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(2)
+                .jsonPath("$.items[0].id").isEqualTo(role1.getId())
+                .jsonPath("$.items[1].id").isEqualTo(role2.getId())
+                .jsonPath("$.nextCursor").doesNotExist();
 
         // Verify service interaction
-        verify(roleService).getAllRoles();
+        verify(roleService).getRolesPage(null, KeysetCursor.DEFAULT_LIMIT);
+    }
+
+    @Test
+    @DisplayName("GET /v1/api/roles/export - Should stream all active roles as NDJSON")
+    void exportRoles_Success() {
+        when(roleService.getAllRoles()).thenReturn(Flux.just(role1, role2));
+
+        webTestClient.get().uri("/v1/api/roles/export")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(Role.class).hasSize(2).contains(role1, role2);
     }
 
     @Test
@@ -1,7 +1,16 @@
 package com.kaishui.entitlement.web;
 
 import com.kaishui.entitlement.entity.User;
+import com.kaishui.entitlement.entity.dto.PageDto;
+import com.kaishui.entitlement.entity.dto.UserDto;
+import com.kaishui.entitlement.entity.dto.UserSyncResultDto;
+import com.kaishui.entitlement.service.LoginService;
 import com.kaishui.entitlement.service.UserService;
+import com.kaishui.entitlement.service.UserSyncService;
+import com.kaishui.entitlement.util.AuthorizationUtil;
+import com.kaishui.entitlement.util.KeysetCursor;
+import com.kaishui.entitlement.util.RequestPrincipal;
+import io.jsonwebtoken.Jwts;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -9,12 +18,14 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
 import java.util.Date;
 import java.util.List;
@@ -31,6 +42,15 @@ class UserControllerTest {
     @Mock
     private UserService userService;
 
+    @Mock
+    private UserSyncService userSyncService;
+
+    @Mock
+    private LoginService loginService;
+
+    @Spy
+    private AuthorizationUtil authorizationUtil;
+
     @InjectMocks
     private UserController userController;
 
@@ -62,24 +82,71 @@ class UserControllerTest {
         userWithId.setCreatedDate(new Date());
         userWithId.setLastModifiedDate(new Date());
         userWithId.setAdGroups(List.of("AD_Users"));
-        when(userService.getAllUsers()).thenReturn(Flux.just(userWithId));
+        when(userService.getUsersPage(null, KeysetCursor.DEFAULT_LIMIT)).thenReturn(Mono.just(new PageDto<>(List.of(userWithId), "next")));
 
         webTestClient.get().uri("/v1/api/users")
                 .accept(MediaType.APPLICATION_JSON)
                 .exchange()
                 .expectStatus().isOk()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBodyList(User.class)
-                .hasSize(1)
-                .consumeWith(response -> {
-                    List<User> users = response.getResponseBody();
-                    User actualUser = users.get(0);
-                    assertThat(actualUser.getUsername()).isEqualTo(user.getUsername());
-                    assertThat(actualUser.getStaffId()).isEqualTo(user.getStaffId());
-                    assertThat(actualUser.getEmail()).isEqualTo(user.getEmail());
-                });
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(1)
+                .jsonPath("$.items[0].username").isEqualTo(user.getUsername())
+                .jsonPath("$.items[0].staffId").isEqualTo(user.getStaffId())
+                .jsonPath("$.items[0].email").isEqualTo(user.getEmail())
+                .jsonPath("$.nextCursor").isEqualTo("next");
+
+        verify(userService).getUsersPage(null, KeysetCursor.DEFAULT_LIMIT);
+    }
+
+    @Test
+    void findRolesByUserCase_StaffIdFromRequestPrincipal() {
+        RequestPrincipal principal = new RequestPrincipal("alice", "staff001", Jwts.claims().subject("alice").build());
+        WebTestClient authenticated = WebTestClient.bindToController(userController)
+                .webFilter((exchange, chain) -> chain.filter(exchange).contextWrite(ctx -> ctx.put(RequestPrincipal.class, principal)))
+                .build();
+        when(userService.findRolesByUserCase("CASE_A", "staff001")).thenReturn(Flux.empty());
+
+        authenticated.get().uri("/v1/api/users/current/roles?userCase=CASE_A")
+                .exchange()
+                .expectStatus().isOk();
 
-        verify(userService).getAllUsers();
+        verify(userService).findRolesByUserCase("CASE_A", "staff001");
+    }
+
+    @Test
+    void getAllUsers_NextPage() {
+        String cursor = KeysetCursor.encode("user1");
+        when(userService.getUsersPage(cursor, KeysetCursor.MAX_LIMIT)).thenReturn(Mono.just(new PageDto<>(List.of(), null)));
+
+        webTestClient.get().uri("/v1/api/users?cursor={cursor}&limit=5000", cursor)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(0)
+                .jsonPath("$.nextCursor").doesNotExist();
+
+        verify(userService).getUsersPage(cursor, KeysetCursor.MAX_LIMIT);
+    }
+
+    @Test
+    void exportUsers() {
+        User second = new User();
+        second.setStaffId("67890");
+        when(userService.getAllUsers()).thenReturn(Flux.just(user, second));
+
+        webTestClient.get().uri("/v1/api/users/export")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .returnResult(User.class)
+                .getResponseBody()
+                .map(User::getStaffId)
+                .as(StepVerifier::create)
+                .expectNext("12345", "67890")
+                .verifyComplete();
     }
 
     @Test
@@ -125,15 +192,13 @@ class UserControllerTest {
     @Test
     void createUser() {
         ArgumentCaptor<User> userCaptor = ArgumentCaptor.forClass(User.class);
-        User userWithId = new User();
-        userWithId.setId(new ObjectId().toHexString());
-        userWithId.setUsername("testuser");
-        userWithId.setStaffId("12345");
-        userWithId.setEmail("test@example.com");
-        userWithId.setCreatedDate(new Date());
-        userWithId.setLastModifiedDate(new Date());
-        userWithId.setAdGroups(List.of("AD_Users"));
-        when(userService.createUser(any(User.class))).thenReturn(Mono.just(userWithId));
+        UserDto loggedIn = new UserDto();
+        loggedIn.setId(new ObjectId().toHexString());
+        loggedIn.setUsername("testuser");
+        loggedIn.setStaffId("12345");
+        loggedIn.setEmail("test@example.com");
+        loggedIn.setAdGroups(List.of("AD_Users"));
+        when(loginService.login(any(User.class))).thenReturn(Mono.just(loggedIn));
 
         webTestClient.post().uri("/v1/api/users")
                 .contentType(MediaType.APPLICATION_JSON)
@@ -141,15 +206,15 @@ class UserControllerTest {
                 .exchange()
                 .expectStatus().isCreated()
                 .expectHeader().contentType(MediaType.APPLICATION_JSON)
-                .expectBody(User.class)
+                .expectBody(UserDto.class)
                 .consumeWith(response -> {
-                    User actualUser = response.getResponseBody();
+                    UserDto actualUser = response.getResponseBody();
                     assertThat(actualUser.getUsername()).isEqualTo(user.getUsername());
                     assertThat(actualUser.getStaffId()).isEqualTo(user.getStaffId());
                     assertThat(actualUser.getEmail()).isEqualTo(user.getEmail());
                 });
 
-        verify(userService).createUser(userCaptor.capture());
+        verify(loginService).login(userCaptor.capture());
         User capturedUser = userCaptor.getValue();
         assertThat(capturedUser.getUsername()).isEqualTo(user.getUsername());
         assertThat(capturedUser.getStaffId()).isEqualTo(user.getStaffId());
@@ -158,7 +223,7 @@ class UserControllerTest {
 
     @Test
     void createUser_duplicateStaffId() {
-        when(userService.createUser(any(User.class))).thenReturn(Mono.error(new DuplicateKeyException("Duplicate StaffId")));
+        when(loginService.login(any(User.class))).thenReturn(Mono.error(new DuplicateKeyException("Duplicate StaffId")));
 
         webTestClient.post().uri("/v1/api/users")
                 .contentType(MediaType.APPLICATION_JSON)
@@ -166,7 +231,7 @@ class UserControllerTest {
                 .exchange()
                 .expectStatus().isEqualTo(409);
 
-        verify(userService).createUser(any(User.class));
+        verify(loginService).login(any(User.class));
     }
 
     @Test
@@ -267,4 +332,38 @@ class UserControllerTest {
         verify(userService).deleteUser(userId.toHexString());
     }
 
-}
\ No newline at end of file
+    private static Mono<UserSyncResultDto> countLines(Flux<String> lines) {
+        return lines.count().map(count -> {
+            UserSyncResultDto result = new UserSyncResultDto();
+            result.setUnchanged(count);
+            return result;
+        });
+    }
+
+    @Test
+    void syncUsers_ndjson() {
+        when(userSyncService.syncNdjson(any())).thenAnswer(invocation -> countLines(invocation.getArgument(0)));
+
+        webTestClient.post().uri("/v1/api/users/sync")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .bodyValue("{\"staffId\":\"1\",\"username\":\"a\"}\n{\"staffId\":\"2\",\"username\":\"b\"}")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.unchanged").isEqualTo(2)
+                .jsonPath("$.rejected").isEqualTo(0);
+    }
+
+    @Test
+    void syncUsers_csv() {
+        when(userSyncService.syncCsv(any())).thenAnswer(invocation -> countLines(invocation.getArgument(0)));
+
+        webTestClient.post().uri("/v1/api/users/sync")
+                .contentType(MediaType.parseMediaType("text/csv"))
+                .bodyValue("staffId,username\r\n1,a\r\n2,b\r\n3,c")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.unchanged").isEqualTo(4);
+    }
+}